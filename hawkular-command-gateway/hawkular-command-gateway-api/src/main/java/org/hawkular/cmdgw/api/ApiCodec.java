@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Writes and reads values of a single type through the Jackson streaming API without any databind introspection.
+ * A {@code <Type>Codec} implementing this interface is generated for each class generated from
+ * {@code schema/*.schema.json}, see {@link ApiMessageRegistry.MessageType#getCodec()}.
+ *
+ * @param <T> the type of values handled by this codec
+ */
+public interface ApiCodec<T> {
+
+    /**
+     * Writes the given {@code value} as a single JSON value to the given {@code generator}.
+     *
+     * @param value the value to write, must not be {@code null}
+     * @param generator the generator to write to
+     * @throws IOException if the value cannot be written
+     */
+    void write(T value, JsonGenerator generator) throws IOException;
+
+    /**
+     * Reads a value from the given {@code parser}. If the parser has no current token, the next token is read
+     * first. When this method returns, the parser is positioned at the last token of the value.
+     *
+     * @param parser the parser to read from
+     * @return the value or {@code null} if the JSON value is {@code null}
+     * @throws IOException if the value cannot be read
+     */
+    T read(JsonParser parser) throws IOException;
+}
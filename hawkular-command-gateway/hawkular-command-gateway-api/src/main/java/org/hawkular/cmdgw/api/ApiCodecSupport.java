@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
+
+/**
+ * Helpers used by the generated {@link ApiCodec}s. The scalar readers follow the coercion rules of Jackson databind:
+ * {@code null} is accepted for any type and scalars are accepted where a string is expected.
+ */
+final class ApiCodecSupport {
+
+    static final ApiCodec<String> STRING = new ApiCodec<String>() {
+        @Override
+        public void write(String value, JsonGenerator generator) throws IOException {
+            generator.writeString(value);
+        }
+
+        @Override
+        public String read(JsonParser parser) throws IOException {
+            return readString(parser);
+        }
+    };
+
+    static final ApiCodec<Boolean> BOOLEAN = new ApiCodec<Boolean>() {
+        @Override
+        public void write(Boolean value, JsonGenerator generator) throws IOException {
+            generator.writeBoolean(value);
+        }
+
+        @Override
+        public Boolean read(JsonParser parser) throws IOException {
+            return readBoolean(parser);
+        }
+    };
+
+    static final ApiCodec<Integer> INTEGER = new ApiCodec<Integer>() {
+        @Override
+        public void write(Integer value, JsonGenerator generator) throws IOException {
+            generator.writeNumber(value);
+        }
+
+        @Override
+        public Integer read(JsonParser parser) throws IOException {
+            return readInteger(parser);
+        }
+    };
+
+    static final ApiCodec<Long> LONG = new ApiCodec<Long>() {
+        @Override
+        public void write(Long value, JsonGenerator generator) throws IOException {
+            generator.writeNumber(value);
+        }
+
+        @Override
+        public Long read(JsonParser parser) throws IOException {
+            return readLong(parser);
+        }
+    };
+
+    static final ApiCodec<Double> DOUBLE = new ApiCodec<Double>() {
+        @Override
+        public void write(Double value, JsonGenerator generator) throws IOException {
+            generator.writeNumber(value);
+        }
+
+        @Override
+        public Double read(JsonParser parser) throws IOException {
+            return readDouble(parser);
+        }
+    };
+
+    /** untyped values, i.e. {@link Map}s, {@link List}s and scalars, are handled by databind */
+    static final ApiCodec<Object> OBJECT = new ApiCodec<Object>() {
+        @Override
+        public void write(Object value, JsonGenerator generator) throws IOException {
+            mapper.writeValue(generator, value);
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return mapper.readValue(parser, Object.class);
+        }
+    };
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private ApiCodecSupport() {
+    }
+
+    /**
+     * @param fromValue the function returning the enum constant for its JSON value
+     * @return a codec of the enum type that writes the {@code toString()} of the constants
+     */
+    static <E extends Enum<E>> ApiCodec<E> enumCodec(Function<String, E> fromValue) {
+        return new ApiCodec<E>() {
+            @Override
+            public void write(E value, JsonGenerator generator) throws IOException {
+                generator.writeString(value.toString());
+            }
+
+            @Override
+            public E read(JsonParser parser) throws IOException {
+                String value = readString(parser);
+                if (value == null) {
+                    return null;
+                }
+                try {
+                    return fromValue.apply(value);
+                } catch (IllegalArgumentException e) {
+                    throw new JsonMappingException("Unexpected enum value [" + value + "]",
+                            parser.getCurrentLocation(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Makes sure that the given {@code parser} is positioned at the start of an object.
+     *
+     * @param parser the parser to check
+     * @return {@code true} if the parser is at the start of an object, {@code false} if it is at {@code null}
+     * @throws IOException if the parser is at neither of the two
+     */
+    static boolean startObject(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            token = parser.nextToken();
+        }
+        if (token == JsonToken.START_OBJECT) {
+            return true;
+        } else if (token == JsonToken.VALUE_NULL) {
+            return false;
+        }
+        throw unexpectedToken(parser, "an object");
+    }
+
+    /**
+     * Handles a property not known to the codec of the given {@code value}: it is either skipped or reported the same
+     * way as Jackson databind does with {@code FAIL_ON_UNKNOWN_PROPERTIES} enabled.
+     *
+     * @param parser the parser positioned at the value of the unknown property
+     * @param value the object being read
+     * @param name the name of the unknown property
+     * @param knownNames the properties known to the codec
+     * @param fail if {@code true}, an {@link UnrecognizedPropertyException} is thrown
+     * @throws IOException if {@code fail} is {@code true} or if the value of the property cannot be skipped
+     */
+    static void unknownProperty(JsonParser parser, Object value, String name, String[] knownNames, boolean fail)
+            throws IOException {
+        if (fail) {
+            throw UnrecognizedPropertyException.from(parser, value, name, Arrays.asList((Object[]) knownNames));
+        }
+        parser.skipChildren();
+    }
+
+    static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        } else if (token == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (token != null && token.isScalarValue()) {
+            return parser.getText();
+        }
+        throw unexpectedToken(parser, "a string");
+    }
+
+    static Boolean readBoolean(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                if ("true".equals(text)) {
+                    return Boolean.TRUE;
+                } else if ("false".equals(text)) {
+                    return Boolean.FALSE;
+                } else if (text.isEmpty()) {
+                    return null;
+                }
+                break;
+            default:
+                break;
+        }
+        throw unexpectedToken(parser, "a boolean");
+    }
+
+    static Integer readInteger(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getIntValue();
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                if (text.isEmpty()) {
+                    return null;
+                }
+                try {
+                    return Integer.valueOf(text);
+                } catch (NumberFormatException e) {
+                    throw new JsonMappingException("Not a valid integer [" + text + "]", parser.getCurrentLocation(),
+                            e);
+                }
+            default:
+                throw unexpectedToken(parser, "an integer");
+        }
+    }
+
+    static Long readLong(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getLongValue();
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                if (text.isEmpty()) {
+                    return null;
+                }
+                try {
+                    return Long.valueOf(text);
+                } catch (NumberFormatException e) {
+                    throw new JsonMappingException("Not a valid long [" + text + "]", parser.getCurrentLocation(), e);
+                }
+            default:
+                throw unexpectedToken(parser, "a long");
+        }
+    }
+
+    static Double readDouble(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                if (text.isEmpty()) {
+                    return null;
+                }
+                try {
+                    return Double.valueOf(text);
+                } catch (NumberFormatException e) {
+                    throw new JsonMappingException("Not a valid double [" + text + "]", parser.getCurrentLocation(),
+                            e);
+                }
+            default:
+                throw unexpectedToken(parser, "a double");
+        }
+    }
+
+    static boolean booleanValue(Boolean value) {
+        return value != null && value.booleanValue();
+    }
+
+    static int intValue(Integer value) {
+        return value == null ? 0 : value.intValue();
+    }
+
+    static long longValue(Long value) {
+        return value == null ? 0L : value.longValue();
+    }
+
+    static double doubleValue(Double value) {
+        return value == null ? 0d : value.doubleValue();
+    }
+
+    static <E> List<E> readList(JsonParser parser, ApiCodec<E> elementCodec) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (token != JsonToken.START_ARRAY) {
+            throw unexpectedToken(parser, "an array");
+        }
+        List<E> result = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            result.add(elementCodec.read(parser));
+        }
+        return result;
+    }
+
+    static <E> Map<String, E> readMap(JsonParser parser, ApiCodec<E> valueCodec) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (token != JsonToken.START_OBJECT) {
+            throw unexpectedToken(parser, "an object");
+        }
+        Map<String, E> result = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            result.put(key, valueCodec.read(parser));
+        }
+        return result;
+    }
+
+    static <E> void writeList(List<E> list, ApiCodec<E> elementCodec, JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        for (E element : list) {
+            if (element == null) {
+                generator.writeNull();
+            } else {
+                elementCodec.write(element, generator);
+            }
+        }
+        generator.writeEndArray();
+    }
+
+    static <E> void writeMap(Map<String, E> map, ApiCodec<E> valueCodec, JsonGenerator generator)
+            throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<String, E> en : map.entrySet()) {
+            generator.writeFieldName(en.getKey());
+            if (en.getValue() == null) {
+                generator.writeNull();
+            } else {
+                valueCodec.write(en.getValue(), generator);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private static JsonMappingException unexpectedToken(JsonParser parser, String expected) {
+        return new JsonMappingException("Expected " + expected + " but found " + parser.getCurrentToken(),
+                parser.getCurrentLocation());
+    }
+}
@@ -16,21 +16,51 @@
  */
 package org.hawkular.cmdgw.api;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-import org.hawkular.bus.common.AbstractMessage;
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
 import org.hawkular.bus.common.BinaryData;
+import org.hawkular.cmdgw.api.ApiMessageRegistry.MessageType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.Feature;
 
 /**
  * Given the special syntax of "apiName=JSON" this will deserialize the JSON into the appropriate API POJO.
+ * <p>
+ * The message classes are resolved through the {@link ApiMessageRegistry} that also caches the JSON readers and
+ * writers. The JSON part is parsed in place, i.e. without creating a substring or a copy of the input first. Large
+ * text messages can be parsed while they are being received, see {@link #deserialize(Reader)}.
+ * <p>
+ * Messages read from an {@link InputStream} can also be encoded in {@link ApiEncoding#SMILE Smile}, see
+ * {@link #toHawkularFormatBytes(BasicMessage, ApiEncoding)}.
  */
 public class ApiDeserializer {
 
-    // note that this assumes this class is in the same package as all the API POJOs
-    private static final String API_PKG = ApiDeserializer.class.getPackage().getName();
+    /** the number of bytes read at once when looking for the separator in an {@link InputStream} */
+    private static final int NAME_BUFFER_SIZE = 128;
+    /** the longest name we are willing to buffer when looking for the separator in an {@link InputStream} */
+    private static final int MAX_NAME_LENGTH = 1024;
+
+    /** {@code ':'}, the first byte of the header a Smile document starts with; a JSON document cannot start with it */
+    private static final byte SMILE_HEADER_FIRST_BYTE = 0x3A;
+
+    /** separates optional parameters from the message name, see {@link AttachmentEncoding} */
+    private static final byte NAME_PARAMETER_SEPARATOR = ';';
+
+    private static final JsonFactory streamJsonFactory = new JsonFactory().configure(Feature.AUTO_CLOSE_SOURCE,
+            false);
 
     /**
      * Returns a string that encodes the given object as a JSON message but then
@@ -43,7 +73,13 @@ public class ApiDeserializer {
      * @return a string that includes the JSON that can be used by other Hawkular endpoints to deserialize the message.
      */
     public static String toHawkularFormat(BasicMessage msg) {
-        return String.format("%s=%s", msg.getClass().getSimpleName(), msg.toJSON());
+        StringWriter out = new StringWriter(256);
+        try {
+            ApiMessageRegistry.forClass(msg.getClass()).writeTo(msg, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Object cannot be parsed as JSON.", e);
+        }
+        return out.toString();
     }
 
     /**
@@ -58,16 +94,69 @@ public class ApiDeserializer {
      * @return an object that can be used by other Hawkular endpoints to deserialize the message.
      */
     public static BinaryData toHawkularFormat(BasicMessage msg, InputStream extraData) {
-        String msgJson = toHawkularFormat(msg);
-        return new BinaryData(msgJson.getBytes(), extraData);
+        return toHawkularFormat(msg, extraData, ApiEncoding.JSON);
+    }
+
+    /**
+     * Same as {@link #toHawkularFormat(BasicMessage, InputStream)} but the message is encoded using the given
+     * {@code encoding}.
+     *
+     * @param msg the message object that will be serialized
+     * @param extraData the extra data to be packages with the given message
+     * @param encoding the encoding to use for the message
+     * @return an object that can be used by other Hawkular endpoints to deserialize the message.
+     */
+    public static BinaryData toHawkularFormat(BasicMessage msg, InputStream extraData, ApiEncoding encoding) {
+        return toHawkularFormat(msg, extraData, encoding, AttachmentEncoding.IDENTITY);
+    }
+
+    /**
+     * Same as {@link #toHawkularFormat(BasicMessage, InputStream, ApiEncoding)} but the {@code extraData} are
+     * additionally encoded (typically compressed) on the fly using the given {@code attachmentEncoding}. The
+     * {@code attachmentEncoding} is signalled as a parameter of the message name so that
+     * {@link #deserialize(InputStream)} can decode the extra data again.
+     *
+     * @param msg the message object that will be serialized
+     * @param extraData the extra data to be packages with the given message
+     * @param encoding the encoding to use for the message
+     * @param attachmentEncoding the encoding to use for the {@code extraData}
+     * @return an object that can be used by other Hawkular endpoints to deserialize the message.
+     */
+    public static BinaryData toHawkularFormat(BasicMessage msg, InputStream extraData, ApiEncoding encoding,
+            AttachmentEncoding attachmentEncoding) {
+        if (attachmentEncoding == AttachmentEncoding.IDENTITY) {
+            return new BinaryData(toHawkularFormatBytes(msg, encoding), extraData);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        MessageType<?> type = ApiMessageRegistry.forClass(msg.getClass());
+        try {
+            out.write(type.getName().getBytes(StandardCharsets.UTF_8));
+            out.write(NAME_PARAMETER_SEPARATOR);
+            out.write(attachmentEncoding.getParameter().getBytes(StandardCharsets.US_ASCII));
+            out.write('=');
+            type.writeBodyTo(msg, encoding, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Object cannot be encoded as " + encoding + ".", e);
+        }
+        return new BinaryData(out.toByteArray(), attachmentEncoding.encode(extraData));
     }
 
-    private static String[] fromHawkularFormat(String msg) {
-        String[] nameAndJsonArray = msg.split("=", 2);
-        if (nameAndJsonArray.length != 2) {
-            throw new IllegalArgumentException("Cannot deserialize: [" + msg + "]");
+    /**
+     * Returns the bytes of the given message in {@link #toHawkularFormat(BasicMessage) Hawkular format}, encoded
+     * using the given {@code encoding}. The bytes can be deserialized via {@link #deserialize(InputStream)}.
+     *
+     * @param msg the message object that will be serialized
+     * @param encoding the encoding to use
+     * @return "apiName=" followed by the encoded message
+     */
+    public static byte[] toHawkularFormatBytes(BasicMessage msg, ApiEncoding encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            ApiMessageRegistry.forClass(msg.getClass()).writeTo(msg, encoding, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Object cannot be encoded as " + encoding + ".", e);
         }
-        return nameAndJsonArray;
+        return out.toByteArray();
     }
 
     public ApiDeserializer() {
@@ -80,25 +169,72 @@ public class ApiDeserializer {
      * @param nameAndJson the string to be deserialized
      * @return the object represented by the JSON
      */
+    @SuppressWarnings("unchecked")
     public <T extends BasicMessage> BasicMessageWithExtraData<T> deserialize(String nameAndJson) {
-        String[] nameAndJsonArray = fromHawkularFormat(nameAndJson);
-        String name = nameAndJsonArray[0];
-        String json = nameAndJsonArray[1];
-
-        // The name is the actual name of the POJO that is used to deserialize the JSON.
-        // If not fully qualified with a package then assume it is in our package.
-        if (name.indexOf(".") == -1) {
-            name = String.format("%s.%s", API_PKG, name);
+        int separatorIndex = nameAndJson.indexOf('=');
+        if (separatorIndex < 0) {
+            throw new IllegalArgumentException("Cannot deserialize: [" + nameAndJson + "]");
         }
 
         try {
-            Class<T> pojo = (Class<T>) Class.forName(name);
-            return new BasicMessageWithExtraData(AbstractMessage.fromJSON(json, pojo), null);
+            MessageType<T> type = (MessageType<T>) ApiMessageRegistry.forName(nameAndJson, 0, separatorIndex);
+            StringReader json = new StringReader(nameAndJson);
+            json.skip(separatorIndex + 1);
+            return new BasicMessageWithExtraData<>(type.read(json), null);
         } catch (Exception e) {
             throw new RuntimeException("Cannot deserialize: [" + nameAndJson + "]", e);
         }
     }
 
+    /**
+     * Reads a JSON string in {@link #toHawkularFormat(BasicMessage) Hawkular format} from the given {@code input}.
+     * Unlike {@link #deserialize(String)}, this does not need the whole message in memory: the name is read up to the
+     * separator and the JSON is then parsed incrementally as it is read from the {@code input}. The {@code input} is
+     * closed when this method returns.
+     *
+     * @param input the reader to read the message from
+     * @return the object represented by the JSON
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends BasicMessage> BasicMessageWithExtraData<T> deserialize(Reader input) {
+        char[] name = new char[NAME_BUFFER_SIZE];
+        int nameLength = 0;
+        try {
+            int c;
+            /* char by char so that the JSON reader gets the input right after the separator */
+            while ((c = input.read()) != '=') {
+                if (c < 0) {
+                    throw new RuntimeException("Cannot deserialize: [" + new String(name, 0, nameLength)
+                            + "] - no separator found");
+                }
+                if (nameLength == name.length) {
+                    if (nameLength >= MAX_NAME_LENGTH) {
+                        throw new RuntimeException("Cannot deserialize reader - no separator found in the first ["
+                                + nameLength + "] characters");
+                    }
+                    name = Arrays.copyOf(name, nameLength * 2);
+                }
+                name[nameLength++] = (char) c;
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Cannot deserialize reader due to read error", ioe);
+        }
+
+        String nameString = new String(name, 0, nameLength);
+        final MessageType<T> type;
+        try {
+            type = (MessageType<T>) ApiMessageRegistry.forName(nameString, 0, nameLength);
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot deserialize reader with object [" + nameString + "]", e);
+        }
+        try (Reader json = input) {
+            return new BasicMessageWithExtraData<>(type.read(json), null);
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot deserialize reader with object [" + type.getType().getName() + "]",
+                    e);
+        }
+    }
+
     /**
      * Reads a JSON string in {@link #toHawkularFormat(BasicMessage) Hawkular format} that
      * is found in the given input stream and converts the JSON string to a particular message object.
@@ -108,7 +244,8 @@ public class ApiDeserializer {
      * that wasn't part of the JSON message but was part of the extra data that came with it. Because of this,
      * the caller should no longer use the given stream but instead read the extra data via the returned
      * object (see {@link BasicMessageWithExtraData#getBinaryData()}) since it will handle this condition
-     * properly.
+     * properly. If the extra data were encoded with an {@link AttachmentEncoding}, the returned {@link BinaryData}
+     * decodes them on the fly.
      *
      * @param in input stream that has the Hawkular formatted JSON string at the head.
      *
@@ -116,41 +253,92 @@ public class ApiDeserializer {
      *         in the stream. This returned POJO will also contain a {@link BinaryData} object that you
      *         can use to stream any additional data that came in the given input stream.
      */
+    @SuppressWarnings("unchecked")
     public <T extends BasicMessage> BasicMessageWithExtraData<T> deserialize(InputStream input) {
         // We know the format is "name=json" with possible extra data after it.
-        // So first find the "name"
-        StringBuilder nameBuilder = new StringBuilder();
-        boolean foundSeparator = false;
-        while (!foundSeparator) {
-            int currentChar;
+        // So first find the "name", reading in chunks rather than byte by byte
+        byte[] head = new byte[NAME_BUFFER_SIZE];
+        int headLength = 0;
+        int separatorIndex = -1;
+        while (separatorIndex < 0) {
+            if (headLength == head.length) {
+                if (headLength >= MAX_NAME_LENGTH) {
+                    throw new RuntimeException("Cannot deserialize stream - no separator found in the first ["
+                            + headLength + "] bytes");
+                }
+                head = Arrays.copyOf(head, headLength * 2);
+            }
+            int numRead;
             try {
-                currentChar = input.read();
+                numRead = input.read(head, headLength, head.length - headLength);
             } catch (IOException ioe) {
                 throw new RuntimeException("Cannot deserialize stream due to read error", ioe);
             }
-            if (currentChar == -1) {
+            if (numRead == -1) {
                 throw new RuntimeException("Cannot deserialize stream - doesn't look valid");
-            } else if (currentChar == '=') {
-                foundSeparator = true;
-            } else {
-                nameBuilder.append((char) currentChar);
             }
+            for (int i = headLength; i < headLength + numRead; i++) {
+                if (head[i] == '=') {
+                    separatorIndex = i;
+                    break;
+                }
+            }
+            headLength += numRead;
         }
 
-        // The name is the actual name of the POJO that is used to deserialize the JSON.
-        // If not fully qualified with a package then assume it is in our package.
-        String name = nameBuilder.toString();
-        if (name.indexOf(".") == -1) {
-            name = String.format("%s.%s", API_PKG, name);
+        // the name may be followed by ";parameter", see AttachmentEncoding
+        int nameEnd = 0;
+        while (nameEnd < separatorIndex && head[nameEnd] != NAME_PARAMETER_SEPARATOR) {
+            nameEnd++;
         }
-
-        // We now have the name and the input stream is pointing at the JSON
+        final MessageType<T> type;
+        final AttachmentEncoding attachmentEncoding;
         try {
-            Class<T> pojo = (Class<T>) Class.forName(name);
-            BasicMessageWithExtraData<T> results = AbstractMessage.fromJSON(input, pojo);
-            return results;
+            type = (MessageType<T>) ApiMessageRegistry.forName(head, 0, nameEnd);
+            attachmentEncoding = nameEnd == separatorIndex ? AttachmentEncoding.IDENTITY
+                    : AttachmentEncoding.forParameter(new String(head, nameEnd + 1, separatorIndex - nameEnd - 1,
+                            StandardCharsets.US_ASCII));
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot deserialize stream with object ["
+                    + new String(head, 0, separatorIndex, StandardCharsets.UTF_8) + "]", e);
+        }
+
+        // We now have the name; the message starts with whatever we have read past the separator.
+        // We need its first byte to tell JSON from Smile.
+        int jsonStart = separatorIndex + 1;
+        if (jsonStart == headLength) {
+            if (headLength == head.length) {
+                head = Arrays.copyOf(head, headLength + 1);
+            }
+            int numRead;
+            try {
+                numRead = input.read(head, headLength, head.length - headLength);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Cannot deserialize stream due to read error", ioe);
+            }
+            if (numRead == -1) {
+                throw new RuntimeException("Cannot deserialize stream - no message after [" + type.getName() + "=]");
+            }
+            headLength += numRead;
+        }
+        final boolean smile = head[jsonStart] == SMILE_HEADER_FIRST_BYTE;
+        InputStream json = new SequenceInputStream(new ByteArrayInputStream(head, jsonStart, headLength - jsonStart),
+                input);
+        final T obj;
+        final byte[] remainder;
+        try (JsonParser parser = smile ? ApiMessageRegistry.smileFactory.createParser(json)
+                : streamJsonFactory.createParser(json)) {
+            obj = type.read(parser);
+            final ByteArrayOutputStream remainderStream = new ByteArrayOutputStream();
+            final int released = parser.releaseBuffered(remainderStream);
+            remainder = (released > 0) ? remainderStream.toByteArray() : new byte[0];
         } catch (Exception e) {
-            throw new RuntimeException("Cannot deserialize stream with object [" + name + "]", e);
+            throw new RuntimeException("Cannot deserialize stream with object [" + type.getType().getName() + "]", e);
+        }
+        BinaryData extraData = new BinaryData(remainder, json);
+        if (attachmentEncoding != AttachmentEncoding.IDENTITY) {
+            extraData = new BinaryData(new byte[0], attachmentEncoding.decode(extraData));
         }
+        return new BasicMessageWithExtraData<T>(obj, extraData);
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+/**
+ * The encodings of the "apiName=..." messages exchanged with WebSocket clients. A client chooses the encoding of the
+ * messages it receives by requesting the respective WebSocket subprotocol when connecting. {@link #JSON} is used if
+ * the client requests no subprotocol.
+ * <p>
+ * Clients may send messages in either encoding regardless of the negotiated subprotocol:
+ * {@link ApiDeserializer#deserialize(java.io.InputStream)} detects Smile by its header.
+ */
+public enum ApiEncoding {
+    /** "apiName=JSON" sent in text frames or, if there is extra binary data, in binary frames */
+    JSON(ApiEncoding.JSON_SUBPROTOCOL),
+    /** "apiName=" followed by a <a href="https://github.com/FasterXML/smile-format-specification">Smile</a>
+     * document, always sent in binary frames */
+    SMILE(ApiEncoding.SMILE_SUBPROTOCOL);
+
+    public static final String JSON_SUBPROTOCOL = "hawkular-json";
+    public static final String SMILE_SUBPROTOCOL = "hawkular-smile";
+
+    /**
+     * @param subprotocol the negotiated WebSocket subprotocol, can be {@code null} or empty
+     * @return the {@link ApiEncoding} for the given {@code subprotocol}, {@link #JSON} if the {@code subprotocol} is
+     *         {@code null}, empty or unknown
+     */
+    public static ApiEncoding forSubprotocol(String subprotocol) {
+        return SMILE_SUBPROTOCOL.equals(subprotocol) ? SMILE : JSON;
+    }
+
+    private final String subprotocol;
+
+    ApiEncoding(String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
+    /**
+     * @return the name of the WebSocket subprotocol selecting this encoding
+     */
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hawkular.bus.common.AbstractMessage;
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.msg.features.FailOnUnknownProperties;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * A registry of the message types that can be sent in the {@link ApiDeserializer "apiName=JSON"} format. Each
+ * {@link MessageType} caches the Jackson {@link ObjectReader} and {@link ObjectWriter} of its class so that no
+ * {@link ObjectMapper} needs to be built and no {@link Class#forName(String)} needs to be called per message.
+ * <p>
+ * The API message classes generated from {@code schema/*.schema.json} are registered upfront under both their simple
+ * and fully qualified names. Their list is generated along with their codecs by {@code ApiCodecProcessor}, see
+ * below. Any other {@link BasicMessage} class is resolved through {@link Class#forName(String)} the first time its
+ * name is seen and then cached.
+ * <p>
+ * The classes generated from the schema files have an {@link ApiCodec} generated at build time by
+ * {@code ApiCodecProcessor} from the {@code hawkular-command-gateway-codegen} module. Such classes are written and
+ * read through their codec rather than through the {@link ObjectReader} and {@link ObjectWriter} unless they declare
+ * their own {@code buildObjectMapperForSerialization()} or {@code buildObjectMapperForDeserialization()}.
+ */
+public final class ApiMessageRegistry {
+
+    /**
+     * A message class together with its cached JSON reader and writer.
+     *
+     * @param <T> the message class
+     */
+    public static final class MessageType<T extends BasicMessage> {
+        private final Class<T> type;
+        private final String name;
+        private final byte[] prefixBytes;
+        private final ObjectReader reader;
+        /** {@code null} if the class has its own {@code buildObjectMapperForSerialization()} */
+        private final ObjectWriter writer;
+        /** {@code null} if there is no generated codec or if the class has its own mapper */
+        private final ApiCodec<T> codec;
+
+        @SuppressWarnings("unchecked")
+        private MessageType(Class<T> type) {
+            this.type = type;
+            this.name = type.getSimpleName();
+            this.prefixBytes = (name + "=").getBytes(StandardCharsets.UTF_8);
+            this.reader = buildReader(type);
+            this.writer = overridesMapper(type, "buildObjectMapperForSerialization") ? null : DEFAULT_WRITER;
+            this.codec = writer == null || overridesMapper(type, "buildObjectMapperForDeserialization") ? null
+                    : (ApiCodec<T>) ApiCodecs.forClass(type);
+        }
+
+        /**
+         * @return the message class
+         */
+        public Class<T> getType() {
+            return type;
+        }
+
+        /**
+         * @return the name used in the "apiName=JSON" format, i.e. the simple name of the class
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the {@link ApiCodec} used to write and read messages of this type or {@code null} if the
+         *         {@link ObjectReader} and {@link ObjectWriter} are used
+         */
+        public ApiCodec<T> getCodec() {
+            return codec;
+        }
+
+        /**
+         * Reads a message of this type from the given {@code parser}.
+         *
+         * @param parser the parser positioned at the start of the JSON object
+         * @return the message
+         * @throws IOException if the JSON cannot be read
+         */
+        public T read(JsonParser parser) throws IOException {
+            return codec == null ? reader.readValue(parser) : codec.read(parser);
+        }
+
+        /**
+         * Reads a message of this type from the given {@code json} reader.
+         *
+         * @param json the JSON source
+         * @return the message
+         * @throws IOException if the JSON cannot be read
+         */
+        public T read(Reader json) throws IOException {
+            if (codec == null) {
+                return reader.readValue(json);
+            }
+            try (JsonParser parser = jsonFactory.createParser(json)) {
+                return codec.read(parser);
+            }
+        }
+
+        /**
+         * Writes the "apiName=" prefix followed by the JSON representation of the given {@code message} to the given
+         * {@code out}.
+         *
+         * @param message the message to write
+         * @param out the writer to write to
+         * @throws IOException if the message cannot be written
+         */
+        public void writeTo(BasicMessage message, Writer out) throws IOException {
+            out.write(name);
+            out.write('=');
+            if (writer == null) {
+                out.write(message.toJSON());
+            } else if (codec == null) {
+                writer.writeValue(out, message);
+            } else {
+                try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+                    codec.write(type.cast(message), generator);
+                }
+            }
+        }
+
+        /**
+         * Writes the "apiName=" prefix followed by the representation of the given {@code message} in the given
+         * {@code encoding} to the given {@code out}. The {@code out} stream is not closed.
+         *
+         * @param message the message to write
+         * @param encoding the encoding to use, JSON is written in UTF-8
+         * @param out the stream to write to
+         * @throws IOException if the message cannot be written
+         */
+        public void writeTo(BasicMessage message, ApiEncoding encoding, OutputStream out) throws IOException {
+            out.write(prefixBytes);
+            writeBodyTo(message, encoding, out);
+        }
+
+        /**
+         * Same as {@link #writeTo(BasicMessage, ApiEncoding, OutputStream)} but without the "apiName=" prefix.
+         *
+         * @param message the message to write
+         * @param encoding the encoding to use, JSON is written in UTF-8
+         * @param out the stream to write to
+         * @throws IOException if the message cannot be written
+         */
+        public void writeBodyTo(BasicMessage message, ApiEncoding encoding, OutputStream out) throws IOException {
+            switch (encoding) {
+                case SMILE:
+                    try (JsonGenerator generator = smileFactory.createGenerator(out)) {
+                        if (writer == null) {
+                            /* transcode the JSON produced by the custom mapper of the message class */
+                            try (JsonParser parser = jsonFactory.createParser(message.toJSON())) {
+                                parser.nextToken();
+                                generator.copyCurrentStructure(parser);
+                            }
+                        } else {
+                            write(message, generator);
+                        }
+                    }
+                    break;
+                default:
+                    if (writer == null) {
+                        out.write(message.toJSON().getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+                            write(message, generator);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        private void write(BasicMessage message, JsonGenerator generator) throws IOException {
+            if (codec == null) {
+                writer.writeValue(generator, message);
+            } else {
+                codec.write(type.cast(message), generator);
+            }
+        }
+    }
+
+    // note that this assumes this class is in the same package as all the API POJOs
+    private static final String API_PKG = ApiMessageRegistry.class.getPackage().getName();
+
+    private static final ObjectWriter DEFAULT_WRITER = buildDefaultWriter();
+
+    private static final JsonFactory jsonFactory = new JsonFactory()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    /** creates parsers and generators that do not close the underlying streams */
+    static final SmileFactory smileFactory = (SmileFactory) new SmileFactory()
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    /** an open addressing hash table of the API message types keyed by both simple and fully qualified names */
+    private static final String[] tableKeys;
+    private static final MessageType<?>[] tableValues;
+    private static final int tableMask;
+
+    /** the types looked up by a name not present in the above table */
+    private static final ConcurrentMap<String, MessageType<?>> dynamicTypes = new ConcurrentHashMap<>();
+
+    private static final ClassValue<MessageType<?>> typesByClass = new ClassValue<MessageType<?>>() {
+        @Override
+        protected MessageType<?> computeValue(Class<?> type) {
+            MessageType<?> result = lookup(type.getName());
+            return result != null && result.type == type ? result : newMessageType(type);
+        }
+    };
+
+    static {
+        int size = Integer.highestOneBit(ApiCodecs.MESSAGE_CLASSES.size() * 4 - 1) << 1;
+        tableKeys = new String[size];
+        tableValues = new MessageType<?>[size];
+        tableMask = size - 1;
+        /* the classes generated from schema/*.schema.json as listed by the ApiCodecProcessor */
+        for (Class<?> cl : ApiCodecs.MESSAGE_CLASSES) {
+            MessageType<?> type = newMessageType(cl);
+            put(cl.getSimpleName(), type);
+            put(cl.getName(), type);
+        }
+    }
+
+    private ApiMessageRegistry() {
+    }
+
+    /**
+     * Returns the {@link MessageType} for the given message class.
+     *
+     * @param type the message class
+     * @return the {@link MessageType}, never {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends BasicMessage> MessageType<T> forClass(Class<T> type) {
+        return (MessageType<T>) typesByClass.get(type);
+    }
+
+    /**
+     * Tells whether the given fully qualified class name is one of the API message classes generated from the
+     * schema. No class is loaded.
+     *
+     * @param className the fully qualified name of a class
+     * @return {@code true} if {@code className} names an API message class; {@code false} otherwise
+     */
+    public static boolean isApiMessageClass(String className) {
+        MessageType<?> type = lookup(className);
+        return type != null && type.type.getName().equals(className);
+    }
+
+    /**
+     * Returns the {@link MessageType} for the name found in {@code text} between {@code start} (inclusive) and
+     * {@code end} (exclusive). The name can be either the simple name of an API message class or a fully qualified
+     * class name. A substring is created only if the name is not one of the preregistered API message classes.
+     *
+     * @param text the text containing the name
+     * @param start the index of the first character of the name
+     * @param end the index after the last character of the name
+     * @return the {@link MessageType}, never {@code null}
+     * @throws IllegalArgumentException if no {@link BasicMessage} class can be found for the name
+     */
+    public static MessageType<?> forName(String text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        for (int i = spread(hash) & tableMask; tableKeys[i] != null; i = (i + 1) & tableMask) {
+            String key = tableKeys[i];
+            if (key.length() == end - start && text.regionMatches(start, key, 0, key.length())) {
+                return tableValues[i];
+            }
+        }
+        return forUnregisteredName(text.substring(start, end));
+    }
+
+    /**
+     * Same as {@link #forName(String, int, int)} but the name is given as US-ASCII or UTF-8 encoded bytes.
+     *
+     * @param bytes the bytes containing the name
+     * @param offset the index of the first byte of the name
+     * @param length the number of bytes of the name
+     * @return the {@link MessageType}, never {@code null}
+     * @throws IllegalArgumentException if no {@link BasicMessage} class can be found for the name
+     */
+    public static MessageType<?> forName(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                /* not US-ASCII, so it cannot be in the table */
+                return forUnregisteredName(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + b;
+        }
+        for (int i = spread(hash) & tableMask; tableKeys[i] != null; i = (i + 1) & tableMask) {
+            String key = tableKeys[i];
+            if (key.length() == length && regionMatches(key, bytes, offset)) {
+                return tableValues[i];
+            }
+        }
+        return forUnregisteredName(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+    }
+
+    private static MessageType<?> lookup(String name) {
+        int hash = spread(name.hashCode());
+        for (int i = hash & tableMask; tableKeys[i] != null; i = (i + 1) & tableMask) {
+            if (tableKeys[i].equals(name)) {
+                return tableValues[i];
+            }
+        }
+        return null;
+    }
+
+    private static MessageType<?> forUnregisteredName(String name) {
+        MessageType<?> result = dynamicTypes.get(name);
+        if (result == null) {
+            // The name is the actual name of the POJO that is used to deserialize the JSON.
+            // If not fully qualified with a package then assume it is in our package.
+            String className = name.indexOf('.') == -1 ? API_PKG + "." + name : name;
+            try {
+                result = forClass(Class.forName(className).asSubclass(BasicMessage.class));
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IllegalArgumentException("Cannot find message class [" + className + "]", e);
+            }
+            dynamicTypes.putIfAbsent(name, result);
+        }
+        return result;
+    }
+
+    private static void put(String key, MessageType<?> value) {
+        int i = spread(key.hashCode()) & tableMask;
+        while (tableKeys[i] != null) {
+            i = (i + 1) & tableMask;
+        }
+        tableKeys[i] = key;
+        tableValues[i] = value;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionMatches(String key, byte[] bytes, int offset) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static MessageType<?> newMessageType(Class<?> type) {
+        return new MessageType(type.asSubclass(BasicMessage.class));
+    }
+
+    /**
+     * Builds the reader the same way as {@link AbstractMessage#fromJSON(String, Class)} configures its
+     * {@link ObjectMapper}, honoring a {@code buildObjectMapperForDeserialization()} method declared in the message
+     * class or its superclasses.
+     */
+    private static ObjectReader buildReader(Class<?> type) {
+        try {
+            Method m = findDeclaredMethod(type, "buildObjectMapperForDeserialization");
+            final ObjectMapper mapper;
+            if (m == null) {
+                mapper = new ObjectMapper();
+                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            } else {
+                m.setAccessible(true);
+                mapper = (ObjectMapper) m.invoke(null);
+            }
+            if (FailOnUnknownProperties.class.isAssignableFrom(type)) {
+                mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+            }
+            return mapper.reader(type);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot build JSON reader for [" + type + "]", e);
+        }
+    }
+
+    /**
+     * Builds the writer the same way as {@code AbstractMessage.buildObjectMapperForSerialization()} does.
+     */
+    private static ObjectWriter buildDefaultWriter() {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.setVisibilityChecker(mapper.getSerializationConfig().getDefaultVisibilityChecker()
+                .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+                .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withSetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
+        return mapper.writer();
+    }
+
+    private static boolean overridesMapper(Class<?> type, String methodName) {
+        if (!AbstractMessage.class.isAssignableFrom(type)) {
+            return true;
+        }
+        for (Class<?> cl = type; cl != AbstractMessage.class; cl = cl.getSuperclass()) {
+            if (Arrays.stream(cl.getDeclaredMethods())
+                    .anyMatch(m -> m.getName().equals(methodName)
+                            && m.getParameterCount() == 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Method findDeclaredMethod(Class<?> type, String name) {
+        for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+            try {
+                return cl.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e) {
+                // the given subclass doesn't have the method, maybe its superclass does
+            }
+        }
+        return null;
+    }
+}
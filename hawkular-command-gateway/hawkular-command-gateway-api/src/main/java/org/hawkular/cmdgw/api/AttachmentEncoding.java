@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.io.InputStream;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The encodings of the extra binary data (the attachment) that may follow a message in a binary WebSocket frame.
+ * <p>
+ * A non-{@link #IDENTITY} encoding of the attachment is signalled as a parameter of the message name, e.g.
+ * {@code DeployApplicationRequest;deflate={...}<deflated archive>}. Clients that want to receive compressed
+ * attachments request it by adding the {@value #REQUEST_PARAMETER} request parameter to the URL they connect to, e.g.
+ * {@code /hawkular/command-gateway/feed/myFeed?attachmentEncoding=deflate}. Compressed attachments sent by clients are
+ * always accepted.
+ * <p>
+ * Both compression and decompression are streaming: no attachment is ever held in memory as a whole.
+ */
+public enum AttachmentEncoding {
+    /** The attachment is sent as is */
+    IDENTITY(null) {
+        @Override
+        public InputStream encode(InputStream attachment) {
+            return attachment;
+        }
+
+        @Override
+        public InputStream decode(InputStream attachment) {
+            return attachment;
+        }
+    },
+    /** The attachment is compressed in the zlib format, see {@link DeflaterInputStream} */
+    DEFLATE("deflate") {
+        @Override
+        public InputStream encode(InputStream attachment) {
+            return new DeflaterInputStream(attachment);
+        }
+
+        @Override
+        public InputStream decode(InputStream attachment) {
+            return new InflaterInputStream(attachment);
+        }
+    };
+
+    /** The name of the WebSocket handshake request parameter a client uses to request an attachment encoding */
+    public static final String REQUEST_PARAMETER = "attachmentEncoding";
+
+    /**
+     * @param parameter the value of the {@value #REQUEST_PARAMETER} request parameter or of the message name
+     *        parameter, can be {@code null}
+     * @return the matching {@link AttachmentEncoding}, {@link #IDENTITY} if {@code parameter} is {@code null}
+     * @throws IllegalArgumentException if the {@code parameter} names an unknown encoding
+     */
+    public static AttachmentEncoding forParameter(String parameter) {
+        if (parameter == null || parameter.isEmpty()) {
+            return IDENTITY;
+        }
+        for (AttachmentEncoding encoding : values()) {
+            if (parameter.equals(encoding.parameter)) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown attachment encoding [" + parameter + "]");
+    }
+
+    private final String parameter;
+
+    AttachmentEncoding(String parameter) {
+        this.parameter = parameter;
+    }
+
+    /**
+     * @return the name of this encoding as used in the message name and in the {@value #REQUEST_PARAMETER} request
+     *         parameter or {@code null} for {@link #IDENTITY}
+     */
+    public String getParameter() {
+        return parameter;
+    }
+
+    /**
+     * @param attachment the plain attachment
+     * @return a stream providing the {@code attachment} encoded lazily as it is read
+     */
+    public abstract InputStream encode(InputStream attachment);
+
+    /**
+     * @param attachment the encoded attachment
+     * @return a stream providing the {@code attachment} decoded lazily as it is read
+     */
+    public abstract InputStream decode(InputStream attachment);
+}
@@ -43,6 +43,11 @@ public class GenericErrorResponseBuilder {
         return this;
     }
 
+    public GenericErrorResponseBuilder setSenderRequestId(String senderRequestId) {
+        this.response.setSenderRequestId(senderRequestId);
+        return this;
+    }
+
     public GenericErrorResponseBuilder setUsername(String username) {
         populateAuthentication().setUsername(username);
         return this;
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
+
+public class ApiCodecTest {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    @Test
+    public void testAllSchemaClassesHaveCodec() {
+        for (Class<?> cl : ApiCodecs.MESSAGE_CLASSES) {
+            Assert.assertNotNull("No codec for " + cl,
+                    ApiMessageRegistry.forClass(cl.asSubclass(BasicMessage.class)).getCodec());
+        }
+        Assert.assertNotNull(ApiCodecs.forClass(Authentication.class));
+        Assert.assertNotNull(ApiCodecs.forClass(FanOutResult.class));
+    }
+
+    @Test
+    public void testSameJsonAsDatabind() throws IOException {
+        Authentication auth = new Authentication();
+        auth.setUsername("user");
+        auth.setPassword("pässword");
+
+        AddDatasourceRequest addDatasource = new AddDatasourceRequest();
+        addDatasource.setAuthentication(auth);
+        addDatasource.setFeedId("feed");
+        addDatasource.setResourceId("res");
+        addDatasource.setXaDatasource(true);
+        addDatasource.setDatasourceName("ds \"quoted\"");
+        Map<String, String> props = new LinkedHashMap<>();
+        props.put("a", "1");
+        props.put("b", null);
+        addDatasource.setDatasourceProperties(props);
+        assertRoundTrip(addDatasource);
+
+        StatisticsControlRequest statisticsControl = new StatisticsControlRequest();
+        statisticsControl.setWeb(StatisticsSetting.ENABLED);
+        statisticsControl.setEjb3(StatisticsSetting.DISABLED);
+        assertRoundTrip(statisticsControl);
+
+        ExecuteOperationResponse operationResponse = new ExecuteOperationResponse();
+        operationResponse.setStatus(ResponseStatus.ERROR);
+        operationResponse.setServerRefreshIndicator(ServerRefreshIndicator.RELOAD_REQUIRED);
+        operationResponse.setMessage("failed");
+        assertRoundTrip(operationResponse);
+
+        FanOutRequest fanOutRequest = new FanOutRequest();
+        fanOutRequest.setFeedIds(Arrays.asList("f1", "f2"));
+        fanOutRequest.setRequestName("ExecuteOperationRequest");
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("operationName", "Reload");
+        request.put("parameters", Collections.singletonMap("restart", true));
+        request.put("count", 3);
+        fanOutRequest.setRequest(request);
+        fanOutRequest.setTimeoutMs(1000);
+        assertRoundTrip(fanOutRequest);
+
+        FanOutResult result = new FanOutResult();
+        result.setFeedId("f1");
+        result.setStatus(FanOutStatus.TIMEOUT);
+        FanOutResponse fanOutResponse = new FanOutResponse();
+        fanOutResponse.setResults(Arrays.asList(result, null));
+        assertRoundTrip(fanOutResponse);
+
+        assertRoundTrip(new EchoRequest());
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        ExecuteOperationRequest request = read(ExecuteOperationRequest.class,
+                "{\"operationName\":\"Reload\",\"parameters\":null,\"feedId\":null}");
+        Assert.assertEquals("Reload", request.getOperationName());
+        Assert.assertNull(request.getParameters());
+        Assert.assertNull(request.getFeedId());
+
+        AddDatasourceRequest addDatasource = read(AddDatasourceRequest.class,
+                "{\"xaDatasource\":\"true\",\"datasourceName\":42}");
+        Assert.assertTrue(addDatasource.isXaDatasource());
+        Assert.assertEquals("42", addDatasource.getDatasourceName());
+
+        FanOutRequest fanOutRequest = read(FanOutRequest.class, "{\"timeoutMs\":\"15\"}");
+        Assert.assertEquals(Integer.valueOf(15), fanOutRequest.getTimeoutMs());
+        Assert.assertEquals(Collections.emptyList(), fanOutRequest.getFeedIds());
+
+        try {
+            read(ExecuteOperationResponse.class, "{\"status\":\"MAYBE\"}");
+            Assert.fail("JsonMappingException expected");
+        } catch (com.fasterxml.jackson.databind.JsonMappingException expected) {
+        }
+    }
+
+    @Test
+    public void testUnknownProperties() throws IOException {
+        /* FanOutResult does not implement FailOnUnknownProperties */
+        FanOutResult result = FanOutResultCodec.INSTANCE
+                .read(jsonFactory.createParser("{\"unknown\":{\"nested\":[1,2]},\"feedId\":\"f\"}"));
+        Assert.assertEquals("f", result.getFeedId());
+
+        try {
+            read(EchoRequest.class, "{\"boo\":\"msg\"}");
+            Assert.fail("UnrecognizedPropertyException expected");
+        } catch (UnrecognizedPropertyException expected) {
+            Assert.assertEquals("boo", expected.getPropertyName());
+        }
+    }
+
+    private static <T extends BasicMessage> T read(Class<T> type, String json) throws IOException {
+        return ApiMessageRegistry.forClass(type).read(new StringReader(json));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends BasicMessage> void assertRoundTrip(T message) throws IOException {
+        ApiCodec<T> codec = ApiMessageRegistry.forClass((Class<T>) message.getClass()).getCodec();
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            codec.write(message, generator);
+        }
+        String json = out.toString();
+        Assert.assertEquals(message.toJSON(), json);
+
+        T copy;
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            copy = codec.read(parser);
+        }
+        Assert.assertEquals(json, copy.toJSON());
+    }
+}
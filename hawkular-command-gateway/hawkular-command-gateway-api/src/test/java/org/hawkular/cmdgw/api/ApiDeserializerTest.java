@@ -17,7 +17,9 @@
 package org.hawkular.cmdgw.api;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Scanner;
 
@@ -70,6 +72,23 @@ public class ApiDeserializerTest {
         Assert.assertEquals("msg", echoRequest.getEchoMessage());
     }
 
+    @Test
+    public void testApiDeserializerReader() {
+        ApiDeserializer ad = new ApiDeserializer();
+
+        String nameAndJson = EchoRequest.class.getName() + "={\"echoMessage\":\"msg=x\"}";
+        BasicMessage request = ad.deserialize(new StringReader(nameAndJson)).getBasicMessage();
+        Assert.assertTrue(request instanceof EchoRequest);
+        Assert.assertEquals("msg=x", ((EchoRequest) request).getEchoMessage());
+
+        try {
+            ad.deserialize(new StringReader(EchoRequest.class.getName()));
+            Assert.fail("Should not have deserialized a message without separator, RuntimeException expected.");
+        } catch (RuntimeException expected) {
+            Assert.assertTrue(expected.getMessage().contains("no separator"));
+        }
+    }
+
     @Test
     public void testApiDeserializerError() {
         ApiDeserializer ad = new ApiDeserializer();
@@ -261,6 +280,80 @@ public class ApiDeserializerTest {
         Assert.assertEquals(0, in.available());
     }
 
+    @Test
+    public void testSmile() throws IOException {
+        ExecuteOperationRequest pojo = new ExecuteOperationRequest();
+        pojo.setOperationName("opname");
+        pojo.setFeedId("feedid");
+        pojo.setResourceId("resid");
+        pojo.setParameters(new HashMap<String, String>());
+        pojo.getParameters().put("one", "1");
+
+        byte[] smile = ApiDeserializer.toHawkularFormatBytes(pojo, ApiEncoding.SMILE);
+        Assert.assertEquals(':', smile["ExecuteOperationRequest=".length()]);
+
+        ApiDeserializer ad = new ApiDeserializer();
+        BasicMessageWithExtraData<ExecuteOperationRequest> map = ad
+                .deserialize(new UncloseableByteArrayInputStream(smile));
+        ExecuteOperationRequest newpojo = map.getBasicMessage();
+        Assert.assertEquals(pojo.getOperationName(), newpojo.getOperationName());
+        Assert.assertEquals(pojo.getFeedId(), newpojo.getFeedId());
+        Assert.assertEquals(pojo.getResourceId(), newpojo.getResourceId());
+        Assert.assertEquals(pojo.getParameters(), newpojo.getParameters());
+        Assert.assertEquals(0, map.getBinaryData().available());
+    }
+
+    @Test
+    public void testSmileWithExtraData() throws IOException {
+        final String testMessage = "this is the message";
+        final String testExtraData = "this is extra data";
+
+        GenericSuccessResponse msg = new GenericSuccessResponse();
+        msg.setMessage(testMessage);
+        BinaryData fullData = ApiDeserializer.toHawkularFormat(msg,
+                new ByteArrayInputStream(testExtraData.getBytes("UTF-8")), ApiEncoding.SMILE);
+
+        BasicMessageWithExtraData<GenericSuccessResponse> deserializedFullData = new ApiDeserializer()
+                .deserialize(fullData);
+        String deserializedExtraDataString = new Scanner(deserializedFullData.getBinaryData(), "UTF-8")
+                .useDelimiter("\\A").next();
+        Assert.assertEquals(testMessage, deserializedFullData.getBasicMessage().getMessage());
+        Assert.assertEquals(testExtraData, deserializedExtraDataString);
+    }
+
+    @Test
+    public void testDeflatedExtraData() throws IOException {
+        final String testMessage = "this is the message";
+        StringBuilder testExtraData = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            testExtraData.append("line ").append(i).append(" of a compressible report\n");
+        }
+        byte[] testExtraDataBytes = testExtraData.toString().getBytes("UTF-8");
+
+        GenericSuccessResponse msg = new GenericSuccessResponse();
+        msg.setMessage(testMessage);
+        for (ApiEncoding encoding : ApiEncoding.values()) {
+            BinaryData fullData = ApiDeserializer.toHawkularFormat(msg, new ByteArrayInputStream(testExtraDataBytes),
+                    encoding, AttachmentEncoding.DEFLATE);
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int len; (len = fullData.read(buffer)) != -1;) {
+                wire.write(buffer, 0, len);
+            }
+            byte[] wireBytes = wire.toByteArray();
+            Assert.assertTrue(new String(wireBytes, 0, 32, "UTF-8").startsWith("GenericSuccessResponse;deflate="));
+            Assert.assertTrue("Expected compression, got " + wireBytes.length + " bytes",
+                    wireBytes.length < testExtraDataBytes.length / 4);
+
+            BasicMessageWithExtraData<GenericSuccessResponse> deserialized = new ApiDeserializer()
+                    .deserialize(new UncloseableByteArrayInputStream(wireBytes));
+            Assert.assertEquals(testMessage, deserialized.getBasicMessage().getMessage());
+            String deserializedExtraDataString = new Scanner(deserialized.getBinaryData(), "UTF-8")
+                    .useDelimiter("\\A").next();
+            Assert.assertEquals(testExtraData.toString(), deserializedExtraDataString);
+        }
+    }
+
     // takes a POJO, gets its JSON, then deserializes that JSON back into a POJO.
     private <T extends BasicMessage> T testSpecificPojo(T pojo) {
         String nameAndJson = String.format("%s=%s", pojo.getClass().getSimpleName(), pojo.toJSON());
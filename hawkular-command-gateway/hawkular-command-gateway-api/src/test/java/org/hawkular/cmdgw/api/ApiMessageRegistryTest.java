@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.api;
+
+import java.nio.charset.StandardCharsets;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ApiMessageRegistryTest {
+
+    @Test
+    public void testForName() {
+        for (Class<?> cl : ApiCodecs.MESSAGE_CLASSES) {
+            String text = "xx" + cl.getSimpleName() + "=";
+            Assert.assertSame(cl, ApiMessageRegistry.forName(text, 2, text.length() - 1).getType());
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            Assert.assertSame(cl, ApiMessageRegistry.forName(bytes, 2, bytes.length - 3).getType());
+            Assert.assertSame(cl, ApiMessageRegistry.forName(cl.getName(), 0, cl.getName().length()).getType());
+            Assert.assertSame(ApiMessageRegistry.forClass(cl.asSubclass(BasicMessage.class)),
+                    ApiMessageRegistry.forName(cl.getName(), 0, cl.getName().length()));
+        }
+    }
+
+    @Test
+    public void testForUnregisteredName() {
+        String name = UnregisteredMessage.class.getName();
+        Assert.assertSame(UnregisteredMessage.class, ApiMessageRegistry.forName(name, 0, name.length()).getType());
+
+        try {
+            ApiMessageRegistry.forName("NoSuchMessage", 0, "NoSuchMessage".length());
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            ApiMessageRegistry.forName("Authentication", 0, "Authentication".length());
+            Assert.fail("IllegalArgumentException expected: Authentication is not a BasicMessage");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testToHawkularFormat() {
+        EchoRequest echoRequest = new EchoRequest();
+        echoRequest.setEchoMessage("héllo");
+        Assert.assertEquals("EchoRequest=" + echoRequest.toJSON(), ApiDeserializer.toHawkularFormat(echoRequest));
+
+        UnregisteredMessage unregistered = new UnregisteredMessage();
+        unregistered.setText("hi");
+        Assert.assertEquals("UnregisteredMessage=" + unregistered.toJSON(),
+                ApiDeserializer.toHawkularFormat(unregistered));
+        UnregisteredMessage deserialized = new ApiDeserializer()
+                .<UnregisteredMessage> deserialize(UnregisteredMessage.class.getName() + "={\"text\":\"hi\"}")
+                .getBasicMessage();
+        Assert.assertEquals("hi", deserialized.getText());
+    }
+
+    public static class UnregisteredMessage extends org.hawkular.bus.common.AbstractMessage {
+        private String text;
+
+        public String getText() {
+            return text;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+    }
+
+    @Test
+    public void testIsApiMessageClass() {
+        Assert.assertTrue(ApiMessageRegistry.isApiMessageClass(EchoRequest.class.getName()));
+        Assert.assertTrue(ApiMessageRegistry.isApiMessageClass(GenericErrorResponse.class.getName()));
+        Assert.assertFalse(ApiMessageRegistry.isApiMessageClass(EchoRequest.class.getSimpleName()));
+        Assert.assertFalse(ApiMessageRegistry.isApiMessageClass("org.hawkular.bus.common.SimpleBasicMessage"));
+        Assert.assertFalse(ApiMessageRegistry.isApiMessageClass("org.hawkular.alerts.api.model.event.Alert"));
+    }
+}
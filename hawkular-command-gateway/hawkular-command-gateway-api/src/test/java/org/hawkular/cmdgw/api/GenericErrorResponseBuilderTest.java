@@ -84,6 +84,13 @@ public class GenericErrorResponseBuilderTest {
         response = GenericErrorResponseBuilder.buildWithThrowable(new Exception("TEST!"));
         Assert.assertEquals("TEST!", response.getErrorMessage());
         Assert.assertTrue(response.getStackTrace().startsWith("java.lang.Exception: TEST!"));
+
+        // a response to a particular request
+        bldr = new GenericErrorResponseBuilder();
+        bldr.setErrorMessage("timed out").setSenderRequestId("req-1");
+        response = bldr.build();
+        Assert.assertEquals("req-1", response.getSenderRequestId());
+        Assert.assertNull(new GenericErrorResponseBuilder().build().getSenderRequestId());
     }
 
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.api.ApiCodec;
+import org.hawkular.cmdgw.api.ApiMessageRegistry;
+import org.hawkular.cmdgw.benchmarks.ApiDeserializerBenchmark.MessageKind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Compares the generated streaming {@link ApiCodec}s with the Jackson databind {@link ObjectWriter} and
+ * {@link ObjectReader} configured the same way as {@code AbstractMessage} does. Both sides write to and read from
+ * UTF-8 bytes without the "apiName=" prefix, so that only the JSON body is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ApiCodecBenchmark {
+
+    @Param
+    public MessageKind kind;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    private BasicMessage message;
+    private byte[] json;
+    private ApiCodec<BasicMessage> codec;
+    private ObjectWriter writer;
+    private ObjectReader reader;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup() throws IOException {
+        message = ApiDeserializerBenchmark.createMessage(kind);
+        json = message.toJSON().getBytes("UTF-8");
+        codec = (ApiCodec<BasicMessage>) ApiMessageRegistry.forClass(message.getClass()).getCodec();
+        if (codec == null) {
+            throw new IllegalStateException("No codec generated for [" + message.getClass() + "]");
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setVisibilityChecker(mapper.getSerializationConfig().getDefaultVisibilityChecker()
+                .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+                .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withSetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
+        writer = mapper.writer();
+        reader = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .reader(message.getClass());
+    }
+
+    @Benchmark
+    public int writeCodec() throws IOException {
+        out.reset();
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            codec.write(message, generator);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeDatabind() throws IOException {
+        out.reset();
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            writer.writeValue(generator, message);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public BasicMessage readCodec() throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return codec.read(parser);
+        }
+    }
+
+    @Benchmark
+    public BasicMessage readDatabind() throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return reader.readValue(parser);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.Authentication;
+import org.hawkular.cmdgw.api.EchoRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.ResponseStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the (de)serialization of API messages without attachments by {@link ApiDeserializer} - the work done for
+ * every message passing the gateway. See {@link AttachmentBenchmark} for messages with binary attachments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ApiDeserializerBenchmark {
+
+    /** the kind of message to (de)serialize */
+    public enum MessageKind {
+        /** a tiny {@link EchoRequest} */
+        ECHO,
+        /** an {@link ExecuteOperationRequest} with a few parameters as sent by the UI */
+        EXECUTE_OPERATION,
+        /** an {@link ExecuteOperationRequest} with 1000 parameters */
+        EXECUTE_OPERATION_LARGE,
+        /** an {@link ExecuteOperationResponse} as sent by a feed */
+        EXECUTE_OPERATION_RESPONSE,
+        /** a {@link GenericErrorResponse} without a stack trace as sent by the gateway */
+        GENERIC_ERROR_RESPONSE
+    }
+
+    @Param
+    public MessageKind kind;
+
+    private BasicMessage message;
+    private String nameAndJson;
+    private byte[] nameAndJsonBytes;
+
+    @Setup
+    public void setup() {
+        message = createMessage(kind);
+        nameAndJson = ApiDeserializer.toHawkularFormat(message);
+        nameAndJsonBytes = nameAndJson.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Authentication authentication() {
+        Authentication result = new Authentication();
+        result.setUsername("jdoe");
+        result.setPassword("password");
+        return result;
+    }
+
+    static BasicMessage createMessage(MessageKind kind) {
+        switch (kind) {
+            case ECHO:
+                EchoRequest echo = new EchoRequest();
+                echo.setAuthentication(authentication());
+                echo.setEchoMessage("Hello gateway");
+                return echo;
+            case EXECUTE_OPERATION:
+            case EXECUTE_OPERATION_LARGE:
+                ExecuteOperationRequest op = new ExecuteOperationRequest();
+                op.setAuthentication(authentication());
+                op.setFeedId("feed-1");
+                op.setResourceId("[/t;tenant/f;feed-1/r;Local~~/r;Local~%2Fsubsystem%3Ddatasources]");
+                op.setOperationName("Reload");
+                op.setSenderRequestId("request-1");
+                Map<String, String> parameters = new HashMap<>();
+                int count = kind == MessageKind.EXECUTE_OPERATION ? 3 : 1000;
+                for (int i = 0; i < count; i++) {
+                    parameters.put("parameter" + i, "value of parameter " + i);
+                }
+                op.setParameters(parameters);
+                return op;
+            case EXECUTE_OPERATION_RESPONSE:
+                ExecuteOperationResponse response = new ExecuteOperationResponse();
+                response.setFeedId("feed-1");
+                response.setResourceId("[/t;tenant/f;feed-1/r;Local~~/r;Local~%2Fsubsystem%3Ddatasources]");
+                response.setOperationName("Reload");
+                response.setSenderRequestId("request-1");
+                response.setDestinationSessionId("session-1");
+                response.setStatus(ResponseStatus.OK);
+                response.setMessage("Performed [Reload] on a [DMR Node] given by Inventory path [...]");
+                return response;
+            case GENERIC_ERROR_RESPONSE:
+                GenericErrorResponse error = new GenericErrorResponse();
+                error.setErrorMessage("Could not perform [Reload] on a [DMR Node] given by Inventory path [...]");
+                error.setSenderRequestId("request-1");
+                return error;
+            default:
+                throw new IllegalStateException("Unexpected message kind [" + kind + "]");
+        }
+    }
+
+    @Benchmark
+    public BasicMessage deserializeString() {
+        return new ApiDeserializer().deserialize(nameAndJson).getBasicMessage();
+    }
+
+    @Benchmark
+    public BasicMessage deserializeStream() {
+        return new ApiDeserializer().deserialize(new ByteArrayInputStream(nameAndJsonBytes)).getBasicMessage();
+    }
+
+    @Benchmark
+    public String toHawkularFormat() {
+        return ApiDeserializer.toHawkularFormat(message);
+    }
+}
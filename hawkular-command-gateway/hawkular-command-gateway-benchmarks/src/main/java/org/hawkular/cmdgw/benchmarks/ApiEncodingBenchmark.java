@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.ApiEncoding;
+import org.hawkular.cmdgw.benchmarks.ApiDeserializerBenchmark.MessageKind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link ApiEncoding}s negotiable through the WebSocket subprotocol: the time of an encode + decode round
+ * trip of an "apiName=..." message as sent to and received from a WebSocket client. The size of the encoded message,
+ * i.e. the bytes on the wire, is printed once per trial, e.g. run
+ * {@code java -jar target/benchmarks.jar ApiEncodingBenchmark -p kind=ECHO,EXECUTE_OPERATION,GENERIC_ERROR_RESPONSE}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ApiEncodingBenchmark {
+
+    @Param
+    public MessageKind kind;
+
+    @Param
+    public ApiEncoding encoding;
+
+    private BasicMessage message;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        message = ApiDeserializerBenchmark.createMessage(kind);
+        encoded = ApiDeserializer.toHawkularFormatBytes(message, encoding);
+        BasicMessage decoded = new ApiDeserializer().deserialize(new ByteArrayInputStream(encoded)).getBasicMessage();
+        if (decoded.getClass() != message.getClass()) {
+            throw new IllegalStateException("[" + kind + "] does not survive a round trip in [" + encoding + "]");
+        }
+        System.out.println("[" + kind + "] in [" + encoding + "] takes [" + encoded.length + "] bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return ApiDeserializer.toHawkularFormatBytes(message, encoding);
+    }
+
+    @Benchmark
+    public BasicMessage decode() {
+        return new ApiDeserializer().deserialize(new ByteArrayInputStream(encoded)).getBasicMessage();
+    }
+
+    @Benchmark
+    public BasicMessage roundTrip() {
+        byte[] bytes = ApiDeserializer.toHawkularFormatBytes(message, encoding);
+        return new ApiDeserializer().deserialize(new ByteArrayInputStream(bytes)).getBasicMessage();
+    }
+}
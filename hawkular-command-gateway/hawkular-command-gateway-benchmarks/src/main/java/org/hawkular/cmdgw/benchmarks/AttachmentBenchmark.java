@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.DeployApplicationRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the (de)serialization of a {@link DeployApplicationRequest} with a small and a large binary attachment,
+ * including the copying of the attachment that happens when the gateway passes such a message on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AttachmentBenchmark {
+
+    /** the size of the binary attachment in bytes */
+    @Param({ "1024", "1048576" })
+    public int attachmentSize;
+
+    private byte[] attachment;
+    private DeployApplicationRequest request;
+    private byte[] requestBytes;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws IOException {
+        attachment = new byte[attachmentSize];
+        new Random(42).nextBytes(attachment);
+        request = new DeployApplicationRequest();
+        request.setAuthentication(ApiDeserializerBenchmark.authentication());
+        request.setFeedId("feed-1");
+        request.setResourceId("[/t;tenant/f;feed-1/r;Local~~]");
+        request.setDestinationFileName("app.war");
+        request.setSenderRequestId("request-1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ApiDeserializer.toHawkularFormat(request, new ByteArrayInputStream(attachment))) {
+            int numRead;
+            while ((numRead = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, numRead);
+            }
+        }
+        requestBytes = out.toByteArray();
+    }
+
+    private void drain(InputStream in, Blackhole blackhole) throws IOException {
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0) {
+            blackhole.consume(numRead);
+        }
+    }
+
+    /**
+     * Deserializes the request and consumes its attachment like a feed would.
+     */
+    @Benchmark
+    public void deserialize(Blackhole blackhole) throws IOException {
+        BasicMessageWithExtraData<BasicMessage> result = new ApiDeserializer()
+                .deserialize(new ByteArrayInputStream(requestBytes));
+        blackhole.consume(result.getBasicMessage());
+        try (BinaryData binaryData = result.getBinaryData()) {
+            drain(binaryData, blackhole);
+        }
+    }
+
+    /**
+     * Serializes the request with its attachment like the gateway does when passing it on.
+     */
+    @Benchmark
+    public void toHawkularFormat(Blackhole blackhole) throws IOException {
+        try (BinaryData binaryData = ApiDeserializer.toHawkularFormat(request, new ByteArrayInputStream(attachment))) {
+            drain(binaryData, blackhole);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponseBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building and serializing {@link GenericErrorResponse}s with stack traces of various depths, as the gateway
+ * does for every failed command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class GenericErrorResponseBenchmark {
+
+    /** the number of stack frames of the throwable, roughly */
+    @Param({ "20", "200" })
+    public int stackDepth;
+
+    private Throwable throwable;
+
+    @Setup
+    public void setup() {
+        throwable = new RuntimeException("Command failed", throwAt(stackDepth));
+    }
+
+    private static Throwable throwAt(int depth) {
+        if (depth <= 0) {
+            return new IllegalStateException("Resource not found");
+        }
+        return throwAt(depth - 1);
+    }
+
+    @Benchmark
+    public GenericErrorResponse build() {
+        return new GenericErrorResponseBuilder().setThrowable(throwable).setErrorMessage("Command failed").build();
+    }
+
+    @Benchmark
+    public String buildAndSerialize() {
+        return ApiDeserializer.toHawkularFormat(build());
+    }
+}
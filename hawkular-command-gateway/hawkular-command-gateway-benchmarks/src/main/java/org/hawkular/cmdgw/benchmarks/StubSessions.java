@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.websocket.Session;
+
+/**
+ * Creates minimal {@link Session}s for the benchmarks that need no WebSocket container.
+ */
+final class StubSessions {
+
+    private StubSessions() {
+    }
+
+    /**
+     * @param id the id of the new session
+     * @return an open {@link Session} with the given {@code id} whose {@code close()} does nothing
+     */
+    static Session create(String id) {
+        Map<String, Object> userProperties = new ConcurrentHashMap<>();
+        return (Session) Proxy.newProxyInstance(StubSessions.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getUserProperties":
+                            return userProperties;
+                        case "isOpen":
+                            return Boolean.TRUE;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StubSession[" + id + "]";
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.NoCommandForMessageException;
+import org.hawkular.cmdgw.api.EchoRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationResponse;
+import org.hawkular.cmdgw.command.ws.WsCommand;
+import org.hawkular.cmdgw.command.ws.WsCommands;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lookup of the {@link WsCommand}s handling a request class, done for every message received over a
+ * WebSocket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@Threads(4)
+public class WsCommandsBenchmark {
+
+    /** the simple name of the request class to look up */
+    @Param({ "EchoRequest", "ExecuteOperationRequest", "ExecuteOperationResponse" })
+    public String requestClass;
+
+    private WsCommands wsCommands;
+    private Class<BasicMessage> messageClass;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup() {
+        wsCommands = new WsCommands();
+        switch (requestClass) {
+            case "EchoRequest":
+                messageClass = (Class<BasicMessage>) (Class<?>) EchoRequest.class;
+                break;
+            case "ExecuteOperationRequest":
+                messageClass = (Class<BasicMessage>) (Class<?>) ExecuteOperationRequest.class;
+                break;
+            case "ExecuteOperationResponse":
+                messageClass = (Class<BasicMessage>) (Class<?>) ExecuteOperationResponse.class;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected request class [" + requestClass + "]");
+        }
+    }
+
+    @Benchmark
+    public List<WsCommand<BasicMessage>> getCommands() throws NoCommandForMessageException {
+        return wsCommands.getCommands(messageClass);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.command.ws.WsSessions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link WsSessions} lookups done for every message delivered to a feed or UI client, alone and while
+ * other threads keep connecting and disconnecting sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class WsSessionsBenchmark {
+
+    private static final int CHURN_THREADS = 2;
+
+    /**
+     * Gives each churning thread its own sessions so that they never add the same session twice.
+     */
+    @State(Scope.Thread)
+    public static class ChurnThread {
+        private static final AtomicInteger ids = new AtomicInteger();
+        private final int id = ids.getAndIncrement() % CHURN_THREADS;
+    }
+
+    /** the number of connected sessions */
+    @Param({ "100", "10000" })
+    public int sessionCount;
+
+    private WsSessions wsSessions;
+    private String[] keys;
+    private Session[] sessions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        wsSessions = new WsSessions("/feed/{feedId}");
+        keys = new String[sessionCount];
+        sessions = new Session[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            keys[i] = "feed-" + i;
+            sessions[i] = StubSessions.create("session-" + i);
+            wsSessions.addSession(keys[i], sessions[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wsSessions.destroy();
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(sessionCount)];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Session getSession() {
+        return wsSessions.getSession(randomKey());
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(6)
+    public Session getSessionDuringChurn() {
+        return wsSessions.getSession(randomKey());
+    }
+
+    /**
+     * Disconnects and reconnects a random session; the lookups above may see it missing for a moment.
+     */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(CHURN_THREADS)
+    public boolean churn(ChurnThread thread) {
+        int i = ThreadLocalRandom.current().nextInt(sessionCount / CHURN_THREADS) * CHURN_THREADS + thread.id;
+        wsSessions.removeSession(keys[i], sessions[i]);
+        return wsSessions.addSession(keys[i], sessions[i]);
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a streaming {@code ApiCodec} for each class that jsonschema2pojo generated from
+ * {@code hawkular-command-gateway-api/src/main/resources/schema/*.schema.json}. The codecs write and read the
+ * properties through {@code JsonGenerator} and {@code JsonParser} directly, so that no Jackson databind introspection
+ * and no reflection is involved in (de)serializing the API messages.
+ * <p>
+ * The generated {@code <Type>Codec} classes are placed next to the schema classes. They produce the same JSON as the
+ * {@code ObjectMapper} configured by {@code AbstractMessage.buildObjectMapperForSerialization()}: the properties
+ * annotated with {@code @JsonProperty} are written in the {@code @JsonPropertyOrder} of the class and {@code null}
+ * values are skipped. Unknown properties are skipped when reading, unless the class implements
+ * {@code FailOnUnknownProperties}.
+ * <p>
+ * All codecs are registered in a generated package private {@code ApiCodecs} class from where
+ * {@code ApiMessageRegistry} picks them up. {@code ApiCodecs} also lists the schema classes that are
+ * {@code BasicMessage}s, sorted by name so that the output is stable; {@code ApiMessageRegistry} registers the API
+ * messages from that list.
+ */
+@SupportedAnnotationTypes("javax.annotation.Generated")
+public class ApiCodecProcessor extends AbstractProcessor {
+
+    /** the package of the schema classes */
+    static final String API_PACKAGE = "org.hawkular.cmdgw.api";
+
+    private static final String SCHEMA_GENERATOR = "org.jsonschema2pojo";
+    private static final String GENERATED = "javax.annotation.Generated";
+    private static final String BASIC_MESSAGE = "org.hawkular.bus.common.BasicMessage";
+    private static final String JSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+    private static final String JSON_PROPERTY_ORDER = "com.fasterxml.jackson.annotation.JsonPropertyOrder";
+    private static final String FAIL_ON_UNKNOWN_PROPERTIES =
+            "org.hawkular.bus.common.msg.features.FailOnUnknownProperties";
+
+    /**
+     * A JSON property of a schema class.
+     */
+    private static final class Property {
+        private final String name;
+        private final TypeMirror type;
+        private String getter;
+        private String setter;
+
+        private Property(String name, TypeMirror type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /** {@code true} once the codecs were generated; they are generated in the first round only */
+    private boolean done;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (done) {
+            return false;
+        }
+        List<TypeElement> schemaClasses = new ArrayList<>();
+        for (Element element : roundEnv.getRootElements()) {
+            if (isSchemaClass(element)) {
+                schemaClasses.add((TypeElement) element);
+            }
+        }
+        if (schemaClasses.isEmpty()) {
+            return false;
+        }
+        done = true;
+        schemaClasses.sort(Comparator.comparing(c -> c.getQualifiedName().toString()));
+        try {
+            for (TypeElement schemaClass : schemaClasses) {
+                Map<String, Property> properties = collectProperties(schemaClass);
+                if (properties != null) {
+                    writeCodec(schemaClass, properties);
+                }
+            }
+            writeRegistry(schemaClasses);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write API codecs: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the given {@code element} is a class generated by jsonschema2pojo in the API package
+     */
+    private boolean isSchemaClass(Element element) {
+        if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(element);
+        if (!pkg.getQualifiedName().contentEquals(API_PACKAGE)) {
+            return false;
+        }
+        AnnotationValue generator = annotationValue(element, GENERATED);
+        return generator != null && generator.toString().contains(SCHEMA_GENERATOR);
+    }
+
+    private boolean isSchemaEnum(TypeElement element) {
+        return element.getKind() == ElementKind.ENUM && annotationValue(element, GENERATED) != null
+                && annotationValue(element, GENERATED).toString().contains(SCHEMA_GENERATOR);
+    }
+
+    /**
+     * Collects the properties of the given {@code schemaClass} and its schema superclasses in the order in which
+     * Jackson serializes them: the properties listed in {@code @JsonPropertyOrder} of the {@code schemaClass} first,
+     * then the rest starting with those declared in the topmost superclass.
+     *
+     * @return the properties by name or {@code null} if an error was reported
+     */
+    private Map<String, Property> collectProperties(TypeElement schemaClass) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement cl = schemaClass; cl != null && isSchemaClass(cl); cl = superclassOf(cl)) {
+            hierarchy.add(0, cl);
+        }
+        Map<String, Property> declared = new LinkedHashMap<>();
+        for (TypeElement cl : hierarchy) {
+            for (Element member : cl.getEnclosedElements()) {
+                String name = jsonPropertyName(member);
+                if (name != null && member.getKind() == ElementKind.FIELD
+                        && !member.getModifiers().contains(Modifier.STATIC)) {
+                    declared.put(name, new Property(name, member.asType()));
+                }
+            }
+            for (Element member : cl.getEnclosedElements()) {
+                String name = jsonPropertyName(member);
+                Property property = name == null ? null : declared.get(name);
+                if (property != null && member.getKind() == ElementKind.METHOD) {
+                    ExecutableElement method = (ExecutableElement) member;
+                    if (method.getParameters().isEmpty()) {
+                        property.getter = method.getSimpleName().toString();
+                    } else if (method.getParameters().size() == 1) {
+                        property.setter = method.getSimpleName().toString();
+                    }
+                }
+            }
+        }
+
+        Map<String, Property> result = new LinkedHashMap<>();
+        AnnotationValue order = annotationValue(schemaClass, JSON_PROPERTY_ORDER);
+        if (order != null) {
+            for (Object name : (List<?>) order.getValue()) {
+                Property property = declared.get(((AnnotationValue) name).getValue());
+                if (property != null) {
+                    result.put(property.name, property);
+                }
+            }
+        }
+        for (Property property : declared.values()) {
+            result.putIfAbsent(property.name, property);
+        }
+
+        boolean valid = true;
+        for (Property property : result.values()) {
+            if (property.getter == null || property.setter == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "No @JsonProperty getter or setter found for property [" + property.name + "]", schemaClass);
+                valid = false;
+            } else if (!isSupported(property.type)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unsupported type ["
+                        + property.type + "] of property [" + property.name + "]", schemaClass);
+                valid = false;
+            }
+        }
+        return valid ? result : null;
+    }
+
+    private void writeCodec(TypeElement schemaClass, Map<String, Property> properties) throws IOException {
+        String typeName = schemaClass.getSimpleName().toString();
+        String codecName = typeName + "Codec";
+        boolean failOnUnknown = implementsFailOnUnknownProperties(schemaClass);
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(API_PACKAGE + "." + codecName, schemaClass).openWriter())) {
+            out.println("package " + API_PACKAGE + ";");
+            out.println();
+            out.println("import java.io.IOException;");
+            out.println();
+            out.println("import com.fasterxml.jackson.core.JsonGenerator;");
+            out.println("import com.fasterxml.jackson.core.JsonParser;");
+            out.println("import com.fasterxml.jackson.core.JsonToken;");
+            out.println();
+            out.println("/**");
+            out.println(" * A streaming {@link ApiCodec} of {@link " + typeName + "}.");
+            out.println(" */");
+            out.println("@javax.annotation.Generated(\"" + ApiCodecProcessor.class.getName() + "\")");
+            out.println("public final class " + codecName + " implements ApiCodec<" + typeName + "> {");
+            out.println("    public static final " + codecName + " INSTANCE = new " + codecName + "();");
+            out.println();
+            out.print("    private static final String[] PROPERTIES = {");
+            String separator = " ";
+            for (String name : properties.keySet()) {
+                out.print(separator + "\"" + name + "\"");
+                separator = ", ";
+            }
+            out.println(" };");
+            for (Property property : properties.values()) {
+                TypeMirror element = isCollection(property.type) ? typeArgument(property.type) : property.type;
+                if (isEnum(element)) {
+                    out.println("    private static final ApiCodec<" + element + "> " + constantName(property)
+                            + " = ApiCodecSupport.enumCodec(" + element + "::fromValue);");
+                }
+            }
+            out.println();
+            out.println("    private " + codecName + "() {");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void write(" + typeName + " value, JsonGenerator g) throws IOException {");
+            out.println("        g.writeStartObject();");
+            int i = 0;
+            for (Property property : properties.values()) {
+                String var = "v" + i++;
+                out.println("        " + property.type + " " + var + " = value." + property.getter + "();");
+                if (property.type.getKind().isPrimitive()) {
+                    out.println("        " + writeStatement(property, var));
+                } else {
+                    out.println("        if (" + var + " != null) {");
+                    out.println("            " + writeStatement(property, var));
+                    out.println("        }");
+                }
+            }
+            out.println("        g.writeEndObject();");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public " + typeName + " read(JsonParser p) throws IOException {");
+            out.println("        if (!ApiCodecSupport.startObject(p)) {");
+            out.println("            return null;");
+            out.println("        }");
+            out.println("        " + typeName + " result = new " + typeName + "();");
+            out.println("        while (p.nextToken() == JsonToken.FIELD_NAME) {");
+            out.println("            String name = p.getCurrentName();");
+            out.println("            p.nextToken();");
+            out.println("            switch (name) {");
+            for (Property property : properties.values()) {
+                out.println("                case \"" + property.name + "\":");
+                out.println("                    result." + property.setter + "(" + readExpression(property) + ");");
+                out.println("                    break;");
+            }
+            out.println("                default:");
+            out.println("                    ApiCodecSupport.unknownProperty(p, result, name, PROPERTIES, "
+                    + failOnUnknown + ");");
+            out.println("                    break;");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return result;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private void writeRegistry(List<TypeElement> schemaClasses) throws IOException {
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(API_PACKAGE + ".ApiCodecs", schemaClasses.toArray(new Element[0]))
+                .openWriter())) {
+            out.println("package " + API_PACKAGE + ";");
+            out.println();
+            out.println("import java.util.Arrays;");
+            out.println("import java.util.Collections;");
+            out.println("import java.util.HashMap;");
+            out.println("import java.util.List;");
+            out.println("import java.util.Map;");
+            out.println();
+            out.println("import " + BASIC_MESSAGE + ";");
+            out.println();
+            out.println("/**");
+            out.println(" * The {@link ApiCodec}s of all classes generated from JSON schema and the list of");
+            out.println(" * those classes that are {@link BasicMessage}s.");
+            out.println(" */");
+            out.println("@javax.annotation.Generated(\"" + ApiCodecProcessor.class.getName() + "\")");
+            out.println("final class ApiCodecs {");
+            out.println("    private static final Map<Class<?>, ApiCodec<?>> codecs = new HashMap<>("
+                    + (schemaClasses.size() * 2) + ");");
+            out.println();
+            out.println("    /** the schema classes that are {@link BasicMessage}s, sorted by name */");
+            out.println("    static final List<Class<? extends BasicMessage>> MESSAGE_CLASSES = "
+                    + "Collections.unmodifiableList(Arrays.asList(");
+            List<TypeElement> messageClasses = new ArrayList<>();
+            for (TypeElement schemaClass : schemaClasses) {
+                if (isBasicMessage(schemaClass)) {
+                    messageClasses.add(schemaClass);
+                }
+            }
+            for (int i = 0; i < messageClasses.size(); i++) {
+                out.println("            " + messageClasses.get(i).getSimpleName() + ".class"
+                        + (i < messageClasses.size() - 1 ? "," : "));"));
+            }
+            out.println();
+            out.println("    static {");
+            for (TypeElement schemaClass : schemaClasses) {
+                String typeName = schemaClass.getSimpleName().toString();
+                out.println("        codecs.put(" + typeName + ".class, " + typeName + "Codec.INSTANCE);");
+            }
+            out.println("    }");
+            out.println();
+            out.println("    private ApiCodecs() {");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * @param type the class to get the codec for");
+            out.println("     * @return the {@link ApiCodec} of the given {@code type} or {@code null} if there is none");
+            out.println("     */");
+            out.println("    static ApiCodec<?> forClass(Class<?> type) {");
+            out.println("        return codecs.get(type);");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private boolean isBasicMessage(TypeElement schemaClass) {
+        TypeElement basicMessage = processingEnv.getElementUtils().getTypeElement(BASIC_MESSAGE);
+        return basicMessage != null && processingEnv.getTypeUtils().isAssignable(schemaClass.asType(),
+                basicMessage.asType());
+    }
+
+    private String writeStatement(Property property, String var) {
+        String name = "\"" + property.name + "\"";
+        switch (property.type.getKind()) {
+            case BOOLEAN:
+                return "g.writeBooleanField(" + name + ", " + var + ");";
+            case INT:
+            case LONG:
+            case DOUBLE:
+                return "g.writeNumberField(" + name + ", " + var + ");";
+            default:
+                break;
+        }
+        switch (property.type.toString()) {
+            case "java.lang.String":
+                return "g.writeStringField(" + name + ", " + var + ");";
+            case "java.lang.Boolean":
+                return "g.writeBooleanField(" + name + ", " + var + ");";
+            case "java.lang.Integer":
+            case "java.lang.Long":
+            case "java.lang.Double":
+                return "g.writeNumberField(" + name + ", " + var + ");";
+            default:
+                break;
+        }
+        if (isEnum(property.type)) {
+            return "g.writeStringField(" + name + ", " + var + ".toString());";
+        }
+        String call;
+        if (isList(property.type)) {
+            call = "ApiCodecSupport.writeList(" + var + ", " + elementCodecOf(property) + ", g);";
+        } else if (isMap(property.type)) {
+            call = "ApiCodecSupport.writeMap(" + var + ", " + elementCodecOf(property) + ", g);";
+        } else {
+            call = elementCodec(property.type) + ".write(" + var + ", g);";
+        }
+        /* only non-primitive types get here, so the indentation is that of the null check block */
+        return "g.writeFieldName(" + name + ");" + System.lineSeparator() + "            " + call;
+    }
+
+    private String readExpression(Property property) {
+        switch (property.type.getKind()) {
+            case BOOLEAN:
+                return "ApiCodecSupport.booleanValue(ApiCodecSupport.readBoolean(p))";
+            case INT:
+                return "ApiCodecSupport.intValue(ApiCodecSupport.readInteger(p))";
+            case LONG:
+                return "ApiCodecSupport.longValue(ApiCodecSupport.readLong(p))";
+            case DOUBLE:
+                return "ApiCodecSupport.doubleValue(ApiCodecSupport.readDouble(p))";
+            default:
+                break;
+        }
+        switch (property.type.toString()) {
+            case "java.lang.String":
+                return "ApiCodecSupport.readString(p)";
+            case "java.lang.Boolean":
+                return "ApiCodecSupport.readBoolean(p)";
+            case "java.lang.Integer":
+                return "ApiCodecSupport.readInteger(p)";
+            case "java.lang.Long":
+                return "ApiCodecSupport.readLong(p)";
+            case "java.lang.Double":
+                return "ApiCodecSupport.readDouble(p)";
+            default:
+                break;
+        }
+        if (isList(property.type)) {
+            return "ApiCodecSupport.readList(p, " + elementCodecOf(property) + ")";
+        } else if (isMap(property.type)) {
+            return "ApiCodecSupport.readMap(p, " + elementCodecOf(property) + ")";
+        }
+        return elementCodecOf(property) + ".read(p)";
+    }
+
+    /**
+     * @return the expression evaluating to the {@code ApiCodec} of the given {@code property} or of its elements if
+     *         the {@code property} is a {@code List} or a {@code Map}
+     */
+    private String elementCodecOf(Property property) {
+        TypeMirror element = isCollection(property.type) ? typeArgument(property.type) : property.type;
+        return isEnum(element) ? constantName(property) : elementCodec(element);
+    }
+
+    /**
+     * @return the expression evaluating to the {@code ApiCodec} of the given {@code type} or {@code null} if there
+     *         is no such codec, e.g. for primitives and enums
+     */
+    private String elementCodec(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        switch (type.toString()) {
+            case "java.lang.String":
+                return "ApiCodecSupport.STRING";
+            case "java.lang.Boolean":
+                return "ApiCodecSupport.BOOLEAN";
+            case "java.lang.Integer":
+                return "ApiCodecSupport.INTEGER";
+            case "java.lang.Long":
+                return "ApiCodecSupport.LONG";
+            case "java.lang.Double":
+                return "ApiCodecSupport.DOUBLE";
+            case "java.lang.Object":
+                return "ApiCodecSupport.OBJECT";
+            default:
+                break;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        if (isSchemaClass(element)) {
+            return element.getSimpleName() + "Codec.INSTANCE";
+        }
+        return null;
+    }
+
+    private boolean isSupported(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+            case INT:
+            case LONG:
+            case DOUBLE:
+                return true;
+            default:
+                return isEnum(type) || isCollection(type) || elementCodec(type) != null;
+        }
+    }
+
+    private boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && isSchemaEnum((TypeElement) ((DeclaredType) type).asElement());
+    }
+
+    private boolean isList(TypeMirror type) {
+        return isRawType(type, "java.util.List") && ((DeclaredType) type).getTypeArguments().size() == 1;
+    }
+
+    private boolean isMap(TypeMirror type) {
+        return isRawType(type, "java.util.Map") && ((DeclaredType) type).getTypeArguments().size() == 2
+                && ((DeclaredType) type).getTypeArguments().get(0).toString().equals("java.lang.String");
+    }
+
+    private boolean isCollection(TypeMirror type) {
+        return (isList(type) || isMap(type))
+                && (isEnum(typeArgument(type)) || elementCodec(typeArgument(type)) != null);
+    }
+
+    private boolean isRawType(TypeMirror type, String rawType) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(rawType);
+    }
+
+    /**
+     * @return the element type of a {@code List} or the value type of a {@code Map}
+     */
+    private static TypeMirror typeArgument(TypeMirror type) {
+        List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        return arguments.get(arguments.size() - 1);
+    }
+
+    private static String constantName(Property property) {
+        return property.name.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase() + "_CODEC";
+    }
+
+    private boolean implementsFailOnUnknownProperties(TypeElement schemaClass) {
+        TypeElement failOnUnknown = processingEnv.getElementUtils().getTypeElement(FAIL_ON_UNKNOWN_PROPERTIES);
+        return failOnUnknown != null && processingEnv.getTypeUtils().isAssignable(schemaClass.asType(),
+                processingEnv.getTypeUtils().erasure(failOnUnknown.asType()));
+    }
+
+    private static TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement()
+                : null;
+    }
+
+    private static String jsonPropertyName(Element element) {
+        AnnotationValue value = annotationValue(element, JSON_PROPERTY);
+        return value == null ? null : (String) value.getValue();
+    }
+
+    /**
+     * @return the {@code value} of the annotation of the given {@code annotationType} present on the given
+     *         {@code element} or {@code null} if there is no such annotation
+     */
+    private static AnnotationValue annotationValue(Element element, String annotationType) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+                    .contentEquals(annotationType)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> en : annotation
+                        .getElementValues().entrySet()) {
+                    if (en.getKey().getSimpleName().contentEquals("value")) {
+                        return en.getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -27,6 +27,7 @@ public class ClientConfig {
     protected static final String authentication;
     protected static final String baseGwUri;
     protected static final String host;
+    protected static final int managementPort;
     protected static final String testPasword = System.getProperty("hawkular.itest.rest.password");
     protected static final String testUser = System.getProperty("hawkular.itest.rest.user");
     public static final String authHeader = Credentials.basic(testUser, testPasword);
@@ -39,6 +40,7 @@ public class ClientConfig {
         host = h;
         int portOffset = Integer.parseInt(System.getProperty("hawkular.port.offset", "0"));
         int httpPort = portOffset + 8080;
+        managementPort = portOffset + 9990;
         baseGwUri = "ws://" + host + ":" + httpPort + "/hawkular/command-gateway";
         authentication = "{\"username\":\"" + testUser + "\",\"password\":\"" + testPasword + "\"}";
     }
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.ws.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.Authentication;
+import org.hawkular.cmdgw.api.DeployApplicationRequest;
+import org.hawkular.cmdgw.api.DeployApplicationResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.GenericSuccessResponse;
+import org.hawkular.cmdgw.api.ResponseStatus;
+import org.hawkular.cmdgw.api.WelcomeResponse;
+import org.jboss.arquillian.container.test.api.RunAsClient;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.ws.WebSocket;
+import okhttp3.ws.WebSocketCall;
+import okhttp3.ws.WebSocketListener;
+
+import okio.Buffer;
+import okio.BufferedSink;
+
+/**
+ * Streams {@link DeployApplicationRequest}s with large binary deployments from a UI client through the gateway to a
+ * feed, both being local WebSocket clients of the gateway running in nest with its in-VM broker. For each payload
+ * size, the throughput from the first byte sent by the UI client to the {@link DeployApplicationResponse} received
+ * back is reported together with the peak heap of the server.
+ * <p>
+ * The gateway is expected to stream the deployment rather than to hold it in memory as a whole, so the growth of the
+ * old generation of the server heap, read through the management interface of the server, is asserted to stay below
+ * a limit that does not depend on the payload size. The payload sizes and the limit can be set through the system
+ * properties {@value #SIZES_MB} (default {@code 10}, e.g. {@code 10,100,1024} for the larger sizes) and
+ * {@value #MAX_HEAP_GROWTH_MB} (default {@code 128}).
+ * <p>
+ * Whether the request travels through the broker or is delivered to the feed directly depends on the
+ * {@code hawkular.cmdgw.localDelivery} setting of the server; the path taken is reported too.
+ */
+public class DeploymentStreamingITest extends AbstractCommandITest {
+    public static final String GROUP = "DeploymentStreamingITest";
+
+    public static final String SIZES_MB = "hawkular.itest.streaming.sizesMb";
+    public static final String MAX_HEAP_GROWTH_MB = "hawkular.itest.streaming.maxHeapGrowthMb";
+
+    private static final Logger log = Logger.getLogger(DeploymentStreamingITest.class.getName());
+
+    private static final long MB = 1024 * 1024;
+    private static final String FEED_ID = "streaming-feed";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 100;
+    /** the lowest throughput to wait for in MB/s */
+    private static final long MIN_THROUGHPUT_MB_PER_SECOND = 2;
+
+    /**
+     * The heap of the server sampled in the background through the platform MBeans exposed by its management
+     * interface. The old generation is told apart from the young one by the names of the memory pools; there is no
+     * API for that, but the young pools are named alike by all collectors.
+     */
+    private static final class HeapSampler implements AutoCloseable {
+        private final ModelControllerClient client;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final ModelNode operation = new ModelNode();
+        private final AtomicLong peakUsed = new AtomicLong();
+        private final AtomicLong peakTenuredUsed = new AtomicLong();
+
+        private HeapSampler() throws IOException {
+            this.client = ModelControllerClient.Factory.create("http-remoting", ClientConfig.host,
+                    ClientConfig.managementPort);
+            operation.get(ClientConstants.OP).set("read-children-resources");
+            operation.get(ClientConstants.OP_ADDR).add("core-service", "platform-mbean").add("type", "memory-pool");
+            operation.get("child-type").set("name");
+            operation.get(ClientConstants.INCLUDE_RUNTIME).set(true);
+        }
+
+        /**
+         * @return the current usage of the old generation of the server
+         */
+        private long start() throws IOException {
+            long tenuredUsed = sample()[1];
+            peakTenuredUsed.set(tenuredUsed);
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    long[] usage = sample();
+                    peakUsed.accumulateAndGet(usage[0], Math::max);
+                    peakTenuredUsed.accumulateAndGet(usage[1], Math::max);
+                } catch (IOException | RuntimeException e) {
+                    log.warning("Could not sample the heap of the server: " + e);
+                }
+            }, 0, HEAP_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return tenuredUsed;
+        }
+
+        /**
+         * @return the used heap and the used old generation of the server
+         */
+        private long[] sample() throws IOException {
+            ModelNode response = client.execute(operation);
+            if (!ClientConstants.SUCCESS.equals(response.get(ClientConstants.OUTCOME).asString())) {
+                throw new IOException("Could not read the memory pools of the server: "
+                        + response.get(ClientConstants.FAILURE_DESCRIPTION));
+            }
+            long used = 0;
+            long tenuredUsed = 0;
+            for (Property pool : response.get(ClientConstants.RESULT).asPropertyList()) {
+                ModelNode value = pool.getValue();
+                if (!"HEAP".equals(value.get("type").asString())) {
+                    continue;
+                }
+                long poolUsed = value.get("usage", "used").asLong();
+                used += poolUsed;
+                if (!pool.getName().contains("Eden") && !pool.getName().contains("Survivor")) {
+                    tenuredUsed += poolUsed;
+                }
+            }
+            return new long[] { used, tenuredUsed };
+        }
+
+        @Override
+        public void close() {
+            scheduler.shutdownNow();
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warning("Could not close the management client: " + e);
+            }
+        }
+    }
+
+    /**
+     * A feed consuming the deployments and answering them with a {@link DeployApplicationResponse}.
+     */
+    private static final class StreamingFeed implements WebSocketListener {
+        private final CompletableFuture<WebSocket> connected = new CompletableFuture<>();
+        private volatile long bytesReceived;
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            connected.complete(webSocket);
+        }
+
+        @Override
+        public void onMessage(ResponseBody body) throws IOException {
+            try {
+                if (!WebSocket.BINARY.equals(body.contentType())) {
+                    log.warning("Unexpected text message sent to feed [" + FEED_ID + "]: " + body.string());
+                    return;
+                }
+                BasicMessageWithExtraData<BasicMessage> message = new ApiDeserializer()
+                        .deserialize(body.byteStream());
+                DeployApplicationRequest request = (DeployApplicationRequest) message.getBasicMessage();
+                bytesReceived = drain(message.getBinaryData());
+
+                DeployApplicationResponse response = new DeployApplicationResponse();
+                response.setFeedId(FEED_ID);
+                response.setResourceId(request.getResourceId());
+                response.setDestinationFileName(request.getDestinationFileName());
+                response.setSenderRequestId(request.getSenderRequestId());
+                response.setDestinationSessionId(request.getSenderSessionId());
+                response.setStatus(ResponseStatus.OK);
+                response.setMessage("Received [" + bytesReceived + "] bytes");
+                try (Buffer buffer = new Buffer()) {
+                    buffer.writeUtf8(ApiDeserializer.toHawkularFormat(response));
+                    connected.join().sendMessage(RequestBody.create(WebSocket.TEXT, buffer.readByteArray()));
+                }
+            } finally {
+                body.close();
+            }
+        }
+
+        private static long drain(BinaryData binaryData) throws IOException {
+            long result = 0;
+            try (InputStream in = binaryData) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                for (int numRead; (numRead = in.read(buffer)) >= 0;) {
+                    result += numRead;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void onPong(Buffer payload) {
+            payload.close();
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+            connected.completeExceptionally(new IOException("Feed closed: " + code + " " + reason));
+        }
+
+        @Override
+        public void onFailure(IOException e, Response response) {
+            connected.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A UI client sending the deployments and waiting for their responses.
+     */
+    private static final class StreamingUiClient implements WebSocketListener {
+        private final CompletableFuture<WebSocket> welcomed = new CompletableFuture<>();
+        private volatile CompletableFuture<DeployApplicationResponse> response;
+        private volatile WebSocket webSocket;
+        /** the acknowledgement of the gateway tells whether the request went through the broker */
+        private volatile String forwardedMessage;
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            this.webSocket = webSocket;
+        }
+
+        @Override
+        public void onMessage(ResponseBody body) throws IOException {
+            BasicMessage message;
+            try {
+                message = new ApiDeserializer().deserialize(body.string()).getBasicMessage();
+            } finally {
+                body.close();
+            }
+            if (message instanceof WelcomeResponse) {
+                welcomed.complete(webSocket);
+            } else if (message instanceof GenericSuccessResponse) {
+                forwardedMessage = ((GenericSuccessResponse) message).getMessage();
+            } else if (message instanceof DeployApplicationResponse) {
+                response.complete((DeployApplicationResponse) message);
+            } else if (message instanceof GenericErrorResponse) {
+                response.completeExceptionally(
+                        new AssertionError(((GenericErrorResponse) message).getErrorMessage()));
+            }
+        }
+
+        private void send(String requestId, long size, byte[] chunk) throws IOException {
+            DeployApplicationRequest request = new DeployApplicationRequest();
+            Authentication authentication = new Authentication();
+            authentication.setUsername(ClientConfig.testUser);
+            authentication.setPassword(ClientConfig.testPasword);
+            request.setAuthentication(authentication);
+            request.setFeedId(FEED_ID);
+            request.setResourceId("streaming-resource");
+            request.setDestinationFileName(requestId + ".war");
+            request.setEnabled(true);
+            request.setSenderRequestId(requestId);
+            String nameAndJson = ApiDeserializer.toHawkularFormat(request);
+
+            response = new CompletableFuture<>();
+            forwardedMessage = null;
+            /* the payload is generated while being written so that the client does not hold it in memory either */
+            welcomed.join().sendMessage(new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return WebSocket.BINARY;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    sink.writeUtf8(nameAndJson);
+                    for (long remaining = size; remaining > 0; remaining -= chunk.length) {
+                        sink.write(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPong(Buffer payload) {
+            payload.close();
+        }
+
+        @Override
+        public void onClose(int code, String reason) {
+            welcomed.completeExceptionally(new IOException("UI client closed: " + code + " " + reason));
+        }
+
+        @Override
+        public void onFailure(IOException e, Response response) {
+            welcomed.completeExceptionally(e);
+            CompletableFuture<DeployApplicationResponse> r = this.response;
+            if (r != null) {
+                r.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void close(WebSocket webSocket) {
+        if (webSocket != null) {
+            try {
+                webSocket.close(1000, "Streaming test finished");
+            } catch (IOException | IllegalStateException e) {
+                log.fine("Could not close WebSocket: " + e);
+            }
+        }
+    }
+
+    @RunAsClient
+    @Test(groups = { GROUP })
+    public void testStreamLargeDeployments() throws Throwable {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(0, TimeUnit.SECONDS)
+                .writeTimeout(0, TimeUnit.SECONDS)
+                .build();
+        StreamingFeed feed = new StreamingFeed();
+        StreamingUiClient uiClient = new StreamingUiClient();
+        try {
+            WebSocketCall.create(client, new Request.Builder().url(ClientConfig.baseGwUri + "/feed/" + FEED_ID)
+                    .addHeader("Authorization", ClientConfig.authHeader).build()).enqueue(feed);
+            WebSocket feedWebSocket = feed.connected.get(30, TimeUnit.SECONDS);
+            try {
+                WebSocketCall.create(client, new Request.Builder().url(ClientConfig.baseGwUri + "/ui/ws")
+                        .addHeader("Authorization", ClientConfig.authHeader).build()).enqueue(uiClient);
+                uiClient.welcomed.get(30, TimeUnit.SECONDS);
+                streamDeployments(feed, uiClient);
+            } finally {
+                close(uiClient.webSocket);
+                close(feedWebSocket);
+            }
+        } finally {
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    private void streamDeployments(StreamingFeed feed, StreamingUiClient uiClient)
+            throws Throwable {
+        long maxHeapGrowth = Long.getLong(MAX_HEAP_GROWTH_MB, 128L) * MB;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+
+        List<String> failures = new ArrayList<>();
+        log.info(String.format("%10s %10s %12s %12s %14s  %s", "size MB", "seconds", "MB/s", "peak heap MB",
+                "old gen +MB", "path"));
+        for (String sizeMb : System.getProperty(SIZES_MB, "10").split(",")) {
+            long size = Long.parseLong(sizeMb.trim()) * MB;
+            String requestId = "streaming-" + sizeMb.trim();
+            try (HeapSampler heap = new HeapSampler()) {
+                long tenuredBefore = heap.start();
+                long start = System.nanoTime();
+                uiClient.send(requestId, size, chunk);
+                DeployApplicationResponse response;
+                try {
+                    response = uiClient.response.get(60 + size / MB / MIN_THROUGHPUT_MB_PER_SECOND,
+                            TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                } catch (TimeoutException e) {
+                    throw new AssertionError("No response to a deployment of [" + size + "] bytes", e);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9d;
+                heap.close();
+
+                Assert.assertEquals(response.getSenderRequestId(), requestId);
+                Assert.assertEquals(feed.bytesReceived, size, "bytes received by the feed");
+                long heapGrowth = heap.peakTenuredUsed.get() - tenuredBefore;
+                String path = uiClient.forwardedMessage == null ? "unknown"
+                        : uiClient.forwardedMessage.contains("delivered locally") ? "local" : "broker";
+                log.info(String.format("%10d %10.1f %12.1f %12d %14d  %s", size / MB, seconds, size / MB / seconds,
+                        heap.peakUsed.get() / MB, heapGrowth / MB, path));
+                if (heapGrowth > maxHeapGrowth) {
+                    failures.add("The old generation of the server grew by [" + heapGrowth / MB
+                            + "] MB while streaming [" + size / MB + "] MB, the limit is [" + maxHeapGrowth / MB
+                            + "] MB");
+                }
+            }
+        }
+        Assert.assertTrue(failures.isEmpty(), String.join("\n", failures));
+    }
+}
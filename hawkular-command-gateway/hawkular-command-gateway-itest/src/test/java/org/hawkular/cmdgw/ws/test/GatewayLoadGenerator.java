@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.ws.test;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.hawkular.cmdgw.api.Authentication;
+import org.hawkular.cmdgw.ws.test.LoadUiClient.RequestType;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * A load generator simulating many feeds and UI clients talking to a running command gateway, typically a locally
+ * started server with its in-VM broker. It is meant for sizing gateway nodes rather than for regular builds and is
+ * therefore started through {@link #main(String[])}, e.g.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.hawkular.cmdgw.ws.test.GatewayLoadGenerator \
+ *     -Dhawkular.itest.rest.user=jdoe -Dhawkular.itest.rest.password=password \
+ *     -Dhawkular.load.feeds=1000 -Dhawkular.load.uiClients=50
+ * </pre>
+ *
+ * The gateway is located through the same system properties as in the integration tests, see {@link ClientConfig}.
+ * The load is configured through the following system properties:
+ * <ul>
+ * <li>{@value #FEEDS} - the number of simulated feeds, default {@code 100}</li>
+ * <li>{@value #UI_CLIENTS} - the number of simulated UI clients, default {@code 10}</li>
+ * <li>{@value #REQUESTS_PER_SECOND} - the rate of requests sent by each UI client, default {@code 10}</li>
+ * <li>{@value #MIX} - the relative weights of the request types as a comma separated list of
+ * {@code RequestType:weight} pairs, default
+ * {@code ExecuteOperationRequest:80,EchoRequest:15,DeployApplicationRequest:5}</li>
+ * <li>{@value #DEPLOYMENT_SIZE} - the size of the binary deployments in bytes, default {@code 1048576}</li>
+ * <li>{@value #FEED_RESPONSE_DELAY_MS} - how long the feeds take to answer a request, default {@code 0}</li>
+ * <li>{@value #WARM_UP_SECONDS} - for how long to send requests before measuring, default {@code 10}</li>
+ * <li>{@value #DURATION_SECONDS} - for how long to measure, default {@code 60}</li>
+ * </ul>
+ * At the end, the throughput and the p50, p99 and p99.9 latencies from sending a request to receiving its response
+ * are reported per request type.
+ */
+public class GatewayLoadGenerator {
+    private static final Logger log = Logger.getLogger(GatewayLoadGenerator.class.getName());
+
+    public static final String FEEDS = "hawkular.load.feeds";
+    public static final String UI_CLIENTS = "hawkular.load.uiClients";
+    public static final String REQUESTS_PER_SECOND = "hawkular.load.requestsPerSecond";
+    public static final String MIX = "hawkular.load.mix";
+    public static final String DEPLOYMENT_SIZE = "hawkular.load.deploymentSize";
+    public static final String FEED_RESPONSE_DELAY_MS = "hawkular.load.feedResponseDelayMs";
+    public static final String WARM_UP_SECONDS = "hawkular.load.warmUpSeconds";
+    public static final String DURATION_SECONDS = "hawkular.load.durationSeconds";
+
+    /** how long to wait for all clients to connect */
+    private static final long CONNECT_TIMEOUT_SECONDS = 120;
+    /** how long to wait for the responses to the last requests */
+    private static final long DRAIN_SECONDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        GatewayLoadGenerator generator = new GatewayLoadGenerator(
+                Integer.getInteger(FEEDS, 100),
+                Integer.getInteger(UI_CLIENTS, 10),
+                Double.parseDouble(System.getProperty(REQUESTS_PER_SECOND, "10")),
+                System.getProperty(MIX, "ExecuteOperationRequest:80,EchoRequest:15,DeployApplicationRequest:5"),
+                Integer.getInteger(DEPLOYMENT_SIZE, 1024 * 1024),
+                Long.getLong(FEED_RESPONSE_DELAY_MS, 0L));
+        generator.run(Long.getLong(WARM_UP_SECONDS, 10L), Long.getLong(DURATION_SECONDS, 60L), System.out);
+        System.exit(0);
+    }
+
+    private final int feedCount;
+    private final int uiClientCount;
+    private final double requestsPerSecond;
+    private final RequestType[] mix;
+    private final byte[] deployment;
+    private final long feedResponseDelayMs;
+    private final Authentication authentication;
+
+    private final OkHttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final List<LoadFeed> feeds = new ArrayList<>();
+    private final List<LoadUiClient> uiClients = new ArrayList<>();
+    private final Set<LoadFeed> connectedFeeds = ConcurrentHashMap.newKeySet();
+    private CountDownLatch uiClientsConnected;
+
+    private final Map<RequestType, LatencyRecorder> latencies = new EnumMap<>(RequestType.class);
+    private final Map<RequestType, LongAdder> sent = new EnumMap<>(RequestType.class);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    public GatewayLoadGenerator(int feedCount, int uiClientCount, double requestsPerSecond, String mix,
+            int deploymentSize, long feedResponseDelayMs) {
+        super();
+        this.feedCount = feedCount;
+        this.uiClientCount = uiClientCount;
+        this.requestsPerSecond = requestsPerSecond;
+        this.mix = parseMix(mix);
+        this.deployment = new byte[deploymentSize];
+        new Random(42).nextBytes(deployment);
+        this.feedResponseDelayMs = feedResponseDelayMs;
+        this.authentication = new Authentication();
+        authentication.setUsername(ClientConfig.testUser);
+        authentication.setPassword(ClientConfig.testPasword);
+        for (RequestType type : RequestType.values()) {
+            latencies.put(type, new LatencyRecorder());
+            sent.put(type, new LongAdder());
+        }
+
+        /* each WebSocket keeps its reader loop on a dispatcher thread */
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(feedCount + uiClientCount + 1);
+        dispatcher.setMaxRequestsPerHost(feedCount + uiClientCount + 1);
+        this.client = new OkHttpClient.Builder().dispatcher(dispatcher)
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(0, TimeUnit.SECONDS)
+                .build();
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parses a comma separated list of {@code RequestType:weight} pairs into an array where each type occurs
+     * {@code weight} times so that picking a random element honors the weights.
+     */
+    static RequestType[] parseMix(String mix) {
+        List<RequestType> result = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            RequestType type = RequestType.valueOf(parts[0].trim());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                result.add(type);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Empty request mix [" + mix + "]");
+        }
+        return result.toArray(new RequestType[result.size()]);
+    }
+
+    /**
+     * Connects the feeds and the UI clients, sends requests for {@code warmUpSeconds + durationSeconds}, prints the
+     * results to {@code out} and disconnects.
+     *
+     * @param warmUpSeconds for how long to send requests before measuring
+     * @param durationSeconds for how long to measure
+     * @param out where to print the results
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run(long warmUpSeconds, long durationSeconds, PrintStream out) throws InterruptedException {
+        try {
+            for (int i = 0; i < feedCount; i++) {
+                LoadFeed feed = new LoadFeed(this, "load-feed-" + i);
+                feeds.add(feed);
+                feed.connect(client);
+            }
+            /* feeds get no welcome, a feed may be asked to reconnect later right after it connected */
+            long connectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONNECT_TIMEOUT_SECONDS);
+            while (connectedFeeds.size() < feedCount) {
+                if (System.nanoTime() > connectDeadline) {
+                    throw new IllegalStateException("Only [" + connectedFeeds.size() + "] of [" + feedCount
+                            + "] feeds connected within [" + CONNECT_TIMEOUT_SECONDS + "] s");
+                }
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            out.printf("Connected [%d] feeds%n", feedCount);
+
+            uiClientsConnected = new CountDownLatch(uiClientCount);
+            for (int i = 0; i < uiClientCount; i++) {
+                LoadUiClient uiClient = new LoadUiClient(this, i);
+                uiClients.add(uiClient);
+                uiClient.connect(client);
+            }
+            if (!uiClientsConnected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Only [" + (uiClientCount - uiClientsConnected.getCount())
+                        + "] of [" + uiClientCount + "] UI clients connected within [" + CONNECT_TIMEOUT_SECONDS
+                        + "] s");
+            }
+            out.printf("Connected [%d] UI clients%n", uiClientCount);
+
+            long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+            List<ScheduledFuture<?>> senders = new ArrayList<>();
+            for (LoadUiClient uiClient : uiClients) {
+                long initialDelay = ThreadLocalRandom.current().nextLong(periodNanos);
+                senders.add(scheduler.scheduleAtFixedRate(uiClient::sendNext, initialDelay, periodNanos,
+                        TimeUnit.NANOSECONDS));
+            }
+
+            TimeUnit.SECONDS.sleep(warmUpSeconds);
+            latencies.values().forEach(LatencyRecorder::reset);
+            sent.values().forEach(LongAdder::reset);
+            errors.reset();
+            out.printf("Warmed up for [%d] s, measuring for [%d] s%n", warmUpSeconds, durationSeconds);
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            senders.forEach(f -> f.cancel(false));
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9d;
+
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+            while (pendingCount() > 0 && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            report(out, elapsedSeconds);
+        } finally {
+            uiClients.forEach(LoadUiClient::close);
+            feeds.forEach(LoadFeed::close);
+            scheduler.shutdownNow();
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    private long pendingCount() {
+        long result = 0;
+        for (LoadUiClient uiClient : uiClients) {
+            result += uiClient.getPendingCount();
+        }
+        return result;
+    }
+
+    private void report(PrintStream out, double elapsedSeconds) {
+        out.printf("%-26s %10s %10s %10s %10s %10s %10s %10s%n", "request", "sent", "answered", "per sec",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (RequestType type : RequestType.values()) {
+            LatencyRecorder recorder = latencies.get(type);
+            long answered = recorder.getCount();
+            out.printf("%-26s %10d %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", type, sent.get(type).sum(), answered,
+                    answered / elapsedSeconds, recorder.getPercentile(50) / 1000d,
+                    recorder.getPercentile(99) / 1000d, recorder.getPercentile(99.9) / 1000d,
+                    recorder.getMax() / 1000d);
+        }
+        out.printf("unanswered: %d, error responses: %d, send failures: %d, unexpected disconnects: %d%n",
+                pendingCount(), errors.sum(), sendFailures.sum(), disconnects.sum());
+    }
+
+    Authentication getAuthentication() {
+        return authentication;
+    }
+
+    byte[] getDeployment() {
+        return deployment;
+    }
+
+    long getFeedResponseDelayMs() {
+        return feedResponseDelayMs;
+    }
+
+    RequestType nextRequestType() {
+        return mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    }
+
+    String randomFeedId() {
+        return feeds.get(ThreadLocalRandom.current().nextInt(feeds.size())).getFeedId();
+    }
+
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            scheduler.execute(task);
+        } else {
+            scheduler.schedule(task, delay, unit);
+        }
+    }
+
+    void feedConnected(LoadFeed feed) {
+        connectedFeeds.add(feed);
+    }
+
+    void reconnectLater(LoadFeed feed) {
+        connectedFeeds.remove(feed);
+        scheduler.schedule(() -> feed.connect(client), 1000 + ThreadLocalRandom.current().nextInt(1000),
+                TimeUnit.MILLISECONDS);
+    }
+
+    void feedDisconnected(LoadFeed feed, String reason) {
+        connectedFeeds.remove(feed);
+        disconnects.increment();
+        log.warning("Feed [" + feed.getFeedId() + "] disconnected: " + reason);
+    }
+
+    void uiClientConnected(LoadUiClient uiClient) {
+        uiClientsConnected.countDown();
+    }
+
+    void uiClientDisconnected(LoadUiClient uiClient, String reason) {
+        disconnects.increment();
+        log.warning(uiClient + " disconnected: " + reason);
+    }
+
+    void requestSent(RequestType type) {
+        sent.get(type).increment();
+    }
+
+    void responseReceived(RequestType type, long micros) {
+        latencies.get(type).record(micros);
+    }
+
+    void errorReceived(String errorMessage) {
+        errors.increment();
+        log.fine("Error response: " + errorMessage);
+    }
+
+    void sendFailed(Exception e) {
+        sendFailures.increment();
+        log.fine("Could not send: " + e);
+    }
+}
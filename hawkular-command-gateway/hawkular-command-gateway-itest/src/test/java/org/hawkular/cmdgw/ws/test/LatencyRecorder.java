@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.ws.test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free log-linear histogram of latencies in microseconds used by {@link GatewayLoadGenerator}. Values are
+ * recorded with a relative error below 1.6% which is precise enough for p99.9 of round trips over the network.
+ */
+public class LatencyRecorder {
+    /** the number of buckets per power of two */
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        /* the middle of the bucket */
+        return (mantissa << shift) + ((1L << shift) >>> 1);
+    }
+
+    private volatile AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private volatile LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param micros the latency to record
+     */
+    public void record(long micros) {
+        buckets.incrementAndGet(indexOf(micros));
+        max.accumulate(micros);
+    }
+
+    /**
+     * Forgets all recorded values, e.g. at the end of a warm-up period. Values recorded concurrently may get lost.
+     */
+    public void reset() {
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        AtomicLongArray b = buckets;
+        long result = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result += b.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the greatest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile a number between {@code 0} and {@code 100}, e.g. {@code 99.9}
+     * @return the value below which the given {@code percentile} of the recorded values falls or {@code 0} if nothing
+     *         was recorded
+     */
+    public long getPercentile(double percentile) {
+        AtomicLongArray b = buckets;
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = b.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.ws.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.BinaryData;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.DeployApplicationRequest;
+import org.hawkular.cmdgw.api.DeployApplicationResponse;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationResponse;
+import org.hawkular.cmdgw.api.ResourceRequest;
+import org.hawkular.cmdgw.api.ResourceResponse;
+import org.hawkular.cmdgw.api.ResponseStatus;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.ws.WebSocket;
+import okhttp3.ws.WebSocketCall;
+import okhttp3.ws.WebSocketListener;
+
+import okio.Buffer;
+
+/**
+ * A feed simulated by {@link GatewayLoadGenerator}. It answers {@link ExecuteOperationRequest}s and
+ * {@link DeployApplicationRequest}s (consuming the whole deployment) with a successful response after the configured
+ * delay. A feed asked to try again later by the gateway reconnects after a second.
+ */
+public class LoadFeed implements WebSocketListener {
+    private static final Logger log = Logger.getLogger(LoadFeed.class.getName());
+
+    private static final int TRY_AGAIN_LATER = 1013;
+
+    private final GatewayLoadGenerator generator;
+    private final String feedId;
+    private volatile WebSocket webSocket;
+    private volatile boolean closing;
+    private final LongAdder bytesReceived = new LongAdder();
+
+    public LoadFeed(GatewayLoadGenerator generator, String feedId) {
+        super();
+        this.generator = generator;
+        this.feedId = feedId;
+    }
+
+    public String getFeedId() {
+        return feedId;
+    }
+
+    /**
+     * @return the number of bytes of binary attachments received by this feed
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public void connect(OkHttpClient client) {
+        Request request = new Request.Builder().url(ClientConfig.baseGwUri + "/feed/" + feedId)
+                .addHeader("Authorization", ClientConfig.authHeader).build();
+        WebSocketCall.create(client, request).enqueue(this);
+    }
+
+    public void close() {
+        closing = true;
+        WebSocket ws = webSocket;
+        if (ws != null) {
+            try {
+                ws.close(1000, "Load test finished");
+            } catch (IOException | IllegalStateException e) {
+                log.log(Level.FINE, "Could not close feed [" + feedId + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        this.webSocket = webSocket;
+        generator.feedConnected(this);
+    }
+
+    @Override
+    public void onMessage(ResponseBody body) throws IOException {
+        try {
+            BasicMessageWithExtraData<BasicMessage> message;
+            if (WebSocket.BINARY.equals(body.contentType())) {
+                message = new ApiDeserializer().deserialize(body.byteStream());
+                BinaryData binaryData = message.getBinaryData();
+                if (binaryData != null) {
+                    drain(binaryData);
+                }
+            } else {
+                message = new ApiDeserializer().deserialize(body.string());
+            }
+            BasicMessage request = message.getBasicMessage();
+            ResourceResponse response = responseTo(request);
+            if (response != null) {
+                generator.schedule(() -> send(response), generator.getFeedResponseDelayMs(), TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            body.close();
+        }
+    }
+
+    private void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0) {
+            bytesReceived.add(numRead);
+        }
+    }
+
+    private ResourceResponse responseTo(BasicMessage request) {
+        ResourceResponse response;
+        if (request instanceof ExecuteOperationRequest) {
+            ExecuteOperationResponse r = new ExecuteOperationResponse();
+            r.setOperationName(((ExecuteOperationRequest) request).getOperationName());
+            response = r;
+        } else if (request instanceof DeployApplicationRequest) {
+            DeployApplicationResponse r = new DeployApplicationResponse();
+            r.setDestinationFileName(((DeployApplicationRequest) request).getDestinationFileName());
+            response = r;
+        } else {
+            log.fine("Feed [" + feedId + "] ignores [" + request.getClass().getSimpleName() + "]");
+            return null;
+        }
+        ResourceRequest resourceRequest = (ResourceRequest) request;
+        response.setFeedId(feedId);
+        response.setResourceId(resourceRequest.getResourceId());
+        response.setSenderRequestId(resourceRequest.getSenderRequestId());
+        response.setDestinationSessionId(resourceRequest.getSenderSessionId());
+        response.setStatus(ResponseStatus.OK);
+        response.setMessage("Performed by load test feed [" + feedId + "]");
+        return response;
+    }
+
+    private void send(BasicMessage message) {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            return;
+        }
+        try (Buffer buffer = new Buffer()) {
+            buffer.writeUtf8(ApiDeserializer.toHawkularFormat(message));
+            ws.sendMessage(RequestBody.create(WebSocket.TEXT, buffer.readByteArray()));
+        } catch (IOException | IllegalStateException e) {
+            generator.sendFailed(e);
+        }
+    }
+
+    @Override
+    public void onPong(Buffer payload) {
+        payload.close();
+    }
+
+    @Override
+    public void onClose(int code, String reason) {
+        webSocket = null;
+        if (!closing && code == TRY_AGAIN_LATER) {
+            log.fine("Feed [" + feedId + "] asked to reconnect later: " + reason);
+            generator.reconnectLater(this);
+        } else if (!closing) {
+            generator.feedDisconnected(this, code + " " + reason);
+        }
+    }
+
+    @Override
+    public void onFailure(IOException e, Response response) {
+        webSocket = null;
+        if (!closing) {
+            generator.feedDisconnected(this, String.valueOf(e));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.ws.test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.AuthMessage;
+import org.hawkular.cmdgw.api.DeployApplicationRequest;
+import org.hawkular.cmdgw.api.EchoRequest;
+import org.hawkular.cmdgw.api.EchoResponse;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.ResourceRequest;
+import org.hawkular.cmdgw.api.ResourceResponse;
+import org.hawkular.cmdgw.api.WelcomeResponse;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.ws.WebSocket;
+import okhttp3.ws.WebSocketCall;
+import okhttp3.ws.WebSocketListener;
+
+import okio.Buffer;
+
+/**
+ * A UI client simulated by {@link GatewayLoadGenerator}. Once welcomed by the gateway, it sends requests of the
+ * configured mix at a fixed rate regardless of the responses (an open workload) and records the time from sending a
+ * request to receiving its response.
+ */
+public class LoadUiClient implements WebSocketListener {
+    /** the request types {@link LoadUiClient} can send */
+    public enum RequestType {
+        EchoRequest, ExecuteOperationRequest, DeployApplicationRequest
+    }
+
+    private static final class Pending {
+        private final RequestType type;
+        private final long sentNanos;
+
+        private Pending(RequestType type, long sentNanos) {
+            this.type = type;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private final GatewayLoadGenerator generator;
+    private final int index;
+    private volatile WebSocket webSocket;
+    private volatile String sessionId;
+    private volatile boolean closing;
+    private final AtomicLong requestCounter = new AtomicLong();
+    /** resource requests waiting for a response by senderRequestId */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    /** echo responses carry no request id but come back in order */
+    private final Queue<Pending> pendingEchoes = new ConcurrentLinkedQueue<>();
+
+    public LoadUiClient(GatewayLoadGenerator generator, int index) {
+        super();
+        this.generator = generator;
+        this.index = index;
+    }
+
+    public void connect(OkHttpClient client) {
+        Request request = new Request.Builder().url(ClientConfig.baseGwUri + "/ui/ws")
+                .addHeader("Authorization", ClientConfig.authHeader).build();
+        WebSocketCall.create(client, request).enqueue(this);
+    }
+
+    /**
+     * @return the number of requests sent but not answered yet
+     */
+    public int getPendingCount() {
+        return pending.size() + pendingEchoes.size();
+    }
+
+    /**
+     * Sends one request of a type chosen randomly according to the configured mix to a random feed.
+     */
+    public void sendNext() {
+        WebSocket ws = webSocket;
+        if (ws == null || sessionId == null) {
+            return;
+        }
+        RequestType type = generator.nextRequestType();
+        byte[] payload = null;
+        AuthMessage message;
+        switch (type) {
+            case EchoRequest:
+                EchoRequest echo = new EchoRequest();
+                echo.setEchoMessage("load " + index);
+                message = echo;
+                break;
+            case ExecuteOperationRequest:
+                ExecuteOperationRequest op = new ExecuteOperationRequest();
+                op.setOperationName("Reload");
+                message = op;
+                break;
+            case DeployApplicationRequest:
+                DeployApplicationRequest deploy = new DeployApplicationRequest();
+                deploy.setDestinationFileName("load-" + index + ".war");
+                deploy.setEnabled(true);
+                payload = generator.getDeployment();
+                message = deploy;
+                break;
+            default:
+                throw new IllegalStateException("Unexpected request type [" + type + "]");
+        }
+        message.setAuthentication(generator.getAuthentication());
+        Pending p = new Pending(type, System.nanoTime());
+        if (message instanceof ResourceRequest) {
+            ResourceRequest resourceRequest = (ResourceRequest) message;
+            String requestId = "load-" + index + "-" + requestCounter.incrementAndGet();
+            resourceRequest.setFeedId(generator.randomFeedId());
+            resourceRequest.setResourceId("load-resource");
+            resourceRequest.setSenderRequestId(requestId);
+            pending.put(requestId, p);
+        } else {
+            pendingEchoes.add(p);
+        }
+        try (Buffer buffer = new Buffer()) {
+            buffer.writeUtf8(ApiDeserializer.toHawkularFormat(message));
+            if (payload == null) {
+                ws.sendMessage(RequestBody.create(WebSocket.TEXT, buffer.readByteArray()));
+            } else {
+                buffer.write(payload);
+                ws.sendMessage(RequestBody.create(WebSocket.BINARY, buffer.readByteArray()));
+            }
+            generator.requestSent(type);
+        } catch (IOException | IllegalStateException e) {
+            generator.sendFailed(e);
+        }
+    }
+
+    public void close() {
+        closing = true;
+        WebSocket ws = webSocket;
+        if (ws != null) {
+            try {
+                ws.close(1000, "Load test finished");
+            } catch (IOException | IllegalStateException e) {
+                generator.sendFailed(e);
+            }
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        this.webSocket = webSocket;
+    }
+
+    @Override
+    public void onMessage(ResponseBody body) throws IOException {
+        long now = System.nanoTime();
+        BasicMessage message;
+        try {
+            message = new ApiDeserializer().deserialize(body.string()).getBasicMessage();
+        } finally {
+            body.close();
+        }
+        if (message instanceof WelcomeResponse) {
+            sessionId = ((WelcomeResponse) message).getSessionId();
+            generator.uiClientConnected(this);
+        } else if (message instanceof EchoResponse) {
+            completed(pendingEchoes.poll(), now);
+        } else if (message instanceof ResourceResponse) {
+            completed(pending.remove(((ResourceResponse) message).getSenderRequestId()), now);
+        } else if (message instanceof GenericErrorResponse) {
+            generator.errorReceived(((GenericErrorResponse) message).getErrorMessage());
+        }
+        /* GenericSuccessResponses only acknowledge the forwarding of the requests to the feeds */
+    }
+
+    private void completed(Pending p, long now) {
+        if (p != null) {
+            generator.responseReceived(p.type, TimeUnit.NANOSECONDS.toMicros(now - p.sentNanos));
+        }
+    }
+
+    @Override
+    public void onPong(Buffer payload) {
+        payload.close();
+    }
+
+    @Override
+    public void onClose(int code, String reason) {
+        webSocket = null;
+        if (!closing) {
+            generator.uiClientDisconnected(this, code + " " + reason);
+        }
+    }
+
+    @Override
+    public void onFailure(IOException e, Response response) {
+        webSocket = null;
+        if (!closing) {
+            generator.uiClientDisconnected(this, String.valueOf(e));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LoadUiClient[" + index + ", " + sessionId + "]";
+    }
+}
@@ -33,6 +33,11 @@ public interface Constants {
      */
     String HEADER_UICLIENTID = "uiClientId";
 
+    /**
+     * A JMS message header that will identify the gateway node that put the message on the bus.
+     */
+    String HEADER_ORIGIN_NODE = "cmdgwOriginNode";
+
     /**
      * The JNDI name of the bus connection factory.
      */
@@ -49,4 +54,255 @@ public interface Constants {
     int CONNECTION_FACTORY_JNDI_LOOKUP_TIMEOUT_MS_DEFAULT = 30000;
     String CONNECTION_FACTORY_JNDI_LOOKUP_RETRY_AFTER_MS = "hawkular.cmdgw.connectionFactoryLookupRetryAfterMs";
     int CONNECTION_FACTORY_JNDI_LOOKUP_RETRY_AFTER_MS_DEFAULT = 250;
+
+    /**
+     * The number of shared consumers (each with its own message selector) per bus endpoint on a single gateway node.
+     */
+    String BUS_CONSUMERS_PER_ENDPOINT = "hawkular.cmdgw.busConsumersPerEndpoint";
+    int BUS_CONSUMERS_PER_ENDPOINT_DEFAULT = 4;
+    /**
+     * How long to wait after a WebSocket session was added or removed before the message selector of the affected
+     * shared consumer is rebuilt. Connects and disconnects happening within this window are coalesced into a single
+     * rebuild.
+     */
+    String BUS_SELECTOR_REBUILD_DELAY_MS = "hawkular.cmdgw.busSelectorRebuildDelayMs";
+    int BUS_SELECTOR_REBUILD_DELAY_MS_DEFAULT = 50;
+    String BUS_SELECTOR_REBUILD_RETRY_AFTER_MS = "hawkular.cmdgw.busSelectorRebuildRetryAfterMs";
+    int BUS_SELECTOR_REBUILD_RETRY_AFTER_MS_DEFAULT = 1000;
+    /**
+     * The maximal number of messages per feed or UI client kept on a gateway node while the feed or UI client is not
+     * connected, e.g. because it is just reconnecting.
+     */
+    String BUS_PENDING_MESSAGES_PER_KEY = "hawkular.cmdgw.busPendingMessagesPerKey";
+    int BUS_PENDING_MESSAGES_PER_KEY_DEFAULT = 100;
+    /**
+     * The maximal number of messages per bus endpoint kept on a gateway node while their feeds or UI clients are not
+     * connected.
+     */
+    String BUS_PENDING_MESSAGES_MAX = "hawkular.cmdgw.busPendingMessagesMax";
+    int BUS_PENDING_MESSAGES_MAX_DEFAULT = 10000;
+    /**
+     * How long a message is kept on a gateway node while its feed or UI client is not connected.
+     */
+    String BUS_PENDING_MESSAGE_TTL_MS = "hawkular.cmdgw.busPendingMessageTtlMs";
+    long BUS_PENDING_MESSAGE_TTL_MS_DEFAULT = 30000;
+
+    /**
+     * How long to wait for the responses of the feeds to a {@code FanOutRequest} that does not specify its own
+     * timeout.
+     */
+    String FAN_OUT_TIMEOUT_MS = "hawkular.cmdgw.fanOutTimeoutMs";
+    long FAN_OUT_TIMEOUT_MS_DEFAULT = 30000;
+
+    /**
+     * How long to wait for a feed to respond to a request of a UI client before the UI client gets a
+     * {@code GenericErrorResponse}. If zero or less, the requests are tracked for their round trip times only and the
+     * UI client never gets such a response. Note that a response of the feed arriving after the timeout is still
+     * passed on to the UI client.
+     */
+    String IN_FLIGHT_TIMEOUT_MS = "hawkular.cmdgw.inFlightTimeoutMs";
+    long IN_FLIGHT_TIMEOUT_MS_DEFAULT = 0;
+    /**
+     * The maximal number of requests of UI clients waiting for a response of a feed that are tracked by this gateway
+     * node. Further requests are forwarded without tracking. Requests are not tracked at all if zero or less.
+     */
+    String IN_FLIGHT_CAPACITY = "hawkular.cmdgw.inFlightCapacity";
+    int IN_FLIGHT_CAPACITY_DEFAULT = 10000;
+
+    /**
+     * How long to hold back the requests listed in {@link #COALESCED_REQUESTS} waiting for newer requests superseding
+     * them. Coalescing is disabled if zero or less.
+     */
+    String COALESCE_WINDOW_MS = "hawkular.cmdgw.coalesceWindowMs";
+    long COALESCE_WINDOW_MS_DEFAULT = 0;
+    /**
+     * A comma separated list of the names of the requests that may be coalesced if {@link #COALESCE_WINDOW_MS} is
+     * greater than zero.
+     */
+    String COALESCED_REQUESTS = "hawkular.cmdgw.coalescedRequests";
+    String COALESCED_REQUESTS_DEFAULT = "UpdateCollectionIntervalsRequest,StatisticsControlRequest";
+
+    /**
+     * How long to keep the requests for feeds that are not connected to this gateway node, waiting for the feeds to
+     * connect. Parking is disabled if zero or less, which is the right choice if feeds and UI clients can connect to
+     * different gateway nodes.
+     */
+    String FEED_PARKING_TTL_MS = "hawkular.cmdgw.feedParkingTtlMs";
+    long FEED_PARKING_TTL_MS_DEFAULT = 0;
+    /**
+     * The maximal number of requests parked for a single feed. Further requests are put on the bus.
+     */
+    String FEED_PARKING_CAPACITY_PER_FEED = "hawkular.cmdgw.feedParkingCapacityPerFeed";
+    int FEED_PARKING_CAPACITY_PER_FEED_DEFAULT = 100;
+    /**
+     * The maximal number of requests parked for all feeds. Further requests are put on the bus.
+     */
+    String FEED_PARKING_CAPACITY = "hawkular.cmdgw.feedParkingCapacity";
+    int FEED_PARKING_CAPACITY_DEFAULT = 10000;
+
+    /**
+     * Whether the messages published to {@link #HAWKULAR_TOPIC} should be broadcast to all connected UI clients.
+     * Only the command gateway API messages are broadcast, the messages of other Hawkular components are skipped.
+     */
+    String HAWKULAR_TOPIC_BROADCAST = "hawkular.cmdgw.hawkularTopicBroadcast";
+    boolean HAWKULAR_TOPIC_BROADCAST_DEFAULT = false;
+
+    /**
+     * The maximal number of feeds connected to a gateway node that are not attached to the bus yet. Feeds connecting
+     * while this limit is exceeded are asked to try again later.
+     */
+    String CONNECT_ADMISSION_QUEUE_SIZE = "hawkular.cmdgw.connectAdmissionQueueSize";
+    int CONNECT_ADMISSION_QUEUE_SIZE_DEFAULT = 1000;
+    /**
+     * The minimal delay a rejected feed is asked to wait before reconnecting. The actual delay is randomly chosen
+     * between this value and twice this value so that the rejected feeds do not come back all at once.
+     */
+    String CONNECT_RETRY_AFTER_MS = "hawkular.cmdgw.connectRetryAfterMs";
+    long CONNECT_RETRY_AFTER_MS_DEFAULT = 5000;
+
+    /**
+     * The number of threads per WebSocket endpoint calling the {@code WsSessionListener}s.
+     */
+    String SESSION_LISTENER_THREADS = "hawkular.cmdgw.sessionListenerThreads";
+    int SESSION_LISTENER_THREADS_DEFAULT = 2;
+    /**
+     * The maximal number of pending {@code WsSessionListener} invocations per WebSocket endpoint. If exceeded, the
+     * thread adding or removing a session calls the listeners itself.
+     */
+    String SESSION_LISTENER_QUEUE_SIZE = "hawkular.cmdgw.sessionListenerQueueSize";
+    int SESSION_LISTENER_QUEUE_SIZE_DEFAULT = 10000;
+
+    /**
+     * The maximal number of outbound messages waiting to be sent to a single WebSocket client.
+     */
+    String OUTBOUND_QUEUE_CAPACITY = "hawkular.cmdgw.outboundQueueCapacity";
+    int OUTBOUND_QUEUE_CAPACITY_DEFAULT = 1000;
+    /**
+     * What to do when the outbound queue of a WebSocket client is full: {@code DROP_OLDEST} or {@code CLOSE_SESSION}.
+     */
+    String OUTBOUND_QUEUE_POLICY = "hawkular.cmdgw.outboundQueuePolicy";
+    String OUTBOUND_QUEUE_POLICY_DEFAULT = "CLOSE_SESSION";
+    /**
+     * The timeout of asynchronous sends to WebSocket clients.
+     */
+    String OUTBOUND_SEND_TIMEOUT_MS = "hawkular.cmdgw.outboundSendTimeoutMs";
+    long OUTBOUND_SEND_TIMEOUT_MS_DEFAULT = 30000;
+    /**
+     * The size in bytes of the partial frames binary data streams are sent in. Each transfer in progress holds one
+     * buffer of this size.
+     */
+    String BINARY_CHUNK_SIZE = "hawkular.cmdgw.binaryChunkSize";
+    int BINARY_CHUNK_SIZE_DEFAULT = 65536;
+    /**
+     * The maximal number of idle buffers of {@link #BINARY_CHUNK_SIZE} bytes kept for reuse.
+     */
+    String BINARY_BUFFER_POOL_SIZE = "hawkular.cmdgw.binaryBufferPoolSize";
+    int BINARY_BUFFER_POOL_SIZE_DEFAULT = 64;
+    /**
+     * The number of threads sending binary data streams asynchronously.
+     */
+    String BINARY_SENDER_THREADS = "hawkular.cmdgw.binarySenderThreads";
+    int BINARY_SENDER_THREADS_DEFAULT = 4;
+    /**
+     * The maximal number of binary data streams waiting for a sender thread. Further asynchronous transfers fail.
+     */
+    String BINARY_SENDER_QUEUE_SIZE = "hawkular.cmdgw.binarySenderQueueSize";
+    int BINARY_SENDER_QUEUE_SIZE_DEFAULT = 1000;
+
+    /**
+     * The rate limits of the messages sent by a single feed as a comma separated list of
+     * {@code messageClass:messagesPerSecond:bytesPerSecond} triples, e.g. {@code *:100:1048576,EventDestination:10:0}.
+     * The message class is the simple class name of the message or {@code *} for all messages of the feed together.
+     * Zero means unlimited. No limits apply if empty. Text messages are charged the length of their UTF-8 encoding.
+     */
+    String FEED_RATE_LIMITS = "hawkular.cmdgw.feedRateLimits";
+    String FEED_RATE_LIMITS_DEFAULT = "";
+    /**
+     * The rate limits of the messages sent by a single UI client in the format of {@link #FEED_RATE_LIMITS}.
+     */
+    String UI_CLIENT_RATE_LIMITS = "hawkular.cmdgw.uiClientRateLimits";
+    String UI_CLIENT_RATE_LIMITS_DEFAULT = "";
+    /**
+     * For how long a client may exceed its rate limits before it is limited, i.e. the size of the bursts allowed.
+     */
+    String RATE_LIMIT_BURST_MS = "hawkular.cmdgw.rateLimitBurstMs";
+    long RATE_LIMIT_BURST_MS_DEFAULT = 1000;
+    /**
+     * What to do when a client exceeds its rate limits: {@code REJECT} the message or {@code CLOSE_SESSION}.
+     */
+    String RATE_LIMIT_POLICY = "hawkular.cmdgw.rateLimitPolicy";
+    String RATE_LIMIT_POLICY_DEFAULT = "REJECT";
+
+    /**
+     * The number of threads executing the commands sent by WebSocket clients.
+     */
+    String COMMAND_WORKER_THREADS = "hawkular.cmdgw.commandWorkerThreads";
+    int COMMAND_WORKER_THREADS_DEFAULT = 16;
+    /**
+     * The maximal number of WebSocket sessions waiting for a command worker thread. If exceeded, the commands are
+     * executed on the container's WebSocket threads.
+     */
+    String COMMAND_WORKER_QUEUE_SIZE = "hawkular.cmdgw.commandWorkerQueueSize";
+    int COMMAND_WORKER_QUEUE_SIZE_DEFAULT = 10000;
+    /**
+     * The maximal number of commands pending for a single WebSocket session before the reading of further messages
+     * from the session waits for the commands to finish.
+     */
+    String COMMAND_SESSION_QUEUE_SIZE = "hawkular.cmdgw.commandSessionQueueSize";
+    int COMMAND_SESSION_QUEUE_SIZE_DEFAULT = 100;
+    /**
+     * Whether the commands sent by WebSocket clients should be executed on virtual threads. Ignored on JVMs without
+     * virtual threads.
+     */
+    String COMMAND_VIRTUAL_THREADS = "hawkular.cmdgw.commandVirtualThreads";
+    boolean COMMAND_VIRTUAL_THREADS_DEFAULT = false;
+
+    /**
+     * Whether messages for a feed or UI client connected to this gateway node should be delivered directly rather
+     * than through the bus.
+     */
+    String LOCAL_DELIVERY = "hawkular.cmdgw.localDelivery";
+    boolean LOCAL_DELIVERY_DEFAULT = true;
+    /**
+     * How long to wait for the messages sent to a feed or UI client through the bus to arrive before messages to the
+     * same feed or UI client may be delivered directly. This only matters if those messages were consumed by another
+     * gateway node.
+     */
+    String LOCAL_DELIVERY_FENCE_TIMEOUT_MS = "hawkular.cmdgw.localDeliveryFenceTimeoutMs";
+    long LOCAL_DELIVERY_FENCE_TIMEOUT_MS_DEFAULT = 10000;
+
+    /**
+     * The maximal number of characters of a text message received from a WebSocket client. Longer messages are
+     * rejected while being read. No limit applies if zero or less, which is the default.
+     */
+    String MAX_TEXT_MESSAGE_SIZE = "hawkular.cmdgw.maxTextMessageSize";
+    long MAX_TEXT_MESSAGE_SIZE_DEFAULT = 0;
+
+    /**
+     * The length of the interval over which the per second rates of the gateway metrics are computed.
+     */
+    String METRICS_RATE_INTERVAL_MS = "hawkular.cmdgw.metricsRateIntervalMs";
+    long METRICS_RATE_INTERVAL_MS_DEFAULT = 5000;
+    /**
+     * Only every n-th message received from WebSocket clients is logged at INFO level on average, the others are
+     * logged at DEBUG level. {@code 1} logs every message at INFO level, {@code 0} none.
+     */
+    String MESSAGE_LOG_SAMPLE_RATE = "hawkular.cmdgw.messageLogSampleRate";
+    int MESSAGE_LOG_SAMPLE_RATE_DEFAULT = 1000;
+
+    /**
+     * How often the gateway looks for idle WebSocket sessions. A ping is sent to each session that has not sent
+     * anything, not even a pong, within the last interval. No pings are sent and no sessions are reclaimed if zero or
+     * less.
+     */
+    String HEARTBEAT_INTERVAL_MS = "hawkular.cmdgw.heartbeatIntervalMs";
+    long HEARTBEAT_INTERVAL_MS_DEFAULT = 30000;
+
+    /**
+     * A WebSocket session that has not sent anything, not even a pong, for longer than this is considered dead: it is
+     * closed and its bus resources are released. Should be a few times {@link #HEARTBEAT_INTERVAL_MS}. Idle sessions
+     * are only pinged, never closed, if zero or less.
+     */
+    String IDLE_TIMEOUT_MS = "hawkular.cmdgw.idleTimeoutMs";
+    long IDLE_TIMEOUT_MS_DEFAULT = 90000;
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * The single timer thread the gateway's features use for their timeouts and periodic sweeps, instead of each of them
+ * starting a thread of its own. The thread is started on the first use so that it does not exist if no feature needs
+ * it.
+ * <p>
+ * All tasks run on the same thread, so they must be short and must never block. A task throwing an exception is
+ * logged; a periodic one keeps being run.
+ */
+@ApplicationScoped
+public class GatewayScheduler {
+    private static final MsgLogger log = GatewayLoggers.getLogger(GatewayScheduler.class);
+
+    private volatile ScheduledThreadPoolExecutor executor;
+    private boolean destroyed;
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        ScheduledThreadPoolExecutor e;
+        synchronized (this) {
+            destroyed = true;
+            e = executor;
+        }
+        if (e != null) {
+            e.shutdownNow();
+        }
+    }
+
+    /**
+     * @param task the task to run once
+     * @param delay how long to wait before running the {@code task}
+     * @param unit the unit of {@code delay}
+     * @return the future to cancel the {@code task} with
+     * @throws RejectedExecutionException if this scheduler has been destroyed
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor().schedule(guard(task), delay, unit);
+    }
+
+    /**
+     * @param task the task to run repeatedly
+     * @param initialDelay how long to wait before the first run of the {@code task}
+     * @param delay how long to wait between the end of a run and the start of the next one
+     * @param unit the unit of {@code initialDelay} and {@code delay}
+     * @return the future to stop the runs with
+     * @throws RejectedExecutionException if this scheduler has been destroyed
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return executor().scheduleWithFixedDelay(guard(task), initialDelay, delay, unit);
+    }
+
+    /**
+     * @param task the task to run repeatedly
+     * @param initialDelay how long to wait before the first run of the {@code task}
+     * @param period how long to wait between the starts of two subsequent runs
+     * @param unit the unit of {@code initialDelay} and {@code period}
+     * @return the future to stop the runs with
+     * @throws RejectedExecutionException if this scheduler has been destroyed
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return executor().scheduleAtFixedRate(guard(task), initialDelay, period, unit);
+    }
+
+    private ScheduledThreadPoolExecutor executor() {
+        ScheduledThreadPoolExecutor e = executor;
+        if (e == null) {
+            synchronized (this) {
+                if (destroyed) {
+                    throw new RejectedExecutionException("[" + getClass().getName() + "] has been destroyed");
+                }
+                e = executor;
+                if (e == null) {
+                    e = new ScheduledThreadPoolExecutor(1, new GatewayThreadFactory("scheduler"));
+                    /* most of the tasks are timeouts that get cancelled long before they are due */
+                    e.setRemoveOnCancelPolicy(true);
+                    executor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warnf(e, "Scheduled task [%s] failed.", task);
+            }
+        };
+    }
+}
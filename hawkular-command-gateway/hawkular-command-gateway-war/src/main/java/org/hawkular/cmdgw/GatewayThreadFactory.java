@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} producing daemon threads named {@code hawkular-cmdgw-<purpose>-<n>} so that the gateway's
+ * background threads are easy to spot in thread dumps.
+ */
+public class GatewayThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @param purpose a short description of what the threads will be doing, e.g. {@code bus-router}
+     */
+    public GatewayThreadFactory(String purpose) {
+        super();
+        this.namePrefix = "hawkular-cmdgw-" + purpose + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, namePrefix + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
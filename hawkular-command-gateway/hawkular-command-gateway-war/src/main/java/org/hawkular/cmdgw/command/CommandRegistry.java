@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * An immutable registry of commands that handle messages of some type. The commands are discovered through the
+ * {@link ServiceLoader}, i.e. they are listed in {@code META-INF/services/<fully qualified command interface name>}
+ * and must have a public no-arg constructor. The message type a command handles is the actual type argument of the
+ * directly implemented command interface, e.g. {@code ResourceDestination} for {@code ResourceDestinationWsCommand implements
+ * WsCommand<ResourceDestination>}.
+ * <p>
+ * The commands applicable to a message class are computed on the first lookup and cached in a {@link ClassValue}, so
+ * that dispatching a message costs just a {@link ClassValue#get(Class)}.
+ *
+ * @param <C> the command interface
+ */
+public final class CommandRegistry<C> {
+    private static final MsgLogger log = GatewayLoggers.getLogger(CommandRegistry.class);
+
+    /**
+     * Loads all implementations of the given {@code commandInterface} using the {@link ServiceLoader}.
+     *
+     * @param commandInterface the generic command interface whose first type parameter is the handled message type
+     * @return a new {@link CommandRegistry}
+     * @throws IllegalStateException if the message type of some command cannot be determined
+     */
+    public static <C> CommandRegistry<C> load(Class<C> commandInterface) {
+        Map<C, Class<?>> commands = new LinkedHashMap<>();
+        for (C command : ServiceLoader.load(commandInterface, commandInterface.getClassLoader())) {
+            Class<?> messageType = findMessageType(command.getClass(), commandInterface);
+            if (messageType == null) {
+                throw new IllegalStateException("Cannot determine the message type handled by ["
+                        + command.getClass().getName() + "]");
+            }
+            log.debugf("Registering [%s] for [%s]", command.getClass().getName(), messageType.getName());
+            commands.put(command, messageType);
+        }
+        return new CommandRegistry<>(commands);
+    }
+
+    /** the commands in the order they were registered together with the message types they handle */
+    private final Map<C, Class<?>> commands;
+
+    private final ClassValue<List<C>> commandsByMessageClass = new ClassValue<List<C>>() {
+        @Override
+        protected List<C> computeValue(Class<?> messageClass) {
+            List<C> result = new ArrayList<>(2);
+            for (Map.Entry<C, Class<?>> en : commands.entrySet()) {
+                if (en.getValue().isAssignableFrom(messageClass)) {
+                    result.add(en.getKey());
+                }
+            }
+            return result.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(result);
+        }
+    };
+
+    CommandRegistry(Map<C, Class<?>> commands) {
+        this.commands = Collections.unmodifiableMap(new LinkedHashMap<>(commands));
+    }
+
+    /**
+     * @param messageClass the class of the message to handle
+     * @return an immutable list of the commands handling the given {@code messageClass} in the order in which they
+     *         were registered, never {@code null}
+     */
+    public List<C> getCommands(Class<?> messageClass) {
+        return commandsByMessageClass.get(messageClass);
+    }
+
+    /**
+     * @return the number of registered commands
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Finds the actual type argument of {@code commandInterface} implemented by {@code type} or by one of its
+     * superclasses.
+     */
+    private static Class<?> findMessageType(Class<?> type, Class<?> commandInterface) {
+        for (Class<?> cl = type; cl != null && cl != Object.class; cl = cl.getSuperclass()) {
+            for (Type iface : cl.getGenericInterfaces()) {
+                if (iface instanceof ParameterizedType
+                        && ((ParameterizedType) iface).getRawType() == commandInterface) {
+                    Type arg = ((ParameterizedType) iface).getActualTypeArguments()[0];
+                    if (arg instanceof Class) {
+                        return (Class<?>) arg;
+                    } else if (arg instanceof ParameterizedType) {
+                        return (Class<?>) ((ParameterizedType) arg).getRawType();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
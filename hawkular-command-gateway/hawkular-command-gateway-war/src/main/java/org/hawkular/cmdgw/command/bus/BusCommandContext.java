@@ -19,6 +19,8 @@ package org.hawkular.cmdgw.command.bus;
 import javax.jms.ConnectionFactory;
 
 import org.hawkular.bus.common.Endpoint;
+import org.hawkular.cmdgw.command.ws.FanOutTracker;
+import org.hawkular.cmdgw.command.ws.InFlightRequests;
 import org.hawkular.cmdgw.command.ws.WsSessions;
 
 /**
@@ -34,14 +36,18 @@ public class BusCommandContext {
     private final WsSessions connectedUIClients;
     private final ConnectionFactory connectionFactory;
     private final Endpoint endpoint;
+    private final FanOutTracker fanOutTracker;
+    private final InFlightRequests inFlightRequests;
 
     public BusCommandContext(Endpoint endpoint, ConnectionFactory connectionFactory, WsSessions connectedUIClients,
-            WsSessions connectedFeeds) {
+            WsSessions connectedFeeds, FanOutTracker fanOutTracker, InFlightRequests inFlightRequests) {
         super();
         this.endpoint = endpoint;
         this.connectionFactory = connectionFactory;
         this.connectedUIClients = connectedUIClients;
         this.connectedFeeds = connectedFeeds;
+        this.fanOutTracker = fanOutTracker;
+        this.inFlightRequests = inFlightRequests;
     }
 
     public WsSessions getConnectedFeeds() {
@@ -62,4 +68,20 @@ public class BusCommandContext {
     public Endpoint getEndpoint() {
         return endpoint;
     }
+
+    /**
+     * @return the {@link FanOutTracker} collecting the responses to the fan-out requests of this gateway node's UI
+     *         clients
+     */
+    public FanOutTracker getFanOutTracker() {
+        return fanOutTracker;
+    }
+
+    /**
+     * @return the {@link InFlightRequests} tracking the requests of this gateway node's UI clients that wait for a
+     *         response of a feed
+     */
+    public InFlightRequests getInFlightRequests() {
+        return inFlightRequests;
+    }
 }
\ No newline at end of file
@@ -22,6 +22,8 @@ import javax.inject.Inject;
 import javax.jms.ConnectionFactory;
 
 import org.hawkular.bus.common.Endpoint;
+import org.hawkular.cmdgw.command.ws.FanOutTracker;
+import org.hawkular.cmdgw.command.ws.InFlightRequests;
 import org.hawkular.cmdgw.command.ws.WsEndpoints;
 
 /**
@@ -42,6 +44,12 @@ public class BusCommandContextFactory {
     @Inject
     private BusConnectionFactoryProvider connectionFactoryProvider;
 
+    @Inject
+    private FanOutTracker fanOutTracker;
+
+    @Inject
+    private InFlightRequests inFlightRequests;
+
     /**
      * Creates a new {@link BusCommandContext} with the given {@code endpoint}.
      *
@@ -50,7 +58,8 @@ public class BusCommandContextFactory {
      */
     public BusCommandContext newCommandContext(Endpoint endpoint) {
         return new BusCommandContext(endpoint, connectionFactoryProvider.getConnectionFactory(),
-                wsEndpoints.getUiClientSessions(), wsEndpoints.getFeedSessions());
+                wsEndpoints.getUiClientSessions(), wsEndpoints.getFeedSessions(), fanOutTracker,
+                inFlightRequests);
     }
 
 }
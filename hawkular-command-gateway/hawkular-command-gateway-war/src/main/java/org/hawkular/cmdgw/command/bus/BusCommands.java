@@ -16,24 +16,31 @@
  */
 package org.hawkular.cmdgw.command.bus;
 
+import java.util.List;
+
 import javax.enterprise.context.ApplicationScoped;
 
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.cmdgw.NoCommandForMessageException;
-import org.hawkular.cmdgw.api.UiSessionDestination;
+import org.hawkular.cmdgw.command.CommandRegistry;
 
 /**
  * A registry of {@link BusCommand}s that can operate on messages coming over a bus queue or topic.
+ * <p>
+ * The commands are listed in {@code META-INF/services/org.hawkular.cmdgw.command.bus.BusCommand}, see
+ * {@link CommandRegistry}. A new command thus needs no code changes here.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
 @ApplicationScoped
 public class BusCommands {
 
-    private final UiSessionDestinationBusCommand uiSessionDestinationBusCommand = new UiSessionDestinationBusCommand();
+    @SuppressWarnings("rawtypes")
+    private final CommandRegistry<BusCommand> registry = CommandRegistry.load(BusCommand.class);
 
     /**
-     * Returns a {@link BusCommand} that should handle the given {@code requestClass}.
+     * Returns a {@link BusCommand} that should handle the given {@code requestClass}. If there are more, the one
+     * registered first wins.
      *
      * @param requestClass the type of a request for which a processing {@link BusCommand} should be found by this
      *        method
@@ -43,10 +50,12 @@ public class BusCommands {
     @SuppressWarnings("unchecked")
     public <REQ extends BasicMessage, RESP extends BasicMessage> BusCommand<REQ> getCommand(Class<REQ> requestClass)
             throws NoCommandForMessageException {
-        if (UiSessionDestination.class.isAssignableFrom(requestClass)) {
-            return (BusCommand<REQ>) uiSessionDestinationBusCommand;
+        @SuppressWarnings("rawtypes")
+        List<BusCommand> results = registry.getCommands(requestClass);
+        if (results.isEmpty()) {
+            throw new NoCommandForMessageException(
+                    "No command found for requestClass [" + requestClass.getName() + "]");
         }
-        // new commands will most probably have to be else-iffed here
-        throw new NoCommandForMessageException("No command found for requestClass [" + requestClass.getName() + "]");
+        return results.get(0);
     }
 }
@@ -16,7 +16,8 @@
  */
 package org.hawkular.cmdgw.command.bus;
 
-import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -26,26 +27,26 @@ import javax.enterprise.event.Observes;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import javax.jms.ConnectionFactory;
-import javax.jms.JMSException;
 import javax.websocket.Session;
 
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
-import org.hawkular.bus.common.ConnectionContextFactory;
-import org.hawkular.bus.common.Endpoint;
-import org.hawkular.bus.common.MessageProcessor;
-import org.hawkular.bus.common.consumer.BasicMessageListener;
-import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
 import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.command.ws.LocalDelivery;
 import org.hawkular.cmdgw.command.ws.WsEndpoints;
 import org.hawkular.cmdgw.command.ws.WsSessionListener;
 import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
 
 /**
- * A collection of listeners that are attached/removed to/from bus queues or topics as WebSocket clients connect and
- * disconnect.
+ * A collection of listeners that add/remove routes to/from the {@link BusEndpointRouter}s of bus queues or topics as
+ * WebSocket clients connect and disconnect. Additionally, the messages published to {@link Constants#HAWKULAR_TOPIC}
+ * are broadcast to all UI clients by a {@link BusTopicBroadcaster}.
+ * <p>
+ * There is just one {@link BusEndpointRouter} per bus endpoint on a gateway node, so the number of bus connections and
+ * consumers does not grow with the number of connected feeds and UI clients.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
@@ -53,166 +54,41 @@ import org.hawkular.cmdgw.log.MsgLogger;
 public class BusEndpointProcessors {
 
     /**
-     * A {@link WsSessionListener} that adds the given {@link #busEndpointListener} to the given {@link #endpoint} on
+     * A {@link WsSessionListener} that adds a route for the given {@link #key} to the given {@link #router} on
      * {@link #sessionAdded()} and removes it on {@link #sessionRemoved()}.
-     * <p>
-     * Each instance of this object is responsible for adding a bus listener to a specific bus queue or topic that
-     * will listen only for messages for a specific client (see the "selectorHeader" and "selectorValue"
-     * arguments to the constructor).
      */
-    private class BusWsSessionListener implements WsSessionListener {
-        private final BasicMessageListener<BasicMessage> busEndpointListener;
-        private ConsumerConnectionContext consumerConnectionContext;
-
-        private final Endpoint endpoint;
-        private final String messageSelector;
-        private ConnectionContextFactory connectionContextFactory;
+    private static class BusWsSessionListener implements WsSessionListener {
+        private final BusEndpointRouter router;
+        private final String key;
+        private final Session session;
 
-        public BusWsSessionListener(String selectorHeader, String selectorValue, Endpoint endpoint,
-                BasicMessageListener<BasicMessage> busEndpointListener) {
+        public BusWsSessionListener(BusEndpointRouter router, String key, Session session) {
             super();
-
-            this.endpoint = endpoint;
-            this.busEndpointListener = busEndpointListener;
-            this.messageSelector = String.format("%s = '%s'", selectorHeader, selectorValue);
-
-            log.debugf("Created [%s] for messageSelector [%s]", getClass().getName(), messageSelector);
+            this.router = router;
+            this.key = key;
+            this.session = session;
         }
 
         /**
-         * Adds the given {@link #busEndpointListener} to the given {@link #endpoint}.
+         * Adds a route for the given {@link #key} to the given {@link #router}.
          *
          * @see org.hawkular.cmdgw.command.ws.WsSessionListener#sessionAdded()
          */
         @Override
         public void sessionAdded() {
-            log.debugf("Attaching [%s] with selector [%s] to bus endpoint [%s]",
-                    busEndpointListener.getClass().getName(), messageSelector, endpoint);
-
-            try {
-                connectionContextFactory =
-                        new ConnectionContextFactory(true, connectionFactoryProvider.getConnectionFactory());
-                consumerConnectionContext = connectionContextFactory.createConsumerConnectionContext(endpoint,
-                        messageSelector);
-                new MessageProcessor().listen(consumerConnectionContext, busEndpointListener);
-            } catch (JMSException e) {
-                log.errorCouldNotAddBusEndpointListener(busEndpointListener.getClass().getName(), messageSelector,
-                        endpoint.getName(), e);
-            }
+            router.addRoute(key, session);
         }
 
         /**
-         * Removes the given {@link #busEndpointListener} from the given {@link #endpoint}.
+         * Removes the route for the given {@link #key} from the given {@link #router}.
          *
          * @see org.hawkular.cmdgw.command.ws.WsSessionListener#sessionRemoved()
          */
         @Override
         public void sessionRemoved() {
-            log.debugf("Removing [%s] with selector [%s] from bus endpoint [%s]",
-                    busEndpointListener.getClass().getName(), messageSelector, endpoint);
-
-            if (consumerConnectionContext != null) {
-                try {
-                    consumerConnectionContext.close();
-                } catch (IOException e) {
-                    log.errorCouldNotClose(consumerConnectionContext.getClass().getName(), messageSelector,
-                            endpoint.getName(), e);
-                }
-            }
-
-            if (connectionContextFactory != null) {
-                try {
-                    connectionContextFactory.close();
-                } catch (Exception e) {
-                    log.errorCouldNotCloseConnectionContextFactory(e, connectionContextFactory.getClass().getName());
-                }
-            }
-        }
-
-    }
-
-    /**
-     * This is the actual JMS bus listener that will consume bus messages destined for
-     * a particular feed. When this listener receives a bus message, it will forward
-     * that message to the feed over the feed's websocket connection.
-     */
-    private static class FeedBusEndpointListener extends BasicMessageListener<BasicMessage> {
-
-        private final Endpoint endpoint;
-        private final String expectedFeedId;
-        private final Session session;
-
-        public FeedBusEndpointListener(Session session, String expectedFeedId, Endpoint endpoint) {
-            super(FeedBusEndpointListener.class.getClassLoader());
-            this.session = session;
-            this.expectedFeedId = expectedFeedId;
-            this.endpoint = endpoint;
-        }
-
-        @Override
-        protected void onBasicMessage(BasicMessageWithExtraData<BasicMessage> messageWithData) {
-            final BasicMessage basicMessage = messageWithData.getBasicMessage();
-            try {
-                log.debugf("Received message [%s] with binary data [%b] from endpoint [%s]",
-                        basicMessage.getClass().getName(), messageWithData.getBinaryData() != null,
-                        endpoint.getName());
-                String foundFeedId = basicMessage.getHeaders().get(Constants.HEADER_FEEDID);
-                if (foundFeedId == null) {
-                    log.errorMessageWithoutFeedId(basicMessage.getClass().getName(), Constants.HEADER_FEEDID,
-                            endpoint.toString());
-                } else if (!foundFeedId.equals(expectedFeedId)) {
-                    log.errorListenerGotMessageWithUnexpectedHeaderValue(this.getClass().getName(),
-                            basicMessage.getClass().getName(), Constants.HEADER_FEEDID, foundFeedId,
-                            expectedFeedId, endpoint.toString());
-                } else {
-                    new WebSocketHelper().sendSync(session, messageWithData);
-                }
-            } catch (Exception e) {
-                log.errorCouldNotProcessBusMessage(basicMessage.getClass().getName(),
-                        messageWithData.getBinaryData() != null, endpoint.getName(), e);
-            }
-        }
-
-    }
-
-    /**
-     * This is the actual JMS bus listener that will consume bus messages destined for
-     * a particular UI client. When this listener receives command as a bus message,
-     * that command's executor will be invoked. Typically, that invocation will
-     * simply forward that command message to the UI client over the UI client's websocket
-     * connection but command implementations can vary.
-     */
-    private static class UiClientBusEndpointListener
-            extends org.hawkular.bus.common.consumer.BasicMessageListener<BasicMessage> {
-        private final BusCommandContextFactory commandContextFactory;
-        private final BusCommands commands;
-        private final Endpoint endpoint;
-
-        public UiClientBusEndpointListener(BusCommandContextFactory commandContextFactory, BusCommands commands,
-                Endpoint endpoint) {
-            super(UiClientBusEndpointListener.class.getClassLoader());
-            this.commandContextFactory = commandContextFactory;
-            this.commands = commands;
-            this.endpoint = endpoint;
+            router.removeRoute(key, session);
         }
 
-        @Override
-        protected void onBasicMessage(BasicMessageWithExtraData<BasicMessage> messageWithData) {
-            final BasicMessage basicMessage = messageWithData.getBasicMessage();
-            log.debugf("Received message [%s] with binary data [%b] from endpoint [%s]",
-                    basicMessage.getClass().getName(), messageWithData.getBinaryData() != null,
-                    endpoint.getName());
-            try {
-                @SuppressWarnings("unchecked")
-                BusCommand<BasicMessage> command = (BusCommand<BasicMessage>) commands
-                        .getCommand(messageWithData.getBasicMessage().getClass());
-                BusCommandContext context = commandContextFactory.newCommandContext(null);
-                command.execute(messageWithData, context);
-            } catch (Exception e) {
-                log.errorCouldNotProcessBusMessage(basicMessage.getClass().getName(),
-                        messageWithData.getBinaryData() != null, endpoint.getName(), e);
-            }
-        }
     }
 
     private static final MsgLogger log = GatewayLoggers.getLogger(BusEndpointProcessors.class);
@@ -231,9 +107,23 @@ public class BusEndpointProcessors {
     @Inject
     private BusConnectionFactoryProvider connectionFactoryProvider;
 
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private LocalDelivery localDelivery;
+
     private BiFunction<String, Session, WsSessionListener> feedSessionListenerProducer;
     private BiFunction<String, Session, WsSessionListener> uiClientSessionListenerProducer;
 
+    private BusEndpointRouter feedCommandRouter;
+    private BusEndpointRouter uiCommandRouter;
+    private BusTopicBroadcaster hawkularTopicBroadcaster;
+
+    private int connectAdmissionQueueSize;
+    private long connectRetryAfterMs;
+    private LongAdder rejectedFeedsCounter;
+
     @Inject
     private WsEndpoints wsEndpoints;
 
@@ -245,44 +135,124 @@ public class BusEndpointProcessors {
         if (uiClientSessionListenerProducer != null) {
             wsEndpoints.getUiClientSessions().removeWsSessionListenerProducer(uiClientSessionListenerProducer);
         }
+        if (feedCommandRouter != null) {
+            feedCommandRouter.close();
+        }
+        if (uiCommandRouter != null) {
+            uiCommandRouter.close();
+        }
+        if (hawkularTopicBroadcaster != null) {
+            hawkularTopicBroadcaster.close();
+        }
     }
 
     /**
-     * This creates the bi-function listener-producers that will create listeners which will
-     * create JMS bus listeners for each websocket session that gets created in the future.
+     * This creates the {@link BusEndpointRouter}s and the bi-function listener-producers that will create listeners
+     * which will register routes for each websocket session that gets created in the future.
      *
      * @param ignore unused
      */
     public void initialize(@Observes @Initialized(ApplicationScoped.class) Object ignore) {
         log.debugf("Initializing [%s]", this.getClass().getName());
         try {
-            feedSessionListenerProducer = new BiFunction<String, Session, WsSessionListener>() {
-                @Override
-                public WsSessionListener apply(String key, Session session) {
-                    // In the future, if we need other queues/topics that need to be listened to, we add them here.
-                    final Endpoint endpoint = Constants.FEED_COMMAND_QUEUE;
-                    BasicMessageListener<BasicMessage> busEndpointListener = new FeedBusEndpointListener(session, key,
-                            endpoint);
-                    return new BusWsSessionListener(Constants.HEADER_FEEDID, key, endpoint, busEndpointListener);
-                }
-            };
+            final int consumersPerEndpoint = Integer.parseInt(System.getProperty(
+                    Constants.BUS_CONSUMERS_PER_ENDPOINT,
+                    String.valueOf(Constants.BUS_CONSUMERS_PER_ENDPOINT_DEFAULT)));
+            final long rebuildDelayMs = Long.parseLong(System.getProperty(Constants.BUS_SELECTOR_REBUILD_DELAY_MS,
+                    String.valueOf(Constants.BUS_SELECTOR_REBUILD_DELAY_MS_DEFAULT)));
+            final long rebuildRetryAfterMs = Long.parseLong(System.getProperty(
+                    Constants.BUS_SELECTOR_REBUILD_RETRY_AFTER_MS,
+                    String.valueOf(Constants.BUS_SELECTOR_REBUILD_RETRY_AFTER_MS_DEFAULT)));
+            final int pendingMessagesPerKey = Integer.parseInt(System.getProperty(
+                    Constants.BUS_PENDING_MESSAGES_PER_KEY,
+                    String.valueOf(Constants.BUS_PENDING_MESSAGES_PER_KEY_DEFAULT)));
+            final int pendingMessagesMax = Integer.parseInt(System.getProperty(Constants.BUS_PENDING_MESSAGES_MAX,
+                    String.valueOf(Constants.BUS_PENDING_MESSAGES_MAX_DEFAULT)));
+            final long pendingMessageTtlMs = Long.parseLong(System.getProperty(Constants.BUS_PENDING_MESSAGE_TTL_MS,
+                    String.valueOf(Constants.BUS_PENDING_MESSAGE_TTL_MS_DEFAULT)));
+            connectAdmissionQueueSize = Integer.parseInt(System.getProperty(Constants.CONNECT_ADMISSION_QUEUE_SIZE,
+                    String.valueOf(Constants.CONNECT_ADMISSION_QUEUE_SIZE_DEFAULT)));
+            connectRetryAfterMs = Long.parseLong(System.getProperty(Constants.CONNECT_RETRY_AFTER_MS,
+                    String.valueOf(Constants.CONNECT_RETRY_AFTER_MS_DEFAULT)));
+            rejectedFeedsCounter = metrics.counter("connect.feeds.rejected");
+
+            // In the future, if we need other queues/topics that need to be listened to, we add them here.
+            feedCommandRouter = new BusEndpointRouter(Constants.FEED_COMMAND_QUEUE, Constants.HEADER_FEEDID,
+                    this::deliverToFeed, connectionFactoryProvider, consumersPerEndpoint, rebuildDelayMs,
+                    rebuildRetryAfterMs, pendingMessagesPerKey, pendingMessagesMax, pendingMessageTtlMs, metrics);
+            feedSessionListenerProducer = (key, session) -> new BusWsSessionListener(feedCommandRouter, key, session);
             wsEndpoints.getFeedSessions().addWsSessionListenerProducer(feedSessionListenerProducer);
 
-            uiClientSessionListenerProducer = new BiFunction<String, Session, WsSessionListener>() {
-                @Override
-                public WsSessionListener apply(String key, Session session) {
-                    // In the future, if we need other queues/topics that need to be listened to, we add them here.
-                    final Endpoint endpoint = Constants.UI_COMMAND_QUEUE;
-                    BasicMessageListener<BasicMessage> busEndpointListener = new UiClientBusEndpointListener(
-                            commandContextFactory, busCommands, endpoint);
-                    return new BusWsSessionListener(Constants.HEADER_UICLIENTID, key, endpoint, busEndpointListener);
-                }
-            };
+            uiCommandRouter = new BusEndpointRouter(Constants.UI_COMMAND_QUEUE, Constants.HEADER_UICLIENTID,
+                    this::deliverToUiClient, connectionFactoryProvider, consumersPerEndpoint, rebuildDelayMs,
+                    rebuildRetryAfterMs, pendingMessagesPerKey, pendingMessagesMax, pendingMessageTtlMs, metrics);
+            uiClientSessionListenerProducer = (key, session) -> new BusWsSessionListener(uiCommandRouter, key,
+                    session);
             wsEndpoints.getUiClientSessions().addWsSessionListenerProducer(uiClientSessionListenerProducer);
+
+            if (Boolean.parseBoolean(System.getProperty(Constants.HAWKULAR_TOPIC_BROADCAST,
+                    String.valueOf(Constants.HAWKULAR_TOPIC_BROADCAST_DEFAULT)))) {
+                hawkularTopicBroadcaster = new BusTopicBroadcaster(Constants.HAWKULAR_TOPIC,
+                        wsEndpoints.getUiClientSessions(), connectionFactoryProvider, rebuildRetryAfterMs, metrics);
+                hawkularTopicBroadcaster.start();
+            }
         } catch (Exception e) {
             log.errorCouldNotInitialize(e, this.getClass().getName());
         }
 
     }
 
+    /**
+     * Decides whether a newly connected feed should be accepted. A feed is rejected if too many feeds connected before
+     * it are still waiting for being attached to the bus, which typically happens when all feeds reconnect at once
+     * after a restart of the gateway or during a broker outage.
+     *
+     * @param feedId the feed that has just connected
+     * @return {@code -1} if the feed is admitted, otherwise the number of milliseconds after which the feed should
+     *         reconnect
+     */
+    public long admitFeed(String feedId) {
+        if (feedCommandRouter == null
+                || feedCommandRouter.getPendingAttachmentCount() < connectAdmissionQueueSize) {
+            return -1;
+        }
+        rejectedFeedsCounter.increment();
+        long retryAfterMs = connectRetryAfterMs + ThreadLocalRandom.current().nextLong(connectRetryAfterMs + 1);
+        log.debugf("Rejecting feed [%s]: [%d] feeds are waiting for being attached to the bus, retry after [%d] ms",
+                feedId, feedCommandRouter.getPendingAttachmentCount(), retryAfterMs);
+        return retryAfterMs;
+    }
+
+    /**
+     * Forwards a bus message destined for a particular feed to the feed over the feed's websocket connection. The
+     * message is only enqueued for sending so that a slow feed does not block the consumption of the bus endpoint.
+     */
+    private void deliverToFeed(String feedId, Session session, BasicMessageWithExtraData<BasicMessage> messageWithData)
+            throws Exception {
+        try {
+            new WebSocketHelper().sendAsync(session, messageWithData);
+        } finally {
+            localDelivery.busMessageDelivered(Constants.FEED_COMMAND_QUEUE, feedId, messageWithData.getBasicMessage());
+        }
+    }
+
+    /**
+     * Invokes the {@link BusCommand} of a bus message destined for a particular UI client. Typically, that invocation
+     * will simply forward that command message to the UI client over the UI client's websocket connection but command
+     * implementations can vary.
+     */
+    private void deliverToUiClient(String uiClientId, Session session,
+            BasicMessageWithExtraData<BasicMessage> messageWithData) throws Exception {
+        @SuppressWarnings("unchecked")
+        BusCommand<BasicMessage> command = (BusCommand<BasicMessage>) busCommands
+                .getCommand(messageWithData.getBasicMessage().getClass());
+        BusCommandContext context = commandContextFactory.newCommandContext(Constants.UI_COMMAND_QUEUE);
+        try {
+            command.execute(messageWithData, context);
+        } finally {
+            localDelivery.busMessageDelivered(Constants.UI_COMMAND_QUEUE, uiClientId,
+                    messageWithData.getBasicMessage());
+        }
+    }
+
 }
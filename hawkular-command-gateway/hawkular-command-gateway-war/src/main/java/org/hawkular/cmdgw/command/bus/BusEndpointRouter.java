@@ -0,0 +1,614 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.bus;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.JMSException;
+import javax.websocket.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.consumer.BasicMessageListener;
+import org.hawkular.bus.common.consumer.ConsumerConnectionContext;
+import org.hawkular.cmdgw.GatewayThreadFactory;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.hawkular.cmdgw.metrics.Histogram;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics.Direction;
+
+/**
+ * Consumes messages from a single bus {@link Endpoint} on behalf of all WebSocket sessions connected to this gateway
+ * node and routes each message to the matching {@link Session} by the value of the {@link #routingHeader} of the
+ * message.
+ * <p>
+ * Rather than opening a connection and a consumer per WebSocket session, the keys of the locally connected sessions
+ * are spread over a small fixed number of {@link Shard}s. All shards share a single connection and each shard owns a
+ * single consumer whose message selector is {@code routingHeader IN ('key1', 'key2', ...)}. Thanks to that, messages
+ * destined to sessions connected to other gateway nodes are left on the queue for those nodes.
+ * <p>
+ * The selectors are rebuilt on a single background thread a short while after sessions were added or removed so that a
+ * burst of connects or disconnects results in just one rebuild per shard. Messages for a newly added session simply
+ * wait on the queue until the rebuild is done. Because the old consumer of a shard is closed before the new one is
+ * created, there are never two consumers for the same key and the order of messages is kept. Failed rebuilds are
+ * retried with an exponential backoff with random jitter so that a broker outage does not get hammered by all shards
+ * of all gateway nodes at the same time.
+ * <p>
+ * A message received for a key that has no route at the moment (typically because a feed has disconnected and its
+ * route was not yet removed from the selector) is not dropped but kept in a bounded per key buffer for up to
+ * {@link #pendingMessageTtlMs}. If a route for the key is added within that time, e.g. because the feed has reconnected,
+ * the buffered messages are delivered before any newer message for that key.
+ */
+class BusEndpointRouter {
+
+    /**
+     * Performs the delivery of a message received by a {@link BusEndpointRouter} to its target {@link Session}.
+     */
+    @FunctionalInterface
+    interface Delivery {
+        /**
+         * @param key the value of the routing header of the {@code message}
+         * @param session the {@link Session} associated with the {@code key}
+         * @param message the message to deliver
+         * @throws Exception on any delivery problem
+         */
+        void deliver(String key, Session session, BasicMessageWithExtraData<BasicMessage> message) throws Exception;
+    }
+
+    /**
+     * A message waiting for a route to be added for its key.
+     */
+    private static final class PendingMessage {
+        private final BasicMessageWithExtraData<BasicMessage> message;
+        private final long receivedNanos;
+
+        private PendingMessage(BasicMessageWithExtraData<BasicMessage> message, long receivedNanos) {
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    /**
+     * The messages waiting for a route to be added for a single key. All fields are guarded by {@code this}.
+     */
+    private static final class PendingMessages {
+        private final ArrayDeque<PendingMessage> messages = new ArrayDeque<>();
+        /** {@code true} once this instance was removed from {@link Shard#pendingMessages} */
+        private boolean discarded;
+    }
+
+    /**
+     * A subset of {@link BusEndpointRouter}'s routes served by a single bus consumer.
+     */
+    private class Shard extends BasicMessageListener<BasicMessage> {
+        private final int index;
+        /** key is feedId or sessionId, value is the {@link Session} */
+        private final ConcurrentMap<String, Session> routes = new ConcurrentHashMap<>();
+        /** key is feedId or sessionId, value is the {@link System#nanoTime()} when the route was added */
+        private final ConcurrentMap<String, Long> attachPendingSince = new ConcurrentHashMap<>();
+        /** key is feedId or sessionId */
+        private final ConcurrentMap<String, PendingMessages> pendingMessages = new ConcurrentHashMap<>();
+        private final AtomicBoolean rebuildScheduled = new AtomicBoolean(false);
+
+        /* the following three fields are written only from the rebuild thread */
+        private volatile ConsumerConnectionContext consumerConnectionContext;
+        private Set<String> selectedKeys = Collections.emptySet();
+        private int consecutiveFailures;
+
+        private Shard(int index) {
+            super(BusEndpointRouter.class.getClassLoader());
+            this.index = index;
+        }
+
+        @Override
+        protected void onBasicMessage(BasicMessageWithExtraData<BasicMessage> messageWithData) {
+            TrafficMetrics.record(Direction.BUS_IN, messageWithData.getBasicMessage().getClass(), -1);
+            route(messageWithData);
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(BusEndpointRouter.class);
+
+    /** the retry delay after a failed rebuild grows up to {@code rebuildRetryAfterMs * 2^MAX_BACKOFF_EXPONENT} */
+    private static final int MAX_BACKOFF_EXPONENT = 5;
+
+    /**
+     * Builds a message selector matching any of the given {@code keys} in the given {@code header}.
+     *
+     * @param header the name of the message property to match
+     * @param keys the values to match
+     * @return a message selector
+     */
+    static String buildSelector(String header, Collection<String> keys) {
+        StringBuilder result = new StringBuilder(header.length() + 8 + keys.size() * 40);
+        result.append(header).append(" IN (");
+        boolean first = true;
+        for (String key : keys) {
+            if (!first) {
+                result.append(", ");
+            }
+            first = false;
+            result.append('\'').append(key.replace("'", "''")).append('\'');
+        }
+        return result.append(')').toString();
+    }
+
+    private final Endpoint endpoint;
+    private final String routingHeader;
+    private final Delivery delivery;
+    private final BusConnectionFactoryProvider connectionFactoryProvider;
+    private final Shard[] shards;
+    private final long rebuildDelayMs;
+    private final long rebuildRetryAfterMs;
+    private final int pendingMessagesPerKey;
+    private final int pendingMessagesMax;
+    private final long pendingMessageTtlMs;
+    private final AtomicInteger pendingMessageCount = new AtomicInteger();
+    private final ScheduledExecutorService rebuildExecutor;
+    private volatile boolean closed = false;
+
+    /** accessed only from the rebuild thread */
+    private ConnectionContextFactory connectionContextFactory;
+
+    private final LongAdder routedCounter;
+    private final LongAdder unroutableCounter;
+    private final LongAdder deliveryFailuresCounter;
+    private final LongAdder selectorRebuildsCounter;
+    private final LongAdder attachFailuresCounter;
+    private final LongAdder pendingDroppedCounter;
+    private final Histogram attachLatencyHistogram;
+
+    BusEndpointRouter(Endpoint endpoint, String routingHeader, Delivery delivery,
+            BusConnectionFactoryProvider connectionFactoryProvider, int shardCount, long rebuildDelayMs,
+            long rebuildRetryAfterMs, int pendingMessagesPerKey, int pendingMessagesMax, long pendingMessageTtlMs,
+            GatewayMetrics metrics) {
+        super();
+        this.endpoint = endpoint;
+        this.routingHeader = routingHeader;
+        this.delivery = delivery;
+        this.connectionFactoryProvider = connectionFactoryProvider;
+        this.rebuildDelayMs = rebuildDelayMs;
+        this.rebuildRetryAfterMs = rebuildRetryAfterMs;
+        this.pendingMessagesPerKey = pendingMessagesPerKey;
+        this.pendingMessagesMax = pendingMessagesMax;
+        this.pendingMessageTtlMs = pendingMessageTtlMs;
+        this.shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new GatewayThreadFactory("bus-router-" + endpoint.getName()));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.rebuildExecutor = executor;
+        if (pendingMessageTtlMs > 0) {
+            executor.scheduleWithFixedDelay(this::expirePendingMessages, pendingMessageTtlMs, pendingMessageTtlMs,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        final String prefix = "bus." + endpoint.getName() + ".";
+        this.routedCounter = metrics.counter(prefix + "routed");
+        this.unroutableCounter = metrics.counter(prefix + "unroutable");
+        this.deliveryFailuresCounter = metrics.counter(prefix + "deliveryFailures");
+        this.selectorRebuildsCounter = metrics.counter(prefix + "selectorRebuilds");
+        this.attachFailuresCounter = metrics.counter(prefix + "attachFailures");
+        this.pendingDroppedCounter = metrics.counter(prefix + "pendingDropped");
+        this.attachLatencyHistogram = metrics.histogram(prefix + "attachLatencyMs");
+        metrics.gauge(prefix + "routes", this::getRouteCount);
+        metrics.gauge(prefix + "consumers", this::getConsumerCount);
+        metrics.gauge(prefix + "pendingAttachments", this::getPendingAttachmentCount);
+        metrics.gauge(prefix + "pendingMessages", pendingMessageCount::get);
+    }
+
+    /**
+     * Associates the given {@code session} with the given {@code key} so that messages having the {@code key} in
+     * their {@link #routingHeader} get delivered to the {@code session}. The consumer of the respective shard will
+     * start receiving the messages for the {@code key} after the next selector rebuild. Any messages buffered for the
+     * {@code key} are delivered to the {@code session} immediately.
+     *
+     * @param key the feedId or sessionId
+     * @param session the session to route the messages to
+     */
+    public void addRoute(String key, Session session) {
+        Shard shard = shardFor(key);
+        shard.attachPendingSince.put(key, System.nanoTime());
+        shard.routes.put(key, session);
+        PendingMessages pending = shard.pendingMessages.get(key);
+        if (pending != null) {
+            synchronized (pending) {
+                if (!pending.discarded) {
+                    Session current = shard.routes.get(key);
+                    if (current != null) {
+                        flush(shard, key, current, pending);
+                    }
+                }
+            }
+        }
+        scheduleRebuild(shard, rebuildDelayMs);
+    }
+
+    /**
+     * Removes the route for the given {@code key} if it still points to the given {@code session}.
+     *
+     * @param key the feedId or sessionId
+     * @param session the session the route should point to in order to be removed
+     */
+    public void removeRoute(String key, Session session) {
+        Shard shard = shardFor(key);
+        if (shard.routes.remove(key, session)) {
+            shard.attachPendingSince.remove(key);
+            scheduleRebuild(shard, rebuildDelayMs);
+        }
+    }
+
+    /**
+     * Closes all consumers and the shared connection. No messages will be routed after this method returns.
+     */
+    public void close() {
+        closed = true;
+        rebuildExecutor.shutdownNow();
+        try {
+            rebuildExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Shard shard : shards) {
+            closeConsumer(shard);
+            shard.routes.clear();
+            shard.attachPendingSince.clear();
+            for (PendingMessages pending : shard.pendingMessages.values()) {
+                synchronized (pending) {
+                    dropAll(pending);
+                }
+            }
+            shard.pendingMessages.clear();
+        }
+        closeConnectionContextFactory();
+    }
+
+    /**
+     * @return the number of routes added whose consumers are not attached to the bus endpoint yet
+     */
+    public int getPendingAttachmentCount() {
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.attachPendingSince.size();
+        }
+        return result;
+    }
+
+    private int getConsumerCount() {
+        int result = 0;
+        for (Shard shard : shards) {
+            if (shard.consumerConnectionContext != null) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private int getRouteCount() {
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.routes.size();
+        }
+        return result;
+    }
+
+    private Shard shardFor(String key) {
+        return shards[Math.floorMod(key.hashCode(), shards.length)];
+    }
+
+    private void route(BasicMessageWithExtraData<BasicMessage> messageWithData) {
+        final BasicMessage basicMessage = messageWithData.getBasicMessage();
+        log.debugf("Received message [%s] with binary data [%b] from endpoint [%s]",
+                basicMessage.getClass().getName(), messageWithData.getBinaryData() != null, endpoint.getName());
+        String key = basicMessage.getHeaders().get(routingHeader);
+        if (key == null) {
+            unroutableCounter.increment();
+            log.errorMessageWithoutFeedId(basicMessage.getClass().getName(), routingHeader, endpoint.toString());
+            return;
+        }
+        Shard shard = shardFor(key);
+        Session session = shard.routes.get(key);
+        if (session != null && !shard.pendingMessages.containsKey(key)) {
+            /* the usual case */
+            deliver(key, session, messageWithData);
+            return;
+        }
+        if (session == null && (messageWithData.getBinaryData() != null || pendingMessagesPerKey <= 0)) {
+            /* the binary data stream is not readable once we return, so we cannot buffer such a message */
+            unroutableCounter.increment();
+            log.warnNoWsSessionForKey(endpoint.getName(), key, basicMessage.getClass().getName());
+            return;
+        }
+        while (true) {
+            PendingMessages pending = shard.pendingMessages.computeIfAbsent(key, k -> new PendingMessages());
+            synchronized (pending) {
+                if (pending.discarded) {
+                    /* flushed or expired concurrently */
+                    continue;
+                }
+                session = shard.routes.get(key);
+                if (session == null && messageWithData.getBinaryData() != null) {
+                    unroutableCounter.increment();
+                    log.warnNoWsSessionForKey(endpoint.getName(), key, basicMessage.getClass().getName());
+                } else if (session == null) {
+                    /* the session has gone away since the last selector rebuild, it might come back soon */
+                    buffer(shard, key, pending, messageWithData);
+                } else {
+                    flush(shard, key, session, pending);
+                    deliver(key, session, messageWithData);
+                }
+                return;
+            }
+        }
+    }
+
+    private void deliver(String key, Session session, BasicMessageWithExtraData<BasicMessage> messageWithData) {
+        try {
+            delivery.deliver(key, session, messageWithData);
+            routedCounter.increment();
+        } catch (Exception e) {
+            deliveryFailuresCounter.increment();
+            log.errorCouldNotProcessBusMessage(messageWithData.getBasicMessage().getClass().getName(),
+                    messageWithData.getBinaryData() != null, endpoint.getName(), e);
+        }
+    }
+
+    /**
+     * Appends the given {@code messageWithData} to the given {@code pending} messages, dropping the oldest message of
+     * the {@code key} if {@link #pendingMessagesPerKey} is exceeded or the given {@code messageWithData} if
+     * {@link #pendingMessagesMax} is exceeded. Must be called while holding the lock of {@code pending}.
+     */
+    private void buffer(Shard shard, String key, PendingMessages pending,
+            BasicMessageWithExtraData<BasicMessage> messageWithData) {
+        long now = System.nanoTime();
+        expire(pending, now);
+        if (pending.messages.size() >= pendingMessagesPerKey) {
+            drop(key, pending.messages.poll().message);
+        } else if (pendingMessageCount.get() >= pendingMessagesMax) {
+            drop(key, messageWithData);
+            if (pending.messages.isEmpty()) {
+                discard(shard, key, pending);
+            }
+            return;
+        }
+        pending.messages.add(new PendingMessage(messageWithData, now));
+        pendingMessageCount.incrementAndGet();
+        log.debugf("Buffered message [%s] for key [%s] of endpoint [%s] until a route is added",
+                messageWithData.getBasicMessage().getClass().getName(), key, endpoint.getName());
+    }
+
+    /**
+     * Delivers all unexpired {@code pending} messages to the given {@code session} and discards the {@code pending}.
+     * Must be called while holding the lock of {@code pending}.
+     */
+    private void flush(Shard shard, String key, Session session, PendingMessages pending) {
+        expire(pending, System.nanoTime());
+        PendingMessage next;
+        while ((next = pending.messages.poll()) != null) {
+            pendingMessageCount.decrementAndGet();
+            deliver(key, session, next.message);
+        }
+        discard(shard, key, pending);
+    }
+
+    /**
+     * Drops the messages older than {@link #pendingMessageTtlMs} from the head of {@code pending}. Must be called
+     * while holding the lock of {@code pending}.
+     */
+    private void expire(PendingMessages pending, long now) {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(pendingMessageTtlMs);
+        PendingMessage head;
+        while ((head = pending.messages.peek()) != null && now - head.receivedNanos > ttlNanos) {
+            pending.messages.poll();
+            pendingMessageCount.decrementAndGet();
+            pendingDroppedCounter.increment();
+            log.warnDroppingPendingBusMessage(head.message.getBasicMessage().getClass().getName(), endpoint.getName(),
+                    pendingMessageTtlMs);
+        }
+    }
+
+    /**
+     * Periodically drops the messages that have waited for a route for longer than {@link #pendingMessageTtlMs}.
+     * Runs on {@link #rebuildExecutor}.
+     */
+    private void expirePendingMessages() {
+        long now = System.nanoTime();
+        for (Shard shard : shards) {
+            for (Map.Entry<String, PendingMessages> en : shard.pendingMessages.entrySet()) {
+                PendingMessages pending = en.getValue();
+                synchronized (pending) {
+                    expire(pending, now);
+                    if (pending.messages.isEmpty() && !pending.discarded) {
+                        discard(shard, en.getKey(), pending);
+                    }
+                }
+            }
+        }
+    }
+
+    private void discard(Shard shard, String key, PendingMessages pending) {
+        pending.discarded = true;
+        shard.pendingMessages.remove(key, pending);
+    }
+
+    private void drop(String key, BasicMessageWithExtraData<BasicMessage> messageWithData) {
+        pendingDroppedCounter.increment();
+        log.warnNoWsSessionForKey(endpoint.getName(), key, messageWithData.getBasicMessage().getClass().getName());
+    }
+
+    private void dropAll(PendingMessages pending) {
+        int size = pending.messages.size();
+        pending.messages.clear();
+        pending.discarded = true;
+        pendingMessageCount.addAndGet(-size);
+        pendingDroppedCounter.add(size);
+    }
+
+    private void scheduleRebuild(Shard shard, long delayMs) {
+        if (!closed && shard.rebuildScheduled.compareAndSet(false, true)) {
+            try {
+                rebuildExecutor.schedule(() -> rebuild(shard), delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                /* we are closing */
+                log.debugf("Not rebuilding the selector of shard [%d] of endpoint [%s]: already closed", shard.index,
+                        endpoint.getName());
+            }
+        }
+    }
+
+    /**
+     * Replaces the consumer of the given {@code shard} with a new one whose selector matches the current set of
+     * routes of the {@code shard}. Runs on {@link #rebuildExecutor}.
+     *
+     * @param shard the shard to rebuild
+     */
+    private void rebuild(Shard shard) {
+        /* reset the flag first so that the changes done while we are rebuilding schedule another rebuild */
+        shard.rebuildScheduled.set(false);
+        if (closed) {
+            return;
+        }
+
+        Set<String> keys = new HashSet<>(shard.routes.keySet());
+        if (keys.equals(shard.selectedKeys) && (keys.isEmpty() || shard.consumerConnectionContext != null)) {
+            /* a key might have been removed and added again in the meantime */
+            attached(shard, keys);
+            return;
+        }
+
+        /* close the old consumer first to make sure that no two consumers deliver messages for the same key */
+        closeConsumer(shard);
+        if (keys.isEmpty()) {
+            log.debugf("No routes left in shard [%d] of endpoint [%s]", shard.index, endpoint.getName());
+            return;
+        }
+
+        String messageSelector = buildSelector(routingHeader, keys);
+        try {
+            if (connectionContextFactory == null) {
+                connectionContextFactory =
+                        new ConnectionContextFactory(true, connectionFactoryProvider.getConnectionFactory());
+            }
+            ConsumerConnectionContext context =
+                    connectionContextFactory.createConsumerConnectionContext(endpoint, messageSelector);
+            new MessageProcessor().listen(context, shard);
+            shard.consumerConnectionContext = context;
+            shard.selectedKeys = keys;
+            shard.consecutiveFailures = 0;
+            selectorRebuildsCounter.increment();
+            attached(shard, keys);
+            log.debugf("Attached shard [%d] with [%d] routes to bus endpoint [%s]", shard.index, keys.size(),
+                    endpoint.getName());
+        } catch (JMSException | RuntimeException e) {
+            attachFailuresCounter.increment();
+            log.errorCouldNotAddBusEndpointListener(getClass().getName(), messageSelector, endpoint.getName(), e);
+            /* the shared connection might be broken, start from scratch next time */
+            closeConnectionContextFactory();
+            shard.consecutiveFailures++;
+            scheduleRebuild(shard, retryDelayMs(shard.consecutiveFailures));
+        }
+    }
+
+    /**
+     * Records the attach latency of those of the given {@code keys} that were waiting for being attached.
+     *
+     * @param shard the shard the {@code keys} belong to
+     * @param keys the keys selected by the current consumer of the {@code shard}
+     */
+    private void attached(Shard shard, Set<String> keys) {
+        if (shard.attachPendingSince.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (String key : keys) {
+            Long since = shard.attachPendingSince.remove(key);
+            if (since != null) {
+                attachLatencyHistogram.record(TimeUnit.NANOSECONDS.toMillis(now - since));
+            }
+        }
+    }
+
+    /**
+     * @param failures the number of consecutive failures, at least {@code 1}
+     * @return {@link #rebuildRetryAfterMs} times {@code 2^(failures - 1)} (but at most
+     *         {@code 2^}{@link #MAX_BACKOFF_EXPONENT}) times a random factor between {@code 0.5} and {@code 1.5}
+     */
+    private long retryDelayMs(int failures) {
+        long delay = rebuildRetryAfterMs << Math.min(Math.max(failures - 1, 0), MAX_BACKOFF_EXPONENT);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    /**
+     * Closes the consumer and the JMS session of the given {@code shard} but leaves the shared connection open.
+     *
+     * @param shard the shard whose consumer should be closed
+     */
+    private void closeConsumer(Shard shard) {
+        ConsumerConnectionContext context = shard.consumerConnectionContext;
+        shard.consumerConnectionContext = null;
+        shard.selectedKeys = Collections.emptySet();
+        if (context != null) {
+            try {
+                context.getMessageConsumer().close();
+                context.getSession().close();
+            } catch (JMSException | RuntimeException e) {
+                log.errorCouldNotClose(context.getClass().getName(), "shard " + shard.index, endpoint.getName(), e);
+            }
+        }
+    }
+
+    private void closeConnectionContextFactory() {
+        if (connectionContextFactory != null) {
+            try {
+                connectionContextFactory.close();
+            } catch (Exception e) {
+                log.errorCouldNotCloseConnectionContextFactory(e, connectionContextFactory.getClass().getName());
+            }
+            connectionContextFactory = null;
+            /* all consumers were attached to the connection we have just closed */
+            for (Shard shard : shards) {
+                if (shard.consumerConnectionContext != null) {
+                    shard.consumerConnectionContext = null;
+                    shard.selectedKeys = Collections.emptySet();
+                    scheduleRebuild(shard, retryDelayMs(1));
+                }
+            }
+        }
+    }
+}
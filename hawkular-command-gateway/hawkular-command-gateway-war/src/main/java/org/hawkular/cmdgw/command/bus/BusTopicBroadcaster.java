@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.bus;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.consumer.BasicMessageListener;
+import org.hawkular.cmdgw.GatewayThreadFactory;
+import org.hawkular.cmdgw.api.ApiMessageRegistry;
+import org.hawkular.cmdgw.command.ws.WsSessions;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics.Direction;
+
+/**
+ * Subscribes to a bus topic and broadcasts the API messages received from it to all sessions of a {@link WsSessions}
+ * using {@link WsSessions#broadcast(BasicMessage, java.util.function.BiPredicate)}, so that each message is encoded
+ * just once no matter how many clients are connected.
+ * <p>
+ * The topic is shared with other Hawkular components whose message classes the clients cannot decode and which are
+ * typically not even visible to this deployment. Hence only the messages whose
+ * {@link MessageProcessor#HEADER_BASIC_MESSAGE_CLASS} is an {@link ApiMessageRegistry#isApiMessageClass(String) API
+ * message class} are deserialized and broadcast; the others are skipped before their class is loaded.
+ * <p>
+ * The subscription is made on a background thread and retried with a jittered delay until it succeeds.
+ */
+class BusTopicBroadcaster extends BasicMessageListener<BasicMessage> {
+    private static final MsgLogger log = GatewayLoggers.getLogger(BusTopicBroadcaster.class);
+
+    private final Endpoint endpoint;
+    private final WsSessions sessions;
+    private final BusConnectionFactoryProvider connectionFactoryProvider;
+    private final long retryAfterMs;
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile boolean closed = false;
+
+    /** accessed only from the {@link #executor} thread */
+    private ConnectionContextFactory connectionContextFactory;
+
+    private final LongAdder receivedCounter;
+    private final LongAdder skippedCounter;
+    private final LongAdder deliveriesCounter;
+    private final LongAdder attachFailuresCounter;
+
+    BusTopicBroadcaster(Endpoint endpoint, WsSessions sessions,
+            BusConnectionFactoryProvider connectionFactoryProvider, long retryAfterMs, GatewayMetrics metrics) {
+        super(BusTopicBroadcaster.class.getClassLoader());
+        this.endpoint = endpoint;
+        this.sessions = sessions;
+        this.connectionFactoryProvider = connectionFactoryProvider;
+        this.retryAfterMs = retryAfterMs;
+        this.executor = new ScheduledThreadPoolExecutor(1, new GatewayThreadFactory("bus-topic-" + endpoint.getName()));
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        final String prefix = "bus." + endpoint.getName() + ".";
+        this.receivedCounter = metrics.counter(prefix + "received");
+        this.skippedCounter = metrics.counter(prefix + "skipped");
+        this.deliveriesCounter = metrics.counter(prefix + "broadcastDeliveries");
+        this.attachFailuresCounter = metrics.counter(prefix + "attachFailures");
+    }
+
+    /**
+     * Subscribes to the {@link #endpoint} asynchronously.
+     */
+    public void start() {
+        schedule(0);
+    }
+
+    /**
+     * Closes the subscription. No messages will be broadcast after this method returns.
+     */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnectionContextFactory();
+    }
+
+    @Override
+    public void onMessage(Message message) {
+        if (closed) {
+            return;
+        }
+        String className;
+        try {
+            className = message.getStringProperty(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS);
+        } catch (JMSException e) {
+            className = null;
+        }
+        if (className == null || !ApiMessageRegistry.isApiMessageClass(className)) {
+            skippedCounter.increment();
+            log.debugf("Not broadcasting [%s] from [%s]: not a command gateway API message", className,
+                    endpoint.getName());
+            return;
+        }
+        super.onMessage(message);
+    }
+
+    @Override
+    protected void onBasicMessage(BasicMessageWithExtraData<BasicMessage> messageWithData) {
+        if (closed) {
+            return;
+        }
+        BasicMessage message = messageWithData.getBasicMessage();
+        receivedCounter.increment();
+        TrafficMetrics.record(Direction.BUS_IN, message.getClass(), -1);
+        if (messageWithData.getBinaryData() != null) {
+            log.debugf("Not broadcasting [%s] from [%s]: messages with binary data are not supported",
+                    message.getClass().getName(), endpoint.getName());
+            return;
+        }
+        try {
+            deliveriesCounter.add(sessions.broadcast(message, (key, session) -> true));
+        } catch (RuntimeException e) {
+            log.errorCouldNotProcessBusMessage(message.getClass().getName(), false, endpoint.getName(), e);
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (!closed) {
+            try {
+                executor.schedule(this::attach, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                /* we are closing */
+            }
+        }
+    }
+
+    private void attach() {
+        if (closed) {
+            return;
+        }
+        try {
+            connectionContextFactory =
+                    new ConnectionContextFactory(true, connectionFactoryProvider.getConnectionFactory());
+            new MessageProcessor().listen(connectionContextFactory.createConsumerConnectionContext(endpoint), this);
+            log.debugf("Subscribed to bus endpoint [%s]", endpoint.getName());
+        } catch (JMSException | RuntimeException e) {
+            attachFailuresCounter.increment();
+            log.errorCouldNotAddBusEndpointListener(getClass().getName(), null, endpoint.getName(), e);
+            closeConnectionContextFactory();
+            schedule(retryAfterMs / 2 + ThreadLocalRandom.current().nextLong(retryAfterMs + 1));
+        }
+    }
+
+    private void closeConnectionContextFactory() {
+        if (connectionContextFactory != null) {
+            try {
+                connectionContextFactory.close();
+            } catch (Exception e) {
+                log.errorCouldNotCloseConnectionContextFactory(e, connectionContextFactory.getClass().getName());
+            }
+            connectionContextFactory = null;
+        }
+    }
+}
@@ -32,8 +32,10 @@ public class UiSessionDestinationBusCommand implements BusCommand<UiSessionDesti
     private static final MsgLogger log = GatewayLoggers.getLogger(UiSessionDestinationBusCommand.class);
 
     /**
-     * This simply takes the given {@code message} and sends it directly to the UI client over
-     * that UI client's websocket connection.
+     * This simply takes the given {@code message} and enqueues it for sending to the UI client over
+     * that UI client's websocket connection, unless the {@code message} is a response to a fan-out request, see
+     * {@link org.hawkular.cmdgw.command.ws.FanOutTracker}. A response to a request tracked by the
+     * {@link org.hawkular.cmdgw.command.ws.InFlightRequests} completes that request.
      *
      * @see org.hawkular.cmdgw.command.bus.BusCommand#execute(org.hawkular.bus.common.BasicMessageWithExtraData,
      *      org.hawkular.cmdgw.command.bus.BusCommandContext)
@@ -49,9 +51,15 @@ public class UiSessionDestinationBusCommand implements BusCommand<UiSessionDesti
 
         log.tracef("[%s] is about to execute the request [%s] ", getClass().getName(), request);
 
+        if (context.getFanOutTracker().offer(request)) {
+            log.debugf("Response [%s] consumed by a fan-out request", request.getClass().getName());
+            return;
+        }
+        context.getInFlightRequests().complete(request);
+
         Session session = context.getConnectedUIClients().getSession(destinationSessionId);
         if (session != null) {
-            new WebSocketHelper().sendSync(session, message);
+            new WebSocketHelper().sendAsync(session, message);
         } else {
             throw new Exception("No such sessionId [" + destinationSessionId + "]");
         }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.api.ApiMessageRegistry;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponseBuilder;
+import org.hawkular.cmdgw.api.GenericSuccessResponse;
+import org.hawkular.cmdgw.api.ResourceDestination;
+import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Coalesces bursts of requests that supersede each other, such as repeated {@code UpdateCollectionIntervalsRequest}s
+ * for the same resource. A request of one of the {@link Constants#COALESCED_REQUESTS} classes is held back for
+ * {@link Constants#COALESCE_WINDOW_MS}. If another request with the same feedId, class and resourceId arrives within
+ * that window, it replaces the held back one whose sender gets a {@link GenericSuccessResponse} saying that its request
+ * was coalesced. Only the latest request is forwarded to the feed when the window expires. The responses carry the
+ * senderRequestId of the request they relate to.
+ * <p>
+ * Coalescing is disabled unless {@link Constants#COALESCE_WINDOW_MS} is greater than zero. Note that a held back
+ * request may be overtaken by requests of other classes sent to the same feed later.
+ */
+@ApplicationScoped
+public class CommandCoalescer {
+
+    /**
+     * Forwards a request to its feed.
+     */
+    @FunctionalInterface
+    public interface Forwarder {
+        /**
+         * @param message the request to forward
+         * @param context the context of the request
+         * @return the message to send to the sender of the request in a {@link GenericSuccessResponse}
+         * @throws Exception on any forwarding problem
+         */
+        String forward(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context)
+                throws Exception;
+    }
+
+    /**
+     * The latest request for a single key. Mutated only within {@link ConcurrentMap#compute(Object,
+     * java.util.function.BiFunction)}.
+     */
+    private static class Pending {
+        private BasicMessageWithExtraData<ResourceDestination> message;
+        private WsCommandContext context;
+        private Forwarder forwarder;
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(CommandCoalescer.class);
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    private final ConcurrentMap<String, Pending> pendings = new ConcurrentHashMap<>();
+    private Set<Class<?>> coalescedClasses = Collections.emptySet();
+    private long windowMs;
+    private LongAdder coalescedCounter;
+
+    public CommandCoalescer() {
+    }
+
+    /**
+     * @param metrics the metrics to count the coalesced requests in
+     * @param scheduler to flush the held back requests on
+     */
+    CommandCoalescer(GatewayMetrics metrics, GatewayScheduler scheduler) {
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.windowMs = Long.parseLong(System.getProperty(Constants.COALESCE_WINDOW_MS,
+                String.valueOf(Constants.COALESCE_WINDOW_MS_DEFAULT)));
+        if (windowMs <= 0) {
+            return;
+        }
+        Set<Class<?>> classes = new HashSet<>();
+        for (String name : System.getProperty(Constants.COALESCED_REQUESTS, Constants.COALESCED_REQUESTS_DEFAULT)
+                .split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                classes.add(ApiMessageRegistry.forName(name, 0, name.length()).getType());
+            }
+        }
+        this.coalescedClasses = classes;
+        this.coalescedCounter = metrics.counter("coalescer.coalesced");
+        metrics.gauge("coalescer.pending", pendings::size);
+        log.debugf("Coalescing [%s] within [%d] ms", classes, windowMs);
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+    }
+
+    /**
+     * @param message the message to check
+     * @return {@code true} if the given {@code message} should be passed to
+     *         {@link #submit(BasicMessageWithExtraData, WsCommandContext, Forwarder)} rather than forwarded
+     *         immediately
+     */
+    public boolean isCoalesced(BasicMessageWithExtraData<? extends BasicMessage> message) {
+        return windowMs > 0 && message.getBinaryData() == null
+                && coalescedClasses.contains(message.getBasicMessage().getClass());
+    }
+
+    /**
+     * Holds the given {@code message} back until the coalescing window of its key expires, superseding any message
+     * held back for the same key before.
+     *
+     * @param message the request to forward eventually
+     * @param context the context of the request
+     * @param forwarder performs the forwarding
+     */
+    public void submit(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context,
+            Forwarder forwarder) {
+        ResourceDestination request = message.getBasicMessage();
+        String key = request.getFeedId() + '\n' + request.getClass().getName() + '\n' + request.getResourceId();
+        Pending[] superseded = new Pending[1];
+        pendings.compute(key, (k, pending) -> {
+            if (pending == null) {
+                pending = new Pending();
+                scheduler.schedule(() -> flush(k), windowMs, TimeUnit.MILLISECONDS);
+            } else {
+                Pending old = new Pending();
+                old.message = pending.message;
+                old.context = pending.context;
+                superseded[0] = old;
+            }
+            pending.message = message;
+            pending.context = context;
+            pending.forwarder = forwarder;
+            return pending;
+        });
+        if (superseded[0] != null) {
+            coalescedCounter.increment();
+            GenericSuccessResponse response = new GenericSuccessResponse();
+            response.setMessage("The request has been coalesced with a newer request for feed [" + request.getFeedId()
+                    + "] and resource [" + request.getResourceId() + "]");
+            response.setSenderRequestId(
+                    ResourceDestinationWsCommand.senderRequestIdOf(superseded[0].message.getBasicMessage()));
+            new WebSocketHelper().sendBasicMessageAsync(superseded[0].context.getSession(), response);
+        }
+    }
+
+    private void flush(String key) {
+        Pending pending = pendings.remove(key);
+        if (pending == null) {
+            return;
+        }
+        Session session = pending.context.getSession();
+        String requestClassName = pending.message.getBasicMessage().getClass().getName();
+        String senderRequestId = ResourceDestinationWsCommand.senderRequestIdOf(pending.message.getBasicMessage());
+        try {
+            GenericSuccessResponse response = new GenericSuccessResponse();
+            response.setMessage(pending.forwarder.forward(pending.message, pending.context));
+            response.setSenderRequestId(senderRequestId);
+            new WebSocketHelper().sendBasicMessageAsync(session, response);
+        } catch (Exception e) {
+            log.errorWsCommandExecutionFailure(requestClassName, session.getId(), "coalescer", e);
+            GenericErrorResponse response = new GenericErrorResponseBuilder().setThrowable(e)
+                    .setErrorMessage("Failed to process message [" + requestClassName + "]")
+                    .setSenderRequestId(senderRequestId).build();
+            new WebSocketHelper().sendBasicMessageAsync(session, response);
+        }
+    }
+}
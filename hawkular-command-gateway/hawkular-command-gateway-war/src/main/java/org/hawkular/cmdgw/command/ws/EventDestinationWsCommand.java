@@ -25,6 +25,7 @@ import org.hawkular.cmdgw.Constants;
 import org.hawkular.cmdgw.api.EventDestination;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
 
 /**
  * A {@link WsCommand} that transfers messages implementing {@link EventDestination} to the events
@@ -43,7 +44,9 @@ public class EventDestinationWsCommand implements WsCommand<EventDestination> {
         try (ConnectionContextFactory ccf = new ConnectionContextFactory(context.getConnectionFactory())) {
 
             ProducerConnectionContext pcc = ccf.createProducerConnectionContext(Constants.EVENTS_COMMAND_QUEUE);
+            long start = System.nanoTime();
             MessageId mid = new MessageProcessor().send(pcc, request);
+            TrafficMetrics.recordBusSend(request.getClass(), start);
             log.debugf("Event forwarded to bus: mid=[%s], request=[%s]", mid, request);
         }
     }
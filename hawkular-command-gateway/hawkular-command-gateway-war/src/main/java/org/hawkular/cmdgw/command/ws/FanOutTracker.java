@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.api.FanOutRequest;
+import org.hawkular.cmdgw.api.FanOutResponse;
+import org.hawkular.cmdgw.api.FanOutResult;
+import org.hawkular.cmdgw.api.FanOutStatus;
+import org.hawkular.cmdgw.api.ResourceResponse;
+import org.hawkular.cmdgw.api.ResponseStatus;
+import org.hawkular.cmdgw.api.UiSessionDestination;
+import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Keeps track of the {@link FanOutRequest}s initiated by the UI clients connected to this gateway node and collects
+ * the responses of the individual feeds into a single {@link FanOutResponse}.
+ * <p>
+ * Each request sent to a feed on behalf of a {@link FanOut} gets a {@code senderRequestId} of the form
+ * {@code fanOut:<fanOutId>/<feedId>}. The feeds copy it to their responses, which come back to this node because the
+ * UI client is connected here. {@link #offer(UiSessionDestination)} then swallows the response instead of forwarding
+ * it to the UI client. The {@link FanOutResponse} is sent as soon as all feeds have responded or when the timeout of
+ * the {@link FanOut} expires, whichever comes first.
+ */
+@ApplicationScoped
+public class FanOutTracker {
+
+    /**
+     * The state of a single {@link FanOutRequest}. All mutable fields are guarded by {@code this}.
+     */
+    public final class FanOut {
+        private final String id;
+        private final Session session;
+        private final String senderRequestId;
+        /** in the order of the feeds named by the request */
+        private final Map<String, FanOutResult> results;
+        private int remaining;
+        private boolean done;
+        private ScheduledFuture<?> timeout;
+
+        private FanOut(Session session, String senderRequestId, Collection<String> feedIds) {
+            this.id = UUID.randomUUID().toString();
+            this.session = session;
+            this.senderRequestId = senderRequestId;
+            this.results = new LinkedHashMap<>(feedIds.size() * 2);
+            for (String feedId : feedIds) {
+                results.put(feedId, null);
+            }
+            this.remaining = results.size();
+        }
+
+        /**
+         * @param feedId the feed the request will be sent to
+         * @return the {@code senderRequestId} to set on the request sent to the given {@code feedId}
+         */
+        public String requestIdFor(String feedId) {
+            return REQUEST_ID_PREFIX + id + '/' + feedId;
+        }
+
+        /**
+         * Records the failure to send the request to the given {@code feedId}.
+         *
+         * @param feedId the feed the request could not be sent to
+         * @param message the description of the failure
+         */
+        public void failed(String feedId, String message) {
+            complete(this, feedId, FanOutStatus.ERROR, message);
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(FanOutTracker.class);
+
+    private static final String REQUEST_ID_PREFIX = "fanOut:";
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    private final ConcurrentMap<String, FanOut> fanOuts = new ConcurrentHashMap<>();
+    private long defaultTimeoutMs;
+    private LongAdder startedCounter;
+    private LongAdder timedOutFeedsCounter;
+
+    @PostConstruct
+    public void initialize() {
+        this.defaultTimeoutMs = Long.parseLong(System.getProperty(Constants.FAN_OUT_TIMEOUT_MS,
+                String.valueOf(Constants.FAN_OUT_TIMEOUT_MS_DEFAULT)));
+        this.startedCounter = metrics.counter("fanOut.started");
+        this.timedOutFeedsCounter = metrics.counter("fanOut.timedOutFeeds");
+        metrics.gauge("fanOut.pending", fanOuts::size);
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+    }
+
+    /**
+     * @return the timeout to use for {@link FanOutRequest}s that do not specify any
+     */
+    public long getDefaultTimeoutMs() {
+        return defaultTimeoutMs;
+    }
+
+    /**
+     * Starts tracking a new {@link FanOut}. The caller is supposed to send the requests to the feeds afterwards using
+     * {@link FanOut#requestIdFor(String)} as their {@code senderRequestId}.
+     *
+     * @param session the session of the UI client that sent the {@link FanOutRequest}
+     * @param senderRequestId the {@code senderRequestId} of the {@link FanOutRequest}
+     * @param feedIds the feeds the request will be sent to
+     * @param timeoutMs how long to wait for the responses
+     * @return the new {@link FanOut}
+     */
+    public FanOut start(Session session, String senderRequestId, Collection<String> feedIds, long timeoutMs) {
+        FanOut fanOut = new FanOut(session, senderRequestId, feedIds);
+        startedCounter.increment();
+        if (fanOut.remaining == 0) {
+            finish(fanOut);
+            return fanOut;
+        }
+        fanOuts.put(fanOut.id, fanOut);
+        try {
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> timeOut(fanOut), timeoutMs, TimeUnit.MILLISECONDS);
+            synchronized (fanOut) {
+                fanOut.timeout = timeout;
+            }
+        } catch (RejectedExecutionException e) {
+            /* shutting down */
+            timeOut(fanOut);
+        }
+        return fanOut;
+    }
+
+    /**
+     * Records the given {@code response} if it belongs to a {@link FanOut} tracked by this node.
+     *
+     * @param response a response sent by a feed to a UI client
+     * @return {@code true} if the {@code response} was consumed by a {@link FanOut} and must not be forwarded to the
+     *         UI client, {@code false} otherwise
+     */
+    public boolean offer(UiSessionDestination response) {
+        String requestId = response.getSenderRequestId();
+        if (requestId == null || !requestId.startsWith(REQUEST_ID_PREFIX)) {
+            return false;
+        }
+        int slash = requestId.indexOf('/', REQUEST_ID_PREFIX.length());
+        if (slash < 0) {
+            return false;
+        }
+        FanOut fanOut = fanOuts.get(requestId.substring(REQUEST_ID_PREFIX.length(), slash));
+        if (fanOut == null) {
+            /* not ours or timed out already */
+            return false;
+        }
+        String feedId = requestId.substring(slash + 1);
+        FanOutStatus status = FanOutStatus.OK;
+        String message = null;
+        if (response instanceof ResourceResponse) {
+            ResourceResponse resourceResponse = (ResourceResponse) response;
+            status = resourceResponse.getStatus() == ResponseStatus.ERROR ? FanOutStatus.ERROR : FanOutStatus.OK;
+            message = resourceResponse.getMessage();
+        }
+        complete(fanOut, feedId, status, message);
+        return true;
+    }
+
+    private void complete(FanOut fanOut, String feedId, FanOutStatus status, String message) {
+        synchronized (fanOut) {
+            if (fanOut.done || !fanOut.results.containsKey(feedId) || fanOut.results.get(feedId) != null) {
+                return;
+            }
+            fanOut.results.put(feedId, newResult(feedId, status, message));
+            if (--fanOut.remaining > 0) {
+                return;
+            }
+        }
+        finish(fanOut);
+    }
+
+    private void timeOut(FanOut fanOut) {
+        synchronized (fanOut) {
+            if (fanOut.done) {
+                return;
+            }
+            for (Map.Entry<String, FanOutResult> en : fanOut.results.entrySet()) {
+                if (en.getValue() == null) {
+                    en.setValue(newResult(en.getKey(), FanOutStatus.TIMEOUT, "No response from the feed in time"));
+                    timedOutFeedsCounter.increment();
+                }
+            }
+            fanOut.remaining = 0;
+        }
+        finish(fanOut);
+    }
+
+    private void finish(FanOut fanOut) {
+        List<FanOutResult> results;
+        synchronized (fanOut) {
+            if (fanOut.done) {
+                return;
+            }
+            fanOut.done = true;
+            if (fanOut.timeout != null) {
+                fanOut.timeout.cancel(false);
+            }
+            results = new ArrayList<>(fanOut.results.values());
+        }
+        fanOuts.remove(fanOut.id);
+        FanOutResponse response = new FanOutResponse();
+        response.setSenderRequestId(fanOut.senderRequestId);
+        response.setDestinationSessionId(fanOut.session.getId());
+        response.setResults(results);
+        log.debugf("Fan-out [%s] of session [%s] finished with [%d] results", fanOut.id, fanOut.session.getId(),
+                results.size());
+        new WebSocketHelper().sendBasicMessageAsync(fanOut.session, response);
+    }
+
+    private static FanOutResult newResult(String feedId, FanOutStatus status, String message) {
+        FanOutResult result = new FanOutResult();
+        result.setFeedId(feedId);
+        result.setStatus(status);
+        result.setMessage(message);
+        return result;
+    }
+}
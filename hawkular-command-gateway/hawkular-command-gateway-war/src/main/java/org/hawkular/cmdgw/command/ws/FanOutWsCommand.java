@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.bus.common.producer.ProducerConnectionContext;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.api.ApiMessageRegistry;
+import org.hawkular.cmdgw.api.ApiMessageRegistry.MessageType;
+import org.hawkular.cmdgw.api.FanOutRequest;
+import org.hawkular.cmdgw.api.ResourceRequest;
+import org.hawkular.cmdgw.command.ws.FanOutTracker.FanOut;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A {@link WsCommand} that sends the request wrapped in a {@link FanOutRequest} to each of the feeds named by the
+ * {@link FanOutRequest}. The responses of the feeds are collected by the {@link FanOutTracker} that eventually sends a
+ * single {@link org.hawkular.cmdgw.api.FanOutResponse} to the UI client.
+ * <p>
+ * The requests for the feeds connected to this gateway node are delivered directly (see {@link LocalDelivery}), all
+ * other requests are put on the {@link Constants#FEED_COMMAND_QUEUE} through a single bus connection.
+ */
+public class FanOutWsCommand implements WsCommand<FanOutRequest> {
+    private static final MsgLogger log = GatewayLoggers.getLogger(FanOutWsCommand.class);
+
+    /** replaced with the ID of the respective feed in the {@code resourceId} of the wrapped request */
+    private static final String FEED_ID_PLACEHOLDER = "${feedId}";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Override
+    public void execute(BasicMessageWithExtraData<FanOutRequest> message, WsCommandContext context)
+            throws Exception {
+        FanOutRequest request = message.getBasicMessage();
+        String requestName = request.getRequestName();
+        MessageType<?> type = ApiMessageRegistry.forName(requestName, 0, requestName.length());
+        if (!ResourceRequest.class.isAssignableFrom(type.getType())) {
+            throw new IllegalArgumentException(
+                    "[" + requestName + "] is not a kind of [" + ResourceRequest.class.getName() + "]");
+        }
+
+        Set<String> feedIds = new LinkedHashSet<>();
+        if (request.getFeedIds() != null) {
+            feedIds.addAll(request.getFeedIds());
+        }
+        String glob = request.getFeedIdGlob();
+        if (glob != null) {
+            context.getConnectedFeeds().forEachSession((feedId, session) -> {
+                if (globMatches(glob, feedId)) {
+                    feedIds.add(feedId);
+                }
+            });
+        }
+
+        FanOutTracker tracker = context.getFanOutTracker();
+        long timeoutMs = request.getTimeoutMs() != null && request.getTimeoutMs().intValue() > 0
+                ? request.getTimeoutMs().longValue() : tracker.getDefaultTimeoutMs();
+        FanOut fanOut = tracker.start(context.getSession(), request.getSenderRequestId(), feedIds, timeoutMs);
+        log.debugf("Fanning out [%s] to [%d] feeds", requestName, feedIds.size());
+
+        Map<String, Object> template = new HashMap<>(
+                request.getRequest() != null ? request.getRequest() : Collections.emptyMap());
+        /* the credentials of the UI client must not be passed to the feeds */
+        template.remove("authentication");
+        template.put("senderSessionId", context.getSession().getId());
+        Object resourceId = template.get("resourceId");
+
+        Endpoint endpoint = Constants.FEED_COMMAND_QUEUE;
+        LocalDelivery localDelivery = context.getLocalDelivery();
+        ConnectionContextFactory ccf = null;
+        try {
+            ProducerConnectionContext pcc = null;
+            MessageProcessor messageProcessor = new MessageProcessor();
+            for (String feedId : feedIds) {
+                try {
+                    template.put("feedId", feedId);
+                    template.put("senderRequestId", fanOut.requestIdFor(feedId));
+                    if (resourceId instanceof String) {
+                        template.put("resourceId", ((String) resourceId).replace(FEED_ID_PLACEHOLDER, feedId));
+                    }
+                    ResourceRequest feedRequest = (ResourceRequest) type
+                            .read(new StringReader(mapper.writeValueAsString(template)));
+                    BasicMessageWithExtraData<ResourceRequest> feedMessage =
+                            new BasicMessageWithExtraData<>(feedRequest, null);
+
+                    if (localDelivery.tryDeliver(endpoint, context.getConnectedFeeds(), feedId, feedMessage)) {
+                        continue;
+                    }
+                    if (pcc == null) {
+                        ccf = new ConnectionContextFactory(context.getConnectionFactory());
+                        pcc = ccf.createProducerConnectionContext(endpoint);
+                    }
+                    Map<String, String> headers = localDelivery.beforeBusSend(endpoint, Constants.HEADER_FEEDID,
+                            feedId);
+                    try {
+                        long start = System.nanoTime();
+                        messageProcessor.send(pcc, feedMessage, headers);
+                        TrafficMetrics.recordBusSend(feedMessage.getClass(), start);
+                    } catch (Exception e) {
+                        localDelivery.busSendFailed(endpoint, feedId);
+                        throw e;
+                    }
+                } catch (Exception e) {
+                    log.debugf(e, "Could not send [%s] to feed [%s]", requestName, feedId);
+                    fanOut.failed(feedId, e.getClass().getName() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if (ccf != null) {
+                ccf.close();
+            }
+        }
+    }
+
+    /**
+     * Matches the given {@code text} against the given {@code glob} where {@code *} matches any number of characters
+     * and {@code ?} matches a single character. Unlike a regular expression supplied by a client, a glob cannot
+     * backtrack catastrophically: when a match fails, only the position after the last {@code *} is moved forward,
+     * so that the time taken is at most proportional to the product of the lengths of {@code glob} and {@code text}.
+     *
+     * @param glob the glob to match
+     * @param text the text to match against the {@code glob}
+     * @return {@code true} if the whole {@code text} matches the {@code glob}
+     */
+    static boolean globMatches(String glob, String text) {
+        int g = 0;
+        int t = 0;
+        int starG = -1;
+        int starT = -1;
+        while (t < text.length()) {
+            if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == text.charAt(t))) {
+                g++;
+                t++;
+            } else if (g < glob.length() && glob.charAt(g) == '*') {
+                starG = g++;
+                starT = t;
+            } else if (starG >= 0) {
+                g = starG + 1;
+                t = ++starT;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') {
+            g++;
+        }
+        return g == glob.length();
+    }
+}
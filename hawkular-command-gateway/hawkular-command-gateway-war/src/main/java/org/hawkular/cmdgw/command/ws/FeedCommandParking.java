@@ -0,0 +1,362 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponseBuilder;
+import org.hawkular.cmdgw.api.ResourceDestination;
+import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Parks the requests for feeds that are not connected to this gateway node instead of putting them on the
+ * {@link Constants#FEED_COMMAND_QUEUE} where they would wait for the feed, being evaluated against the selectors of
+ * all consumers over and over again. The parked requests are forwarded as soon as the feed connects. Requests parked
+ * for longer than {@link Constants#FEED_PARKING_TTL_MS} are dropped and their senders get a
+ * {@link GenericErrorResponse}.
+ * <p>
+ * Parking is disabled unless {@link Constants#FEED_PARKING_TTL_MS} is greater than zero. It should be enabled only if
+ * the feeds connect to the same gateway node as the UI clients, e.g. if there is just one gateway node, because a
+ * request for a feed connected to another node would be parked here until it expires.
+ * <p>
+ * While a feed has any parked requests, its new requests are parked too so that they cannot overtake the older ones.
+ * For the same reason, a new request is rejected rather than forwarded if it cannot be parked because the capacity is
+ * exhausted while older requests of the feed are still parked.
+ */
+@ApplicationScoped
+public class FeedCommandParking {
+
+    /**
+     * A request waiting for its feed to connect.
+     */
+    private static class ParkedRequest {
+        private final BasicMessageWithExtraData<ResourceDestination> message;
+        private final WsCommandContext context;
+        private final long parkedNanos;
+
+        private ParkedRequest(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context,
+                long parkedNanos) {
+            this.message = message;
+            this.context = context;
+            this.parkedNanos = parkedNanos;
+        }
+    }
+
+    /**
+     * The requests parked for a single feed. All fields are guarded by {@code this}.
+     */
+    private static class Lot {
+        private final ArrayDeque<ParkedRequest> requests = new ArrayDeque<>();
+        /** {@code true} while the requests taken from {@link #requests} are being forwarded */
+        private boolean replaying;
+        /** {@code true} once this instance was removed from {@link FeedCommandParking#lots} */
+        private boolean discarded;
+
+        /**
+         * @return {@code true} if requests of this lot are waiting or being forwarded
+         */
+        private boolean isBusy() {
+            return replaying || !requests.isEmpty();
+        }
+    }
+
+    /**
+     * Forwards the parked requests of a feed when it connects.
+     */
+    private class ReplayListener implements WsSessionListener {
+        private final String feedId;
+
+        private ReplayListener(String feedId) {
+            this.feedId = feedId;
+        }
+
+        @Override
+        public void sessionAdded() {
+            replay(feedId);
+        }
+
+        @Override
+        public void sessionRemoved() {
+            /* the new requests for the feed will be parked again */
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(FeedCommandParking.class);
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private WsEndpoints wsEndpoints;
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    /** key is feedId */
+    private final ConcurrentMap<String, Lot> lots = new ConcurrentHashMap<>();
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    private long ttlMs;
+    private int capacityPerFeed;
+    private int capacity;
+    private ScheduledFuture<?> sweep;
+    private BiFunction<String, Session, WsSessionListener> listenerProducer;
+
+    private LongAdder parkedCounter;
+    private LongAdder replayedCounter;
+    private LongAdder expiredCounter;
+    private LongAdder rejectedCounter;
+
+    public FeedCommandParking() {
+    }
+
+    /**
+     * @param metrics the metrics to count the parked requests in
+     * @param wsEndpoints to learn when feeds connect
+     * @param scheduler to run the expiry sweeps on
+     */
+    FeedCommandParking(GatewayMetrics metrics, WsEndpoints wsEndpoints, GatewayScheduler scheduler) {
+        this.metrics = metrics;
+        this.wsEndpoints = wsEndpoints;
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.ttlMs = Long.parseLong(System.getProperty(Constants.FEED_PARKING_TTL_MS,
+                String.valueOf(Constants.FEED_PARKING_TTL_MS_DEFAULT)));
+        if (ttlMs <= 0) {
+            return;
+        }
+        this.capacityPerFeed = Integer.parseInt(System.getProperty(Constants.FEED_PARKING_CAPACITY_PER_FEED,
+                String.valueOf(Constants.FEED_PARKING_CAPACITY_PER_FEED_DEFAULT)));
+        this.capacity = Integer.parseInt(System.getProperty(Constants.FEED_PARKING_CAPACITY,
+                String.valueOf(Constants.FEED_PARKING_CAPACITY_DEFAULT)));
+        this.parkedCounter = metrics.counter("parking.parked");
+        this.replayedCounter = metrics.counter("parking.replayed");
+        this.expiredCounter = metrics.counter("parking.expired");
+        this.rejectedCounter = metrics.counter("parking.rejected");
+        metrics.gauge("parking.pending", parkedCount::get);
+
+        long sweepPeriodMs = Math.max(1000, ttlMs / 4);
+        this.sweep = scheduler.scheduleWithFixedDelay(this::expire, sweepPeriodMs, sweepPeriodMs,
+                TimeUnit.MILLISECONDS);
+
+        this.listenerProducer = (feedId, session) -> new ReplayListener(feedId);
+        wsEndpoints.getFeedSessions().addWsSessionListenerProducer(listenerProducer);
+        log.debugf("Parking up to [%d] requests per offline feed for [%d] ms", capacityPerFeed, ttlMs);
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        if (listenerProducer != null) {
+            wsEndpoints.getFeedSessions().removeWsSessionListenerProducer(listenerProducer);
+        }
+        if (sweep != null) {
+            sweep.cancel(false);
+        }
+    }
+
+    /**
+     * @return the number of milliseconds after which the parked requests expire
+     */
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    /**
+     * Parks the given {@code message} if its feed is not connected to this gateway node or if the feed has older
+     * requests parked.
+     *
+     * @param message the request to park
+     * @param context the context of the request
+     * @return {@code true} if the {@code message} was parked, {@code false} if it should be forwarded right away
+     * @throws IllegalStateException if the {@code message} can neither be parked nor forwarded without overtaking the
+     *         requests parked for its feed
+     */
+    public boolean park(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context) {
+        if (ttlMs <= 0 || message.getBinaryData() != null) {
+            /* disabled or the binary stream cannot be read later */
+            return false;
+        }
+        String feedId = message.getBasicMessage().getFeedId();
+        WsSessions feeds = context.getConnectedFeeds();
+        if (feeds.getSession(feedId) != null && !lots.containsKey(feedId)) {
+            /* the usual case */
+            return false;
+        }
+        while (true) {
+            Lot lot = lots.computeIfAbsent(feedId, k -> new Lot());
+            synchronized (lot) {
+                if (lot.discarded) {
+                    continue;
+                }
+                if (!lot.isBusy() && feeds.getSession(feedId) != null) {
+                    discard(feedId, lot);
+                    return false;
+                }
+                if (lot.requests.size() >= capacityPerFeed || parkedCount.get() >= capacity) {
+                    if (!lot.isBusy()) {
+                        /* nothing to overtake, better put it on the bus than lose it */
+                        discard(feedId, lot);
+                        return false;
+                    }
+                    rejectedCounter.increment();
+                    throw new IllegalStateException("Cannot accept [" + message.getBasicMessage().getClass().getName()
+                            + "] for feed [" + feedId + "]: too many requests are waiting for the feed to connect");
+                }
+                lot.requests.add(new ParkedRequest(message, context, System.nanoTime()));
+                parkedCount.incrementAndGet();
+                parkedCounter.increment();
+            }
+            log.debugf("Parked [%s] for offline feed [%s]", message.getBasicMessage().getClass().getName(), feedId);
+            /* the feed may have connected and replayed just before we parked */
+            if (feeds.getSession(feedId) != null) {
+                replay(feedId);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Forwards the parked requests of the given {@code feedId}. The requests are taken from the lot under its lock but
+     * forwarded outside of it so that {@link #park(BasicMessageWithExtraData, WsCommandContext)} is not blocked by the
+     * bus sends; the requests parked meanwhile are forwarded in the next round. Only one thread replays a lot at a
+     * time.
+     *
+     * @param feedId the feed that has connected
+     */
+    private void replay(String feedId) {
+        Lot lot = lots.get(feedId);
+        if (lot == null) {
+            return;
+        }
+        List<ParkedRequest> batch;
+        synchronized (lot) {
+            if (lot.discarded || lot.replaying) {
+                return;
+            }
+            lot.replaying = true;
+            batch = drain(lot);
+        }
+        while (true) {
+            for (ParkedRequest parked : batch) {
+                try {
+                    ResourceDestinationWsCommand.forward(parked.message, parked.context);
+                    replayedCounter.increment();
+                } catch (Exception e) {
+                    Session session = parked.context.getSession();
+                    String requestClassName = parked.message.getBasicMessage().getClass().getName();
+                    log.errorWsCommandExecutionFailure(requestClassName, session.getId(), "parking", e);
+                    sendError(session, parked.message.getBasicMessage(),
+                            "Failed to forward parked message [" + requestClassName + "]", e);
+                }
+            }
+            synchronized (lot) {
+                batch = drain(lot);
+                if (batch.isEmpty()) {
+                    lot.replaying = false;
+                    discard(feedId, lot);
+                    break;
+                }
+            }
+        }
+        log.debugf("Replayed parked requests of feed [%s]", feedId);
+    }
+
+    /**
+     * Must be called while holding the lock of the given {@code lot}.
+     *
+     * @return the requests removed from the given {@code lot}
+     */
+    private List<ParkedRequest> drain(Lot lot) {
+        List<ParkedRequest> result = new ArrayList<>(lot.requests);
+        lot.requests.clear();
+        parkedCount.addAndGet(-result.size());
+        return result;
+    }
+
+    /**
+     * Drops the expired requests. Runs on the {@link GatewayScheduler}.
+     */
+    private void expire() {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        long now = System.nanoTime();
+        for (Map.Entry<String, Lot> en : lots.entrySet()) {
+            Lot lot = en.getValue();
+            synchronized (lot) {
+                ParkedRequest head;
+                while ((head = lot.requests.peek()) != null && now - head.parkedNanos > ttlNanos) {
+                    lot.requests.poll();
+                    parkedCount.decrementAndGet();
+                    expiredCounter.increment();
+                    ResourceDestination request = head.message.getBasicMessage();
+                    sendError(head.context.getSession(), request, "The request [" + request.getClass().getName()
+                            + "] expired because feed [" + request.getFeedId() + "] has not connected within ["
+                            + ttlMs + "] ms", null);
+                }
+                if (!lot.isBusy() && !lot.discarded) {
+                    discard(en.getKey(), lot);
+                }
+            }
+        }
+    }
+
+    private void discard(String feedId, Lot lot) {
+        lot.discarded = true;
+        lots.remove(feedId, lot);
+    }
+
+    /**
+     * Tells the sender of the given {@code request} that it failed. The response carries the senderRequestId of the
+     * {@code request} as it is sent long after the request.
+     */
+    private static void sendError(Session session, ResourceDestination request, String errorMessage, Throwable t) {
+        if (session.isOpen()) {
+            GenericErrorResponseBuilder builder = new GenericErrorResponseBuilder()
+                    .setSenderRequestId(ResourceDestinationWsCommand.senderRequestIdOf(request));
+            if (t != null) {
+                builder.setThrowable(t);
+            }
+            GenericErrorResponse response = builder.setErrorMessage(errorMessage).build();
+            new WebSocketHelper().sendBasicMessageAsync(session, response);
+        }
+    }
+}
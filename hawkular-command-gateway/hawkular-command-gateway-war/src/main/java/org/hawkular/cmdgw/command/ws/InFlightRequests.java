@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.api.GenericErrorResponse;
+import org.hawkular.cmdgw.api.GenericErrorResponseBuilder;
+import org.hawkular.cmdgw.api.UiSessionDestination;
+import org.hawkular.cmdgw.api.UiSessionOrigin;
+import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.hawkular.cmdgw.metrics.Histogram;
+
+/**
+ * Keeps track of the requests of the UI clients connected to this gateway node that were forwarded to a feed and
+ * have not been answered yet. The requests are keyed by the UI client's session ID and the {@code senderRequestId}
+ * chosen by the UI client; requests without a {@code senderRequestId} are not tracked.
+ * <p>
+ * The first response carrying the same {@code destinationSessionId} and {@code senderRequestId} completes the
+ * request, see {@link #complete(UiSessionDestination)}, and its round trip time is recorded in the
+ * {@code inFlight.<RequestClass>.roundTripUs} histogram. The requests of a UI client are forgotten when it
+ * disconnects.
+ * <p>
+ * If {@link Constants#IN_FLIGHT_TIMEOUT_MS} is set and no response arrives within it, the UI client gets a
+ * {@link GenericErrorResponse} with the {@code senderRequestId} of the request. A response arriving later is still
+ * passed on to the UI client, which may thus get two answers for the same {@code senderRequestId}; that is why no
+ * timeout is applied by default.
+ * <p>
+ * At most {@link Constants#IN_FLIGHT_CAPACITY} requests are tracked at a time, further requests are forwarded
+ * without tracking.
+ */
+@ApplicationScoped
+public class InFlightRequests {
+
+    /**
+     * A single request waiting for a response.
+     */
+    private static final class InFlight {
+        private final Session session;
+        private final String senderRequestId;
+        private final Class<?> requestClass;
+        private final String feedId;
+        private final long startNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        private InFlight(Session session, String senderRequestId, Class<?> requestClass, String feedId) {
+            this.session = session;
+            this.senderRequestId = senderRequestId;
+            this.requestClass = requestClass;
+            this.feedId = feedId;
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Forgets the requests of a UI client when it disconnects.
+     */
+    private class EvictingListener implements WsSessionListener {
+        private final String sessionId;
+
+        private EvictingListener(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void sessionAdded() {
+        }
+
+        @Override
+        public void sessionRemoved() {
+            evict(sessionId);
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(InFlightRequests.class);
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private WsEndpoints wsEndpoints;
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    /** UI client session ID -> senderRequestId -> request; the inner maps are modified only inside compute methods */
+    private final ConcurrentMap<String, Map<String, InFlight>> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private long timeoutMs;
+    private int capacity;
+    private BiFunction<String, Session, WsSessionListener> listenerProducer;
+
+    private LongAdder trackedCounter;
+    private LongAdder untrackedCounter;
+    private LongAdder timedOutCounter;
+    private LongAdder evictedCounter;
+
+    private final ClassValue<Histogram> roundTripHistograms = new ClassValue<Histogram>() {
+        @Override
+        protected Histogram computeValue(Class<?> requestClass) {
+            return metrics.histogram("inFlight." + requestClass.getSimpleName() + ".roundTripUs");
+        }
+    };
+
+    public InFlightRequests() {
+        super();
+    }
+
+    InFlightRequests(GatewayMetrics metrics, WsEndpoints wsEndpoints, GatewayScheduler scheduler) {
+        super();
+        this.metrics = metrics;
+        this.wsEndpoints = wsEndpoints;
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        this.capacity = Integer.parseInt(System.getProperty(Constants.IN_FLIGHT_CAPACITY,
+                String.valueOf(Constants.IN_FLIGHT_CAPACITY_DEFAULT)));
+        if (capacity <= 0) {
+            return;
+        }
+        this.timeoutMs = Long.parseLong(System.getProperty(Constants.IN_FLIGHT_TIMEOUT_MS,
+                String.valueOf(Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT)));
+        this.trackedCounter = metrics.counter("inFlight.tracked");
+        this.untrackedCounter = metrics.counter("inFlight.untracked");
+        this.timedOutCounter = metrics.counter("inFlight.timedOut");
+        this.evictedCounter = metrics.counter("inFlight.evicted");
+        metrics.gauge("inFlight.pending", pendingCount::get);
+
+        this.listenerProducer = (sessionId, session) -> new EvictingListener(sessionId);
+        wsEndpoints.getUiClientSessions().addWsSessionListenerProducer(listenerProducer);
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        if (listenerProducer != null) {
+            wsEndpoints.getUiClientSessions().removeWsSessionListenerProducer(listenerProducer);
+        }
+    }
+
+    /**
+     * Starts tracking the given {@code request} that is about to be forwarded to the given {@code feedId}.
+     *
+     * @param session the session of the UI client that sent the {@code request}
+     * @param request the request to track
+     * @param feedId the feed the {@code request} is forwarded to
+     * @return {@code true} if the {@code request} is tracked and {@link #forget(Session, UiSessionOrigin)} should be
+     *         called if it cannot be forwarded, {@code false} otherwise
+     */
+    public boolean track(Session session, UiSessionOrigin request, String feedId) {
+        String senderRequestId = request.getSenderRequestId();
+        if (capacity <= 0 || senderRequestId == null || !session.isOpen()) {
+            return false;
+        }
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            untrackedCounter.increment();
+            return false;
+        }
+        InFlight inFlight = new InFlight(session, senderRequestId, request.getClass(), feedId);
+        boolean[] added = new boolean[1];
+        sessions.compute(session.getId(), (k, requests) -> {
+            Map<String, InFlight> result = requests == null ? new HashMap<>() : requests;
+            added[0] = result.putIfAbsent(senderRequestId, inFlight) == null;
+            return result;
+        });
+        if (!added[0]) {
+            /* the UI client has reused a senderRequestId, keep tracking the older request */
+            pendingCount.decrementAndGet();
+            untrackedCounter.increment();
+            return false;
+        }
+        trackedCounter.increment();
+        if (timeoutMs <= 0) {
+            return true;
+        }
+        try {
+            inFlight.timeout = scheduler.schedule(() -> timeOut(inFlight), timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            /* shutting down */
+            remove(session.getId(), inFlight);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops tracking the given {@code request} without any further action, e.g. because it could not be forwarded.
+     *
+     * @param session the session of the UI client that sent the {@code request}
+     * @param request the request to forget
+     */
+    public void forget(Session session, UiSessionOrigin request) {
+        InFlight inFlight = remove(session.getId(), request.getSenderRequestId());
+        if (inFlight != null) {
+            inFlight.cancelTimeout();
+        }
+    }
+
+    /**
+     * Completes the request the given {@code response} belongs to, if any.
+     *
+     * @param response a response sent by a feed to a UI client
+     * @return {@code true} if the {@code response} completed a tracked request, {@code false} otherwise
+     */
+    public boolean complete(UiSessionDestination response) {
+        String sessionId = response.getDestinationSessionId();
+        String senderRequestId = response.getSenderRequestId();
+        if (sessionId == null || senderRequestId == null) {
+            return false;
+        }
+        InFlight inFlight = remove(sessionId, senderRequestId);
+        if (inFlight == null) {
+            return false;
+        }
+        inFlight.cancelTimeout();
+        roundTripHistograms.get(inFlight.requestClass)
+                .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inFlight.startNanos));
+        return true;
+    }
+
+    private void timeOut(InFlight inFlight) {
+        if (!remove(inFlight.session.getId(), inFlight)) {
+            return;
+        }
+        timedOutCounter.increment();
+        log.debugf("Request [%s] of session [%s] not answered by feed [%s] within [%d] ms",
+                inFlight.senderRequestId, inFlight.session.getId(), inFlight.feedId, timeoutMs);
+        if (inFlight.session.isOpen()) {
+            GenericErrorResponse response = new GenericErrorResponseBuilder()
+                    .setErrorMessage("No response to [" + inFlight.requestClass.getSimpleName() + "] from feed ["
+                            + inFlight.feedId + "] within [" + timeoutMs + "] ms")
+                    .setSenderRequestId(inFlight.senderRequestId).build();
+            new WebSocketHelper().sendBasicMessageAsync(inFlight.session, response);
+        }
+    }
+
+    private void evict(String sessionId) {
+        Map<String, InFlight> requests = sessions.remove(sessionId);
+        if (requests == null) {
+            return;
+        }
+        /* not modified by anyone else once removed from sessions */
+        List<InFlight> evicted = new ArrayList<>(requests.values());
+        for (InFlight inFlight : evicted) {
+            inFlight.cancelTimeout();
+        }
+        pendingCount.addAndGet(-evicted.size());
+        evictedCounter.add(evicted.size());
+        log.debugf("Forgot [%d] requests of closed session [%s]", evicted.size(), sessionId);
+    }
+
+    /**
+     * @return the request removed or {@code null} if none was tracked under the given keys
+     */
+    private InFlight remove(String sessionId, String senderRequestId) {
+        InFlight[] removed = new InFlight[1];
+        sessions.computeIfPresent(sessionId, (k, requests) -> {
+            removed[0] = requests.remove(senderRequestId);
+            return requests.isEmpty() ? null : requests;
+        });
+        if (removed[0] != null) {
+            pendingCount.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    /**
+     * @return {@code true} if the given {@code inFlight} was still tracked and has been removed now
+     */
+    private boolean remove(String sessionId, InFlight inFlight) {
+        boolean[] removed = new boolean[1];
+        sessions.computeIfPresent(sessionId, (k, requests) -> {
+            removed[0] = requests.remove(inFlight.senderRequestId, inFlight);
+            return requests.isEmpty() ? null : requests;
+        });
+        if (removed[0]) {
+            pendingCount.decrementAndGet();
+        }
+        return removed[0];
+    }
+}
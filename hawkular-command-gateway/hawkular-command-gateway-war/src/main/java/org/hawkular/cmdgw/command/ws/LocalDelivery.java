@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.bus.common.Endpoint;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Delivers messages destined for a feed or UI client connected to this gateway node directly to its WebSocket
+ * {@link Session} rather than through the bus.
+ * <p>
+ * To keep the order of the messages sent to a particular feed or UI client, a message is delivered directly only if
+ * no message sent by this node to the same destination through the bus is still on its way. Each message this node
+ * puts on the bus is therefore tagged with the {@link Constants#HEADER_ORIGIN_NODE} header and counted in a
+ * per-destination {@link Fence} until this node's bus consumer hands it over to the destination session. A message
+ * consumed by another node never comes back to us, so a {@link Fence} is also considered drained when no message was
+ * put on the bus for longer than {@link Constants#LOCAL_DELIVERY_FENCE_TIMEOUT_MS}.
+ */
+@ApplicationScoped
+public class LocalDelivery {
+
+    /**
+     * Tracks the messages sent through the bus to a single destination. Mutated only within
+     * {@link ConcurrentMap#compute(Object, java.util.function.BiFunction)} and friends, i.e. under the lock of the
+     * respective map entry.
+     */
+    private static class Fence {
+        private int pending;
+        private long lastSentNanos;
+
+        private boolean isDrained(long now, long timeoutNanos) {
+            return pending <= 0 || now - lastSentNanos > timeoutNanos;
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(LocalDelivery.class);
+
+    /** sweep the drained {@link Fence}s when there are more than this many */
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Fence> fences = new ConcurrentHashMap<>();
+    private volatile long lastSweepNanos = System.nanoTime();
+
+    private boolean enabled;
+    private long fenceTimeoutNanos;
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    private LongAdder deliveredCounter;
+    private LongAdder fencedCounter;
+
+    @PostConstruct
+    public void initialize() {
+        this.enabled = Boolean.parseBoolean(System.getProperty(Constants.LOCAL_DELIVERY,
+                String.valueOf(Constants.LOCAL_DELIVERY_DEFAULT)));
+        this.fenceTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty(
+                Constants.LOCAL_DELIVERY_FENCE_TIMEOUT_MS,
+                String.valueOf(Constants.LOCAL_DELIVERY_FENCE_TIMEOUT_MS_DEFAULT))));
+        this.deliveredCounter = metrics.counter("localDelivery.delivered");
+        this.fencedCounter = metrics.counter("localDelivery.fenced");
+        metrics.gauge("localDelivery.fences", fences::size);
+        log.debugf("Local delivery enabled=[%s], nodeId=[%s]", enabled, nodeId);
+    }
+
+    /**
+     * Delivers the given {@code message} directly to the session stored under the given {@code key} in the given
+     * {@code sessions}, if there is such a session and if the ordering rules allow it.
+     *
+     * @param endpoint the bus endpoint the message would be sent to otherwise
+     * @param sessions the sessions to look up the destination in
+     * @param key the feed ID or the UI client session ID
+     * @param message the message to deliver
+     * @return {@code true} if the message was handed over to the destination session, {@code false} if it has to be
+     *         sent through the bus
+     * @throws IOException if the message has binary data that could not be sent
+     */
+    public boolean tryDeliver(Endpoint endpoint, WsSessions sessions, String key,
+            BasicMessageWithExtraData<? extends BasicMessage> message) throws IOException {
+        if (!enabled || key == null) {
+            return false;
+        }
+        Session session = sessions.getSession(key);
+        if (session == null || !session.isOpen()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Fence fence = fences.computeIfPresent(fenceKey(endpoint, key),
+                (k, f) -> f.isDrained(now, fenceTimeoutNanos) ? null : f);
+        if (fence != null) {
+            fencedCounter.increment();
+            log.tracef("Not delivering [%s] locally to [%s]: messages sent through the bus still pending",
+                    message.getBasicMessage().getClass().getName(), key);
+            return false;
+        }
+        new WebSocketHelper().sendAsync(session, message);
+        deliveredCounter.increment();
+        return true;
+    }
+
+    /**
+     * Must be called before a message destined for the given {@code key} is put on the bus.
+     *
+     * @param endpoint the bus endpoint the message will be sent to
+     * @param headerName the name of the header identifying the destination
+     * @param key the feed ID or the UI client session ID
+     * @return the headers to send the message with
+     */
+    public Map<String, String> beforeBusSend(Endpoint endpoint, String headerName, String key) {
+        long now = System.nanoTime();
+        fences.compute(fenceKey(endpoint, key), (k, f) -> {
+            Fence result = f == null ? new Fence() : f;
+            result.pending++;
+            result.lastSentNanos = now;
+            return result;
+        });
+        if (fences.size() > SWEEP_THRESHOLD && now - lastSweepNanos > fenceTimeoutNanos) {
+            lastSweepNanos = now;
+            for (String k : fences.keySet()) {
+                fences.computeIfPresent(k, (k2, f) -> f.isDrained(now, fenceTimeoutNanos) ? null : f);
+            }
+        }
+        Map<String, String> headers = new HashMap<>(4);
+        headers.put(headerName, key);
+        headers.put(Constants.HEADER_ORIGIN_NODE, nodeId);
+        return headers;
+    }
+
+    /**
+     * Must be called if putting a message on the bus failed after {@link #beforeBusSend(Endpoint, String, String)}
+     * was called for it.
+     *
+     * @param endpoint the bus endpoint the message was to be sent to
+     * @param key the feed ID or the UI client session ID
+     */
+    public void busSendFailed(Endpoint endpoint, String key) {
+        release(endpoint, key);
+    }
+
+    /**
+     * Must be called after a message received from the bus was handed over to its destination session or after the
+     * hand over failed.
+     *
+     * @param endpoint the bus endpoint the message was received from
+     * @param key the feed ID or the UI client session ID
+     * @param message the message
+     */
+    public void busMessageDelivered(Endpoint endpoint, String key, BasicMessage message) {
+        if (nodeId.equals(message.getHeaders().get(Constants.HEADER_ORIGIN_NODE))) {
+            release(endpoint, key);
+        }
+    }
+
+    private void release(Endpoint endpoint, String key) {
+        fences.computeIfPresent(fenceKey(endpoint, key), (k, f) -> {
+            f.pending--;
+            return f;
+        });
+    }
+
+    private static String fenceKey(Endpoint endpoint, String key) {
+        return endpoint.getName() + '/' + key;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Limits the rate of messages and bytes a single WebSocket client may send to the gateway so that a misbehaving feed
+ * or UI client cannot flood the bus.
+ * <p>
+ * The limits are configured through {@link Constants#FEED_RATE_LIMITS} and {@link Constants#UI_CLIENT_RATE_LIMITS}
+ * per message class; the limits of {@link #ALL_MESSAGES} apply to all messages of a client together. Each limit is
+ * enforced by a pair of token buckets (one for messages, one for bytes) per {@link Session}, stored in the
+ * {@link Session#getUserProperties()} so that they go away with the session. The buckets are implemented as a
+ * generic cell rate algorithm on a single {@link AtomicLong}, so that checking a limit takes no lock.
+ * <p>
+ * What happens to a client exceeding a limit is configured through {@link Constants#RATE_LIMIT_POLICY}.
+ */
+@ApplicationScoped
+public class RateLimiter {
+
+    /**
+     * The kind of the WebSocket client, each has its own limits.
+     */
+    public enum Scope {
+        FEED("feeds"), UI_CLIENT("uiClients");
+
+        private final String metricName;
+
+        Scope(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /**
+     * What to do with a client exceeding a limit.
+     */
+    public enum Policy {
+        /** Reject the message with a {@code GenericErrorResponse}, the client may send further messages */
+        REJECT,
+        /** Close the {@link Session}, the client can reconnect */
+        CLOSE_SESSION
+    }
+
+    /**
+     * Thrown when reading an {@link InputStream} returned by {@link RateLimiter#limit(Session, Scope, InputStream)}
+     * exceeds a limit of bytes per second.
+     */
+    public static class RateLimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RateLimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The message class name matching all messages.
+     */
+    public static final String ALL_MESSAGES = "*";
+
+    /**
+     * A limit of messages and bytes per second, {@code 0} meaning unlimited.
+     */
+    static final class Limit {
+        private final String messageClass;
+        private final long messagesPerSecond;
+        private final long bytesPerSecond;
+
+        Limit(String messageClass, long messagesPerSecond, long bytesPerSecond) {
+            this.messageClass = messageClass;
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Parses a comma separated list of {@code messageClass:messagesPerSecond:bytesPerSecond} triples, e.g.
+         * {@code *:100:1048576,ExecuteOperationRequest:5:0}.
+         *
+         * @param limits the list to parse
+         * @return the limits by message class
+         */
+        static Map<String, Limit> parse(String limits) {
+            Map<String, Limit> result = new HashMap<>();
+            for (String limit : limits.split(",")) {
+                limit = limit.trim();
+                if (limit.isEmpty()) {
+                    continue;
+                }
+                String[] parts = limit.split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Invalid rate limit [" + limit
+                            + "], expected messageClass:messagesPerSecond:bytesPerSecond");
+                }
+                String messageClass = parts[0].trim();
+                result.put(messageClass, new Limit(messageClass, Long.parseLong(parts[1].trim()),
+                        Long.parseLong(parts[2].trim())));
+            }
+            return Collections.unmodifiableMap(result);
+        }
+    }
+
+    /**
+     * A token bucket implemented as a generic cell rate algorithm: instead of the number of tokens, it stores the
+     * time when the bucket will be full again. Taking tokens moves that time forward; they are refused if it would get
+     * further than the burst window from now. An overdraft is allowed when the bucket is full so that a single item
+     * costing more than the burst can still pass.
+     */
+    static final class TokenBucket {
+        private final double nanosPerToken;
+        private final long burstNanos;
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        TokenBucket(long tokensPerSecond, long burstNanos) {
+            this.nanosPerToken = (double) TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+            this.burstNanos = burstNanos;
+        }
+
+        boolean tryAcquire(long tokens, long now) {
+            long cost = (long) Math.min(tokens * nanosPerToken, Long.MAX_VALUE / 4);
+            while (true) {
+                long current = fullAt.get();
+                long start = Math.max(current, now);
+                long next = start + cost;
+                if (current > now && next - now > burstNanos) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The token buckets of a single {@link Session}, created lazily for the configured limits only.
+     */
+    private final class SessionBuckets {
+        private final Map<String, Limit> limits;
+        private final ConcurrentMap<String, TokenBucket> messageBuckets = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, TokenBucket> byteBuckets = new ConcurrentHashMap<>();
+
+        private SessionBuckets(Map<String, Limit> limits) {
+            this.limits = limits;
+        }
+
+        private TokenBucket messageBucket(Limit limit) {
+            return limit.messagesPerSecond <= 0 ? null
+                    : messageBuckets.computeIfAbsent(limit.messageClass,
+                            k -> new TokenBucket(limit.messagesPerSecond, burstNanos));
+        }
+
+        private TokenBucket byteBucket(Limit limit) {
+            return limit.bytesPerSecond <= 0 ? null
+                    : byteBuckets.computeIfAbsent(limit.messageClass,
+                            k -> new TokenBucket(limit.bytesPerSecond, burstNanos));
+        }
+    }
+
+    /**
+     * Charges the bytes read from a binary message to the byte buckets of the sending client.
+     */
+    private final class LimitedInputStream extends FilterInputStream {
+        private final Session session;
+        private final Scope scope;
+        private final SessionBuckets buckets;
+        /** set once the message class is known */
+        private volatile boolean classKnown;
+        private volatile Limit classLimit;
+        /** the number of bytes read before the message class was known */
+        private long uncharged;
+
+        private LimitedInputStream(Session session, Scope scope, SessionBuckets buckets, InputStream in) {
+            super(in);
+            this.session = session;
+            this.scope = scope;
+            this.buckets = buckets;
+        }
+
+        private void charge(long bytes) throws RateLimitExceededException {
+            if (bytes <= 0) {
+                return;
+            }
+            String exceeded = acquireBytes(buckets, buckets.limits.get(ALL_MESSAGES), bytes);
+            if (exceeded == null) {
+                if (classKnown) {
+                    exceeded = acquireBytes(buckets, classLimit, bytes);
+                } else {
+                    uncharged += bytes;
+                }
+            }
+            if (exceeded != null) {
+                rejected(session, scope, exceeded);
+                throw new RateLimitExceededException(exceeded);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                charge(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            charge(result);
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            charge(result);
+            return result;
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(RateLimiter.class);
+
+    private static final String USER_PROPERTY_KEY = SessionBuckets.class.getName();
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    private final Map<Scope, Map<String, Limit>> limits = new HashMap<>();
+    private long burstNanos;
+    private Policy policy;
+    private final Map<Scope, LongAdder> rejectedCounters = new EnumMap<>(Scope.class);
+    private LongAdder sessionsClosedCounter;
+
+    public RateLimiter() {
+    }
+
+    /**
+     * @param metrics the metrics to count the rejected messages in
+     */
+    RateLimiter(GatewayMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void init() {
+        limits.put(Scope.FEED, Limit.parse(System.getProperty(Constants.FEED_RATE_LIMITS,
+                Constants.FEED_RATE_LIMITS_DEFAULT)));
+        limits.put(Scope.UI_CLIENT, Limit.parse(System.getProperty(Constants.UI_CLIENT_RATE_LIMITS,
+                Constants.UI_CLIENT_RATE_LIMITS_DEFAULT)));
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty(
+                Constants.RATE_LIMIT_BURST_MS, String.valueOf(Constants.RATE_LIMIT_BURST_MS_DEFAULT))));
+        this.policy = Policy.valueOf(System.getProperty(Constants.RATE_LIMIT_POLICY,
+                Constants.RATE_LIMIT_POLICY_DEFAULT));
+        for (Scope scope : Scope.values()) {
+            rejectedCounters.put(scope, metrics.counter("rateLimit." + scope.metricName + ".rejected"));
+        }
+        this.sessionsClosedCounter = metrics.counter("rateLimit.sessionsClosed");
+    }
+
+    /**
+     * @return what to do with a client exceeding a limit
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Takes one message and {@code bytes} bytes from the buckets of the given {@code session} for
+     * {@link #ALL_MESSAGES} and for the given {@code messageClass}.
+     * <p>
+     * If a limit is exceeded, the rejection is counted and the {@code session} is closed if the {@link Policy} is
+     * {@link Policy#CLOSE_SESSION}.
+     *
+     * @param session the session that sent the message
+     * @param scope the kind of the client
+     * @param messageClass the simple name of the class of the message
+     * @param bytes the size of the message in bytes; for a text message, the length of its UTF-8 encoding
+     * @return {@code null} if the message may pass, otherwise the description of the exceeded limit
+     */
+    public String tryAcquire(Session session, Scope scope, String messageClass, long bytes) {
+        Map<String, Limit> scopeLimits = limits.get(scope);
+        if (scopeLimits.isEmpty()) {
+            return null;
+        }
+        SessionBuckets buckets = bucketsOf(session, scopeLimits);
+        String result = acquireMessage(buckets, buckets.limits.get(ALL_MESSAGES));
+        if (result == null) {
+            result = acquireMessage(buckets, buckets.limits.get(messageClass));
+        }
+        if (result == null) {
+            result = acquireBytes(buckets, buckets.limits.get(ALL_MESSAGES), bytes);
+        }
+        if (result == null) {
+            result = acquireBytes(buckets, buckets.limits.get(messageClass), bytes);
+        }
+        if (result != null) {
+            rejected(session, scope, result);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the given {@code in} so that the bytes read from it are charged to the byte buckets of the given
+     * {@code session}. The bytes read before {@link #setMessageClass(InputStream, String)} is called are charged
+     * to the bucket of the message class once it is known. Reading throws a {@link RateLimitExceededException} when
+     * a limit is exceeded.
+     *
+     * @param session the session that sent the data
+     * @param scope the kind of the client
+     * @param in the stream to wrap
+     * @return the wrapped stream or {@code in} itself if no limits apply to the {@code scope}
+     */
+    public InputStream limit(Session session, Scope scope, InputStream in) {
+        Map<String, Limit> scopeLimits = limits.get(scope);
+        if (scopeLimits.isEmpty()) {
+            return in;
+        }
+        return new LimitedInputStream(session, scope, bucketsOf(session, scopeLimits), in);
+    }
+
+    /**
+     * Takes one message from the buckets of the client that sent the message being read from the given
+     * {@code in} and tells the stream what limits to apply to its further bytes.
+     *
+     * @param in a stream returned by {@link #limit(Session, Scope, InputStream)}
+     * @param messageClass the simple name of the class of the message read from {@code in}
+     * @return {@code null} if the message may pass, otherwise the description of the exceeded limit
+     * @see #tryAcquire(Session, Scope, String, long)
+     */
+    public String setMessageClass(InputStream in, String messageClass) {
+        if (!(in instanceof LimitedInputStream)) {
+            return null;
+        }
+        LimitedInputStream limited = (LimitedInputStream) in;
+        SessionBuckets buckets = limited.buckets;
+        limited.classLimit = buckets.limits.get(messageClass);
+        limited.classKnown = true;
+        String result = acquireMessage(buckets, buckets.limits.get(ALL_MESSAGES));
+        if (result == null) {
+            result = acquireMessage(buckets, limited.classLimit);
+        }
+        if (result == null) {
+            result = acquireBytes(buckets, limited.classLimit, limited.uncharged);
+        }
+        if (result != null) {
+            rejected(limited.session, limited.scope, result);
+        }
+        return result;
+    }
+
+    private SessionBuckets bucketsOf(Session session, Map<String, Limit> scopeLimits) {
+        SessionBuckets result = (SessionBuckets) session.getUserProperties().get(USER_PROPERTY_KEY);
+        if (result == null) {
+            synchronized (session) {
+                result = (SessionBuckets) session.getUserProperties().get(USER_PROPERTY_KEY);
+                if (result == null) {
+                    result = new SessionBuckets(scopeLimits);
+                    session.getUserProperties().put(USER_PROPERTY_KEY, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String acquireMessage(SessionBuckets buckets, Limit limit) {
+        if (limit == null) {
+            return null;
+        }
+        TokenBucket bucket = buckets.messageBucket(limit);
+        if (bucket != null && !bucket.tryAcquire(1, System.nanoTime())) {
+            return "Rate limit of [" + limit.messagesPerSecond + "] messages per second exceeded for ["
+                    + limit.messageClass + "]";
+        }
+        return null;
+    }
+
+    private static String acquireBytes(SessionBuckets buckets, Limit limit, long bytes) {
+        if (limit == null || bytes <= 0) {
+            return null;
+        }
+        TokenBucket bucket = buckets.byteBucket(limit);
+        if (bucket != null && !bucket.tryAcquire(bytes, System.nanoTime())) {
+            return "Rate limit of [" + limit.bytesPerSecond + "] bytes per second exceeded for ["
+                    + limit.messageClass + "]";
+        }
+        return null;
+    }
+
+    private void rejected(Session session, Scope scope, String exceeded) {
+        rejectedCounters.get(scope).increment();
+        log.debugf("Rejecting a message from WebSocket session [%s]: %s", session.getId(), exceeded);
+        if (policy == Policy.CLOSE_SESSION && session.isOpen()) {
+            sessionsClosedCounter.increment();
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, exceeded));
+            } catch (IOException e) {
+                log.debugf(e, "Could not close WebSocket session [%s]", session.getId());
+            }
+        }
+    }
+}
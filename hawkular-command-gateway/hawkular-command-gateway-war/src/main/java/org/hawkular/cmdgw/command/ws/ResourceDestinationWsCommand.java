@@ -16,7 +16,7 @@
  */
 package org.hawkular.cmdgw.command.ws;
 
-import java.util.Collections;
+import java.util.Map;
 
 import org.hawkular.bus.common.BasicMessageWithExtraData;
 import org.hawkular.bus.common.ConnectionContextFactory;
@@ -27,16 +27,21 @@ import org.hawkular.bus.common.producer.ProducerConnectionContext;
 import org.hawkular.cmdgw.Constants;
 import org.hawkular.cmdgw.api.GenericSuccessResponse;
 import org.hawkular.cmdgw.api.ResourceDestination;
+import org.hawkular.cmdgw.api.UiSessionOrigin;
 import org.hawkular.cmdgw.command.ws.server.WebSocketHelper;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
 
 /**
  * A {@link WsCommand} that transfers messages implementing {@link ResourceDestination} from a UI WebSocket to a bus
  * endpoint to be handled by a feed. The feedId is extracted from {@link ResourceDestination#getFeedId()}.
  * <p>
- * This particular command implementation always puts the message on the
- * {@link Constants#FEED_COMMAND_QUEUE} bus endpoint.
+ * This particular command implementation puts the message on the {@link Constants#FEED_COMMAND_QUEUE} bus endpoint
+ * unless the feed is connected to this gateway node, see {@link LocalDelivery}. Requests superseding each other may
+ * be held back and coalesced by the {@link CommandCoalescer}. Requests for feeds that are not connected may be
+ * parked by the {@link FeedCommandParking}. Requests forwarded on behalf of a UI client are tracked by the
+ * {@link InFlightRequests} till the feed responds.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
@@ -54,20 +59,102 @@ public class ResourceDestinationWsCommand implements WsCommand<ResourceDestinati
         }
 
         log.tracef("[%s] is about to execute the request [%s] ", getClass().getName(), request);
-        // determine what feed needs to be sent the message
 
+        CommandCoalescer coalescer = context.getCommandCoalescer();
+        if (coalescer.isCoalesced(message)) {
+            coalescer.submit(message, context, ResourceDestinationWsCommand::forwardOrPark);
+            return;
+        }
+
+        GenericSuccessResponse response = new GenericSuccessResponse();
+        response.setMessage(forwardOrPark(message, context));
+        BasicMessageWithExtraData<GenericSuccessResponse> result = new BasicMessageWithExtraData<>(response, null);
+        new WebSocketHelper().sendSync(context.getSession(), result);
+    }
+
+    /**
+     * Parks the given {@code message} if its feed is not connected (see {@link FeedCommandParking}) or calls
+     * {@link #forward(BasicMessageWithExtraData, WsCommandContext)} otherwise.
+     *
+     * @param message the message to forward
+     * @param context the context of the message
+     * @return a description of what has been done to be sent to the sender of the {@code message}
+     * @throws Exception on any forwarding problem
+     */
+    static String forwardOrPark(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context)
+            throws Exception {
+        FeedCommandParking parking = context.getFeedCommandParking();
+        if (parking.park(message, context)) {
+            String feedId = message.getBasicMessage().getFeedId();
+            return "The request has been queued for feed [" + feedId + "] until it connects (at most ["
+                    + parking.getTtlMs() + "] ms)";
+        }
+        return forward(message, context);
+    }
+
+    /**
+     * Delivers the given {@code message} to its feed either directly or through the bus.
+     *
+     * @param message the message to forward
+     * @param context the context of the message
+     * @return a description of what has been done to be sent to the sender of the {@code message}
+     * @throws Exception on any forwarding problem
+     */
+    static String forward(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context)
+            throws Exception {
+        ResourceDestination request = message.getBasicMessage();
+        String feedId = request.getFeedId();
+        UiSessionOrigin origin = request instanceof UiSessionOrigin ? (UiSessionOrigin) request : null;
+        InFlightRequests inFlight = context.getInFlightRequests();
+        /* before sending so that even an immediate response finds the request */
+        boolean tracked = origin != null && inFlight.track(context.getSession(), origin, feedId);
+        try {
+            return send(message, context);
+        } catch (Exception e) {
+            if (tracked) {
+                inFlight.forget(context.getSession(), origin);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The responses sent long after the request need the senderRequestId so that the client can tell which of its
+     * requests they relate to.
+     *
+     * @param request the request to respond to
+     * @return the senderRequestId of the given {@code request} or {@code null} if it has none
+     */
+    static String senderRequestIdOf(ResourceDestination request) {
+        return request instanceof UiSessionOrigin ? ((UiSessionOrigin) request).getSenderRequestId() : null;
+    }
+
+    private static String send(BasicMessageWithExtraData<ResourceDestination> message, WsCommandContext context)
+            throws Exception {
+        ResourceDestination request = message.getBasicMessage();
+        String feedId = request.getFeedId();
+        Endpoint endpoint = Constants.FEED_COMMAND_QUEUE;
+        LocalDelivery localDelivery = context.getLocalDelivery();
+        if (localDelivery.tryDeliver(endpoint, context.getConnectedFeeds(), feedId, message)) {
+            log.debugf("Message [%s] delivered to local feed [%s]", request.getClass().getName(), feedId);
+            return "The request has been forwarded to feed [" + feedId + "] (delivered locally)";
+        }
         try (ConnectionContextFactory ccf = new ConnectionContextFactory(context.getConnectionFactory())) {
-            Endpoint endpoint = Constants.FEED_COMMAND_QUEUE;
             ProducerConnectionContext pcc = ccf.createProducerConnectionContext(endpoint);
 
-            MessageId mid = new MessageProcessor().send(pcc, message,
-                    Collections.singletonMap(Constants.HEADER_FEEDID, feedId));
+            Map<String, String> headers = localDelivery.beforeBusSend(endpoint, Constants.HEADER_FEEDID, feedId);
+            MessageId mid;
+            try {
+                long start = System.nanoTime();
+                mid = new MessageProcessor().send(pcc, message, headers);
+                TrafficMetrics.recordBusSend(message.getClass(), start);
+            } catch (Exception e) {
+                localDelivery.busSendFailed(endpoint, feedId);
+                throw e;
+            }
             log.debugf("Message [%s] forwarded to bus endpoint [%s]", request.getClass().getName(),
                     endpoint.getName());
-            GenericSuccessResponse response = new GenericSuccessResponse();
-            response.setMessage("The request has been forwarded to feed [" + feedId + "] (MessageId=" + mid + ")");
-            BasicMessageWithExtraData<GenericSuccessResponse> result = new BasicMessageWithExtraData<>(response, null);
-            new WebSocketHelper().sendSync(context.getSession(), result);
+            return "The request has been forwarded to feed [" + feedId + "] (MessageId=" + mid + ")";
         }
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+
+/**
+ * Detects half-open feed and UI client WebSocket sessions and reclaims them without waiting for the container to
+ * notice that the peer is gone.
+ * <p>
+ * The time of the last message or pong received from a {@link Session} is kept in its
+ * {@link Session#getUserProperties()}, see {@link #touch(Session)}. Every {@link Constants#HEARTBEAT_INTERVAL_MS} a
+ * ping is sent to each session that has been quiet for at least that long. A session that has been quiet for longer
+ * than {@link Constants#IDLE_TIMEOUT_MS} is removed from its {@link WsSessions} right away, so that its
+ * {@link WsSessionListener}s release the bus connection and consumer held for it, and then it is closed. A ping that
+ * cannot be sent, e.g. because another message is being sent at the same time, does not prove the session dead; it is
+ * only counted in {@code sessions.pingFailures} and the idle timeout decides.
+ * <p>
+ * The reclaimed sessions are counted in {@code sessions.feeds.reclaimed} and {@code sessions.uiClients.reclaimed}.
+ */
+@ApplicationScoped
+public class SessionHeartbeat {
+    private static final MsgLogger log = GatewayLoggers.getLogger(SessionHeartbeat.class);
+
+    private static final String USER_PROPERTY_KEY = SessionHeartbeat.class.getName() + ".lastActivity";
+
+    private static final byte[] PING_PAYLOAD = new byte[0];
+
+    @Inject
+    private WsEndpoints wsEndpoints;
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    private long intervalNanos;
+    private long idleTimeoutNanos;
+    private ScheduledFuture<?> beats;
+    private LongAdder feedsReclaimedCounter;
+    private LongAdder uiClientsReclaimedCounter;
+    private LongAdder pingsSentCounter;
+    private LongAdder pingFailuresCounter;
+
+    public SessionHeartbeat() {
+        super();
+    }
+
+    SessionHeartbeat(WsEndpoints wsEndpoints, GatewayMetrics metrics, GatewayScheduler scheduler) {
+        super();
+        this.wsEndpoints = wsEndpoints;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        long intervalMs = Long.parseLong(System.getProperty(Constants.HEARTBEAT_INTERVAL_MS,
+                String.valueOf(Constants.HEARTBEAT_INTERVAL_MS_DEFAULT)));
+        long idleTimeoutMs = Long.parseLong(System.getProperty(Constants.IDLE_TIMEOUT_MS,
+                String.valueOf(Constants.IDLE_TIMEOUT_MS_DEFAULT)));
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.feedsReclaimedCounter = metrics.counter("sessions.feeds.reclaimed");
+        this.uiClientsReclaimedCounter = metrics.counter("sessions.uiClients.reclaimed");
+        this.pingsSentCounter = metrics.counter("sessions.pingsSent");
+        this.pingFailuresCounter = metrics.counter("sessions.pingFailures");
+        if (intervalMs > 0) {
+            beats = scheduler.scheduleWithFixedDelay(this::beat, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        if (beats != null) {
+            beats.cancel(false);
+        }
+    }
+
+    /**
+     * Records that something has just been received from the given {@code session}. To be called when the session
+     * is opened and on every message or pong received from it.
+     *
+     * @param session the session the client of which has shown a sign of life
+     */
+    public void touch(Session session) {
+        lastActivityOf(session).set(System.nanoTime());
+    }
+
+    private static AtomicLong lastActivityOf(Session session) {
+        AtomicLong result = (AtomicLong) session.getUserProperties().get(USER_PROPERTY_KEY);
+        if (result == null) {
+            synchronized (session) {
+                result = (AtomicLong) session.getUserProperties().get(USER_PROPERTY_KEY);
+                if (result == null) {
+                    result = new AtomicLong(System.nanoTime());
+                    session.getUserProperties().put(USER_PROPERTY_KEY, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void beat() {
+        beat(System.nanoTime());
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     */
+    void beat(long now) {
+        try {
+            check(wsEndpoints.getFeedSessions(), feedsReclaimedCounter, now);
+            check(wsEndpoints.getUiClientSessions(), uiClientsReclaimedCounter, now);
+        } catch (Throwable t) {
+            /* never let the beats stop */
+            log.debugf(t, "Unexpected failure of the WebSocket heartbeat");
+        }
+    }
+
+    private void check(WsSessions sessions, LongAdder reclaimedCounter, long now) {
+        final List<String> deadKeys = new ArrayList<>();
+        final List<Session> deadSessions = new ArrayList<>();
+        sessions.forEachSession((key, session) -> {
+            long idleNanos = now - lastActivityOf(session).get();
+            if (!session.isOpen() || (idleTimeoutNanos > 0 && idleNanos > idleTimeoutNanos)) {
+                deadKeys.add(key);
+                deadSessions.add(session);
+            } else if (idleNanos >= intervalNanos) {
+                ping(session);
+            }
+        });
+        for (int i = 0; i < deadKeys.size(); i++) {
+            reclaim(sessions, deadKeys.get(i), deadSessions.get(i), now, reclaimedCounter);
+        }
+    }
+
+    private void ping(Session session) {
+        try {
+            /* the async remote does not block the scheduler thread */
+            session.getAsyncRemote().sendPing(ByteBuffer.wrap(PING_PAYLOAD));
+            pingsSentCounter.increment();
+        } catch (IOException | RuntimeException e) {
+            /* e.g. a concurrent send; a really dead session will exceed the idle timeout */
+            pingFailuresCounter.increment();
+            log.debugf(e, "Could not send ping to WebSocket session [%s]", session.getId());
+        }
+    }
+
+    private void reclaim(WsSessions sessions, String key, Session session, long now, LongAdder reclaimedCounter) {
+        /* remove first so that the bus resources are released even if closing the half-open socket stalls */
+        if (!sessions.removeSession(key, session)) {
+            /* closed in the meantime through the regular path */
+            return;
+        }
+        reclaimedCounter.increment();
+        long idleMs = TimeUnit.NANOSECONDS.toMillis(now - lastActivityOf(session).get());
+        log.warnReclaimingIdleSession(session.getId(), key, sessions.getEndpoint(), idleMs);
+        if (session.isOpen()) {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY,
+                        "Nothing received within [" + idleMs + "] ms"));
+            } catch (IOException | RuntimeException e) {
+                log.debugf(e, "Could not close idle WebSocket session [%s]", session.getId());
+            }
+        }
+    }
+}
@@ -16,10 +16,11 @@
  */
 package org.hawkular.cmdgw.command.ws;
 
-import java.util.Collections;
+import java.util.Map;
 
 import org.hawkular.bus.common.BasicMessageWithExtraData;
 import org.hawkular.bus.common.ConnectionContextFactory;
+import org.hawkular.bus.common.Endpoint;
 import org.hawkular.bus.common.MessageId;
 import org.hawkular.bus.common.MessageProcessor;
 import org.hawkular.bus.common.producer.ProducerConnectionContext;
@@ -27,13 +28,17 @@ import org.hawkular.cmdgw.Constants;
 import org.hawkular.cmdgw.api.UiSessionDestination;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
 
 /**
  * A {@link WsCommand} that transfers messages implementing {@link UiSessionDestination} from a feed WebSocket to a bus
  * endpoint to be delivered to a UI WebSocket.
  * <p>
- * This particular command implementation always puts the message on the
- * {@link Constants#UI_COMMAND_QUEUE} bus endpoint.
+ * This particular command implementation puts the message on the {@link Constants#UI_COMMAND_QUEUE} bus endpoint
+ * unless the UI client is connected to this gateway node, see {@link LocalDelivery}. Responses to fan-out requests
+ * initiated on this gateway node are handed over to the {@link FanOutTracker} instead. Responses delivered locally
+ * complete their request in the {@link InFlightRequests}; the others do so on the gateway node of the UI client, see
+ * {@link org.hawkular.cmdgw.command.bus.UiSessionDestinationBusCommand}.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
@@ -44,11 +49,33 @@ public class UiSessionDestinationWsCommand implements WsCommand<UiSessionDestina
     public void execute(BasicMessageWithExtraData<UiSessionDestination> message, WsCommandContext context)
             throws Exception {
         UiSessionDestination request = message.getBasicMessage();
+        String destinationSessionId = request.getDestinationSessionId();
+        Endpoint endpoint = Constants.UI_COMMAND_QUEUE;
+        if (context.getFanOutTracker().offer(request)) {
+            log.debugf("Response consumed by a fan-out request. request=[%s]", request);
+            return;
+        }
+        LocalDelivery localDelivery = context.getLocalDelivery();
+        if (localDelivery.tryDeliver(endpoint, context.getConnectedUIClients(), destinationSessionId, message)) {
+            context.getInFlightRequests().complete(request);
+            log.debugf("Request delivered to local WebSocket. request=[%s]", request);
+            return;
+        }
+
         try (ConnectionContextFactory ccf = new ConnectionContextFactory(context.getConnectionFactory())) {
 
-            ProducerConnectionContext pcc = ccf.createProducerConnectionContext(Constants.UI_COMMAND_QUEUE);
-            MessageId mid = new MessageProcessor().send(pcc, message,
-                    Collections.singletonMap(Constants.HEADER_UICLIENTID, request.getDestinationSessionId()));
+            ProducerConnectionContext pcc = ccf.createProducerConnectionContext(endpoint);
+            Map<String, String> headers = localDelivery.beforeBusSend(endpoint, Constants.HEADER_UICLIENTID,
+                    destinationSessionId);
+            MessageId mid;
+            try {
+                long start = System.nanoTime();
+                mid = new MessageProcessor().send(pcc, message, headers);
+                TrafficMetrics.recordBusSend(message.getClass(), start);
+            } catch (Exception e) {
+                localDelivery.busSendFailed(endpoint, destinationSessionId);
+                throw e;
+            }
             log.debugf("Request forwarded to WebSocket. mid=[%s], request=[%s]", mid, request);
         }
     }
@@ -32,14 +32,26 @@ public class WsCommandContext {
     private final Session session;
     private final WsSessions connectedUIClients;
     private final WsSessions connectedFeeds;
+    private final LocalDelivery localDelivery;
+    private final FanOutTracker fanOutTracker;
+    private final CommandCoalescer commandCoalescer;
+    private final FeedCommandParking feedCommandParking;
+    private final InFlightRequests inFlightRequests;
 
     public WsCommandContext(ConnectionFactory connectionFactory, Session session, WsSessions connectedUIClients,
-            WsSessions connectedFeeds) {
+            WsSessions connectedFeeds, LocalDelivery localDelivery, FanOutTracker fanOutTracker,
+            CommandCoalescer commandCoalescer, FeedCommandParking feedCommandParking,
+            InFlightRequests inFlightRequests) {
         super();
         this.connectionFactory = connectionFactory;
         this.session = session;
         this.connectedUIClients = connectedUIClients;
         this.connectedFeeds = connectedFeeds;
+        this.localDelivery = localDelivery;
+        this.fanOutTracker = fanOutTracker;
+        this.commandCoalescer = commandCoalescer;
+        this.feedCommandParking = feedCommandParking;
+        this.inFlightRequests = inFlightRequests;
     }
 
     public ConnectionFactory getConnectionFactory() {
@@ -60,4 +72,42 @@ public class WsCommandContext {
     public WsSessions getConnectedFeeds() {
         return connectedFeeds;
     }
+
+    /**
+     * @return the {@link LocalDelivery} to try before sending a message destined for a feed or UI client through the
+     *         bus
+     */
+    public LocalDelivery getLocalDelivery() {
+        return localDelivery;
+    }
+
+    /**
+     * @return the {@link FanOutTracker} collecting the responses to the fan-out requests of this gateway node's UI
+     *         clients
+     */
+    public FanOutTracker getFanOutTracker() {
+        return fanOutTracker;
+    }
+
+    /**
+     * @return the {@link CommandCoalescer} to pass the requests superseding each other through
+     */
+    public CommandCoalescer getCommandCoalescer() {
+        return commandCoalescer;
+    }
+
+    /**
+     * @return the {@link FeedCommandParking} keeping the requests for feeds that are not connected
+     */
+    public FeedCommandParking getFeedCommandParking() {
+        return feedCommandParking;
+    }
+
+    /**
+     * @return the {@link InFlightRequests} tracking the requests of this gateway node's UI clients that wait for a
+     *         response of a feed
+     */
+    public InFlightRequests getInFlightRequests() {
+        return inFlightRequests;
+    }
 }
\ No newline at end of file
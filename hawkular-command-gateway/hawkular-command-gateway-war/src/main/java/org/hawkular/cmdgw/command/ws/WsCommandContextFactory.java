@@ -42,6 +42,21 @@ public class WsCommandContextFactory {
     @Inject
     private BusConnectionFactoryProvider connectionFactoryProvider;
 
+    @Inject
+    private LocalDelivery localDelivery;
+
+    @Inject
+    private FanOutTracker fanOutTracker;
+
+    @Inject
+    private CommandCoalescer commandCoalescer;
+
+    @Inject
+    private FeedCommandParking feedCommandParking;
+
+    @Inject
+    private InFlightRequests inFlightRequests;
+
     /**
      * Creates a new {@link WsCommandContext} with the given {@code session}.
      *
@@ -50,7 +65,8 @@ public class WsCommandContextFactory {
      */
     public WsCommandContext newCommandContext(Session session) {
         return new WsCommandContext(connectionFactoryProvider.getConnectionFactory(), session,
-                wsEndpoints.getUiClientSessions(), wsEndpoints.getFeedSessions());
+                wsEndpoints.getUiClientSessions(), wsEndpoints.getFeedSessions(), localDelivery,
+                fanOutTracker, commandCoalescer, feedCommandParking, inFlightRequests);
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayThreadFactory;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.hawkular.cmdgw.metrics.Histogram;
+
+/**
+ * Executes the {@link WsCommand}s triggered by the messages received from WebSocket clients on a bounded pool of
+ * worker threads rather than on the container's WebSocket I/O threads.
+ * <p>
+ * The tasks of a single {@link Session} are executed one after another in the order they were submitted by a
+ * {@link SerialExecutor} stored in the {@link Session#getUserProperties()}. A busy session occupies a worker for at most
+ * {@link #BATCH_SIZE} tasks in a row so that it cannot starve other sessions. If the worker pool is saturated or if a
+ * session has too many pending tasks, the submitting thread runs or waits for the task itself, which slows down the
+ * reading from the respective client.
+ * <p>
+ * If {@link Constants#COMMAND_VIRTUAL_THREADS} is {@code true} and the JVM supports virtual threads (Java 21+), the
+ * workers are virtual threads.
+ */
+@ApplicationScoped
+public class WsCommandExecutor {
+
+    /**
+     * Runs the tasks of a single {@link Session} one at a time on {@link WsCommandExecutor#workers}.
+     */
+    private final class SerialExecutor implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** the number of tasks submitted but not finished yet */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * @return the number of tasks pending in this {@link SerialExecutor} including the given {@code task}
+         */
+        private int execute(Runnable task) {
+            tasks.add(task);
+            pendingCount.incrementAndGet();
+            int result = pending.incrementAndGet();
+            if (result == 1) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    /* the pool is saturated, let the caller do the work */
+                    callerRunsCounter.increment();
+                    run();
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void run() {
+            int batch = 0;
+            while (true) {
+                /* not null thanks to pending > 0 */
+                Runnable task = tasks.poll();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.debugf(t, "Unexpected failure of a command task");
+                }
+                pendingCount.decrementAndGet();
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+                if (++batch >= BATCH_SIZE) {
+                    try {
+                        /* give the other sessions a chance */
+                        workers.execute(this);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        batch = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(WsCommandExecutor.class);
+
+    /** the maximal number of tasks of a single session executed by a worker before it moves to another session */
+    private static final int BATCH_SIZE = 16;
+
+    private static final String USER_PROPERTY_KEY = SerialExecutor.class.getName();
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    private ExecutorService workers;
+    private int sessionQueueSize;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private LongAdder callerRunsCounter;
+
+    private final ClassValue<Histogram> queueWaitHistograms = new ClassValue<Histogram>() {
+        @Override
+        protected Histogram computeValue(Class<?> requestClass) {
+            return metrics.histogram("ws.requests." + requestClass.getSimpleName() + ".queueWaitUs");
+        }
+    };
+
+    private final ClassValue<Histogram> executionHistograms = new ClassValue<Histogram>() {
+        @Override
+        protected Histogram computeValue(Class<?> commandClass) {
+            return metrics.histogram("ws.commands." + commandClass.getSimpleName() + ".executionUs");
+        }
+    };
+
+    @PostConstruct
+    public void initialize() {
+        this.sessionQueueSize = Integer.parseInt(System.getProperty(Constants.COMMAND_SESSION_QUEUE_SIZE,
+                String.valueOf(Constants.COMMAND_SESSION_QUEUE_SIZE_DEFAULT)));
+        boolean virtualThreads = Boolean.parseBoolean(System.getProperty(Constants.COMMAND_VIRTUAL_THREADS,
+                String.valueOf(Constants.COMMAND_VIRTUAL_THREADS_DEFAULT)));
+        ExecutorService executor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (executor == null) {
+            int threads = Integer.parseInt(System.getProperty(Constants.COMMAND_WORKER_THREADS,
+                    String.valueOf(Constants.COMMAND_WORKER_THREADS_DEFAULT)));
+            int queueSize = Integer.parseInt(System.getProperty(Constants.COMMAND_WORKER_QUEUE_SIZE,
+                    String.valueOf(Constants.COMMAND_WORKER_QUEUE_SIZE_DEFAULT)));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueSize), new GatewayThreadFactory("commands"),
+                    new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        this.workers = executor;
+        this.callerRunsCounter = metrics.counter("ws.commands.callerRuns");
+        metrics.gauge("ws.commands.pending", pendingCount::get);
+    }
+
+    /**
+     * @return a new virtual thread per task executor or {@code null} if the present JVM does not support virtual
+     *         threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debugf("Virtual threads are not available, using platform threads to execute commands");
+            return null;
+        }
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Submits the given {@code task} for execution after all tasks submitted before for the same {@code session}.
+     *
+     * @param session the session the {@code task} belongs to
+     * @param requestClass the class of the request being handled by {@code task}, used for metrics
+     * @param task the task to execute
+     * @param await if {@code true} this method returns only after the {@code task} has been executed. This is
+     *            necessary e.g. if the {@code task} reads a stream that will be closed after this method returns
+     * @throws InterruptedException if interrupted while waiting for the {@code task} to finish
+     */
+    public void execute(Session session, Class<?> requestClass, Runnable task, boolean await)
+            throws InterruptedException {
+        final long submittedNanos = System.nanoTime();
+        final Histogram queueWait = queueWaitHistograms.get(requestClass);
+        FutureTask<Void> futureTask = new FutureTask<>(() -> {
+            queueWait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submittedNanos));
+            task.run();
+        }, null);
+        int pending = serialExecutorOf(session).execute(futureTask);
+        if (await || pending > sessionQueueSize) {
+            try {
+                futureTask.get();
+            } catch (ExecutionException e) {
+                /* the task is supposed to handle its failures itself */
+                log.debugf(e.getCause(), "Command task failed in session [%s]", session.getId());
+            }
+        }
+    }
+
+    /**
+     * @param commandClass the class of a {@link WsCommand}
+     * @return the histogram of execution times of the given {@code commandClass} in microseconds
+     */
+    public Histogram executionHistogram(Class<?> commandClass) {
+        return executionHistograms.get(commandClass);
+    }
+
+    private SerialExecutor serialExecutorOf(Session session) {
+        SerialExecutor result = (SerialExecutor) session.getUserProperties().get(USER_PROPERTY_KEY);
+        if (result == null) {
+            synchronized (session) {
+                result = (SerialExecutor) session.getUserProperties().get(USER_PROPERTY_KEY);
+                if (result == null) {
+                    result = new SerialExecutor();
+                    session.getUserProperties().put(USER_PROPERTY_KEY, result);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -16,69 +16,44 @@
  */
 package org.hawkular.cmdgw.command.ws;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 
 import javax.enterprise.context.ApplicationScoped;
 
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.cmdgw.NoCommandForMessageException;
-import org.hawkular.cmdgw.api.EchoRequest;
-import org.hawkular.cmdgw.api.EventDestination;
-import org.hawkular.cmdgw.api.ResourceDestination;
-import org.hawkular.cmdgw.api.UiSessionDestination;
+import org.hawkular.cmdgw.command.CommandRegistry;
 
 /**
  * A registry of {@link WsCommand} that can operate on messages coming over a WebSocket.
+ * <p>
+ * The commands are listed in {@code META-INF/services/org.hawkular.cmdgw.command.ws.WsCommand}, see
+ * {@link CommandRegistry}. A new command thus needs no code changes here. Note that the instances are shared - they
+ * must be thread-safe.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
 @ApplicationScoped
 public class WsCommands {
 
-    // Here we define the only known commands we are expected to handle.
-    // Notice we instantiate them here - these must be thread-safe.
-
-    private final ResourceDestinationWsCommand resourcePathDestinationWsCommand = //
-    new ResourceDestinationWsCommand();
-
-    private final EchoCommand echoCommand = new EchoCommand();
-    private final UiSessionDestinationWsCommand uiSessionDestinationWsCommand = new UiSessionDestinationWsCommand();
-    private final EventDestinationWsCommand eventDestinationWsCommand = new EventDestinationWsCommand();
+    @SuppressWarnings("rawtypes")
+    private final CommandRegistry<WsCommand> registry = CommandRegistry.load(WsCommand.class);
 
     /**
      * Returns a collection of {@link WsCommand}s that should handle the given {@code requestClass}.
      *
      * @param requestClass the type of a request for which a processing {@link WsCommand} should be found by this method
-     * @return a collection of {@link WsCommand} objects, never {@code null}
+     * @return an immutable list of {@link WsCommand} objects, never {@code null}
      * @throws NoCommandForMessageException if no {@link WsCommand} was found
      */
-    @SuppressWarnings("unchecked")
-    public <REQ extends BasicMessage> Collection<WsCommand<REQ>> getCommands(Class<REQ> requestClass)
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public <REQ extends BasicMessage> List<WsCommand<REQ>> getCommands(Class<REQ> requestClass)
             throws NoCommandForMessageException {
-
-        ArrayList<WsCommand<REQ>> results = new ArrayList<>(2);
-
-        if (ResourceDestination.class.isAssignableFrom(requestClass)) {
-            results.add((WsCommand<REQ>) resourcePathDestinationWsCommand);
-        } else if (UiSessionDestination.class.isAssignableFrom(requestClass)) {
-            results.add((WsCommand<REQ>) uiSessionDestinationWsCommand);
-        } else if (EchoRequest.class.isAssignableFrom(requestClass)) {
-            results.add((WsCommand<REQ>) echoCommand);
-        }
-
-        // some commands may also want the message sent to events
-        if (EventDestination.class.isAssignableFrom(requestClass)) {
-            results.add((WsCommand<REQ>) eventDestinationWsCommand);
-        }
-
-        // new commands will need to be added here
-
+        List results = registry.getCommands(requestClass);
         if (results.isEmpty()) {
             throw new NoCommandForMessageException(
                     "No command found for requestClass [" + requestClass.getName() + "]");
         }
-
         return results;
     }
 }
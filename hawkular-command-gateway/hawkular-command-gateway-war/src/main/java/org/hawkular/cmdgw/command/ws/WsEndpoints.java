@@ -16,14 +16,25 @@
  */
 package org.hawkular.cmdgw.command.ws;
 
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.context.Destroyed;
 import javax.enterprise.event.Observes;
+import javax.inject.Inject;
 
+import org.hawkular.cmdgw.command.ws.server.BinaryStreamSender;
 import org.hawkular.cmdgw.command.ws.server.FeedWebSocket;
+import org.hawkular.cmdgw.command.ws.server.OutboundQueue;
 import org.hawkular.cmdgw.command.ws.server.UIClientWebSocket;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
 
 /**
  * A container class for {@link #feedSessions} and {@link #uiClientSessions} so that one does not need to inject them
@@ -38,12 +49,66 @@ public class WsEndpoints {
     private final WsSessions feedSessions;
     private final WsSessions uiClientSessions;
 
+    @Inject
+    private GatewayMetrics metrics;
+
     public WsEndpoints() {
         super();
         this.uiClientSessions = new WsSessions(UIClientWebSocket.ENDPOINT);
         this.feedSessions = new WsSessions(FeedWebSocket.ENDPOINT);
     }
 
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.gauge("sessions.feeds.active", feedSessions::getSessionCount);
+        metrics.gauge("sessions.feeds.pendingListenerCallbacks", feedSessions::getPendingListenerCallbacks);
+        metrics.gauge("sessions.uiClients.active", uiClientSessions::getSessionCount);
+        metrics.gauge("sessions.uiClients.pendingListenerCallbacks", uiClientSessions::getPendingListenerCallbacks);
+        metrics.gauge("outbound.feeds.queued", () -> sumOutboundQueueDepths(feedSessions));
+        metrics.gauge("outbound.feeds.maxQueueDepth", () -> maxOutboundQueueDepth(feedSessions));
+        metrics.gauge("outbound.uiClients.queued", () -> sumOutboundQueueDepths(uiClientSessions));
+        metrics.gauge("outbound.uiClients.maxQueueDepth", () -> maxOutboundQueueDepth(uiClientSessions));
+        metrics.gauge("outbound.dropped", OutboundQueue::getDroppedCount);
+        metrics.gauge("outbound.slowConsumersClosed", OutboundQueue::getSlowConsumersClosedCount);
+        metrics.gauge("outbound.sendFailures", OutboundQueue::getSendFailuresCount);
+        metrics.gauge("outbound.binary.bytes", BinaryStreamSender::getBytesSent);
+        metrics.gauge("outbound.binary.chunks", BinaryStreamSender::getChunksSent);
+        metrics.gauge("outbound.binary.streams", BinaryStreamSender::getStreamsSent);
+        metrics.gauge("outbound.binary.stalled", BinaryStreamSender::getStalledCount);
+        metrics.gauge("outbound.binary.buffersAllocated", () -> BinaryStreamSender.getBufferPool().getAllocatedCount());
+        metrics.gauge("outbound.binary.buffersIdle", () -> BinaryStreamSender.getBufferPool().getIdleCount());
+    }
+
+    private static long sumOutboundQueueDepths(WsSessions sessions) {
+        LongAdder result = new LongAdder();
+        sessions.forEachSession((key, session) -> result.add(OutboundQueue.depthOf(session)));
+        return result.sum();
+    }
+
+    private static long maxOutboundQueueDepth(WsSessions sessions) {
+        LongAccumulator result = new LongAccumulator(Math::max, 0);
+        sessions.forEachSession((key, session) -> result.accumulate(OutboundQueue.depthOf(session)));
+        return result.get();
+    }
+
+    /**
+     * @return the number of frames waiting in the {@link OutboundQueue} of every connected feed and UI client; the
+     *         outer map has the keys {@code feeds} and {@code uiClients}, the inner maps are keyed by feed ID and UI
+     *         client session ID respectively
+     */
+    public Map<String, SortedMap<String, Integer>> outboundBacklog() {
+        Map<String, SortedMap<String, Integer>> result = new TreeMap<>();
+        result.put("feeds", outboundQueueDepths(feedSessions));
+        result.put("uiClients", outboundQueueDepths(uiClientSessions));
+        return result;
+    }
+
+    private static SortedMap<String, Integer> outboundQueueDepths(WsSessions sessions) {
+        SortedMap<String, Integer> result = new TreeMap<>();
+        sessions.forEachSession((key, session) -> result.put(key, OutboundQueue.depthOf(session)));
+        return result;
+    }
+
     public WsSessions getFeedSessions() {
         return feedSessions;
     }
@@ -56,6 +121,7 @@ public class WsEndpoints {
         log.debugf("Destroying [%s]", this.getClass().getName());
         this.uiClientSessions.destroy();
         this.feedSessions.destroy();
+        BinaryStreamSender.shutdown();
     }
 
 }
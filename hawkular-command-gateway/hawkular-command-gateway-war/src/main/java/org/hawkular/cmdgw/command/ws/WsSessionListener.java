@@ -30,7 +30,8 @@ import javax.websocket.Session;
  * <p>
  * Note on concurrency: The implementors are warranted that {@link #sessionAdded()} will be called before
  * {@link #sessionRemoved()} and that there will be no overlapping calls of these methods from distinct threads. Further
- * best effort will be done to call {@link #sessionRemoved()} for all existing listeners on application exit.
+ * best effort will be done to call {@link #sessionRemoved()} for all existing listeners on application exit. Both
+ * methods are called asynchronously, outside of the thread that added or removed the {@link Session}.
  *
  * @see WsSessions#addWsSessionListenerProducer(java.util.function.BiFunction)
  * @see WsSessions#removeWsSessionListenerProducer(java.util.function.BiFunction)
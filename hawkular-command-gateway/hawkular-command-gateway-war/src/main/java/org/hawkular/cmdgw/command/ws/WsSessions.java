@@ -17,18 +17,29 @@
 package org.hawkular.cmdgw.command.ws;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 
 import javax.websocket.CloseReason;
 import javax.websocket.Session;
 
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayThreadFactory;
+import org.hawkular.cmdgw.api.ApiEncoding;
+import org.hawkular.cmdgw.command.ws.server.EncodedMessage;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
 
@@ -39,8 +50,11 @@ import org.hawkular.cmdgw.log.MsgLogger;
  * A {@code sessionId} of a UI client's {@link Session} or a feed's {@code feedId} are the most prominent
  * candidates for keys.
  * <p>
- * A thread safety note: this class uses a {@link ReadWriteLock} internally, hence its public methods can be safely
- * called from multiple threads.
+ * A thread safety note: this class uses a {@link ConcurrentMap} internally, hence its public methods can be safely
+ * called from multiple threads without blocking each other. The {@link WsSessionListener}s are never called while
+ * modifying the map; they are invoked asynchronously on a bounded thread pool instead so that a slow listener (e.g.
+ * one closing a bus connection) cannot stall the lookups of other sessions. The calls of the listeners attached to a
+ * single session are serialized so that the guarantees documented on {@link WsSessionListener} hold.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
@@ -49,23 +63,25 @@ public class WsSessions {
     /**
      * A websocket {@link Session} with its attached {@link WsSessionListener}s.
      */
-    private static class SessionEntry {
+    private class SessionEntry {
+        private final String key;
         private final Session session;
         private final List<WsSessionListener> sessionListeners;
+        /** the last listener invocation scheduled for this entry; the next one has to wait for it */
+        private CompletableFuture<Void> lastListenerCall = CompletableFuture.completedFuture(null);
 
-        private SessionEntry(Session session, List<WsSessionListener> sessionListeners) {
+        private SessionEntry(String key, Session session, List<WsSessionListener> sessionListeners) {
             super();
+            this.key = key;
             this.session = session;
             this.sessionListeners = sessionListeners;
         }
 
         /**
-         * Call {@link WsSessionListener#sessionAdded()} on the attached {@link WsSessionListener}s.
+         * Asynchronously call {@link WsSessionListener#sessionAdded()} on the attached {@link WsSessionListener}s.
          */
         public void added() {
-            for (WsSessionListener listener : sessionListeners) {
-                listener.sessionAdded();
-            }
+            invokeListeners("sessionAdded", WsSessionListener::sessionAdded);
         }
 
         public Session getSession() {
@@ -73,29 +89,54 @@ public class WsSessions {
         }
 
         /**
-         * Call {@link WsSessionListener#sessionRemoved()} on the attached {@link WsSessionListener}s.
+         * Asynchronously call {@link WsSessionListener#sessionRemoved()} on the attached {@link WsSessionListener}s.
+         *
+         * @return a future completed after all listeners were called
          */
-        public void removed() {
-            for (WsSessionListener listener : sessionListeners) {
-                listener.sessionRemoved();
+        public CompletableFuture<Void> removed() {
+            return invokeListeners("sessionRemoved", WsSessionListener::sessionRemoved);
+        }
+
+        private synchronized CompletableFuture<Void> invokeListeners(String methodName,
+                Consumer<WsSessionListener> method) {
+            if (sessionListeners.isEmpty()) {
+                return lastListenerCall;
             }
+            lastListenerCall = lastListenerCall.thenRunAsync(() -> {
+                for (WsSessionListener listener : sessionListeners) {
+                    try {
+                        method.accept(listener);
+                    } catch (Exception e) {
+                        log.errorInvokingWsSessionListener(listener.getClass().getName(), methodName, key, endpoint,
+                                e);
+                    }
+                }
+            }, listenerExecutor);
+            return lastListenerCall;
         }
     }
 
     private static final MsgLogger log = GatewayLoggers.getLogger(WsSessions.class);
 
     private final String endpoint;
-    private final ReadWriteLock sessionsLock = new ReentrantReadWriteLock(true);
-    private final Lock sessionsLockRead = sessionsLock.readLock();
-    private final Lock sessionsLockWrite = sessionsLock.writeLock();
     /** key is feedId or sessionId, value is the {@link Session} with its attached {@link WsSessionListener}s */
-    private final Map<String, SessionEntry> sessions = new HashMap<>();
+    private final ConcurrentMap<String, SessionEntry> sessions = new ConcurrentHashMap<>();
     private final List<BiFunction<String, Session, WsSessionListener>> wsSessionListenerProducers //
     = new CopyOnWriteArrayList<>();
+    private final ThreadPoolExecutor listenerExecutor;
 
     public WsSessions(String endpoint) {
         super();
         this.endpoint = endpoint;
+        final int threads = Integer.parseInt(System.getProperty(Constants.SESSION_LISTENER_THREADS,
+                String.valueOf(Constants.SESSION_LISTENER_THREADS_DEFAULT)));
+        final int queueSize = Integer.parseInt(System.getProperty(Constants.SESSION_LISTENER_QUEUE_SIZE,
+                String.valueOf(Constants.SESSION_LISTENER_QUEUE_SIZE_DEFAULT)));
+        /* when the queue is full, the caller runs the listeners itself - still outside of any lock */
+        this.listenerExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), new GatewayThreadFactory("session-listeners"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.listenerExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -106,7 +147,8 @@ public class WsSessions {
      * associated with the {@code key}.
      * <p>
      * When adding a session, that new session's websocket session listeners will be told via
-     * {@link WsSessionListener#sessionAdded()}.
+     * {@link WsSessionListener#sessionAdded()}. Note that this happens asynchronously, i.e. the listeners may not have
+     * been called yet when this method returns.
      *
      * @param key the key (feedId or sessionId) that will be associated with the new session
      * @param newSession the new session to add
@@ -115,14 +157,7 @@ public class WsSessions {
     public boolean addSession(String key, Session newSession) {
 
         SessionEntry newEntry = createSessionEntry(key, newSession);
-        SessionEntry oldEntry = null;
-
-        sessionsLockWrite.lock();
-        try {
-            oldEntry = this.sessions.putIfAbsent(key, newEntry);
-        } finally {
-            sessionsLockWrite.unlock();
-        }
+        SessionEntry oldEntry = this.sessions.putIfAbsent(key, newEntry);
 
         /* check how successful we were with adding */
         if (oldEntry == null) {
@@ -179,7 +214,7 @@ public class WsSessions {
                 sessionListeners.add(sessionListener);
             }
         }
-        return new SessionEntry(session, sessionListeners);
+        return new SessionEntry(sessionKey, session, sessionListeners);
     }
 
     /**
@@ -189,13 +224,86 @@ public class WsSessions {
      * @return the {@link Session} stored under the given {@code key} or {@code null} if there is no such session.
      */
     public Session getSession(String key) {
-        sessionsLockRead.lock();
-        try {
-            SessionEntry entry = this.sessions.get(key);
-            return entry != null ? entry.getSession() : null;
-        } finally {
-            sessionsLockRead.unlock();
+        SessionEntry entry = this.sessions.get(key);
+        return entry != null ? entry.getSession() : null;
+    }
+
+    /**
+     * Performs the given {@code action} for each session currently stored in this {@link WsSessions}.
+     *
+     * @param action the action to perform, the first argument is the key and the second one the {@link Session}
+     */
+    public void forEachSession(BiConsumer<String, Session> action) {
+        for (Map.Entry<String, SessionEntry> en : sessions.entrySet()) {
+            action.accept(en.getKey(), en.getValue().getSession());
+        }
+    }
+
+    /**
+     * Sends the given {@code message} asynchronously to all sessions accepted by the given {@code filter}. The
+     * {@code message} is encoded just once per {@link ApiEncoding} rather than once per session.
+     *
+     * @param message the message to send
+     * @param filter decides which sessions receive the {@code message}, the first argument is the key and the second
+     *        one the {@link Session}
+     * @return the number of sessions the {@code message} was enqueued for
+     */
+    public int broadcast(BasicMessage message, BiPredicate<String, Session> filter) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        int result = 0;
+        for (Map.Entry<String, SessionEntry> en : sessions.entrySet()) {
+            Session session = en.getValue().getSession();
+            if (filter.test(en.getKey(), session)) {
+                encoded.sendAsync(session);
+                result++;
+            }
         }
+        log.debugf("Broadcast [%s] to [%d] sessions of [%s]", message.getClass().getName(), result, endpoint);
+        return result;
+    }
+
+    /**
+     * Sends the given {@code message} asynchronously to the sessions stored under the given {@code keys}. The
+     * {@code message} is encoded just once per {@link ApiEncoding} rather than once per session. Keys with no
+     * session are ignored.
+     *
+     * @param message the message to send
+     * @param keys the keys of the sessions to send to
+     * @return the number of sessions the {@code message} was enqueued for
+     */
+    public int broadcast(BasicMessage message, Collection<String> keys) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        int result = 0;
+        for (String key : keys) {
+            SessionEntry entry = sessions.get(key);
+            if (entry != null) {
+                encoded.sendAsync(entry.getSession());
+                result++;
+            }
+        }
+        log.debugf("Broadcast [%s] to [%d] sessions of [%s]", message.getClass().getName(), result, endpoint);
+        return result;
+    }
+
+    /**
+     * @return the number of sessions currently stored in this {@link WsSessions}
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the endpoint whose sessions are stored in this {@link WsSessions}
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of {@link WsSessionListener} invocations waiting to be executed
+     */
+    public int getPendingListenerCallbacks() {
+        return listenerExecutor.getQueue().size();
     }
 
     /**
@@ -204,58 +312,60 @@ public class WsSessions {
      * as the given {@code doomedSession}.
      * <p>
      * When removing a known session, that doomed session's websocket session listeners will be told via
-     * {@link WsSessionListener#sessionRemoved()}.
+     * {@link WsSessionListener#sessionRemoved()}. Note that this happens asynchronously, i.e. the listeners may not
+     * have been called yet when this method returns.
      *
      * @param key identifies the session to be removed
      * @param doomedSession if not null, ensures that only this session will be removed
-     * @return the removed session or null if nothing was removed
+     * @return {@code true} if a session was removed; {@code false} otherwise
      */
-    public void removeSession(String key, Session doomedSession) {
+    public boolean removeSession(String key, Session doomedSession) {
         SessionEntry removedEntry = null;
 
         // If no session was passed in, remove any session associated with the given key.
         // If a session was passed in, only remove it if the key is associated with that session.
         // This is to support the need to close extra sessions a feed might have created.
 
-        sessionsLockWrite.lock();
-        try {
-            if (doomedSession == null) {
-                removedEntry = this.sessions.remove(key);
-            } else {
-                /* here between sessions.get() and sessions.remove() the write lock is especially important */
-                SessionEntry existingEntry = this.sessions.get(key);
-                if (existingEntry != null && existingEntry.getSession().getId().equals(doomedSession.getId())) {
-                    removedEntry = this.sessions.remove(key);
-                }
-            }
-
-            if (removedEntry != null) {
-                /* we really removed a session, let's call its listeners */
-                removedEntry.removed();
-                log.debugf(
-                        "WebSocket Session [%s] of [%s] with key [%s] has been removed."
-                                + " The endpoint has now [%d] sessions",
-                        removedEntry.getSession().getId(), endpoint, key, this.sessions.size());
+        if (doomedSession == null) {
+            removedEntry = this.sessions.remove(key);
+        } else {
+            SessionEntry existingEntry = this.sessions.get(key);
+            /* remove(key, value) makes sure that we do not remove an entry put there after our get() */
+            if (existingEntry != null && existingEntry.getSession().getId().equals(doomedSession.getId())
+                    && this.sessions.remove(key, existingEntry)) {
+                removedEntry = existingEntry;
             }
-        } finally {
-            sessionsLockWrite.unlock();
         }
 
+        if (removedEntry != null) {
+            /* we really removed a session, let's call its listeners */
+            removedEntry.removed();
+            log.debugf(
+                    "WebSocket Session [%s] of [%s] with key [%s] has been removed."
+                            + " The endpoint has now [%d] sessions",
+                    removedEntry.getSession().getId(), endpoint, key, this.sessions.size());
+            return true;
+        }
+        return false;
     }
 
     public void destroy() {
-        sessionsLockWrite.lock();
         try {
             log.debugf("Destroying [%s] of [%s]. About to call remove listeners on [%d] sessions.",
                     getClass().getName(), endpoint, this.sessions.size());
-            for (SessionEntry entry : sessions.values()) {
-                entry.removed();
+            List<CompletableFuture<Void>> removals = new ArrayList<>();
+            for (Map.Entry<String, SessionEntry> en : sessions.entrySet()) {
+                if (sessions.remove(en.getKey(), en.getValue())) {
+                    removals.add(en.getValue().removed());
+                }
             }
-            sessions.clear();
+            /* best effort: give the listeners a chance to release their resources */
+            CompletableFuture.allOf(removals.toArray(new CompletableFuture<?>[removals.size()])).get(10,
+                    TimeUnit.SECONDS);
         } catch (Throwable t) {
             log.couldNotDestroy(getClass().getName(), endpoint, t);
         } finally {
-            sessionsLockWrite.unlock();
+            listenerExecutor.shutdown();
         }
     }
 
@@ -16,15 +16,21 @@
  */
 package org.hawkular.cmdgw.command.ws.server;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.websocket.OnMessage;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.Constants;
 import org.hawkular.cmdgw.NoCommandForMessageException;
 import org.hawkular.cmdgw.api.ApiDeserializer;
 import org.hawkular.cmdgw.api.AuthMessage;
@@ -32,13 +38,19 @@ import org.hawkular.cmdgw.api.GenericErrorResponse;
 import org.hawkular.cmdgw.api.GenericErrorResponseBuilder;
 import org.hawkular.cmdgw.api.UiSessionOrigin;
 import org.hawkular.cmdgw.command.bus.BusEndpointProcessors;
+import org.hawkular.cmdgw.command.ws.RateLimiter;
+import org.hawkular.cmdgw.command.ws.SessionHeartbeat;
 import org.hawkular.cmdgw.command.ws.WsCommand;
 import org.hawkular.cmdgw.command.ws.WsCommandContext;
 import org.hawkular.cmdgw.command.ws.WsCommandContextFactory;
+import org.hawkular.cmdgw.command.ws.WsCommandExecutor;
 import org.hawkular.cmdgw.command.ws.WsCommands;
 import org.hawkular.cmdgw.command.ws.WsEndpoints;
 import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.LogSampler;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics.Direction;
 
 /**
  * A common parent for {@link FeedWebSocket} and {@link UIClientWebSocket}.
@@ -48,6 +60,48 @@ import org.hawkular.cmdgw.log.MsgLogger;
 public abstract class AbstractGatewayWebSocket {
     private static final MsgLogger log = GatewayLoggers.getLogger(AbstractGatewayWebSocket.class);
 
+    /** decides which received messages are logged at INFO level */
+    private static final LogSampler messageLogSampler = LogSampler.ofMessages();
+
+    private static final long maxTextMessageSize = Long.parseLong(System.getProperty(
+            Constants.MAX_TEXT_MESSAGE_SIZE, String.valueOf(Constants.MAX_TEXT_MESSAGE_SIZE_DEFAULT)));
+
+    /**
+     * Counts the bytes read from a binary message.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            count += result;
+            return result;
+        }
+    }
+
     @Inject
     protected WsCommandContextFactory commandContextFactory;
 
@@ -60,6 +114,18 @@ public abstract class AbstractGatewayWebSocket {
     @Inject
     protected WsCommands wsCommands;
 
+    /**
+     * Executes the commands off the container's WebSocket threads, keeping the order of messages per session.
+     */
+    @Inject
+    protected WsCommandExecutor commandExecutor;
+
+    /**
+     * Protects the gateway and the bus from clients sending too many messages.
+     */
+    @Inject
+    protected RateLimiter rateLimiter;
+
     /**
      * A container that holds all known and currently active websocket clients (UI and feed clients).
      */
@@ -74,11 +140,32 @@ public abstract class AbstractGatewayWebSocket {
     @Inject
     protected BusEndpointProcessors busEndpointProcessors;
 
+    /**
+     * Pings quiet clients and reclaims the sessions of those that stopped responding.
+     */
+    @Inject
+    protected SessionHeartbeat heartbeat;
+
     public AbstractGatewayWebSocket(String endpoint) {
         super();
         this.endpoint = endpoint;
     }
 
+    /**
+     * @return the {@link RateLimiter.Scope} whose limits apply to the clients of this endpoint
+     */
+    protected abstract RateLimiter.Scope getRateLimitScope();
+
+    /**
+     * Tells the client that its message was rejected by the {@link #rateLimiter} unless the {@link #rateLimiter} has
+     * closed the session already.
+     */
+    private void rateLimited(Session session, String exceeded) {
+        if (session.isOpen()) {
+            sendErrorResponse(session, exceeded, null);
+        }
+    }
+
     protected void handleRequest(Session session, BasicMessageWithExtraData<BasicMessage> requestWithBinary)
             throws NoCommandForMessageException, Exception {
         BasicMessage request = requestWithBinary.getBasicMessage();
@@ -100,64 +187,159 @@ public abstract class AbstractGatewayWebSocket {
             log.debugf("About to execute command [%s] on message [%s] in session [%s] of [%s]", command.getClass(),
                     requestClass.getName(), session.getId(), endpoint);
             WsCommandContext context = commandContextFactory.newCommandContext(session);
-            command.execute(requestWithBinary, context); // NOTE: only 1 of the collection can read the binary stream
+            long start = System.nanoTime();
+            try {
+                command.execute(requestWithBinary, context); // NOTE: only 1 of the collection can read the binary stream
+            } finally {
+                commandExecutor.executionHistogram(command.getClass())
+                        .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
         }
     }
 
+    /**
+     * Submits the given {@code request} to {@link #commandExecutor} so that {@link #handleRequest(Session,
+     * BasicMessageWithExtraData)} is called after the preceding requests of the same {@code session} were handled.
+     * Failures are reported to the client as a {@link GenericErrorResponse} with the given {@code errorMessage}.
+     *
+     * @param session the client session making the request
+     * @param request the request to handle
+     * @param errorMessage the message to send to the client on failure
+     * @throws InterruptedException if interrupted while waiting for a request with binary data to be handled
+     */
+    protected void dispatchRequest(Session session, BasicMessageWithExtraData<BasicMessage> request,
+            String errorMessage) throws InterruptedException {
+        final Class<?> requestClass = request.getBasicMessage().getClass();
+        Runnable task = () -> {
+            try {
+                handleRequest(session, request);
+            } catch (Throwable t) {
+                log.errorWsCommandExecutionFailure(requestClass.getName(), session.getId(), endpoint, t);
+                sendErrorResponse(session, errorMessage, t);
+            }
+        };
+        /* the binary data stream can be read only until the @OnMessage method returns */
+        commandExecutor.execute(session, requestClass, task, request.getBinaryData() != null);
+    }
+
     /**
      * When a binary message is received from a WebSocket client, this method will lookup the {@link WsCommand} for the
-     * given request class and execute it.
+     * given request class and execute it. The execution happens on a {@link WsCommandExecutor} thread but this method
+     * waits for it to finish because the binary data cannot be read after this method returns.
      *
-     * @param binaryDataStream contains the JSON request and additional binary data
+     * @param binaryDataStream contains the JSON or Smile encoded request and additional binary data
      * @param session the client session making the request
      */
     @OnMessage
     public void onBinaryMessage(InputStream binaryDataStream, Session session) {
+        heartbeat.touch(session);
         String requestClassName = "?";
+        Class<?> requestClass = null;
+        CountingInputStream countingStream = new CountingInputStream(binaryDataStream);
         try {
+            InputStream limitedStream = rateLimiter.limit(session, getRateLimitScope(), countingStream);
             // parse the JSON and get its message POJO, including any additional binary data being streamed
-            BasicMessageWithExtraData<BasicMessage> reqWithData = new ApiDeserializer().deserialize(binaryDataStream);
+            BasicMessageWithExtraData<BasicMessage> reqWithData = new ApiDeserializer().deserialize(limitedStream);
             BasicMessage request = reqWithData.getBasicMessage();
-            requestClassName = request.getClass().getName();
-            log.infoReceivedBinaryData(requestClassName, session.getId(), endpoint);
+            requestClass = request.getClass();
+            requestClassName = requestClass.getName();
+            if (messageLogSampler.sample()) {
+                log.infoReceivedBinaryData(requestClassName, session.getId(), endpoint);
+            } else {
+                log.debugf("Received message [%s] with binary data from WebSocket session [%s] of [%s]",
+                        requestClassName, session.getId(), endpoint);
+            }
 
-            handleRequest(session, reqWithData);
+            String exceeded = rateLimiter.setMessageClass(limitedStream, request.getClass().getSimpleName());
+            if (exceeded != null) {
+                rateLimited(session, exceeded);
+                return;
+            }
+
+            dispatchRequest(session, reqWithData, "BusCommand failed [" + requestClassName + "]");
 
         } catch (Throwable t) {
             log.errorWsCommandExecutionFailure(requestClassName, session.getId(), endpoint, t);
             String errorMessage = "BusCommand failed [" + requestClassName + "]";
             sendErrorResponse(session, errorMessage, t);
+        } finally {
+            if (requestClass != null) {
+                /* the binary data has been consumed by now */
+                TrafficMetrics.record(Direction.WS_IN, requestClass, countingStream.count);
+            }
         }
     }
 
     /**
      * When a message is received from a WebSocket client, this method will lookup the {@link WsCommand} for the
-     * given request class and execute it.
+     * given request class and submit it for execution to the {@link WsCommandExecutor}.
+     * <p>
+     * The message is parsed while it is being received rather than being buffered into a {@link String} first.
+     * Messages longer than {@link Constants#MAX_TEXT_MESSAGE_SIZE} characters are rejected as soon as the limit is
+     * reached.
      *
-     * @param nameAndJsonStr the name of the API request followed by "=" followed then by the request's JSON data
+     * @param nameAndJson the name of the API request followed by "=" followed then by the request's JSON data
      * @param session the client session making the request
      */
     @OnMessage
-    public void onMessage(String nameAndJsonStr, Session session) {
+    public void onMessage(Reader nameAndJson, Session session) {
+        heartbeat.touch(session);
         String requestClassName = "?";
+        BoundedReader boundedReader = new BoundedReader(nameAndJson, maxTextMessageSize);
         try {
             // parse the JSON and get its message POJO
-            BasicMessageWithExtraData<BasicMessage> request = new ApiDeserializer().deserialize(nameAndJsonStr);
-            requestClassName = request.getBasicMessage().getClass().getName();
-            log.infoReceivedWsMessage(requestClassName, session.getId(), endpoint);
+            BasicMessageWithExtraData<BasicMessage> request = new ApiDeserializer().deserialize(boundedReader);
+            Class<?> requestClass = request.getBasicMessage().getClass();
+            requestClassName = requestClass.getName();
+            TrafficMetrics.record(Direction.WS_IN, requestClass, boundedReader.getUtf8Length());
+            if (messageLogSampler.sample()) {
+                log.infoReceivedWsMessage(requestClassName, session.getId(), endpoint);
+            } else {
+                log.debugf("Received message [%s] from WebSocket session [%s] of [%s]", requestClassName,
+                        session.getId(), endpoint);
+            }
+
+            String exceeded = rateLimiter.tryAcquire(session, getRateLimitScope(),
+                    requestClass.getSimpleName(), boundedReader.getUtf8Length());
+            if (exceeded != null) {
+                rateLimited(session, exceeded);
+                return;
+            }
 
-            handleRequest(session, request);
+            dispatchRequest(session, request, "Failed to process message [" + requestClassName + "]");
 
         } catch (Throwable t) {
+            if (boundedReader.isExceeded()) {
+                log.debugf("Rejected a text message longer than [%d] characters from WebSocket session [%s] of [%s]",
+                        maxTextMessageSize, session.getId(), endpoint);
+                sendErrorResponse(session, "Message too big, the maximum size is [" + maxTextMessageSize
+                        + "] characters", null);
+                return;
+            }
             log.errorWsCommandExecutionFailure(requestClassName, session.getId(), endpoint, t);
             String errorMessage = "Failed to process message [" + requestClassName + "]";
             sendErrorResponse(session, errorMessage, t);
         }
     }
 
+    /**
+     * A pong is the answer of a client to a ping sent by {@link #heartbeat}; it proves that the client is still there.
+     *
+     * @param pong the pong received
+     * @param session the client session that sent the pong
+     */
+    @OnMessage
+    public void onPong(PongMessage pong, Session session) {
+        heartbeat.touch(session);
+    }
+
     protected void sendErrorResponse(Session session, String errorMessage, Throwable t) {
+        GenericErrorResponseBuilder builder = new GenericErrorResponseBuilder();
+        if (t != null) {
+            builder.setThrowable(t);
+        }
         BasicMessageWithExtraData<GenericErrorResponse> response = new BasicMessageWithExtraData<>(
-                new GenericErrorResponseBuilder().setThrowable(t).setErrorMessage(errorMessage).build(), null);
+                builder.setErrorMessage(errorMessage).build(), null);
         try {
             new WebSocketHelper().sendSync(session, response);
         } catch (Throwable t2) {
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint.Basic;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayThreadFactory;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * Copies an {@link InputStream} to a WebSocket client as a single binary message split into partial frames of
+ * {@link Constants#BINARY_CHUNK_SIZE} bytes using {@link Basic#sendBinary(ByteBuffer, boolean)}. The chunks are read
+ * into buffers borrowed from a shared {@link ByteBufferPool}, so that a transfer does not allocate any buffers once
+ * the pool is warm.
+ * <p>
+ * Each partial send blocks until the container has accepted the chunk, which throttles the reading of the stream to
+ * the pace of the client. If no chunk could be sent for longer than the given timeout, the session is closed, which
+ * makes the blocked send fail. A transfer is also cancelled if the sending thread gets interrupted.
+ * <p>
+ * Once the first partial frame is on the wire, the binary message must be completed before any other message can be
+ * sent to the client. Therefore a transfer failing after that point closes the session with
+ * {@link CloseReason.CloseCodes#UNEXPECTED_CONDITION} and throws an {@link IncompleteMessageException}.
+ */
+public final class BinaryStreamSender {
+
+    /**
+     * Thrown if a transfer failed after some of its partial frames were sent. The session has been closed because
+     * the client cannot receive any other message after an incomplete one.
+     */
+    static final class IncompleteMessageException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private IncompleteMessageException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(BinaryStreamSender.class);
+
+    private static final ByteBufferPool bufferPool = new ByteBufferPool(
+            Integer.parseInt(System.getProperty(Constants.BINARY_CHUNK_SIZE,
+                    String.valueOf(Constants.BINARY_CHUNK_SIZE_DEFAULT))),
+            Integer.parseInt(System.getProperty(Constants.BINARY_BUFFER_POOL_SIZE,
+                    String.valueOf(Constants.BINARY_BUFFER_POOL_SIZE_DEFAULT))));
+
+    private static final ScheduledThreadPoolExecutor watchdog;
+    static {
+        watchdog = new ScheduledThreadPoolExecutor(1, new GatewayThreadFactory("binary-watchdog"));
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final ThreadPoolExecutor executor;
+    static {
+        int threads = Integer.parseInt(System.getProperty(Constants.BINARY_SENDER_THREADS,
+                String.valueOf(Constants.BINARY_SENDER_THREADS_DEFAULT)));
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Integer.parseInt(System.getProperty(Constants.BINARY_SENDER_QUEUE_SIZE,
+                        String.valueOf(Constants.BINARY_SENDER_QUEUE_SIZE_DEFAULT)))),
+                new GatewayThreadFactory("binary-sender"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final LongAdder bytesCounter = new LongAdder();
+    private static final LongAdder chunksCounter = new LongAdder();
+    private static final LongAdder streamsCounter = new LongAdder();
+    private static final LongAdder stalledCounter = new LongAdder();
+
+    /**
+     * @return the executor running the transfers started by {@link WebSocketHelper#sendBinaryAsync(Session,
+     *         InputStream)}; it rejects new transfers if too many are waiting
+     */
+    static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the pool of buffers used for the transfers
+     */
+    public static ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the number of bytes of binary streams sent since the start
+     */
+    public static long getBytesSent() {
+        return bytesCounter.sum();
+    }
+
+    /**
+     * @return the number of partial frames sent since the start
+     */
+    public static long getChunksSent() {
+        return chunksCounter.sum();
+    }
+
+    /**
+     * @return the number of binary streams sent completely since the start
+     */
+    public static long getStreamsSent() {
+        return streamsCounter.sum();
+    }
+
+    /**
+     * @return the number of transfers cancelled due to a stalled client since the start
+     */
+    public static long getStalledCount() {
+        return stalledCounter.sum();
+    }
+
+    /**
+     * Stops the threads of the asynchronous transfers and of the stall detection. To be called when the application
+     * is undeployed.
+     */
+    public static void shutdown() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    /** the {@link System#nanoTime()} of the last progress of the transfer */
+    private volatile long lastProgressNanos = System.nanoTime();
+    private volatile boolean stalled;
+    private final Session session;
+
+    private BinaryStreamSender(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Copies the given {@code inputStream} to the given {@code session}. The caller must make sure that no other
+     * message is sent to the {@code session} concurrently, see {@link OutboundQueue}.
+     *
+     * @param session the session to send to
+     * @param inputStream the data to send, not closed by this method
+     * @param timeoutMs the maximal time without any progress; a negative number means forever
+     * @return the number of bytes sent
+     * @throws IncompleteMessageException if the data could not be sent after some partial frames were sent
+     * @throws IOException if the data could not be sent
+     */
+    static long send(Session session, InputStream inputStream, long timeoutMs) throws IOException {
+        return new BinaryStreamSender(session).copy(inputStream, timeoutMs);
+    }
+
+    private long copy(InputStream inputStream, long timeoutMs) throws IOException {
+        Basic basicRemote = session.getBasicRemote();
+        ScheduledFuture<?> stallCheck = timeoutMs <= 0 ? null
+                : watchdog.scheduleWithFixedDelay(() -> checkStalled(timeoutMs), timeoutMs,
+                        Math.max(1, timeoutMs / 2), TimeUnit.MILLISECONDS);
+        ByteBuffer buffer = bufferPool.acquire();
+        /* true as soon as anything may have been written to the client */
+        boolean started = false;
+        long total = 0L;
+        try {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            int chunkSize = buffer.capacity();
+            boolean last = false;
+            while (!last) {
+                int filled = 0;
+                while (filled < chunkSize) {
+                    int numRead = inputStream.read(array, offset + filled, chunkSize - filled);
+                    if (numRead < 0) {
+                        last = true;
+                        break;
+                    }
+                    filled += numRead;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Sending binary data to WebSocket client ["
+                            + session.getId() + "] interrupted after [" + total + "] bytes");
+                }
+                buffer.clear();
+                buffer.limit(filled);
+                started = true;
+                basicRemote.sendBinary(buffer, last);
+                lastProgressNanos = System.nanoTime();
+                total += filled;
+                bytesCounter.add(filled);
+                chunksCounter.increment();
+            }
+            streamsCounter.increment();
+            return total;
+        } catch (IOException | RuntimeException e) {
+            if (started) {
+                closeIncomplete();
+                throw new IncompleteMessageException("Binary message to WebSocket client [" + session.getId()
+                        + "] failed after [" + total + "] bytes", e);
+            }
+            throw e;
+        } finally {
+            if (stallCheck != null) {
+                stallCheck.cancel(false);
+            }
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void closeIncomplete() {
+        log.debugf("Closing WebSocket session [%s]: a binary message could not be completed", session.getId());
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION,
+                    "Binary message could not be completed"));
+        } catch (IOException | RuntimeException e) {
+            log.debugf(e, "Could not close WebSocket session [%s]", session.getId());
+        }
+    }
+
+    private void checkStalled(long timeoutMs) {
+        if (!stalled && System.nanoTime() - lastProgressNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+            stalled = true;
+            stalledCounter.increment();
+            log.debugf("Closing WebSocket session [%s]: no binary data could be sent within [%d] ms",
+                    session.getId(), timeoutMs);
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                        "Binary transfer stalled, the client is too slow"));
+            } catch (IOException e) {
+                log.debugf(e, "Could not close stalled WebSocket session [%s]", session.getId());
+            }
+        }
+    }
+}
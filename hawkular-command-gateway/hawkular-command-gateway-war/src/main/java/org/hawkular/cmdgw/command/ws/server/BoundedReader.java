@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Counts the characters read from a text message and fails once more than {@link #limit} characters were read, so
+ * that an over-long message is rejected without being read in full. The UTF-8 encoded length of the characters is
+ * counted too, because that is what the client actually sent over the wire.
+ */
+final class BoundedReader extends FilterReader {
+    private final long limit;
+    private long count;
+    private long utf8Length;
+
+    /**
+     * @param in the reader to read from
+     * @param limit the maximal number of characters to read from {@code in}; no limit applies if zero or less
+     */
+    BoundedReader(Reader in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    private void add(long n) throws IOException {
+        count += n;
+        if (limit > 0 && count > limit) {
+            throw new IOException("Text message exceeds the maximum size of [" + limit + "] characters");
+        }
+    }
+
+    /**
+     * @return the number of characters read so far
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes the characters read so far take in UTF-8
+     */
+    long getUtf8Length() {
+        return utf8Length;
+    }
+
+    /**
+     * @return {@code true} if more than {@link #limit} characters were read
+     */
+    boolean isExceeded() {
+        return limit > 0 && count > limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result >= 0) {
+            utf8Length += utf8Length((char) result);
+            add(1);
+        }
+        return result;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int result = super.read(cbuf, off, len);
+        if (result > 0) {
+            for (int i = off; i < off + result; i++) {
+                utf8Length += utf8Length(cbuf[i]);
+            }
+            add(result);
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long result = super.skip(n);
+        /* the skipped characters are not known, each takes at least one byte */
+        utf8Length += result;
+        add(result);
+        return result;
+    }
+
+    /**
+     * @param c the character to encode
+     * @return the number of bytes {@code c} takes in UTF-8; each half of a surrogate pair counts for two bytes so that
+     *         the pair takes four
+     */
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        } else {
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of equally sized {@link ByteBuffer}s. Buffers are allocated lazily; at most {@link #maxIdle} released
+ * buffers are kept for reuse, the others are left to the garbage collector.
+ * <p>
+ * The buffers are heap buffers because they are filled from {@link java.io.InputStream}s which can only read into a
+ * {@code byte[]}: a direct buffer would need one more copy, while the container copies into its own direct buffers
+ * anyway.
+ */
+public class ByteBufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder allocatedCounter = new LongAdder();
+
+    /**
+     * @param bufferSize the capacity of the buffers in bytes
+     * @param maxIdle the maximal number of buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int maxIdle) {
+        super();
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes backed by an accessible array
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer result = idle.poll();
+        if (result != null) {
+            idleCount.decrementAndGet();
+            return result;
+        }
+        allocatedCounter.increment();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns the given {@code buffer} to this pool. The {@code buffer} must not be used by the caller afterwards.
+     *
+     * @param buffer a buffer obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            buffer.clear();
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the capacity of the buffers in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers allocated since the start
+     */
+    public long getAllocatedCount() {
+        return allocatedCounter.sum();
+    }
+
+    /**
+     * @return the number of buffers available for reuse
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
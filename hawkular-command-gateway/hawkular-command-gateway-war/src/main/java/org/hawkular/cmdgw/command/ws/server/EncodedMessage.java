@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import javax.websocket.Session;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.ApiEncoding;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics.Direction;
+
+/**
+ * A {@link BasicMessage} that is encoded at most once per {@link ApiEncoding} no matter to how many sessions it is
+ * sent. Sessions that negotiated {@link ApiEncoding#JSON} share the same text frame, the other sessions share the same
+ * byte array wrapped in a separate {@link ByteBuffer} per session.
+ * <p>
+ * Instances are not thread safe: a single thread is supposed to send an {@link EncodedMessage} to all its recipients.
+ */
+public class EncodedMessage {
+    private final BasicMessage message;
+    private String text;
+    private final byte[][] binary = new byte[ApiEncoding.values().length][];
+
+    /**
+     * @param message the message to send
+     */
+    public EncodedMessage(BasicMessage message) {
+        super();
+        this.message = message;
+    }
+
+    /**
+     * @return the message that is sent
+     */
+    public BasicMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Enqueues the encoded message to the {@link OutboundQueue} of the given {@code session}, encoding it first if
+     * no session using the same {@link ApiEncoding} was sent to before.
+     *
+     * @param session the session to send to
+     * @return the future completed once the frame was sent
+     */
+    public CompletableFuture<Void> sendAsync(Session session) {
+        ApiEncoding encoding = WebSocketHelper.getEncoding(session);
+        OutboundQueue queue = OutboundQueue.of(session);
+        if (encoding == ApiEncoding.JSON) {
+            if (text == null) {
+                text = ApiDeserializer.toHawkularFormat(message);
+            }
+            TrafficMetrics.record(Direction.WS_OUT, message.getClass(), text.length());
+            return queue.sendText(text);
+        } else {
+            byte[] bytes = binary[encoding.ordinal()];
+            if (bytes == null) {
+                bytes = ApiDeserializer.toHawkularFormatBytes(message, encoding);
+                binary[encoding.ordinal()] = bytes;
+            }
+            TrafficMetrics.record(Direction.WS_OUT, message.getClass(), bytes.length);
+            /* a ByteBuffer per session because sending moves its position */
+            return queue.sendBinary(ByteBuffer.wrap(bytes));
+        }
+    }
+}
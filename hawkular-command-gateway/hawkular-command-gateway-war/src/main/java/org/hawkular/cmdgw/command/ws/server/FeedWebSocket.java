@@ -16,6 +16,8 @@
  */
 package org.hawkular.cmdgw.command.ws.server;
 
+import java.io.IOException;
+
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.websocket.CloseReason;
@@ -25,10 +27,13 @@ import javax.websocket.Session;
 import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
 
+import org.hawkular.cmdgw.api.ApiEncoding;
+import org.hawkular.cmdgw.command.ws.RateLimiter;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
 
-@ServerEndpoint(FeedWebSocket.ENDPOINT)
+@ServerEndpoint(value = FeedWebSocket.ENDPOINT, subprotocols = { ApiEncoding.JSON_SUBPROTOCOL,
+        ApiEncoding.SMILE_SUBPROTOCOL })
 @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class FeedWebSocket extends AbstractGatewayWebSocket {
     public static final String ENDPOINT = "/feed/{feedId}";
@@ -38,9 +43,25 @@ public class FeedWebSocket extends AbstractGatewayWebSocket {
         super(ENDPOINT);
     }
 
+    @Override
+    protected RateLimiter.Scope getRateLimitScope() {
+        return RateLimiter.Scope.FEED;
+    }
+
     @OnOpen
     public void feedSessionOpen(Session session, @PathParam("feedId") String feedId) {
+        long retryAfterMs = busEndpointProcessors.admitFeed(feedId);
+        if (retryAfterMs >= 0) {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                        "Too many feeds connecting, retry after [" + retryAfterMs + "] ms"));
+            } catch (IOException e) {
+                log.debugf(e, "Could not close WebSocket session of feed [%s]", feedId);
+            }
+            return;
+        }
         log.infoWsSessionOpened(feedId, endpoint);
+        heartbeat.touch(session);
         wsEndpoints.getFeedSessions().addSession(feedId, session);
     }
 
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint.Async;
+import javax.websocket.SendHandler;
+import javax.websocket.Session;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * A bounded queue of outbound frames of a single WebSocket {@link Session}. Text frames and binary frames held in
+ * memory are drained asynchronously through {@link Session#getAsyncRemote()} one after another so that the thread
+ * enqueuing a frame never waits for a slow client.
+ * <p>
+ * Binary frames carrying a stream (see {@link #sendStream(InputStream, long)}) take their turn in the queue too, but
+ * the stream is copied to the client by the thread that enqueued it. This is because the stream typically belongs to
+ * a bus message and must be consumed before the bus listener returns.
+ * <p>
+ * When the queue is full, the {@link SlowConsumerPolicy} configured through
+ * {@link Constants#OUTBOUND_QUEUE_POLICY} applies.
+ * <p>
+ * If a stream fails after some of its partial frames were sent, the session is closed and the queue is abandoned:
+ * the frames waiting in it and all frames offered later fail rather than being sent after an incomplete message.
+ * <p>
+ * There is at most one {@link OutboundQueue} per {@link Session}, see {@link #of(Session)}.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do when a frame is to be added to a full {@link OutboundQueue}.
+     */
+    public enum SlowConsumerPolicy {
+        /** Drop the oldest frame waiting in the queue to make room for the new one */
+        DROP_OLDEST,
+        /** Close the {@link Session}, the client can reconnect */
+        CLOSE_SESSION
+    }
+
+    /**
+     * A single item in the queue. Exactly one of {@link #text}, {@link #binary} and {@link #turn} is not {@code null}.
+     */
+    private static class Frame {
+        private final String text;
+        private final ByteBuffer binary;
+        /** completed when a binary frame with a stream can be written by the thread that enqueued it */
+        private final CompletableFuture<Void> turn;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Frame(String text, ByteBuffer binary, CompletableFuture<Void> turn) {
+            this.text = text;
+            this.binary = binary;
+            this.turn = turn;
+        }
+
+        private void fail(Throwable t) {
+            done.completeExceptionally(t);
+            if (turn != null) {
+                turn.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final MsgLogger log = GatewayLoggers.getLogger(OutboundQueue.class);
+    private static final String USER_PROPERTY_KEY = OutboundQueue.class.getName();
+
+    private static final int defaultCapacity = Integer.parseInt(System.getProperty(
+            Constants.OUTBOUND_QUEUE_CAPACITY, String.valueOf(Constants.OUTBOUND_QUEUE_CAPACITY_DEFAULT)));
+    private static final SlowConsumerPolicy defaultPolicy = SlowConsumerPolicy.valueOf(System.getProperty(
+            Constants.OUTBOUND_QUEUE_POLICY, Constants.OUTBOUND_QUEUE_POLICY_DEFAULT));
+    private static final long sendTimeoutMs = Long.parseLong(System.getProperty(Constants.OUTBOUND_SEND_TIMEOUT_MS,
+            String.valueOf(Constants.OUTBOUND_SEND_TIMEOUT_MS_DEFAULT)));
+
+    private static final LongAdder droppedCounter = new LongAdder();
+    private static final LongAdder slowConsumersClosedCounter = new LongAdder();
+    private static final LongAdder sendFailuresCounter = new LongAdder();
+
+    /**
+     * Returns the {@link OutboundQueue} of the given {@code session} creating it if necessary.
+     *
+     * @param session the session to get the queue for
+     * @return the {@link OutboundQueue}, never {@code null}
+     */
+    public static OutboundQueue of(Session session) {
+        OutboundQueue result = (OutboundQueue) session.getUserProperties().get(USER_PROPERTY_KEY);
+        if (result == null) {
+            synchronized (session) {
+                result = (OutboundQueue) session.getUserProperties().get(USER_PROPERTY_KEY);
+                if (result == null) {
+                    result = new OutboundQueue(session, defaultCapacity, defaultPolicy);
+                    session.getUserProperties().put(USER_PROPERTY_KEY, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param session the session whose queue depth should be returned
+     * @return the number of frames waiting in the queue of the given {@code session} or {@code 0} if the
+     *         {@code session} has no queue yet
+     */
+    public static int depthOf(Session session) {
+        OutboundQueue queue = (OutboundQueue) session.getUserProperties().get(USER_PROPERTY_KEY);
+        return queue == null ? 0 : queue.depth();
+    }
+
+    /**
+     * @return the number of frames dropped due to {@link SlowConsumerPolicy#DROP_OLDEST} since the start
+     */
+    public static long getDroppedCount() {
+        return droppedCounter.sum();
+    }
+
+    /**
+     * @return the number of sessions closed due to {@link SlowConsumerPolicy#CLOSE_SESSION} since the start
+     */
+    public static long getSlowConsumersClosedCount() {
+        return slowConsumersClosedCounter.sum();
+    }
+
+    /**
+     * @return the number of frames that could not be sent since the start
+     */
+    public static long getSendFailuresCount() {
+        return sendFailuresCounter.sum();
+    }
+
+    /**
+     * Waits for the given {@code future} to complete.
+     *
+     * @param future the future to wait for
+     * @param timeoutMs how long to wait; a negative number means forever
+     * @throws IOException if the future completed exceptionally or if the timeout elapsed
+     */
+    static void await(Future<Void> future, long timeoutMs) throws IOException {
+        try {
+            if (timeoutMs < 0) {
+                future.get();
+            } else {
+                future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException("Could not send to WebSocket client within [" + timeoutMs + "] ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private final Session session;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    /** guarded by {@code this} */
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    /** guarded by {@code this}; {@code true} if a frame is being written at the moment */
+    private boolean sending = false;
+    /** guarded by {@code this}; {@code true} if no frames can be sent anymore, see {@link #abandon(IOException)} */
+    private boolean abandoned = false;
+
+    OutboundQueue(Session session, int capacity, SlowConsumerPolicy policy) {
+        super();
+        this.session = session;
+        this.capacity = capacity;
+        this.policy = policy;
+        session.getAsyncRemote().setSendTimeout(sendTimeoutMs);
+    }
+
+    /**
+     * @return the number of frames waiting in this queue
+     */
+    public synchronized int depth() {
+        return frames.size();
+    }
+
+    /**
+     * @return the default number of milliseconds to wait for a frame to be sent
+     */
+    public long getSendTimeoutMs() {
+        return sendTimeoutMs;
+    }
+
+    /**
+     * Enqueues the given {@code text} to be sent asynchronously.
+     *
+     * @param text the text to send
+     * @return a {@link CompletableFuture} completed once the text was sent or failed to be sent
+     */
+    public CompletableFuture<Void> sendText(String text) {
+        Frame frame = new Frame(text, null, null);
+        offer(frame);
+        return frame.done;
+    }
+
+    /**
+     * Enqueues the given {@code binary} data to be sent asynchronously as a single binary frame.
+     *
+     * @param binary the data to send
+     * @return a {@link CompletableFuture} completed once the data was sent or failed to be sent
+     */
+    public CompletableFuture<Void> sendBinary(ByteBuffer binary) {
+        Frame frame = new Frame(null, binary, null);
+        offer(frame);
+        return frame.done;
+    }
+
+    /**
+     * Enqueues a binary frame, waits till it is its turn and then copies the given {@code inputStream} to the client
+     * on the calling thread in partial frames, see {@link BinaryStreamSender}. The {@code inputStream} is closed when
+     * this method returns.
+     *
+     * @param inputStream the data to send
+     * @param timeoutMs how long to wait for the turn; a negative number means forever
+     * @return the number of bytes sent
+     * @throws IOException if the frame could not be sent
+     */
+    public long sendStream(InputStream inputStream, long timeoutMs) throws IOException {
+        Frame frame = new Frame(null, null, new CompletableFuture<>());
+        try {
+            offer(frame);
+            try {
+                await(frame.turn, timeoutMs);
+            } catch (IOException e) {
+                if (remove(frame)) {
+                    throw e;
+                }
+                /* the drainer has just given us our turn; wait for it even if interrupted, we owe drainNext() */
+                try {
+                    frame.turn.join();
+                } catch (CompletionException | CancellationException e2) {
+                    throw e;
+                }
+            }
+            try {
+                long size = BinaryStreamSender.send(session, inputStream, sendTimeoutMs);
+                frame.done.complete(null);
+                drainNext();
+                return size;
+            } catch (BinaryStreamSender.IncompleteMessageException e) {
+                /* nothing may follow the partial frames on the wire */
+                sendFailuresCounter.increment();
+                frame.done.completeExceptionally(e);
+                abandon(e);
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                sendFailuresCounter.increment();
+                frame.done.completeExceptionally(e);
+                drainNext();
+                throw e;
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void offer(Frame frame) {
+        Frame dropped = null;
+        boolean full = false;
+        boolean startDraining = false;
+        synchronized (this) {
+            if (abandoned) {
+                frame.fail(new IOException("WebSocket session [" + session.getId()
+                        + "] was closed after an incomplete binary message"));
+                return;
+            }
+            if (frames.size() >= capacity) {
+                if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                    dropped = frames.poll();
+                } else {
+                    full = true;
+                }
+            }
+            if (!full) {
+                frames.add(frame);
+                if (!sending) {
+                    sending = true;
+                    startDraining = true;
+                }
+            }
+        }
+
+        if (dropped != null) {
+            droppedCounter.increment();
+            log.debugf("Dropped the oldest outbound frame of WebSocket session [%s]", session.getId());
+            dropped.fail(new IOException("Frame dropped because the client is too slow"));
+        }
+        if (full) {
+            closeSlowConsumer();
+            frame.fail(new IOException("Outbound queue of WebSocket session [" + session.getId() + "] is full"));
+        }
+        if (startDraining) {
+            drainNext();
+        }
+    }
+
+    /**
+     * Fails all waiting frames and makes all frames offered later fail too. The drainer is not released, so that
+     * nothing is sent to the client anymore.
+     */
+    private void abandon(IOException cause) {
+        Frame[] doomed;
+        synchronized (this) {
+            abandoned = true;
+            doomed = frames.toArray(new Frame[frames.size()]);
+            frames.clear();
+        }
+        for (Frame frame : doomed) {
+            frame.fail(cause);
+        }
+    }
+
+    private synchronized boolean remove(Frame frame) {
+        return frames.remove(frame);
+    }
+
+    /**
+     * Sends the frames waiting in the queue one after another until the queue is empty, a send is pending or it is
+     * the turn of a stream. A send completing on the calling thread, before {@code sendText()} or {@code sendBinary()}
+     * returns, does not call this method recursively but lets the loop go on, so that the stack does not grow with
+     * the number of frames sent.
+     */
+    private void drainNext() {
+        while (true) {
+            final Frame next;
+            synchronized (this) {
+                next = frames.poll();
+                if (next == null) {
+                    sending = false;
+                    return;
+                } else if (next.turn != null) {
+                    /* the enqueuing thread will write the binary frame and call drainNext() when done */
+                    next.turn.complete(null);
+                    return;
+                }
+            }
+            /* whoever of the send call and the handler comes second continues draining */
+            final AtomicBoolean firstDone = new AtomicBoolean(false);
+            try {
+                Async asyncRemote = session.getAsyncRemote();
+                SendHandler handler = result -> {
+                    if (result.isOK()) {
+                        next.done.complete(null);
+                    } else {
+                        sendFailuresCounter.increment();
+                        next.done.completeExceptionally(result.getException());
+                    }
+                    if (!firstDone.compareAndSet(false, true)) {
+                        drainNext();
+                    }
+                };
+                if (next.text != null) {
+                    asyncRemote.sendText(next.text, handler);
+                } else {
+                    asyncRemote.sendBinary(next.binary, handler);
+                }
+            } catch (RuntimeException e) {
+                /* e.g. the session is closed already */
+                sendFailuresCounter.increment();
+                next.done.completeExceptionally(e);
+                continue;
+            }
+            if (firstDone.compareAndSet(false, true)) {
+                /* the handler will continue once the send completes */
+                return;
+            }
+        }
+    }
+
+    private void closeSlowConsumer() {
+        slowConsumersClosedCounter.increment();
+        log.warnClosingSlowConsumer(session.getId(), capacity);
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                    "Outbound queue full, the client is too slow"));
+        } catch (IOException e) {
+            log.debugf(e, "Could not close slow WebSocket session [%s]", session.getId());
+        }
+    }
+}
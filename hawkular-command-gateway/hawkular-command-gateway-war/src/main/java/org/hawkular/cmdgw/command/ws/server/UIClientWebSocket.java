@@ -26,7 +26,9 @@ import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
+import org.hawkular.cmdgw.api.ApiEncoding;
 import org.hawkular.cmdgw.api.WelcomeResponse;
+import org.hawkular.cmdgw.command.ws.RateLimiter;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
 
@@ -34,7 +36,8 @@ import org.hawkular.cmdgw.log.MsgLogger;
  * This is similiar to the feed web socket endpoint, however, it has a different set of allowed commands that can be
  * processed for a UI client.
  */
-@ServerEndpoint(UIClientWebSocket.ENDPOINT)
+@ServerEndpoint(value = UIClientWebSocket.ENDPOINT, subprotocols = { ApiEncoding.JSON_SUBPROTOCOL,
+        ApiEncoding.SMILE_SUBPROTOCOL })
 @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class UIClientWebSocket extends AbstractGatewayWebSocket {
     public static final String ENDPOINT = "/ui/ws";
@@ -44,6 +47,11 @@ public class UIClientWebSocket extends AbstractGatewayWebSocket {
         super(ENDPOINT);
     }
 
+    @Override
+    protected RateLimiter.Scope getRateLimitScope() {
+        return RateLimiter.Scope.UI_CLIENT;
+    }
+
     /**
      * When a UI client connects, this method is called. This will immediately send a welcome
      * message to the UI client.
@@ -53,6 +61,7 @@ public class UIClientWebSocket extends AbstractGatewayWebSocket {
     @OnOpen
     public void uiClientSessionOpen(Session session) {
         log.infoWsSessionOpened(session.getId(), endpoint);
+        heartbeat.touch(session);
         wsEndpoints.getUiClientSessions().addSession(session.getId(), session);
         WelcomeResponse welcomeResponse = new WelcomeResponse();
         // FIXME we should not send the true sessionIds to clients to prevent spoofing.
@@ -18,22 +18,30 @@ package org.hawkular.cmdgw.command.ws.server;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.websocket.RemoteEndpoint.Async;
-import javax.websocket.RemoteEndpoint.Basic;
 import javax.websocket.Session;
 
 import org.hawkular.bus.common.BasicMessage;
 import org.hawkular.bus.common.BasicMessageWithExtraData;
 import org.hawkular.bus.common.BinaryData;
 import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.ApiEncoding;
+import org.hawkular.cmdgw.api.AttachmentEncoding;
 import org.hawkular.cmdgw.log.GatewayLoggers;
 import org.hawkular.cmdgw.log.MsgLogger;
+import org.hawkular.cmdgw.metrics.TrafficMetrics;
+import org.hawkular.cmdgw.metrics.TrafficMetrics.Direction;
 
 /**
  * Some convienence methods when working with WebSockets.
+ * <p>
+ * All methods send through the {@link OutboundQueue} of the given session so that the frames sent to a single client
+ * never interleave and keep their order.
  */
 public class WebSocketHelper {
     private static final MsgLogger log = GatewayLoggers.getLogger(WebSocketHelper.class);
@@ -47,39 +55,84 @@ public class WebSocketHelper {
     /**
      * Creates a helper object.
      *
-     * @param timeout number of milliseconds before an asynchronous send will timeout. A negative number means no
-     *        timeout, null means use the WebSocket default timeout.
+     * @param timeout number of milliseconds to wait for a frame to be sent (for the synchronous methods) or for a
+     *        binary frame to get its turn in the {@link OutboundQueue}. A negative number means no timeout, null means
+     *        use the default timeout of the {@link OutboundQueue}.
      */
     public WebSocketHelper(Long asyncTimeout) {
         this.asyncTimeout = asyncTimeout;
     }
 
+    private long getTimeout(OutboundQueue queue) {
+        return asyncTimeout != null ? asyncTimeout.longValue() : queue.getSendTimeoutMs();
+    }
+
     public void sendTextSync(Session session, String text) throws IOException {
-        Basic basicRemote = session.getBasicRemote();
-        basicRemote.sendText(text);
+        OutboundQueue queue = OutboundQueue.of(session);
+        OutboundQueue.await(queue.sendText(text), getTimeout(queue));
     }
 
     public void sendBasicMessageSync(Session session, BasicMessage msg) throws IOException {
-        sendTextSync(session, ApiDeserializer.toHawkularFormat(msg));
+        OutboundQueue queue = OutboundQueue.of(session);
+        OutboundQueue.await(enqueue(queue, session, msg), getTimeout(queue));
     }
 
     public void sendTextAsync(Session session, String text) {
-        Async asyncRemote = session.getAsyncRemote();
-        if (this.asyncTimeout != null) {
-            asyncRemote.setSendTimeout(this.asyncTimeout.longValue());
-        }
-        asyncRemote.sendText(text);
+        OutboundQueue.of(session).sendText(text);
     }
 
     /**
-     * Converts the given message to JSON and sends that JSON text to clients asynchronously.
+     * Converts the given message to JSON (or to Smile, if the client negotiated {@link ApiEncoding#SMILE}) and sends
+     * it to clients asynchronously.
      *
-     * @param session the client session where the JSON message will be sent
-     * @param msg the message to be converted to JSON and sent
+     * @param session the client session where the message will be sent
+     * @param msg the message to be encoded and sent
      */
     public void sendBasicMessageAsync(Session session, BasicMessage msg) {
-        String text = ApiDeserializer.toHawkularFormat(msg);
-        sendTextAsync(session, text);
+        enqueue(OutboundQueue.of(session), session, msg);
+    }
+
+    /**
+     * @param session the session to check
+     * @return the {@link ApiEncoding} negotiated through the WebSocket subprotocol of the given {@code session}
+     */
+    public static ApiEncoding getEncoding(Session session) {
+        return ApiEncoding.forSubprotocol(session.getNegotiatedSubprotocol());
+    }
+
+    /**
+     * @param session the session to check
+     * @return the {@link AttachmentEncoding} requested by the client through the
+     *         {@value AttachmentEncoding#REQUEST_PARAMETER} request parameter or {@link AttachmentEncoding#IDENTITY}
+     *         if the client did not request any or requested an unknown one
+     */
+    public static AttachmentEncoding getAttachmentEncoding(Session session) {
+        List<String> values = session.getRequestParameterMap().get(AttachmentEncoding.REQUEST_PARAMETER);
+        if (values != null) {
+            for (String value : values) {
+                try {
+                    return AttachmentEncoding.forParameter(value);
+                } catch (IllegalArgumentException e) {
+                    log.debugf("Ignoring unknown attachment encoding [%s] requested by client [%s]", value,
+                            session.getId());
+                }
+            }
+        }
+        return AttachmentEncoding.IDENTITY;
+    }
+
+    private static CompletableFuture<Void> enqueue(OutboundQueue queue, Session session, BasicMessage msg) {
+        ApiEncoding encoding = getEncoding(session);
+        switch (encoding) {
+            case JSON:
+                String text = ApiDeserializer.toHawkularFormat(msg);
+                TrafficMetrics.record(Direction.WS_OUT, msg.getClass(), text.length());
+                return queue.sendText(text);
+            default:
+                byte[] bytes = ApiDeserializer.toHawkularFormatBytes(msg, encoding);
+                TrafficMetrics.record(Direction.WS_OUT, msg.getClass(), bytes.length);
+                return queue.sendBinary(ByteBuffer.wrap(bytes));
+        }
     }
 
     /**
@@ -98,8 +151,32 @@ public class WebSocketHelper {
         } else {
             // there is binary data to stream back - do it ourselves and don't return anything
             BinaryData serialized = ApiDeserializer.toHawkularFormat(message.getBasicMessage(),
-                    message.getBinaryData());
-            sendBinarySync(session, serialized);
+                    message.getBinaryData(), getEncoding(session), getAttachmentEncoding(session));
+            long size = sendBinary(session, serialized);
+            if (size >= 0) {
+                TrafficMetrics.record(Direction.WS_OUT, message.getBasicMessage().getClass(), size);
+            }
+        }
+    }
+
+    /**
+     * Delegates to either {@link #sendBasicMessageAsync(Session, BasicMessage)} or
+     * {@link #sendBinarySync(Session, InputStream)} based on {@code message.getBinaryData() == null}.
+     * <p>
+     * Note that messages with binary data are still sent synchronously because their binary data stream usually
+     * needs to be consumed by the calling thread. Such messages wait for their turn in the {@link OutboundQueue} at most
+     * for the timeout of this helper though.
+     *
+     * @param session the session to send to
+     * @param message the message to send
+     * @throws IOException if a binary message could not be sent
+     */
+    public void sendAsync(Session session, BasicMessageWithExtraData<? extends BasicMessage> message)
+            throws IOException {
+        if (message.getBinaryData() == null) {
+            sendBasicMessageAsync(session, message.getBasicMessage());
+        } else {
+            sendSync(session, message);
         }
     }
 
@@ -122,17 +199,61 @@ public class WebSocketHelper {
         log.debugf("Attempting to send async binary data to client [%s]", session.getId());
 
         if (session.isOpen()) {
-            if (this.asyncTimeout != null) {
-                // TODO: what to do with timeout?
-            }
-
-            CopyStreamRunnable runnable = new CopyStreamRunnable(session, inputStream);
+            CopyStreamRunnable runnable = new CopyStreamRunnable(session, inputStream, null);
             threadPool.execute(runnable);
         }
 
         return;
     }
 
+    /**
+     * Sends binary data to a client asynchronously on a thread of a pool shared by all helpers. The data waits for
+     * its turn in the {@link OutboundQueue} at most for the timeout of this helper, the transfer itself is cancelled if
+     * the client does not accept any data for the send timeout of the {@link OutboundQueue}.
+     * <p>
+     * Cancelling the returned future interrupts the transfer between two chunks. The {@code inputStream} is closed in
+     * any case.
+     *
+     * @param session the client session where the message will be sent
+     * @param inputStream the binary data to send
+     * @return a future completed with the number of bytes sent or exceptionally if the data could not be sent
+     */
+    public CompletableFuture<Long> sendBinaryAsync(Session session, InputStream inputStream) {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("inputStream must not be null");
+        }
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        if (session == null || !session.isOpen()) {
+            closeQuietly(inputStream);
+            result.completeExceptionally(new IOException("Session is closed"));
+            return result;
+        }
+
+        log.debugf("Attempting to send async binary data to client [%s]", session.getId());
+
+        CopyStreamRunnable runnable = new CopyStreamRunnable(session, inputStream, result);
+        result.whenComplete((size, e) -> {
+            if (result.isCancelled()) {
+                runnable.cancel();
+            }
+        });
+        try {
+            BinaryStreamSender.getExecutor().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(inputStream);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.debugf(e, "Could not close input stream");
+        }
+    }
+
     /**
      * Sends binary data to a client synchronously.
      *
@@ -141,8 +262,15 @@ public class WebSocketHelper {
      * @throws IOException if a problem occurred during delivery of the data to a session.
      */
     public void sendBinarySync(Session session, InputStream inputStream) throws IOException {
+        sendBinary(session, inputStream);
+    }
+
+    /**
+     * @return the number of bytes sent, {@code -1} if nothing was sent because the {@code session} is not open
+     */
+    private long sendBinary(Session session, InputStream inputStream) throws IOException {
         if (session == null) {
-            return;
+            return -1;
         }
 
         if (inputStream == null) {
@@ -152,56 +280,69 @@ public class WebSocketHelper {
         log.debugf("Attempting to send binary data to client [%s]", session.getId());
 
         if (session.isOpen()) {
-            long size = new CopyStreamRunnable(session, inputStream).copyInputToOutput();
+            long size = new CopyStreamRunnable(session, inputStream, null).copyInputToOutput();
             log.debugf("Finished sending binary data to client [%s]: size=[%s]", session.getId(), size);
+            return size;
         }
 
-        return;
+        return -1;
     }
 
     private class CopyStreamRunnable implements Runnable {
         private final Session session;
         private final InputStream inputStream;
+        private final CompletableFuture<Long> result;
+        private Thread thread;
+        private boolean cancelled;
 
-        public CopyStreamRunnable(Session session, InputStream inputStream) {
+        public CopyStreamRunnable(Session session, InputStream inputStream, CompletableFuture<Long> result) {
             this.session = session;
             this.inputStream = inputStream;
+            this.result = result;
         }
 
         @Override
         public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    closeQuietly(inputStream);
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
             try {
                 long size = copyInputToOutput();
                 log.debugf("Finished sending async binary data to client [%s]: size=[%s]", session.getId(), size);
+                if (result != null) {
+                    result.complete(size);
+                }
             } catch (Exception e) {
-                log.errorFailedSendingAsyncBinaryData(e, session.getId());
-            }
-        }
-
-        public long copyInputToOutput() throws IOException {
-            Basic basicRemote = session.getBasicRemote();
-            OutputStream outputStream = basicRemote.getSendStream();
-
-            try {
-                // slurp the input stream data and send directly to the output stream
-                byte[] buf = new byte[4096];
-                long totalBytesCopied = 0L;
-                while (true) {
-                    int numRead = inputStream.read(buf);
-                    if (numRead == -1) {
-                        break;
-                    }
-                    outputStream.write(buf, 0, numRead);
-                    totalBytesCopied += numRead;
+                if (result == null) {
+                    log.errorFailedSendingAsyncBinaryData(e, session.getId());
+                } else if (!result.completeExceptionally(e)) {
+                    log.debugf(e, "Cancelled sending async binary data to client [%s]", session.getId());
                 }
-                return totalBytesCopied;
             } finally {
-                try {
-                    outputStream.close();
-                } finally {
-                    inputStream.close();
+                synchronized (this) {
+                    thread = null;
+                    if (cancelled) {
+                        /* do not leak an interrupt meant for this transfer to the next task of the pool */
+                        Thread.interrupted();
+                    }
                 }
             }
         }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        public long copyInputToOutput() throws IOException {
+            OutboundQueue queue = OutboundQueue.of(session);
+            return queue.sendStream(inputStream, getTimeout(queue));
+        }
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.log;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.hawkular.cmdgw.Constants;
+
+/**
+ * Decides which of many similar events, such as the messages received from WebSocket clients, are worth an INFO log
+ * message. Logging every single message at INFO costs more than handling some of the messages under load.
+ */
+public final class LogSampler {
+
+    private final int rate;
+
+    /**
+     * @param rate an event is sampled with the probability of {@code 1/rate}; {@code 1} samples every event, {@code 0}
+     *            or less samples none
+     */
+    public LogSampler(int rate) {
+        super();
+        this.rate = rate;
+    }
+
+    /**
+     * @return a new {@link LogSampler} with the rate configured through {@link Constants#MESSAGE_LOG_SAMPLE_RATE}
+     */
+    public static LogSampler ofMessages() {
+        return new LogSampler(Integer.parseInt(System.getProperty(Constants.MESSAGE_LOG_SAMPLE_RATE,
+                String.valueOf(Constants.MESSAGE_LOG_SAMPLE_RATE_DEFAULT))));
+    }
+
+    /**
+     * @return {@code true} if the current event should be logged at INFO level
+     */
+    public boolean sample() {
+        return rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+}
@@ -190,4 +190,18 @@ public interface MsgLogger extends BasicLogger {
     @Message(id = 42, value = "Failed sending feed closed message to bus: feedId [%s], reason [%s], code [%s]")
     void errorFailedSendFeedClosedEvent(@Cause Throwable t, String feedId, String reason, String code);
 
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 43, value = "Closing WebSocket session [%s] because its outbound queue of [%d] messages is full")
+    void warnClosingSlowConsumer(String sessionId, int capacity);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 44, value = "Dropping message [%s] received from bus endpoint [%s] because no WebSocket session"
+            + " has been associated with its key within [%d] ms")
+    void warnDroppingPendingBusMessage(String messageClass, String endpoint, long ttlMs);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 45, value = "Closing WebSocket session [%s] with key [%s] of [%s] because nothing was received from"
+            + " it within [%d] ms")
+    void warnReclaimingIdleSession(String sessionId, String key, String endpoint, long idleMs);
+
 }
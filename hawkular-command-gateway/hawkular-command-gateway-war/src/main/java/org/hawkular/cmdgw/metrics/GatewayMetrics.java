@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * A simple registry of named counters, gauges and histograms describing the runtime state of the command gateway.
+ * <p>
+ * Counters are {@link LongAdder}s so that they can be incremented from many threads without contention. Gauges are
+ * {@link LongSupplier}s that are evaluated lazily when a {@link #snapshot()} is taken. {@link Histogram}s contribute
+ * several values to a snapshot, see {@link Histogram#snapshotTo(String, Map)}. {@link Meter}s contribute their count
+ * and their rate per second; the rates are updated every {@link Constants#METRICS_RATE_INTERVAL_MS}. The snapshots
+ * include the {@link TrafficMetrics} too.
+ * <p>
+ * Metric names are dot separated, e.g. {@code bus.FeedCommandQueue.routed}.
+ */
+@ApplicationScoped
+public class GatewayMetrics {
+    private static final MsgLogger log = GatewayLoggers.getLogger(GatewayMetrics.class);
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+
+    @Inject
+    private GatewayScheduler scheduler;
+
+    private ScheduledFuture<?> ticks;
+
+    @PostConstruct
+    public void initialize() {
+        long intervalMs = Long.parseLong(System.getProperty(Constants.METRICS_RATE_INTERVAL_MS,
+                String.valueOf(Constants.METRICS_RATE_INTERVAL_MS_DEFAULT)));
+        ticks = scheduler.scheduleAtFixedRate(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (Meter meter : meters.values()) {
+            meter.tick(now);
+        }
+        TrafficMetrics.tick(now);
+    }
+
+    /**
+     * Returns the counter registered under the given {@code name}, creating a new one if necessary.
+     *
+     * @param name the name of the counter
+     * @return the counter, never {@code null}
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram registered under the given {@code name}, creating a new one if necessary.
+     *
+     * @param name the name of the histogram, the unit of the recorded values should be a part of it
+     * @return the histogram, never {@code null}
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Returns the meter registered under the given {@code name}, creating a new one if necessary.
+     *
+     * @param name the name of the meter, typically the plural of what is counted, e.g. {@code bytes}
+     * @return the meter, never {@code null}
+     */
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, k -> new Meter());
+    }
+
+    /**
+     * Registers the given {@code gauge} under the given {@code name}, replacing any gauge registered under the same
+     * name before.
+     *
+     * @param name the name of the gauge
+     * @param gauge the supplier of the current value
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Unregisters the gauge registered under the given {@code name}, if any.
+     *
+     * @param name the name of the gauge to remove
+     */
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * @return the current values of all counters, gauges, histograms and meters sorted by name
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> en : counters.entrySet()) {
+            result.put(en.getKey(), en.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> en : gauges.entrySet()) {
+            result.put(en.getKey(), en.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> en : histograms.entrySet()) {
+            en.getValue().snapshotTo(en.getKey(), result);
+        }
+        for (Map.Entry<String, Meter> en : meters.entrySet()) {
+            en.getValue().snapshotTo(en.getKey(), result);
+        }
+        TrafficMetrics.snapshotTo(result);
+        return result;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Destroyed;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.hawkular.cmdgw.command.ws.WsEndpoints;
+import org.hawkular.cmdgw.log.GatewayLoggers;
+import org.hawkular.cmdgw.log.MsgLogger;
+
+/**
+ * Exposes the {@link GatewayMetrics#snapshot()} through JMX as the read-only {@code long} attributes of the MBean
+ * {@value #OBJECT_NAME}. The outbound backlog of the individual sessions, see {@link WsEndpoints#outboundBacklog()},
+ * is exposed as the {@code outbound.feeds.backlog.<feedId>} and {@code outbound.uiClients.backlog.<sessionId>}
+ * attributes.
+ * <p>
+ * The set of attributes changes as metrics get registered and sessions come and go, so the {@link MBeanInfo} is built
+ * anew on every request.
+ */
+@ApplicationScoped
+public class GatewayMetricsMBean implements DynamicMBean {
+    private static final MsgLogger log = GatewayLoggers.getLogger(GatewayMetricsMBean.class);
+
+    public static final String OBJECT_NAME = "org.hawkular.cmdgw:type=GatewayMetrics";
+
+    @Inject
+    private GatewayMetrics metrics;
+
+    @Inject
+    private WsEndpoints wsEndpoints;
+
+    private ObjectName objectName;
+
+    @PostConstruct
+    public void initialize() {
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void register(@Observes @Initialized(ApplicationScoped.class) Object ignore) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                /* a leftover of a previous deployment */
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.debugf(e, "Could not register MBean [%s]", OBJECT_NAME);
+        }
+    }
+
+    public void destroy(@Observes @Destroyed(ApplicationScoped.class) Object ignore) {
+        log.debugf("Destroying [%s]", this.getClass().getName());
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            log.debugf(e, "Could not unregister MBean [%s]", OBJECT_NAME);
+        }
+    }
+
+    private SortedMap<String, Long> values() {
+        SortedMap<String, Long> result = metrics.snapshot();
+        for (Map.Entry<String, SortedMap<String, Integer>> en : wsEndpoints.outboundBacklog().entrySet()) {
+            String prefix = "outbound." + en.getKey() + ".backlog.";
+            for (Map.Entry<String, Integer> depth : en.getValue().entrySet()) {
+                result.put(prefix + depth.getKey(), depth.getValue().longValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long result = values().get(attribute);
+        if (result == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return result;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> values = values();
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                result.add(new Attribute(attribute, value));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute [" + attribute.getName() + "] is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("No operations available on [" + OBJECT_NAME + "]");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : values().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Operational metrics of the Hawkular command gateway",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+}
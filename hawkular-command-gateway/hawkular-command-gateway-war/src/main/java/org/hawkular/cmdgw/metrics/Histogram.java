@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in milliseconds. The values are counted in
+ * buckets whose upper bounds are powers of two, so the percentiles reported by {@link #snapshotTo(String, Map)} are
+ * accurate within a factor of two, which is good enough for spotting trends and outliers.
+ */
+public class Histogram {
+    /** bucket {@code i} counts the values {@code v} for which {@code 64 - numberOfLeadingZeros(v) == i} */
+    private static final int BUCKET_COUNT = 65;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the given {@code value}. Negative values are recorded as {@code 0}.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the value at the given {@code percentile}.
+     *
+     * @param percentile a number between 0 and 100
+     * @return an upper bound of the value at the given {@code percentile}, never greater than the maximal recorded
+     *         value
+     */
+    public long getPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i].sum();
+            if (seen >= threshold) {
+                long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Puts {@code name.count}, {@code name.mean}, {@code name.max}, {@code name.p50}, {@code name.p95} and
+     * {@code name.p99} to the given {@code snapshot}.
+     *
+     * @param name the name of this histogram
+     * @param snapshot the map to put the values to
+     */
+    public void snapshotTo(String name, Map<String, Long> snapshot) {
+        long c = count.sum();
+        snapshot.put(name + ".count", c);
+        snapshot.put(name + ".mean", c == 0 ? 0 : sum.sum() / c);
+        snapshot.put(name + ".max", max.get());
+        snapshot.put(name + ".p50", getPercentile(50));
+        snapshot.put(name + ".p95", getPercentile(95));
+        snapshot.put(name + ".p99", getPercentile(99));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free counter of events, such as messages or bytes, that also knows the rate of the events per second. The
+ * rate is the one of the last complete interval between two {@link #tick(long)}s, see
+ * {@link org.hawkular.cmdgw.Constants#METRICS_RATE_INTERVAL_MS}.
+ */
+public class Meter {
+    private final LongAdder count = new LongAdder();
+    /** guarded by {@code this} */
+    private long lastCount;
+    /** guarded by {@code this} */
+    private long lastTickNanos = System.nanoTime();
+    private volatile long perSecond;
+
+    /**
+     * @param n the number of events that have just happened
+     */
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    /**
+     * @return the number of events since the start
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the number of events per second in the last interval
+     */
+    public long getPerSecond() {
+        return perSecond;
+    }
+
+    /**
+     * Ends the current interval.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    synchronized void tick(long nowNanos) {
+        long current = count.sum();
+        long elapsedNanos = nowNanos - lastTickNanos;
+        if (elapsedNanos > 0) {
+            perSecond = (current - lastCount) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+            lastCount = current;
+            lastTickNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Puts {@code name.count} and {@code name.perSecond} to the given {@code snapshot}.
+     *
+     * @param name the name of this meter
+     * @param snapshot the map to add the values to
+     */
+    public void snapshotTo(String name, Map<String, Long> snapshot) {
+        snapshot.put(name + ".count", getCount());
+        snapshot.put(name + ".perSecond", getPerSecond());
+    }
+}
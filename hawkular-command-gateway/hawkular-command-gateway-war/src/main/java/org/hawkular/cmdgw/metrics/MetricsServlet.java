@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hawkular.cmdgw.command.ws.WsEndpoints;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Returns the {@link GatewayMetrics#snapshot()} and the {@link WsEndpoints#outboundBacklog()} as a JSON object with
+ * the fields {@code metrics} and {@code outboundBacklog} on {@code GET /metrics}. The endpoint is protected by the
+ * same security constraint as the WebSocket endpoints.
+ */
+@WebServlet(urlPatterns = "/metrics")
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Inject
+    private transient GatewayMetrics metrics;
+
+    @Inject
+    private transient WsEndpoints wsEndpoints;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("metrics", metrics.snapshot());
+        result.put("outboundBacklog", wsEndpoints.outboundBacklog());
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        mapper.writeValue(response.getOutputStream(), result);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the messages and bytes passing the gateway by message class and direction, e.g.
+ * {@code ws.in.ExecuteOperationRequest.messages}. They are static because messages are sent to WebSocket clients
+ * from places without access to CDI, see {@code WebSocketHelper}; {@link GatewayMetrics} includes them in its
+ * snapshots.
+ * <p>
+ * The sizes of the messages sent to and received from the bus are not known to the gateway, so only the
+ * {@link Direction#WS_IN} and {@link Direction#WS_OUT} directions count bytes.
+ */
+public final class TrafficMetrics {
+
+    /**
+     * The direction of a message.
+     */
+    public enum Direction {
+        /** received from a WebSocket client */
+        WS_IN("ws.in"),
+        /** sent to a WebSocket client */
+        WS_OUT("ws.out"),
+        /** received from the bus */
+        BUS_IN("bus.in"),
+        /** sent to the bus */
+        BUS_OUT("bus.out");
+
+        private final String prefix;
+
+        private final ClassValue<Meter[]> meters = new ClassValue<Meter[]>() {
+            @Override
+            protected Meter[] computeValue(Class<?> messageClass) {
+                String name = prefix + "." + messageClass.getSimpleName();
+                Meter messages = TrafficMetrics.meters.computeIfAbsent(name + ".messages", k -> new Meter());
+                Meter bytes = TrafficMetrics.meters.computeIfAbsent(name + ".bytes", k -> new Meter());
+                return new Meter[] { messages, bytes };
+            }
+        };
+
+        Direction(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private static final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+
+    private static final Histogram busSendLatencyHistogram = new Histogram();
+
+    private TrafficMetrics() {
+    }
+
+    /**
+     * Counts a single message.
+     *
+     * @param direction where the message goes
+     * @param messageClass the class of the message
+     * @param bytes the size of the message or a negative number if not known
+     */
+    public static void record(Direction direction, Class<?> messageClass, long bytes) {
+        Meter[] m = direction.meters.get(messageClass);
+        m[0].mark(1);
+        if (bytes > 0) {
+            m[1].mark(bytes);
+        }
+    }
+
+    /**
+     * Counts a single message sent to the bus and records the time spent sending it.
+     *
+     * @param messageClass the class of the message
+     * @param startNanos the {@link System#nanoTime()} before the sending started
+     */
+    public static void recordBusSend(Class<?> messageClass, long startNanos) {
+        busSendLatencyHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        record(Direction.BUS_OUT, messageClass, -1);
+    }
+
+    /**
+     * @return the histogram of the time spent sending messages to the bus in microseconds
+     */
+    public static Histogram getBusSendLatencyHistogram() {
+        return busSendLatencyHistogram;
+    }
+
+    static void tick(long nowNanos) {
+        for (Meter meter : meters.values()) {
+            meter.tick(nowNanos);
+        }
+    }
+
+    static void snapshotTo(Map<String, Long> snapshot) {
+        for (Map.Entry<String, Meter> en : meters.entrySet()) {
+            en.getValue().snapshotTo(en.getKey(), snapshot);
+        }
+        busSendLatencyHistogram.snapshotTo("bus.sendLatencyUs", snapshot);
+    }
+}
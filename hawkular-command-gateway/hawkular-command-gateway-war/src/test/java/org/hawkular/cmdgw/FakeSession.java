@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * A {@link Session} for tests recording everything sent to the client as {@link #getEvents()}: {@code text:<text>},
+ * {@code binary}, {@code partial}, {@code last}, {@code ping} and {@code close:<code>}.
+ * <p>
+ * Asynchronous sends complete synchronously on the calling thread unless {@link #setHoldAsyncSends(boolean)} is set,
+ * in which case they complete only when {@link #completeHeldSends()} is called.
+ */
+public class FakeSession {
+
+    private final String id;
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final List<SendHandler> heldSends = new ArrayList<>();
+    private volatile boolean open = true;
+    private volatile boolean holdAsyncSends;
+    private volatile RuntimeException pingFailure;
+    private volatile CloseReason closeReason;
+    private final Session session;
+
+    public FakeSession(String id) {
+        this.id = id;
+        RemoteEndpoint.Basic basic = proxy(RemoteEndpoint.Basic.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "sendBinary":
+                    checkOpen();
+                    events.add(args.length > 1 && !((Boolean) args[1]) ? "partial"
+                            : args.length > 1 ? "last" : "binary");
+                    return null;
+                case "sendText":
+                    checkOpen();
+                    events.add("text:" + args[0]);
+                    return null;
+                case "sendPing":
+                    return ping();
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+        RemoteEndpoint.Async async = proxy(RemoteEndpoint.Async.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "sendText":
+                    events.add("text:" + args[0]);
+                    complete((SendHandler) args[1]);
+                    return null;
+                case "sendBinary":
+                    events.add("binary");
+                    complete((SendHandler) args[1]);
+                    return null;
+                case "sendPing":
+                    return ping();
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+        this.session = proxy(Session.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "getId":
+                    return id;
+                case "getUserProperties":
+                    return userProperties;
+                case "isOpen":
+                    return open;
+                case "getBasicRemote":
+                    return basic;
+                case "getAsyncRemote":
+                    return async;
+                case "close":
+                    CloseReason reason = args == null || args.length == 0
+                            ? new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null) : (CloseReason) args[0];
+                    if (open) {
+                        open = false;
+                        closeReason = reason;
+                        events.add("close:" + reason.getCloseCode().getCode());
+                    }
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "equals":
+                    return p == args[0];
+                case "toString":
+                    return "FakeSession[" + id + "]";
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeSession.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) {
+            throw new IOException("Session [" + id + "] closed");
+        }
+    }
+
+    private Object ping() {
+        RuntimeException failure = pingFailure;
+        if (failure != null) {
+            throw failure;
+        }
+        events.add("ping");
+        return null;
+    }
+
+    private void complete(SendHandler handler) {
+        synchronized (heldSends) {
+            if (holdAsyncSends) {
+                heldSends.add(handler);
+                return;
+            }
+        }
+        handler.onResult(new SendResult());
+    }
+
+    /**
+     * Completes the asynchronous sends held so far successfully.
+     */
+    public void completeHeldSends() {
+        List<SendHandler> handlers;
+        synchronized (heldSends) {
+            handlers = new ArrayList<>(heldSends);
+            heldSends.clear();
+        }
+        for (SendHandler handler : handlers) {
+            handler.onResult(new SendResult());
+        }
+    }
+
+    public void setHoldAsyncSends(boolean holdAsyncSends) {
+        this.holdAsyncSends = holdAsyncSends;
+    }
+
+    public void setPingFailure(RuntimeException pingFailure) {
+        this.pingFailure = pingFailure;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public List<String> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    public CloseReason getCloseReason() {
+        return closeReason;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+}
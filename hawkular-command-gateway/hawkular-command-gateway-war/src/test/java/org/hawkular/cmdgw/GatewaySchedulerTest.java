@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GatewaySchedulerTest {
+
+    private final GatewayScheduler scheduler = new GatewayScheduler();
+
+    @After
+    public void after() {
+        scheduler.destroy(null);
+    }
+
+    @Test
+    public void testFailingPeriodicTaskKeepsRunning() throws InterruptedException {
+        CountDownLatch runs = new CountDownLatch(3);
+        ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(() -> {
+            runs.countDown();
+            throw new IllegalStateException("expected by the test");
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue("Timed out", runs.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(future.isDone());
+        future.cancel(false);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testRejectsAfterDestroy() {
+        scheduler.destroy(null);
+        scheduler.schedule(() -> {
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+}
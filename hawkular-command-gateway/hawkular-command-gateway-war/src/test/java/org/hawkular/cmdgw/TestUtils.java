@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.Assert;
+
+/**
+ * Helpers shared by the tests of the gateway.
+ */
+public final class TestUtils {
+
+    private TestUtils() {
+    }
+
+    /**
+     * Waits up to ten seconds for the given {@code condition} to become {@code true}, failing the test otherwise.
+     *
+     * @param condition the condition to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @param metrics the metrics to read from
+     * @param name the name of the metric
+     * @return the current value of the metric or {@code -1} if there is no metric with the given {@code name}
+     */
+    public static long metric(GatewayMetrics metrics, String name) {
+        Long result = metrics.snapshot().get(name);
+        return result == null ? -1 : result;
+    }
+}
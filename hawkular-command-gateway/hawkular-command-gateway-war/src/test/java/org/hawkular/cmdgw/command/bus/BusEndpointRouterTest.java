@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.bus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jms.ConnectionFactory;
+
+import org.hawkular.bus.common.SimpleBasicMessage;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BusEndpointRouterTest {
+
+    private static final String METRICS_PREFIX = "bus." + Constants.FEED_COMMAND_QUEUE.getName() + ".";
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final FakeBroker broker = new FakeBroker(Constants.HEADER_FEEDID);
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    private BusEndpointRouter router;
+
+    private BusEndpointRouter start(int shardCount, long rebuildDelayMs) {
+        BusConnectionFactoryProvider provider = new BusConnectionFactoryProvider() {
+            @Override
+            public ConnectionFactory getConnectionFactory() {
+                return broker.getConnectionFactory();
+            }
+        };
+        router = new BusEndpointRouter(Constants.FEED_COMMAND_QUEUE, Constants.HEADER_FEEDID,
+                (key, session, message) -> delivered
+                        .add(key + ":" + ((SimpleBasicMessage) message.getBasicMessage()).getMessage()),
+                provider, shardCount, rebuildDelayMs, 1000, 16, 1000, 60000, metrics);
+        return router;
+    }
+
+    private List<String> delivered() {
+        synchronized (delivered) {
+            return new ArrayList<>(delivered);
+        }
+    }
+
+    @After
+    public void after() {
+        if (router != null) {
+            router.close();
+        }
+    }
+
+    @Test
+    public void testSelector() {
+        Assert.assertEquals("feedId IN ('a', 'b''c')", BusEndpointRouter.buildSelector("feedId", Arrays.asList("a",
+                "b'c")));
+    }
+
+    @Test
+    public void testShardAssignment() throws InterruptedException {
+        int shardCount = 4;
+        start(shardCount, 10);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            String key = "feed-" + i;
+            keys.add(key);
+            router.addRoute(key, new FakeSession(key).getSession());
+        }
+        TestUtils.await(() -> router.getPendingAttachmentCount() == 0);
+
+        Set<String> selected = new HashSet<>();
+        Set<Integer> shards = new HashSet<>();
+        for (FakeBroker.Consumer consumer : broker.getOpenConsumers()) {
+            Set<Integer> consumerShards = new HashSet<>();
+            for (String key : consumer.getSelectedKeys()) {
+                Assert.assertTrue(key + " selected twice", selected.add(key));
+                consumerShards.add(Math.floorMod(key.hashCode(), shardCount));
+            }
+            Assert.assertEquals("keys of one consumer belong to one shard", 1, consumerShards.size());
+            Assert.assertTrue("one consumer per shard", shards.addAll(consumerShards));
+        }
+        Assert.assertEquals(keys, selected);
+        Assert.assertEquals(shardCount, broker.getOpenConsumers().size());
+        Assert.assertEquals(40, TestUtils.metric(metrics, METRICS_PREFIX + "routes"));
+        Assert.assertEquals(shardCount, TestUtils.metric(metrics, METRICS_PREFIX + "consumers"));
+    }
+
+    @Test
+    public void testRebuildsCoalesced() throws InterruptedException {
+        start(1, 200);
+        List<FakeSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            FakeSession session = new FakeSession("feed-" + i);
+            sessions.add(session);
+            router.addRoute("feed-" + i, session.getSession());
+        }
+        TestUtils.await(() -> router.getPendingAttachmentCount() == 0);
+        Assert.assertEquals("a burst of connects results in a single consumer", 1, broker.getConsumers().size());
+        Assert.assertEquals(50, broker.getOpenConsumers().get(0).getSelectedKeys().size());
+        Assert.assertEquals(1, TestUtils.metric(metrics, METRICS_PREFIX + "selectorRebuilds"));
+
+        for (int i = 0; i < 10; i++) {
+            router.removeRoute("feed-" + i, sessions.get(i).getSession());
+        }
+        TestUtils.await(() -> broker.getConsumers().size() == 2 && broker.getOpenConsumers().size() == 1);
+        Thread.sleep(300);
+        Assert.assertEquals("a burst of disconnects results in a single rebuild", 2, broker.getConsumers().size());
+        Assert.assertEquals(40, broker.getOpenConsumers().get(0).getSelectedKeys().size());
+        Assert.assertEquals(2, TestUtils.metric(metrics, METRICS_PREFIX + "selectorRebuilds"));
+    }
+
+    @Test
+    public void testRoutingDuringRebuild() throws InterruptedException {
+        start(1, 200);
+        FakeSession a = new FakeSession("a");
+        router.addRoute("a", a.getSession());
+        TestUtils.await(() -> router.getPendingAttachmentCount() == 0);
+        broker.send("a", "m1");
+        Assert.assertEquals(Arrays.asList("a:m1"), delivered());
+
+        /* b is not selected before the rebuild, its message waits on the queue while a is served as usual */
+        router.addRoute("b", new FakeSession("b").getSession());
+        broker.send("b", "m2");
+        broker.send("a", "m3");
+        Assert.assertEquals(Arrays.asList("a:m1", "a:m3"), delivered());
+        Assert.assertEquals(1, broker.getQueueSize());
+        TestUtils.await(() -> delivered().size() == 3);
+        Assert.assertEquals(Arrays.asList("a:m1", "a:m3", "b:m2"), delivered());
+
+        /* a message for a key that is still selected but whose route is gone is kept until the route is back */
+        router.removeRoute("a", a.getSession());
+        broker.send("a", "m4");
+        Assert.assertEquals(3, delivered().size());
+        Assert.assertEquals(1, TestUtils.metric(metrics, METRICS_PREFIX + "pendingMessages"));
+        FakeSession a2 = new FakeSession("a2");
+        router.addRoute("a", a2.getSession());
+        Assert.assertEquals(Arrays.asList("a:m1", "a:m3", "b:m2", "a:m4"), delivered());
+        Assert.assertEquals(0, TestUtils.metric(metrics, METRICS_PREFIX + "pendingMessages"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, METRICS_PREFIX + "unroutable"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, METRICS_PREFIX + "pendingDropped"));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.bus;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.TextMessage;
+
+import org.hawkular.bus.common.MessageProcessor;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.api.EchoResponse;
+import org.hawkular.cmdgw.command.ws.WsSessions;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BusTopicBroadcasterTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final FakeSession fake = new FakeSession("ui1");
+    private WsSessions sessions;
+    private BusTopicBroadcaster broadcaster;
+
+    private static TextMessage textMessage(String className, String json) {
+        Map<String, String> properties = new HashMap<>();
+        if (className != null) {
+            properties.put(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, className);
+        }
+        return (TextMessage) Proxy.newProxyInstance(BusTopicBroadcasterTest.class.getClassLoader(),
+                new Class<?>[] { TextMessage.class }, (p, m, args) -> {
+                    switch (m.getName()) {
+                        case "getStringProperty":
+                            return properties.get(args[0]);
+                        case "getPropertyNames":
+                            return Collections.enumeration(properties.keySet());
+                        case "getText":
+                            return json;
+                        case "getJMSMessageID":
+                            return "ID:1";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Before
+    public void before() {
+        sessions = new WsSessions("/ui/ws");
+        sessions.addSession(fake.getSession().getId(), fake.getSession());
+        broadcaster = new BusTopicBroadcaster(Constants.HAWKULAR_TOPIC, sessions, null, 1000, metrics);
+    }
+
+    @After
+    public void after() {
+        broadcaster.close();
+        sessions.destroy();
+    }
+
+    @Test
+    public void testApiMessageBroadcast() {
+        broadcaster.onMessage(textMessage(EchoResponse.class.getName(), "{\"reply\":\"hello\"}"));
+        List<String> events = fake.getEvents();
+        Assert.assertEquals(events.toString(), 1, events.size());
+        Assert.assertTrue(events.get(0), events.get(0).startsWith("text:EchoResponse="));
+        Assert.assertTrue(events.get(0), events.get(0).contains("hello"));
+        Assert.assertEquals(Long.valueOf(0), metrics.snapshot().get("bus.HawkularTopic.skipped"));
+    }
+
+    @Test
+    public void testOtherMessagesSkipped() {
+        /* a class of another deployment that is not visible here */
+        broadcaster.onMessage(textMessage("org.hawkular.alerts.api.model.event.Alert", "{}"));
+        /* a class visible here that the UI cannot decode */
+        broadcaster.onMessage(textMessage("org.hawkular.bus.common.SimpleBasicMessage", "{\"message\":\"m\"}"));
+        /* the simple name of an API class is not a class name */
+        broadcaster.onMessage(textMessage("EchoResponse", "{}"));
+        broadcaster.onMessage(textMessage(null, "{}"));
+        Assert.assertEquals(Collections.emptyList(), fake.getEvents());
+        Assert.assertEquals(Long.valueOf(4), metrics.snapshot().get("bus.HawkularTopic.skipped"));
+        Assert.assertEquals(Long.valueOf(0), metrics.snapshot().get("bus.HawkularTopic.received"));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.bus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.hawkular.bus.common.MessageProcessor;
+
+/**
+ * A single in-memory queue for tests, reachable through {@link #getConnectionFactory()}. It understands just the
+ * {@code header IN ('key1', ...)} selectors built by {@link BusEndpointRouter#buildSelector(String, java.util.Collection)}
+ * and delivers each message to the first open consumer selecting it, synchronously on the calling thread. Messages
+ * no consumer selects wait on the queue like on a real broker.
+ */
+class FakeBroker {
+
+    /**
+     * A consumer created through {@link FakeBroker#getConnectionFactory()}.
+     */
+    static final class Consumer {
+        private final Set<String> selectedKeys;
+        private volatile MessageListener listener;
+        private volatile boolean closed;
+
+        private Consumer(Set<String> selectedKeys) {
+            this.selectedKeys = selectedKeys;
+        }
+
+        Set<String> getSelectedKeys() {
+            return selectedKeys;
+        }
+    }
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("'((?:[^']|'')*)'");
+
+    private final String routingHeader;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final List<TextMessage> queue = new ArrayList<>();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final ConnectionFactory connectionFactory;
+
+    FakeBroker(String routingHeader) {
+        this.routingHeader = routingHeader;
+        Queue destination = proxy(Queue.class, (p, m, args) -> "getQueueName".equals(m.getName()) ? "queue" : null);
+        Session session = proxy(Session.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "createQueue":
+                    return destination;
+                case "createConsumer":
+                    return createConsumer(args.length > 1 ? (String) args[1] : null);
+                default:
+                    return null;
+            }
+        });
+        Connection connection = proxy(Connection.class,
+                (p, m, args) -> "createSession".equals(m.getName()) ? session : null);
+        this.connectionFactory = proxy(ConnectionFactory.class,
+                (p, m, args) -> "createConnection".equals(m.getName()) ? connection : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeBroker.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private synchronized MessageConsumer createConsumer(String selector) {
+        Set<String> keys = new LinkedHashSet<>();
+        Matcher matcher = KEY_PATTERN.matcher(selector);
+        while (matcher.find()) {
+            keys.add(matcher.group(1).replace("''", "'"));
+        }
+        Consumer consumer = new Consumer(Collections.unmodifiableSet(keys));
+        consumers.add(consumer);
+        return proxy(MessageConsumer.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "setMessageListener":
+                    consumer.listener = (MessageListener) args[0];
+                    deliverQueued();
+                    return null;
+                case "close":
+                    consumer.closed = true;
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    ConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * @return all consumers created so far, including the closed ones
+     */
+    synchronized List<Consumer> getConsumers() {
+        return new ArrayList<>(consumers);
+    }
+
+    /**
+     * @return the consumers that are neither closed nor replaced yet
+     */
+    synchronized List<Consumer> getOpenConsumers() {
+        List<Consumer> result = new ArrayList<>();
+        for (Consumer consumer : consumers) {
+            if (!consumer.closed) {
+                result.add(consumer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of messages no open consumer has selected yet
+     */
+    synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Puts a {@link org.hawkular.bus.common.SimpleBasicMessage} with the given {@code text} and the given {@code key}
+     * in the routing header on the queue.
+     */
+    synchronized void send(String key, String text) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(routingHeader, key);
+        properties.put(MessageProcessor.HEADER_BASIC_MESSAGE_CLASS, "org.hawkular.bus.common.SimpleBasicMessage");
+        String id = "ID:" + messageIds.incrementAndGet();
+        String json = "{\"message\":\"" + text + "\"}";
+        queue.add(proxy(TextMessage.class, (p, m, args) -> {
+            switch (m.getName()) {
+                case "getStringProperty":
+                    return properties.get(args[0]);
+                case "getPropertyNames":
+                    return Collections.enumeration(properties.keySet());
+                case "getText":
+                    return json;
+                case "getJMSMessageID":
+                    return id;
+                case "getJMSTimestamp":
+                case "getJMSExpiration":
+                    return 0L;
+                default:
+                    return null;
+            }
+        }));
+        deliverQueued();
+    }
+
+    private synchronized void deliverQueued() {
+        for (Iterator<TextMessage> it = queue.iterator(); it.hasNext();) {
+            TextMessage message = it.next();
+            String key;
+            try {
+                key = message.getStringProperty(routingHeader);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            for (Consumer consumer : consumers) {
+                if (!consumer.closed && consumer.listener != null && consumer.selectedKeys.contains(key)) {
+                    it.remove();
+                    consumer.listener.onMessage(message);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.api.ResourceDestination;
+import org.hawkular.cmdgw.api.UpdateCollectionIntervalsRequest;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandCoalescerTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final GatewayScheduler scheduler = new GatewayScheduler();
+    private final FakeSession fake = new FakeSession("ui1");
+    private final List<String> forwarded = Collections.synchronizedList(new ArrayList<>());
+    private CommandCoalescer coalescer;
+
+    private static BasicMessageWithExtraData<ResourceDestination> request(String senderRequestId) {
+        UpdateCollectionIntervalsRequest result = new UpdateCollectionIntervalsRequest();
+        result.setFeedId("feed1");
+        result.setResourceId("resource1");
+        result.setSenderRequestId(senderRequestId);
+        return new BasicMessageWithExtraData<>(result, null);
+    }
+
+    private void start(long windowMs) {
+        System.setProperty(Constants.COALESCE_WINDOW_MS, String.valueOf(windowMs));
+        try {
+            coalescer = new CommandCoalescer(metrics, scheduler);
+            coalescer.initialize();
+        } finally {
+            System.clearProperty(Constants.COALESCE_WINDOW_MS);
+        }
+    }
+
+    private void submit(BasicMessageWithExtraData<ResourceDestination> message) {
+        WsCommandContext context = new WsCommandContext(null, fake.getSession(), null, null, null, null, coalescer,
+                null, null);
+        coalescer.submit(message, context, (m, c) -> {
+            forwarded.add(((UpdateCollectionIntervalsRequest) m.getBasicMessage()).getSenderRequestId());
+            return "forwarded";
+        });
+    }
+
+    @After
+    public void after() {
+        if (coalescer != null) {
+            coalescer.destroy(null);
+        }
+        scheduler.destroy(null);
+    }
+
+    @Test
+    public void testSupersededResponseCarriesSenderRequestId() throws InterruptedException {
+        start(200);
+        BasicMessageWithExtraData<ResourceDestination> first = request("r1");
+        Assert.assertTrue(coalescer.isCoalesced(first));
+        submit(first);
+        submit(request("r2"));
+        TestUtils.await(() -> fake.getEvents().size() == 2);
+        List<String> events = fake.getEvents();
+
+        String coalesced = events.get(0);
+        Assert.assertTrue(coalesced, coalesced.startsWith("text:GenericSuccessResponse="));
+        Assert.assertTrue(coalesced, coalesced.contains("coalesced"));
+        Assert.assertTrue(coalesced, coalesced.contains("\"senderRequestId\":\"r1\""));
+
+        String forwardedResponse = events.get(1);
+        Assert.assertTrue(forwardedResponse, forwardedResponse.contains("\"message\":\"forwarded\""));
+        Assert.assertTrue(forwardedResponse, forwardedResponse.contains("\"senderRequestId\":\"r2\""));
+
+        Assert.assertEquals(Collections.singletonList("r2"), forwarded);
+        Assert.assertEquals(Long.valueOf(1), metrics.snapshot().get("coalescer.coalesced"));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FanOutWsCommandTest {
+
+    @Test
+    public void testGlobMatches() {
+        Assert.assertTrue(FanOutWsCommand.globMatches("*", ""));
+        Assert.assertTrue(FanOutWsCommand.globMatches("*", "feed1"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("feed1", "feed1"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("feed?", "feed1"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("prod-*", "prod-eap-01"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("*-eap-*", "prod-eap-01"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("*01", "prod-eap-01"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("p*a*a*1", "prod-eap-aa1"));
+
+        Assert.assertFalse(FanOutWsCommand.globMatches("", "feed1"));
+        Assert.assertFalse(FanOutWsCommand.globMatches("feed", "feed1"));
+        Assert.assertFalse(FanOutWsCommand.globMatches("feed?", "feed"));
+        Assert.assertFalse(FanOutWsCommand.globMatches("prod-*", "test-eap-01"));
+        Assert.assertFalse(FanOutWsCommand.globMatches("*02", "prod-eap-01"));
+        /* regular expression syntax has no special meaning */
+        Assert.assertFalse(FanOutWsCommand.globMatches("feed.*", "feed1"));
+        Assert.assertTrue(FanOutWsCommand.globMatches("feed.*", "feed.1"));
+        Assert.assertFalse(FanOutWsCommand.globMatches("[a-z]*", "feed1"));
+    }
+
+    @Test
+    public void testNoCatastrophicBacktracking() {
+        StringBuilder glob = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            glob.append("*a");
+        }
+        glob.append("*b");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append('a');
+        }
+        long start = System.nanoTime();
+        Assert.assertFalse(FanOutWsCommand.globMatches(glob.toString(), text.toString()));
+        long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Took [" + tookMs + "] ms", tookMs < 5000);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.ResourceDestination;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FeedCommandParkingTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final GatewayScheduler scheduler = new GatewayScheduler();
+    private final WsEndpoints wsEndpoints = new WsEndpoints();
+    private final FakeSession ui = new FakeSession("ui1");
+    private FeedCommandParking parking;
+
+    private static BasicMessageWithExtraData<ResourceDestination> request(String senderRequestId) {
+        ExecuteOperationRequest result = new ExecuteOperationRequest();
+        result.setFeedId("feed1");
+        result.setResourceId("resource1");
+        result.setOperationName("Reload");
+        result.setSenderRequestId(senderRequestId);
+        return new BasicMessageWithExtraData<>(result, null);
+    }
+
+    private void start(long ttlMs) {
+        System.setProperty(Constants.FEED_PARKING_TTL_MS, String.valueOf(ttlMs));
+        try {
+            parking = new FeedCommandParking(metrics, wsEndpoints, scheduler);
+            parking.initialize();
+        } finally {
+            System.clearProperty(Constants.FEED_PARKING_TTL_MS);
+        }
+    }
+
+    /**
+     * @return a context without {@link LocalDelivery} and {@link InFlightRequests} so that forwarding fails
+     */
+    private WsCommandContext context() {
+        return new WsCommandContext(null, ui.getSession(), wsEndpoints.getUiClientSessions(),
+                wsEndpoints.getFeedSessions(), null, null, null, parking, null);
+    }
+
+    @After
+    public void after() {
+        if (parking != null) {
+            parking.destroy(null);
+        }
+        scheduler.destroy(null);
+    }
+
+    @Test
+    public void testExpiredResponseCarriesSenderRequestId() throws InterruptedException {
+        start(100);
+        Assert.assertTrue(parking.park(request("r1"), context()));
+        TestUtils.await(() -> !ui.getEvents().isEmpty());
+        String event = ui.getEvents().get(0);
+        Assert.assertTrue(event, event.startsWith("text:GenericErrorResponse="));
+        Assert.assertTrue(event, event.contains("expired"));
+        Assert.assertTrue(event, event.contains("\"senderRequestId\":\"r1\""));
+        Assert.assertEquals(Long.valueOf(1), metrics.snapshot().get("parking.expired"));
+    }
+
+    @Test
+    public void testReplayFailureResponseCarriesSenderRequestId() throws InterruptedException {
+        start(60000);
+        Assert.assertTrue(parking.park(request("r2"), context()));
+        wsEndpoints.getFeedSessions().addSession("feed1", new FakeSession("feed1").getSession());
+        TestUtils.await(() -> !ui.getEvents().isEmpty());
+        String event = ui.getEvents().get(0);
+        Assert.assertTrue(event, event.startsWith("text:GenericErrorResponse="));
+        Assert.assertTrue(event, event.contains("Failed to forward parked message"));
+        Assert.assertTrue(event, event.contains("\"senderRequestId\":\"r2\""));
+    }
+}
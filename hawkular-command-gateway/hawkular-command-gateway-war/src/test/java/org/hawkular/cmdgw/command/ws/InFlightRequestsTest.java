@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.api.ExecuteOperationRequest;
+import org.hawkular.cmdgw.api.ExecuteOperationResponse;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InFlightRequestsTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final GatewayScheduler scheduler = new GatewayScheduler();
+    private final WsEndpoints wsEndpoints = new WsEndpoints();
+    private final FakeSession fake = new FakeSession("ui1");
+    private InFlightRequests inFlight;
+
+    private static ExecuteOperationRequest request(String senderRequestId) {
+        ExecuteOperationRequest result = new ExecuteOperationRequest();
+        result.setSenderRequestId(senderRequestId);
+        return result;
+    }
+
+    private static ExecuteOperationResponse response(String sessionId, String senderRequestId) {
+        ExecuteOperationResponse result = new ExecuteOperationResponse();
+        result.setDestinationSessionId(sessionId);
+        result.setSenderRequestId(senderRequestId);
+        return result;
+    }
+
+    private InFlightRequests start(long timeoutMs) {
+        System.setProperty(Constants.IN_FLIGHT_TIMEOUT_MS, String.valueOf(timeoutMs));
+        try {
+            inFlight = new InFlightRequests(metrics, wsEndpoints, scheduler);
+            inFlight.initialize();
+        } finally {
+            System.clearProperty(Constants.IN_FLIGHT_TIMEOUT_MS);
+        }
+        return inFlight;
+    }
+
+    @After
+    public void after() {
+        if (inFlight != null) {
+            inFlight.destroy(null);
+        }
+        scheduler.destroy(null);
+        wsEndpoints.getUiClientSessions().destroy();
+        wsEndpoints.getFeedSessions().destroy();
+    }
+
+    @Test
+    public void testResponseCompletesRequest() {
+        start(Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT);
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "inFlight.pending"));
+
+        Assert.assertFalse(inFlight.complete(response("ui1", "other")));
+        Assert.assertFalse(inFlight.complete(response("ui2", "r1")));
+        Assert.assertTrue(inFlight.complete(response("ui1", "r1")));
+        Assert.assertFalse("completed only once", inFlight.complete(response("ui1", "r1")));
+
+        Assert.assertEquals(0, TestUtils.metric(metrics, "inFlight.pending"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "inFlight.ExecuteOperationRequest.roundTripUs.count"));
+        Assert.assertEquals(Collections.emptyList(), fake.getEvents());
+    }
+
+    @Test
+    public void testUntracked() {
+        start(Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT);
+        Assert.assertFalse(inFlight.track(fake.getSession(), request(null), "feed1"));
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        Assert.assertFalse("senderRequestId reused", inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "inFlight.pending"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "inFlight.untracked"));
+
+        inFlight.forget(fake.getSession(), request("r1"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "inFlight.pending"));
+        Assert.assertFalse(inFlight.complete(response("ui1", "r1")));
+    }
+
+    @Test
+    public void testNoTimeoutByDefault() throws InterruptedException {
+        Assert.assertEquals(0, Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT);
+        start(Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT);
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        Thread.sleep(100);
+        Assert.assertEquals(Collections.emptyList(), fake.getEvents());
+        Assert.assertEquals(0, TestUtils.metric(metrics, "inFlight.timedOut"));
+        Assert.assertTrue(inFlight.complete(response("ui1", "r1")));
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        start(50);
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        TestUtils.await(() -> TestUtils.metric(metrics, "inFlight.timedOut") == 1);
+        TestUtils.await(() -> !fake.getEvents().isEmpty());
+
+        List<String> events = fake.getEvents();
+        Assert.assertEquals(events.toString(), 1, events.size());
+        Assert.assertTrue(events.get(0), events.get(0).startsWith("text:GenericErrorResponse="));
+        Assert.assertTrue(events.get(0), events.get(0).contains("\"senderRequestId\":\"r1\""));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "inFlight.pending"));
+        Assert.assertFalse("a late response completes nothing", inFlight.complete(response("ui1", "r1")));
+    }
+
+    @Test
+    public void testSessionCloseEvicts() throws InterruptedException {
+        start(Constants.IN_FLIGHT_TIMEOUT_MS_DEFAULT);
+        WsSessions uiClients = wsEndpoints.getUiClientSessions();
+        uiClients.addSession("ui1", fake.getSession());
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r1"), "feed1"));
+        Assert.assertTrue(inFlight.track(fake.getSession(), request("r2"), "feed2"));
+        Assert.assertEquals(2, TestUtils.metric(metrics, "inFlight.pending"));
+
+        uiClients.removeSession("ui1", fake.getSession());
+        TestUtils.await(() -> TestUtils.metric(metrics, "inFlight.evicted") == 2);
+        Assert.assertEquals(0, TestUtils.metric(metrics, "inFlight.pending"));
+        Assert.assertFalse(inFlight.complete(response("ui1", "r1")));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.cmdgw.Constants;
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.command.ws.RateLimiter.Limit;
+import org.hawkular.cmdgw.command.ws.RateLimiter.Scope;
+import org.hawkular.cmdgw.command.ws.RateLimiter.TokenBucket;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+
+    private RateLimiter start(String feedLimits, String policy) {
+        System.setProperty(Constants.FEED_RATE_LIMITS, feedLimits);
+        System.setProperty(Constants.RATE_LIMIT_POLICY, policy);
+        System.setProperty(Constants.RATE_LIMIT_BURST_MS, "60000");
+        try {
+            RateLimiter result = new RateLimiter(metrics);
+            result.init();
+            return result;
+        } finally {
+            System.clearProperty(Constants.FEED_RATE_LIMITS);
+            System.clearProperty(Constants.RATE_LIMIT_POLICY);
+            System.clearProperty(Constants.RATE_LIMIT_BURST_MS);
+        }
+    }
+
+    @Test
+    public void testParse() {
+        Map<String, Limit> limits = Limit.parse(" *:100:1048576 , ,EventDestination:10:0,");
+        Assert.assertEquals(2, limits.size());
+        Assert.assertNotNull(limits.get(RateLimiter.ALL_MESSAGES));
+        Assert.assertNotNull(limits.get("EventDestination"));
+        Assert.assertTrue(Limit.parse("").isEmpty());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        for (String invalid : new String[] { "*:100", "*:100:1:1", "*:x:1" }) {
+            try {
+                Limit.parse(invalid);
+                Assert.fail("[" + invalid + "] should be rejected");
+            } catch (IllegalArgumentException expected) {
+                /* NumberFormatException is an IllegalArgumentException too */
+            }
+        }
+    }
+
+    @Test
+    public void testBucketBurst() {
+        /* 10 tokens per second with a burst of one second */
+        TokenBucket bucket = new TokenBucket(10, SECOND);
+        long now = 1000 * SECOND;
+        int acquired = 0;
+        while (bucket.tryAcquire(1, now)) {
+            acquired++;
+        }
+        /* the burst window of one second admits ten tokens */
+        Assert.assertEquals(10, acquired);
+        Assert.assertFalse(bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void testBucketRefill() {
+        TokenBucket bucket = new TokenBucket(10, SECOND);
+        long now = 1000 * SECOND;
+        while (bucket.tryAcquire(1, now)) {
+            /* drain */
+        }
+        /* one token comes back every 100 ms */
+        Assert.assertFalse(bucket.tryAcquire(1, now + SECOND / 20));
+        Assert.assertTrue(bucket.tryAcquire(1, now + SECOND / 10));
+        Assert.assertFalse(bucket.tryAcquire(1, now + SECOND / 10));
+        /* long after the bucket got full again, the burst is available again */
+        long later = now + 10 * SECOND;
+        int acquired = 0;
+        while (bucket.tryAcquire(1, later)) {
+            acquired++;
+        }
+        Assert.assertEquals(10, acquired);
+    }
+
+    @Test
+    public void testBucketOverdraft() {
+        TokenBucket bucket = new TokenBucket(100, SECOND);
+        long now = 1000 * SECOND;
+        /* more than the burst passes when the bucket is full */
+        Assert.assertTrue(bucket.tryAcquire(1000, now));
+        /* but then nothing passes till the overdraft is paid back */
+        Assert.assertFalse(bucket.tryAcquire(1, now + 9 * SECOND));
+        Assert.assertTrue(bucket.tryAcquire(1, now + 10 * SECOND));
+    }
+
+    @Test
+    public void testRejectedCountersRegisteredUpFront() {
+        start("", RateLimiter.Policy.REJECT.name());
+        Assert.assertEquals(0, TestUtils.metric(metrics, "rateLimit.feeds.rejected"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "rateLimit.uiClients.rejected"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "rateLimit.sessionsClosed"));
+    }
+
+    @Test
+    public void testRejectMessages() {
+        RateLimiter limiter = start("EventDestination:1:0", RateLimiter.Policy.REJECT.name());
+        FakeSession fake = new FakeSession("feed1");
+        int passed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (limiter.tryAcquire(fake.getSession(), Scope.FEED, "EventDestination", 10) == null) {
+                passed++;
+            }
+        }
+        /* the burst window of a minute admits 60 messages */
+        Assert.assertEquals(60, passed);
+        Assert.assertEquals(100 - passed, TestUtils.metric(metrics, "rateLimit.feeds.rejected"));
+        /* other classes are not limited */
+        Assert.assertNull(limiter.tryAcquire(fake.getSession(), Scope.FEED, "FeedWebSocketClosed", 10));
+        /* neither are UI clients */
+        Assert.assertNull(limiter.tryAcquire(fake.getSession(), Scope.UI_CLIENT, "EventDestination", 10));
+        Assert.assertTrue(fake.isOpen());
+    }
+
+    @Test
+    public void testCloseSessionOnBytes() {
+        RateLimiter limiter = start("*:0:1", RateLimiter.Policy.CLOSE_SESSION.name());
+        FakeSession fake = new FakeSession("feed1");
+        Assert.assertNull(limiter.tryAcquire(fake.getSession(), Scope.FEED, "EventDestination", 60));
+        Assert.assertNotNull(limiter.tryAcquire(fake.getSession(), Scope.FEED, "EventDestination", 60));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "rateLimit.feeds.rejected"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "rateLimit.sessionsClosed"));
+        Assert.assertFalse(fake.isOpen());
+    }
+}
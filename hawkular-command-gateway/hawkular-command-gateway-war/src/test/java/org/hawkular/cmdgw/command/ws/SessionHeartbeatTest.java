@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.cmdgw.FakeSession;
+import org.hawkular.cmdgw.GatewayScheduler;
+import org.hawkular.cmdgw.TestUtils;
+import org.hawkular.cmdgw.metrics.GatewayMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionHeartbeatTest {
+
+    /* the defaults of Constants.HEARTBEAT_INTERVAL_MS and Constants.IDLE_TIMEOUT_MS */
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(90);
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final GatewayScheduler scheduler = new GatewayScheduler();
+    private final WsEndpoints wsEndpoints = new WsEndpoints();
+    private final FakeSession feed = new FakeSession("s1");
+    private SessionHeartbeat heartbeat;
+    private long start;
+
+    @Before
+    public void before() {
+        heartbeat = new SessionHeartbeat(wsEndpoints, metrics, scheduler);
+        heartbeat.initialize();
+        heartbeat.touch(feed.getSession());
+        start = System.nanoTime();
+        wsEndpoints.getFeedSessions().addSession("feed1", feed.getSession());
+    }
+
+    @After
+    public void after() {
+        heartbeat.destroy(null);
+        scheduler.destroy(null);
+        wsEndpoints.getUiClientSessions().destroy();
+        wsEndpoints.getFeedSessions().destroy();
+    }
+
+    @Test
+    public void testActiveSessionLeftAlone() {
+        heartbeat.beat(start + INTERVAL_NANOS / 2);
+        Assert.assertEquals(Collections.emptyList(), feed.getEvents());
+        Assert.assertSame(feed.getSession(), wsEndpoints.getFeedSessions().getSession("feed1"));
+    }
+
+    @Test
+    public void testQuietSessionPinged() {
+        heartbeat.beat(start + INTERVAL_NANOS + 1);
+        heartbeat.beat(start + 2 * INTERVAL_NANOS + 1);
+        Assert.assertEquals(Arrays.asList("ping", "ping"), feed.getEvents());
+        Assert.assertEquals(2, TestUtils.metric(metrics, "sessions.pingsSent"));
+        Assert.assertSame(feed.getSession(), wsEndpoints.getFeedSessions().getSession("feed1"));
+    }
+
+    @Test
+    public void testIdleSessionReclaimed() {
+        heartbeat.beat(start + IDLE_TIMEOUT_NANOS + TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(Collections.singletonList("close:1001"), feed.getEvents());
+        Assert.assertNull(wsEndpoints.getFeedSessions().getSession("feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "sessions.feeds.reclaimed"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "sessions.uiClients.reclaimed"));
+    }
+
+    @Test
+    public void testClosedSessionReclaimed() throws Exception {
+        feed.getSession().close();
+        heartbeat.beat(start + 1);
+        Assert.assertNull(wsEndpoints.getFeedSessions().getSession("feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "sessions.feeds.reclaimed"));
+    }
+
+    @Test
+    public void testPingFailureLeavesDecisionToIdleTimeout() {
+        feed.setPingFailure(new IllegalStateException("a concurrent send is in progress"));
+        heartbeat.beat(start + INTERVAL_NANOS + 1);
+        Assert.assertTrue(feed.isOpen());
+        Assert.assertSame(feed.getSession(), wsEndpoints.getFeedSessions().getSession("feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "sessions.pingFailures"));
+        Assert.assertEquals(0, TestUtils.metric(metrics, "sessions.feeds.reclaimed"));
+
+        heartbeat.beat(start + IDLE_TIMEOUT_NANOS + TimeUnit.SECONDS.toNanos(1));
+        Assert.assertFalse(feed.isOpen());
+        Assert.assertNull(wsEndpoints.getFeedSessions().getSession("feed1"));
+        Assert.assertEquals(1, TestUtils.metric(metrics, "sessions.feeds.reclaimed"));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.hawkular.bus.common.BasicMessage;
+import org.hawkular.bus.common.BasicMessageWithExtraData;
+import org.hawkular.cmdgw.api.ApiDeserializer;
+import org.hawkular.cmdgw.api.EchoRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedReaderTest {
+
+    /**
+     * An {@code EchoRequest} whose {@code echoMessage} has {@code size} characters, generated while being read.
+     */
+    private static class HugeEchoRequestReader extends Reader {
+        private static final String PREFIX = "EchoRequest={\"echoMessage\":\"";
+        private static final String SUFFIX = "\"}";
+        private final long length;
+        private long position;
+
+        HugeEchoRequestReader(long size) {
+            this.length = PREFIX.length() + size + SUFFIX.length();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int i = 0;
+            for (; i < len && position < length; i++, position++) {
+                if (position < PREFIX.length()) {
+                    cbuf[off + i] = PREFIX.charAt((int) position);
+                } else if (position >= length - SUFFIX.length()) {
+                    cbuf[off + i] = SUFFIX.charAt((int) (position - (length - SUFFIX.length())));
+                } else {
+                    cbuf[off + i] = 'x';
+                }
+            }
+            return i == 0 && len > 0 ? -1 : i;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testOverLimitRejectedWithoutReadingInFull() {
+        long size = 100L * 1024 * 1024;
+        int limit = 1024;
+        HugeEchoRequestReader in = new HugeEchoRequestReader(size);
+        BoundedReader reader = new BoundedReader(in, limit);
+        try {
+            new ApiDeserializer().deserialize(reader);
+            Assert.fail("Deserialized a message longer than the limit");
+        } catch (RuntimeException expected) {
+        }
+        Assert.assertTrue(reader.isExceeded());
+        /* the parser reads ahead by one buffer at most */
+        Assert.assertTrue("Read [" + in.position + "] characters", in.position < 64 * 1024);
+    }
+
+    @Test
+    public void testWithinLimit() {
+        String message = "EchoRequest={\"echoMessage\":\"hello\"}";
+        BoundedReader reader = new BoundedReader(new StringReader(message), message.length());
+        BasicMessageWithExtraData<BasicMessage> request = new ApiDeserializer().deserialize(reader);
+        Assert.assertEquals("hello", ((EchoRequest) request.getBasicMessage()).getEchoMessage());
+        Assert.assertFalse(reader.isExceeded());
+        Assert.assertEquals(message.length(), reader.getCount());
+        Assert.assertEquals(message.length(), reader.getUtf8Length());
+    }
+
+    @Test
+    public void testUtf8Length() {
+        String echo = "\u00e9\u20ac\ud83d\ude00";
+        String message = "EchoRequest={\"echoMessage\":\"" + echo + "\"}";
+        BoundedReader reader = new BoundedReader(new StringReader(message), 0);
+        BasicMessageWithExtraData<BasicMessage> request = new ApiDeserializer().deserialize(reader);
+        Assert.assertEquals(echo, ((EchoRequest) request.getBasicMessage()).getEchoMessage());
+        Assert.assertEquals(message.length(), reader.getCount());
+        Assert.assertEquals(message.getBytes(StandardCharsets.UTF_8).length, reader.getUtf8Length());
+    }
+
+    @Test
+    public void testNoLimit() {
+        BoundedReader reader = new BoundedReader(new HugeEchoRequestReader(1024 * 1024), 0);
+        BasicMessageWithExtraData<BasicMessage> request = new ApiDeserializer().deserialize(reader);
+        Assert.assertEquals(1024 * 1024, ((EchoRequest) request.getBasicMessage()).getEchoMessage().length());
+        Assert.assertFalse(reader.isExceeded());
+    }
+}
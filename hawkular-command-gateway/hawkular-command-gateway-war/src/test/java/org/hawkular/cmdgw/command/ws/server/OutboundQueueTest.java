@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.cmdgw.command.ws.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import javax.websocket.CloseReason;
+
+import org.hawkular.cmdgw.FakeSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+    private static final int CHUNK_SIZE = BinaryStreamSender.getBufferPool().getBufferSize();
+
+    /**
+     * Delivers {@code size} zero bytes and runs {@link #onProgress(long)} after each read.
+     */
+    private static class ZeroStream extends InputStream {
+        private final long size;
+        private long position;
+
+        ZeroStream(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+            int result = (int) Math.min(len, size - position);
+            Arrays.fill(b, off, off + result, (byte) 0);
+            position += result;
+            onProgress(position);
+            return result;
+        }
+
+        protected void onProgress(long position) throws IOException {
+        }
+    }
+
+    @Test
+    public void testStreamCancelledMidTransferClosesSessionAndSendsNothingElse() throws Exception {
+        FakeSession fake = new FakeSession("s1");
+        OutboundQueue queue = OutboundQueue.of(fake.getSession());
+        CompletableFuture<?>[] after = new CompletableFuture<?>[1];
+        InputStream stream = new ZeroStream(10L * CHUNK_SIZE) {
+            @Override
+            protected void onProgress(long position) {
+                if (position > 2L * CHUNK_SIZE && after[0] == null) {
+                    /* a frame enqueued while the stream is on the wire, then the transfer gets cancelled */
+                    after[0] = queue.sendText("after");
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            queue.sendStream(stream, 1000);
+            Assert.fail("The interrupted transfer should have failed");
+        } catch (BinaryStreamSender.IncompleteMessageException expected) {
+            /* expected */
+        } finally {
+            Thread.interrupted();
+        }
+
+        Assert.assertEquals(Arrays.asList("partial", "partial",
+                "close:" + CloseReason.CloseCodes.UNEXPECTED_CONDITION.getCode()), fake.getEvents());
+        Assert.assertTrue(after[0].isCompletedExceptionally());
+
+        CompletableFuture<Void> later = queue.sendText("later");
+        Assert.assertTrue(later.isCompletedExceptionally());
+        Assert.assertEquals(3, fake.getEvents().size());
+    }
+
+    @Test
+    public void testStreamFailingBeforeFirstFrameKeepsDraining() throws Exception {
+        FakeSession fake = new FakeSession("s2");
+        OutboundQueue queue = OutboundQueue.of(fake.getSession());
+        CompletableFuture<?>[] after = new CompletableFuture<?>[1];
+        InputStream stream = new ZeroStream(10L * CHUNK_SIZE) {
+            @Override
+            protected void onProgress(long position) throws IOException {
+                after[0] = queue.sendText("after");
+                throw new IOException("Cannot read");
+            }
+        };
+        try {
+            queue.sendStream(stream, 1000);
+            Assert.fail("The transfer should have failed");
+        } catch (IOException expected) {
+            Assert.assertFalse(expected instanceof BinaryStreamSender.IncompleteMessageException);
+        }
+
+        Assert.assertEquals(Arrays.asList("text:after"), fake.getEvents());
+        Assert.assertTrue(after[0].isDone() && !after[0].isCompletedExceptionally());
+        Assert.assertTrue(fake.isOpen());
+    }
+
+    @Test
+    public void testCompleteStream() throws Exception {
+        FakeSession fake = new FakeSession("s3");
+        OutboundQueue queue = OutboundQueue.of(fake.getSession());
+        Assert.assertEquals(2L * CHUNK_SIZE + 1, queue.sendStream(new ZeroStream(2L * CHUNK_SIZE + 1), 1000));
+        queue.sendText("after");
+        Assert.assertEquals(Arrays.asList("partial", "partial", "last", "text:after"), fake.getEvents());
+    }
+
+    @Test
+    public void testFramesSentInOrderOneAtATime() {
+        FakeSession fake = new FakeSession("s4");
+        fake.setHoldAsyncSends(true);
+        OutboundQueue queue = new OutboundQueue(fake.getSession(), 10, OutboundQueue.SlowConsumerPolicy.CLOSE_SESSION);
+        CompletableFuture<Void> first = queue.sendText("1");
+        CompletableFuture<Void> second = queue.sendText("2");
+        CompletableFuture<Void> third = queue.sendBinary(ByteBuffer.wrap(new byte[] { 3 }));
+        Assert.assertEquals("the next frame waits for the pending send", Arrays.asList("text:1"), fake.getEvents());
+        Assert.assertEquals(2, queue.depth());
+        Assert.assertFalse(first.isDone());
+
+        fake.completeHeldSends();
+        Assert.assertTrue(first.isDone());
+        Assert.assertEquals(Arrays.asList("text:1", "text:2"), fake.getEvents());
+        fake.completeHeldSends();
+        fake.completeHeldSends();
+        Assert.assertEquals(Arrays.asList("text:1", "text:2", "binary"), fake.getEvents());
+        Assert.assertTrue(second.isDone() && third.isDone());
+        Assert.assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void testSynchronousCompletionsDoNotGrowTheStack() {
+        int count = 200000;
+        FakeSession fake = new FakeSession("s5");
+        fake.setHoldAsyncSends(true);
+        OutboundQueue queue = new OutboundQueue(fake.getSession(), count,
+                OutboundQueue.SlowConsumerPolicy.CLOSE_SESSION);
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < count; i++) {
+            last = queue.sendText("t");
+        }
+        /* from now on, each send completes before sendText() returns */
+        fake.setHoldAsyncSends(false);
+        fake.completeHeldSends();
+        Assert.assertTrue(last.isDone() && !last.isCompletedExceptionally());
+        Assert.assertEquals(count, fake.getEvents().size());
+        Assert.assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void testDropOldest() {
+        FakeSession fake = new FakeSession("s6");
+        fake.setHoldAsyncSends(true);
+        OutboundQueue queue = new OutboundQueue(fake.getSession(), 2, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+        long droppedBefore = OutboundQueue.getDroppedCount();
+        queue.sendText("1");
+        CompletableFuture<Void> second = queue.sendText("2");
+        queue.sendText("3");
+        CompletableFuture<Void> fourth = queue.sendText("4");
+        Assert.assertTrue(second.isCompletedExceptionally());
+        Assert.assertEquals(droppedBefore + 1, OutboundQueue.getDroppedCount());
+        Assert.assertEquals(2, queue.depth());
+
+        fake.setHoldAsyncSends(false);
+        fake.completeHeldSends();
+        Assert.assertEquals(Arrays.asList("text:1", "text:3", "text:4"), fake.getEvents());
+        Assert.assertTrue(fourth.isDone() && !fourth.isCompletedExceptionally());
+        Assert.assertTrue(fake.isOpen());
+    }
+
+    @Test
+    public void testSlowConsumerClosed() {
+        FakeSession fake = new FakeSession("s7");
+        fake.setHoldAsyncSends(true);
+        OutboundQueue queue = new OutboundQueue(fake.getSession(), 1, OutboundQueue.SlowConsumerPolicy.CLOSE_SESSION);
+        long closedBefore = OutboundQueue.getSlowConsumersClosedCount();
+        queue.sendText("1");
+        CompletableFuture<Void> second = queue.sendText("2");
+        CompletableFuture<Void> third = queue.sendText("3");
+        Assert.assertTrue(third.isCompletedExceptionally());
+        Assert.assertFalse(second.isDone());
+        Assert.assertFalse(fake.isOpen());
+        Assert.assertEquals(CloseReason.CloseCodes.TRY_AGAIN_LATER, fake.getCloseReason().getCloseCode());
+        Assert.assertEquals(closedBefore + 1, OutboundQueue.getSlowConsumersClosedCount());
+        Assert.assertEquals(Arrays.asList("text:1", "close:" + CloseReason.CloseCodes.TRY_AGAIN_LATER.getCode()),
+                fake.getEvents());
+    }
+}
@@ -160,11 +160,11 @@ public class Metric implements Serializable {
     }
 
     public Map<String, String> getLabels() {
-        return Collections.unmodifiableMap(labels);
+        return labels != null ? Collections.unmodifiableMap(labels) : Collections.emptyMap();
     }
 
     public Map<String, String> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        return properties != null ? Collections.unmodifiableMap(properties) : Collections.emptyMap();
     }
 
     @Override
@@ -193,11 +193,11 @@ public class RawResource implements Serializable {
     }
 
     public Map<String, String> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        return properties != null ? Collections.unmodifiableMap(properties) : Collections.emptyMap();
     }
 
     public Map<String, String> getConfig() {
-        return Collections.unmodifiableMap(config);
+        return config != null ? Collections.unmodifiableMap(config) : Collections.emptyMap();
     }
 
     @Override
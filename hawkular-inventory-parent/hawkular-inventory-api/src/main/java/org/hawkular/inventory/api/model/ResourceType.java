@@ -101,11 +101,11 @@ public class ResourceType implements Serializable {
     }
 
     public Collection<Operation> getOperations() {
-        return Collections.unmodifiableCollection(operations);
+        return operations != null ? Collections.unmodifiableCollection(operations) : Collections.emptyList();
     }
 
     public Map<String, String> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        return properties != null ? Collections.unmodifiableMap(properties) : Collections.emptyMap();
     }
 
     @Override
@@ -96,4 +96,12 @@ public interface MsgLogger {
     @LogMessage(level = Level.ERROR)
     @Message(id = 100016, value = "Cannot unregister feed [%s] metrics endpoint")
     void errorCannotUnregisterMetricsEndpoint(String feedId);
+
+    @LogMessage(level = Level.INFO)
+    @Message(id = 100017, value = "Inventory is rewriting its store in the compact format")
+    void infoStartStoreRewrite();
+
+    @LogMessage(level = Level.INFO)
+    @Message(id = 100018, value = "Inventory rewrote [%s] entries in [%s] ms")
+    void infoStopStoreRewrite(int count, long time);
 }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -32,8 +33,11 @@ import javax.enterprise.inject.Produces;
 import org.hawkular.commons.json.JsonUtil;
 import org.hawkular.inventory.log.InventoryLoggers;
 import org.hawkular.inventory.log.MsgLogger;
+import org.hawkular.inventory.service.ispn.InventoryExternalizers;
+import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
 import org.infinispan.configuration.cache.SingleFileStoreConfiguration;
+import org.infinispan.context.Flag;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
 import org.infinispan.query.Search;
@@ -51,6 +55,11 @@ public class InventoryConfig {
 
     private static final String ISPN_REINDEX = "hawkular-inventory.reindex";
     private static final String ISPN_REINDEX_DEFAULT = "true";
+    /**
+     * A file marking a store all entries of which have been rewritten in the compact form of
+     * {@link InventoryExternalizers}. Deleting it makes the next start rewrite the store again.
+     */
+    static final String COMPACT_STORE_MARKER = "compact-store-v1";
     public static final String CACHE_CONFIGURATION = "hawkular-inventory-ispn.xml";
     public static final String RESOURCE_CACHE_NAME = "resource";
     public static final String RESOURCE_TYPE_CACHE_NAME = "resource_type";
@@ -121,6 +130,14 @@ public class InventoryConfig {
                 throw new IllegalStateException("Inventory query factory for resource_type cache is not found");
             }
 
+            inventoryLocation = new File(((SingleFileStoreConfiguration) resource.getAdvancedCache()
+                    .getCacheConfiguration()
+                    .persistence()
+                    .stores()
+                    .iterator()
+                    .next()).location());
+            rewriteStoreIfNeeded(inventoryLocation, resource, resourceType);
+
             if (ispnReindex) {
                 log.infoStartInventoryReindex();
                 long startReindex = System.currentTimeMillis();
@@ -132,12 +149,6 @@ public class InventoryConfig {
                 long stopReindex = System.currentTimeMillis();
                 log.infoStopInventoryReindex((stopReindex - startReindex));
             }
-            inventoryLocation = new File(((SingleFileStoreConfiguration) resource.getAdvancedCache()
-                    .getCacheConfiguration()
-                    .persistence()
-                    .stores()
-                    .iterator()
-                    .next()).location());
             File scrapeConfigFile = new File(configPath.toFile(), SCRAPE_CONFIGURATION);
             if (scrapeConfigFile.exists()) {
                 scrapeConfig = JsonUtil.getYamlMapper().readValue(scrapeConfigFile, ScrapeConfig.class);
@@ -154,6 +165,45 @@ public class InventoryConfig {
         }
     }
 
+    /**
+     * Entries written before {@link InventoryExternalizers} were registered are still in the Java serialized form.
+     * They can be read as they are, but each of them is put back once, so that the file store ends up compact without
+     * waiting for the resource to be updated. The index is skipped as the entries do not change.
+     *
+     * @param inventoryLocation the directory of the file store where the marker of a rewritten store is kept
+     * @param resource the resource cache
+     * @param resourceType the resource type cache
+     * @return the number of entries rewritten, {@code 0} if the store had been rewritten before
+     * @throws IOException if the marker cannot be created
+     */
+    static int rewriteStoreIfNeeded(File inventoryLocation, Cache<String, Object> resource,
+            Cache<String, Object> resourceType) throws IOException {
+        File marker = new File(inventoryLocation, COMPACT_STORE_MARKER);
+        if (marker.exists()) {
+            return 0;
+        }
+        log.infoStartStoreRewrite();
+        long start = System.currentTimeMillis();
+        int count = rewrite(resource) + rewrite(resourceType);
+        inventoryLocation.mkdirs();
+        marker.createNewFile();
+        log.infoStopStoreRewrite(count, System.currentTimeMillis() - start);
+        return count;
+    }
+
+    private static int rewrite(Cache<String, Object> cache) {
+        AdvancedCache<String, Object> skipIndexing = cache.getAdvancedCache().withFlags(Flag.SKIP_INDEXING);
+        int count = 0;
+        for (String key : new ArrayList<>(cache.keySet())) {
+            Object value = cache.get(key);
+            if (value != null) {
+                skipIndexing.put(key, value);
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Produces
     @InventoryResource
     public Cache<String, Object> getResourceCache() {
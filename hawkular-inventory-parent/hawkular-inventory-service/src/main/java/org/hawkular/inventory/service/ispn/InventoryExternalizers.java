@@ -0,0 +1,396 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.service.ispn;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.MetricUnit;
+import org.hawkular.inventory.api.model.Operation;
+import org.hawkular.inventory.api.model.RawResource;
+import org.hawkular.inventory.api.model.ResourceType;
+import org.infinispan.commons.io.UnsignedNumeric;
+import org.infinispan.commons.marshall.AbstractExternalizer;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+
+/**
+ * Infinispan {@link AdvancedExternalizer}s storing the inventory entities in a compact binary form rather than through
+ * Java serialization with its full class descriptors. They are registered in the {@code <serialization>} section of
+ * {@code hawkular-inventory-ispn.xml}.
+ * <p>
+ * Every entry starts with a format version byte. Sizes are written as variable length integers and the strings of an
+ * entry go through a {@link StringTable} so that the keys and values repeated across metrics, labels and operation
+ * parameters are written just once per entry. The redundant fields of {@link IspnResource} and
+ * {@link IspnResourceType} are not written at all, they are derived from the wrapped entity when read.
+ * <p>
+ * The entity classes keep their default serialized form so that the entries written before these externalizers were
+ * registered can still be read. {@link org.hawkular.inventory.service.InventoryConfig} rewrites such entries once.
+ */
+public final class InventoryExternalizers {
+
+    /** the first of the externalizer ids reserved for the inventory */
+    private static final int ID_BASE = 7700;
+    public static final int ISPN_RESOURCE_ID = ID_BASE;
+    public static final int ISPN_RESOURCE_TYPE_ID = ID_BASE + 1;
+    public static final int RAW_RESOURCE_ID = ID_BASE + 2;
+    public static final int RESOURCE_TYPE_ID = ID_BASE + 3;
+    public static final int METRIC_ID = ID_BASE + 4;
+    public static final int OPERATION_ID = ID_BASE + 5;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Writes each distinct string of an entry once and refers to it by its index afterwards. A string is written as
+     * {@code 0} for {@code null}, {@code 1} followed by the length and the UTF-8 bytes for a new string, or the
+     * index of a string written before plus {@code 2}.
+     */
+    static final class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        void write(ObjectOutput out, String s) throws IOException {
+            if (s == null) {
+                UnsignedNumeric.writeUnsignedInt(out, 0);
+                return;
+            }
+            Integer index = indexes.get(s);
+            if (index != null) {
+                UnsignedNumeric.writeUnsignedInt(out, index + 2);
+                return;
+            }
+            indexes.put(s, indexes.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            UnsignedNumeric.writeUnsignedInt(out, 1);
+            UnsignedNumeric.writeUnsignedInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        String read(ObjectInput in) throws IOException {
+            int code = UnsignedNumeric.readUnsignedInt(in);
+            if (code == 0) {
+                return null;
+            } else if (code == 1) {
+                byte[] bytes = new byte[UnsignedNumeric.readUnsignedInt(in)];
+                in.readFully(bytes);
+                String s = new String(bytes, StandardCharsets.UTF_8);
+                strings.add(s);
+                return s;
+            } else if (code - 2 < strings.size()) {
+                return strings.get(code - 2);
+            }
+            throw new IOException("Invalid string reference [" + code + "], only [" + strings.size()
+                    + "] strings were read so far");
+        }
+    }
+
+    public static class IspnResourceExternalizer extends AbstractExternalizer<IspnResource> {
+        @Override
+        public Integer getId() {
+            return ISPN_RESOURCE_ID;
+        }
+
+        @Override
+        public Set<Class<? extends IspnResource>> getTypeClasses() {
+            return Collections.singleton(IspnResource.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, IspnResource object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeRawResource(output, new StringTable(), object.getRawResource());
+        }
+
+        @Override
+        public IspnResource readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return new IspnResource(readRawResource(input, new StringTable()));
+        }
+    }
+
+    public static class IspnResourceTypeExternalizer extends AbstractExternalizer<IspnResourceType> {
+        @Override
+        public Integer getId() {
+            return ISPN_RESOURCE_TYPE_ID;
+        }
+
+        @Override
+        public Set<Class<? extends IspnResourceType>> getTypeClasses() {
+            return Collections.singleton(IspnResourceType.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, IspnResourceType object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeResourceType(output, new StringTable(), object.getResourceType());
+        }
+
+        @Override
+        public IspnResourceType readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return new IspnResourceType(readResourceType(input, new StringTable()));
+        }
+    }
+
+    public static class RawResourceExternalizer extends AbstractExternalizer<RawResource> {
+        @Override
+        public Integer getId() {
+            return RAW_RESOURCE_ID;
+        }
+
+        @Override
+        public Set<Class<? extends RawResource>> getTypeClasses() {
+            return Collections.singleton(RawResource.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, RawResource object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeRawResource(output, new StringTable(), object);
+        }
+
+        @Override
+        public RawResource readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return readRawResource(input, new StringTable());
+        }
+    }
+
+    public static class ResourceTypeExternalizer extends AbstractExternalizer<ResourceType> {
+        @Override
+        public Integer getId() {
+            return RESOURCE_TYPE_ID;
+        }
+
+        @Override
+        public Set<Class<? extends ResourceType>> getTypeClasses() {
+            return Collections.singleton(ResourceType.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, ResourceType object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeResourceType(output, new StringTable(), object);
+        }
+
+        @Override
+        public ResourceType readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return readResourceType(input, new StringTable());
+        }
+    }
+
+    public static class MetricExternalizer extends AbstractExternalizer<Metric> {
+        @Override
+        public Integer getId() {
+            return METRIC_ID;
+        }
+
+        @Override
+        public Set<Class<? extends Metric>> getTypeClasses() {
+            return Collections.singleton(Metric.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, Metric object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeMetric(output, new StringTable(), object);
+        }
+
+        @Override
+        public Metric readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return readMetric(input, new StringTable());
+        }
+    }
+
+    public static class OperationExternalizer extends AbstractExternalizer<Operation> {
+        @Override
+        public Integer getId() {
+            return OPERATION_ID;
+        }
+
+        @Override
+        public Set<Class<? extends Operation>> getTypeClasses() {
+            return Collections.singleton(Operation.class);
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, Operation object) throws IOException {
+            output.writeByte(FORMAT_VERSION);
+            writeOperation(output, new StringTable(), object);
+        }
+
+        @Override
+        public Operation readObject(ObjectInput input) throws IOException {
+            readFormatVersion(input);
+            return readOperation(input, new StringTable());
+        }
+    }
+
+    private InventoryExternalizers() {
+    }
+
+    private static void readFormatVersion(ObjectInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported inventory entry format version [" + version + "]");
+        }
+    }
+
+    static void writeRawResource(ObjectOutput out, StringTable strings, RawResource r) throws IOException {
+        strings.write(out, r.getId());
+        strings.write(out, r.getName());
+        strings.write(out, r.getFeedId());
+        strings.write(out, r.getTypeId());
+        strings.write(out, r.getParentId());
+        List<Metric> metrics = r.getMetrics();
+        writeSize(out, metrics);
+        if (metrics != null) {
+            for (Metric metric : metrics) {
+                writeMetric(out, strings, metric);
+            }
+        }
+        writeMap(out, strings, r.getProperties());
+        writeMap(out, strings, r.getConfig());
+    }
+
+    static RawResource readRawResource(ObjectInput in, StringTable strings) throws IOException {
+        String id = strings.read(in);
+        String name = strings.read(in);
+        String feedId = strings.read(in);
+        String typeId = strings.read(in);
+        String parentId = strings.read(in);
+        int size = readSize(in);
+        List<Metric> metrics = null;
+        if (size >= 0) {
+            metrics = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                metrics.add(readMetric(in, strings));
+            }
+        }
+        return new RawResource(id, name, feedId, typeId, parentId, metrics, readMap(in, strings),
+                readMap(in, strings));
+    }
+
+    static void writeMetric(ObjectOutput out, StringTable strings, Metric m) throws IOException {
+        strings.write(out, m.getDisplayName());
+        strings.write(out, m.getFamily());
+        /* the name rather than the ordinal so that reordering the units does not corrupt the store */
+        strings.write(out, m.getUnit() == null ? null : m.getUnit().name());
+        strings.write(out, m.getExpression());
+        writeMap(out, strings, m.getLabels());
+        writeMap(out, strings, m.getProperties());
+    }
+
+    static Metric readMetric(ObjectInput in, StringTable strings) throws IOException {
+        String displayName = strings.read(in);
+        String family = strings.read(in);
+        String unit = strings.read(in);
+        String expression = strings.read(in);
+        return new Metric(displayName, family, unit == null ? null : MetricUnit.valueOf(unit), expression,
+                readMap(in, strings), readMap(in, strings));
+    }
+
+    static void writeResourceType(ObjectOutput out, StringTable strings, ResourceType rt) throws IOException {
+        strings.write(out, rt.getId());
+        Collection<Operation> operations = rt.getOperations();
+        writeSize(out, operations);
+        for (Operation operation : operations) {
+            writeOperation(out, strings, operation);
+        }
+        writeMap(out, strings, rt.getProperties());
+    }
+
+    static ResourceType readResourceType(ObjectInput in, StringTable strings) throws IOException {
+        String id = strings.read(in);
+        int size = readSize(in);
+        List<Operation> operations = new ArrayList<>(Math.max(size, 0));
+        for (int i = 0; i < size; i++) {
+            operations.add(readOperation(in, strings));
+        }
+        return new ResourceType(id, operations, readMap(in, strings));
+    }
+
+    static void writeOperation(ObjectOutput out, StringTable strings, Operation op) throws IOException {
+        strings.write(out, op.getName());
+        Map<String, Map<String, String>> parameters = op.getParameters();
+        writeSize(out, parameters.keySet());
+        for (Map.Entry<String, Map<String, String>> en : parameters.entrySet()) {
+            strings.write(out, en.getKey());
+            writeMap(out, strings, en.getValue());
+        }
+    }
+
+    static Operation readOperation(ObjectInput in, StringTable strings) throws IOException {
+        String name = strings.read(in);
+        int size = readSize(in);
+        Map<String, Map<String, String>> parameters = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = strings.read(in);
+            parameters.put(key, readMap(in, strings));
+        }
+        return new Operation(name, parameters);
+    }
+
+    /**
+     * Writes {@code 0} for a {@code null} collection, its size plus one otherwise.
+     */
+    private static void writeSize(ObjectOutput out, Collection<?> c) throws IOException {
+        UnsignedNumeric.writeUnsignedInt(out, c == null ? 0 : c.size() + 1);
+    }
+
+    /**
+     * @return the size written by {@link #writeSize(ObjectOutput, Collection)} or {@code -1} for {@code null}
+     */
+    private static int readSize(ObjectInput in) throws IOException {
+        return UnsignedNumeric.readUnsignedInt(in) - 1;
+    }
+
+    private static void writeMap(ObjectOutput out, StringTable strings, Map<String, String> map)
+            throws IOException {
+        writeSize(out, map == null ? null : map.keySet());
+        if (map != null) {
+            for (Map.Entry<String, String> en : map.entrySet()) {
+                strings.write(out, en.getKey());
+                strings.write(out, en.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(ObjectInput in, StringTable strings) throws IOException {
+        int size = readSize(in);
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> result = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = strings.read(in);
+            result.put(key, strings.read(in));
+        }
+        return result;
+    }
+}
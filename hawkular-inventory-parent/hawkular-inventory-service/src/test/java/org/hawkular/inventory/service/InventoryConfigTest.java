@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.hawkular.inventory.Resources;
+import org.hawkular.inventory.service.ispn.InventoryExternalizers;
+import org.hawkular.inventory.service.ispn.IspnResource;
+import org.hawkular.inventory.service.ispn.IspnResourceType;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a file store written before {@link InventoryExternalizers} were registered is rewritten in their compact
+ * form on the first start with them.
+ */
+public class InventoryConfigTest {
+
+    private static final File STORE_LOCATION = new File("target/persisted/inventory-config-test");
+
+    private static EmbeddedCacheManager startCacheManager(boolean externalizers, boolean preload) {
+        GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+        global.globalJmxStatistics().allowDuplicateDomains(true);
+        if (externalizers) {
+            global.serialization()
+                    .addAdvancedExternalizer(new InventoryExternalizers.IspnResourceExternalizer())
+                    .addAdvancedExternalizer(new InventoryExternalizers.IspnResourceTypeExternalizer())
+                    .addAdvancedExternalizer(new InventoryExternalizers.RawResourceExternalizer())
+                    .addAdvancedExternalizer(new InventoryExternalizers.ResourceTypeExternalizer())
+                    .addAdvancedExternalizer(new InventoryExternalizers.MetricExternalizer())
+                    .addAdvancedExternalizer(new InventoryExternalizers.OperationExternalizer());
+        }
+        Configuration cache = new ConfigurationBuilder()
+                .persistence()
+                .passivation(false)
+                .addSingleFileStore()
+                .location(STORE_LOCATION.getPath())
+                .preload(preload)
+                .purgeOnStartup(false)
+                .build();
+        EmbeddedCacheManager result = new DefaultCacheManager(global.build());
+        result.defineConfiguration(InventoryConfig.RESOURCE_CACHE_NAME, cache);
+        result.defineConfiguration(InventoryConfig.RESOURCE_TYPE_CACHE_NAME, cache);
+        return result;
+    }
+
+    @Before
+    public void deleteStore() throws IOException {
+        if (STORE_LOCATION.exists()) {
+            try (Stream<Path> paths = Files.walk(STORE_LOCATION.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRewriteJavaSerializedStore() throws IOException {
+        EmbeddedCacheManager legacy = startCacheManager(false, true);
+        try {
+            legacy.<String, Object> getCache(InventoryConfig.RESOURCE_CACHE_NAME)
+                    .put(Resources.EAP1.getId(), new IspnResource(Resources.EAP1));
+            legacy.<String, Object> getCache(InventoryConfig.RESOURCE_CACHE_NAME)
+                    .put(Resources.CHILD1.getId(), new IspnResource(Resources.CHILD1));
+            legacy.<String, Object> getCache(InventoryConfig.RESOURCE_TYPE_CACHE_NAME)
+                    .put(Resources.TYPE_EAP.getId(), new IspnResourceType(Resources.TYPE_EAP));
+        } finally {
+            legacy.stop();
+        }
+        File marker = new File(STORE_LOCATION, InventoryConfig.COMPACT_STORE_MARKER);
+        assertThat(marker).doesNotExist();
+
+        EmbeddedCacheManager compact = startCacheManager(true, true);
+        try {
+            Cache<String, Object> resource = compact.getCache(InventoryConfig.RESOURCE_CACHE_NAME);
+            Cache<String, Object> resourceType = compact.getCache(InventoryConfig.RESOURCE_TYPE_CACHE_NAME);
+            /* the Java serialized entries are still readable */
+            assertThat(((IspnResource) resource.get(Resources.EAP1.getId())).getRawResource())
+                    .isEqualToComparingFieldByFieldRecursively(Resources.EAP1);
+
+            assertThat(InventoryConfig.rewriteStoreIfNeeded(STORE_LOCATION, resource, resourceType)).isEqualTo(3);
+            assertThat(marker).exists();
+            /* the marker prevents a second rewrite */
+            assertThat(InventoryConfig.rewriteStoreIfNeeded(STORE_LOCATION, resource, resourceType)).isEqualTo(0);
+
+            assertThat(((IspnResource) resource.get(Resources.CHILD1.getId())).getRawResource())
+                    .isEqualToComparingFieldByFieldRecursively(Resources.CHILD1);
+            assertThat(((IspnResourceType) resourceType.get(Resources.TYPE_EAP.getId())).getResourceType())
+                    .isEqualToComparingFieldByFieldRecursively(Resources.TYPE_EAP);
+        } finally {
+            compact.stop();
+        }
+
+        /*
+         * the rewritten entries can be read with the externalizers only, which proves they are not Java serialized;
+         * without preloading so that the cache manager starts
+         */
+        EmbeddedCacheManager withoutExternalizers = startCacheManager(false, false);
+        try {
+            Cache<String, Object> resource = withoutExternalizers.getCache(InventoryConfig.RESOURCE_CACHE_NAME);
+            assertThatThrownBy(() -> resource.get(Resources.EAP1.getId())).isInstanceOf(Exception.class);
+        } finally {
+            withoutExternalizers.stop();
+        }
+
+        EmbeddedCacheManager restarted = startCacheManager(true, true);
+        try {
+            Cache<String, Object> resource = restarted.getCache(InventoryConfig.RESOURCE_CACHE_NAME);
+            assertThat(resource.keySet()).containsOnly(Resources.EAP1.getId(), Resources.CHILD1.getId());
+            assertThat(((IspnResource) resource.get(Resources.EAP1.getId())).getRawResource())
+                    .isEqualToComparingFieldByFieldRecursively(Resources.EAP1);
+        } finally {
+            restarted.stop();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.inventory.service.ispn;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hawkular.inventory.Resources;
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.MetricUnit;
+import org.hawkular.inventory.api.model.RawResource;
+import org.hawkular.inventory.api.model.ResourceType;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.junit.Test;
+
+public class InventoryExternalizersTest {
+
+    private static final RawResource WITH_METRICS;
+    static {
+        RawResource.Builder builder = RawResource.builder()
+                .id("datasource-1")
+                .name("Datasource 1")
+                .feedId("feed1")
+                .typeId("Datasource")
+                .parentId("EAP-1")
+                .property("jndi", "java:/ds1")
+                .config("url", "jdbc:h2:mem:test");
+        for (int i = 0; i < 20; i++) {
+            builder.metric(Metric.builder()
+                    .displayName("Metric " + i)
+                    .family("jboss_datasources_pool")
+                    .unit(MetricUnit.NONE)
+                    .expression("jboss_datasources_pool{feed_id=\"feed1\",name=\"ds1\"}")
+                    .label("feed_id", "feed1")
+                    .label("name", "ds1")
+                    .property("kind", "gauge")
+                    .build());
+        }
+        WITH_METRICS = builder.build();
+    }
+
+    private static <T> T roundTrip(AdvancedExternalizer<T> externalizer, T object) throws Exception {
+        return externalizer.readObject(new ObjectInputStream(new ByteArrayInputStream(marshall(externalizer,
+                object))));
+    }
+
+    private static <T> byte[] marshall(AdvancedExternalizer<T> externalizer, T object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            externalizer.writeObject(out, object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void shouldRoundTripResources() throws Exception {
+        InventoryExternalizers.IspnResourceExternalizer externalizer =
+                new InventoryExternalizers.IspnResourceExternalizer();
+        List<RawResource> resources = new ArrayList<>(Resources.INVENTORY.getResources());
+        resources.add(WITH_METRICS);
+        for (RawResource raw : resources) {
+            IspnResource read = roundTrip(externalizer, new IspnResource(raw));
+            assertThat(read.getFeedId()).isEqualTo(raw.getFeedId());
+            assertThat(read.getTypeId()).isEqualTo(raw.getTypeId());
+            assertThat(read.getParentId()).isEqualTo(raw.getParentId());
+            assertThat(read.getRawResource()).isEqualToComparingFieldByFieldRecursively(raw);
+        }
+    }
+
+    @Test
+    public void shouldRoundTripResourceTypes() throws Exception {
+        InventoryExternalizers.IspnResourceTypeExternalizer externalizer =
+                new InventoryExternalizers.IspnResourceTypeExternalizer();
+        for (ResourceType type : Resources.INVENTORY.getTypes()) {
+            IspnResourceType read = roundTrip(externalizer, new IspnResourceType(type));
+            assertThat(read.getId()).isEqualTo(type.getId());
+            assertThat(read.getResourceType()).isEqualToComparingFieldByFieldRecursively(type);
+        }
+    }
+
+    @Test
+    public void shouldKeepNulls() throws Exception {
+        RawResource raw = new RawResource("r", null, null, null, null, null, null, null);
+        RawResource read = roundTrip(new InventoryExternalizers.RawResourceExternalizer(), raw);
+        assertThat(read.getName()).isNull();
+        assertThat(read.getMetrics()).isNull();
+        assertThat(read.getProperties()).isEmpty();
+        Metric metric = roundTrip(new InventoryExternalizers.MetricExternalizer(),
+                new Metric(null, "f", null, null, null, null));
+        assertThat(metric.getFamily()).isEqualTo("f");
+        assertThat(metric.getUnit()).isNull();
+        assertThat(metric.getLabels()).isEmpty();
+    }
+
+    @Test
+    public void shouldBeMuchSmallerThanJavaSerialization() throws Exception {
+        int compact = marshall(new InventoryExternalizers.IspnResourceExternalizer(), new IspnResource(WITH_METRICS))
+                .length;
+        int serialized = serialize(new IspnResource(WITH_METRICS)).length;
+        assertThat(compact).isLessThan(serialized / 3);
+    }
+}